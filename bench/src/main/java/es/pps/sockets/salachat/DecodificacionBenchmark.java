@@ -0,0 +1,125 @@
+package es.pps.sockets.salachat;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import es.pps.sockets.comun.LectorTramas;
+
+/**
+ * Lectura de líneas tal y como la hacen las hebras de entrada: con un
+ * BufferedReader que decodifica cada línea a String (como hacían antes los
+ * clientes) frente al LectorTramas que busca los fines de línea en los bytes
+ * y se los pasa a Mensaje sin decodificarlos, ya sea copiando cada línea a un
+ * array (leeLinea()) o directamente desde su buffer (siguienteLinea(), como
+ * salachat.RecibeYEscribe).
+ *
+ * Cada invocación lee LINEAS líneas de un array en memoria, así que sólo se
+ * mide la decodificación, no el socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodificacionBenchmark {
+
+	/**
+	 * Bytes de texto de cada línea (sin el nombre ni el fin de línea).
+	 */
+	@Param({ "16", "128", "1024" })
+	public int longitud;
+
+	/**
+	 * Prepara la entrada: LINEAS líneas "[nombre] texto" con fin de línea.
+	 */
+	@Setup
+	public void prepara() {
+
+		StringBuilder texto = new StringBuilder();
+		while (texto.length() < longitud)
+			texto.append("hola qué tal, ");
+		texto.setLength(longitud);
+		String linea = "[ana] " + texto + System.lineSeparator();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] unaLinea = linea.getBytes(Mensaje.CHARSET);
+		for (int i = 0; i < LINEAS; ++i)
+			bytes.write(unaLinea, 0, unaLinea.length);
+		_entrada = bytes.toByteArray();
+
+	} // prepara
+
+	// --------------------------------------------------------
+
+	@Benchmark
+	@OperationsPerInvocation(LINEAS)
+	public void bufferedReader(Blackhole bh) throws IOException {
+
+		BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(_entrada)));
+		String linea;
+		while ((linea = br.readLine()) != null)
+			bh.consume(linea);
+
+	} // bufferedReader
+
+	// --------------------------------------------------------
+
+	@Benchmark
+	@OperationsPerInvocation(LINEAS)
+	public void lectorTramas(Blackhole bh) throws IOException {
+
+		LectorTramas lector = new LectorTramas(new ByteArrayInputStream(_entrada));
+		byte[] linea;
+		while ((linea = lector.leeLinea()) != null)
+			bh.consume(Mensaje.deBytes(ByteBuffer.wrap(linea), 0, linea.length));
+
+	} // lectorTramas
+
+	// --------------------------------------------------------
+
+	@Benchmark
+	@OperationsPerInvocation(LINEAS)
+	public void lectorTramasSinCopia(Blackhole bh) throws IOException {
+
+		LectorTramas lector = new LectorTramas(new ByteArrayInputStream(_entrada));
+		while (lector.siguienteLinea()) {
+			ByteBuffer linea = lector.linea();
+			bh.consume(Mensaje.deBytes(linea, linea.position(), linea.remaining()));
+		}
+
+	} // lectorTramasSinCopia
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Líneas leídas en cada invocación.
+	 */
+	static final int LINEAS = 1000;
+
+	/**
+	 * Bytes de entrada.
+	 */
+	byte[] _entrada;
+
+} // DecodificacionBenchmark
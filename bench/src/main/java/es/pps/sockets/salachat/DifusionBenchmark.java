@@ -0,0 +1,154 @@
+package es.pps.sockets.salachat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reparto de un mensaje entre los miembros de una sala: Sala.difunde() con su
+ * recorrido de la instantánea del registro, el encolado en la ColaSalida de
+ * cada miembro y la anotación en el historial. El despachador es la propia
+ * hebra de la prueba, y después de cada reparto se vacían las colas como lo
+ * haría la hebra escritora de cada cliente (sin escribir en ningún socket).
+ *
+ * Se compara con codificar el mensaje una vez por destinatario, que es lo que
+ * hace un servidor que escribe el texto en el PrintWriter de cada cliente.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DifusionBenchmark {
+
+	/**
+	 * Miembros de la sala, además del que envía.
+	 */
+	@Param({ "2", "100", "1000" })
+	public int suscriptores;
+
+	/**
+	 * Crea la sala con sus miembros, ya al día.
+	 */
+	@Setup
+	public void prepara() {
+
+		_sala = new Sala("general", Runnable::run, null);
+		_miembros = new Miembro[suscriptores];
+		for (int i = 0; i < suscriptores; ++i) {
+			_miembros[i] = new Miembro();
+			_miembros[i]._alDia = _sala;
+			_sala.miembros().alta(_miembros[i]);
+		}
+		_origen = new Miembro();
+		_origen._alDia = _sala;
+		_sala.miembros().alta(_origen);
+
+	} // prepara
+
+	// --------------------------------------------------------
+
+	@Benchmark
+	public void mensajeCompartido(Blackhole bh) {
+
+		_sala.difunde(_origen, Mensaje.deTexto(TEXTO));
+		vacia(bh);
+
+	} // mensajeCompartido
+
+	// --------------------------------------------------------
+
+	@Benchmark
+	public void codificaPorDestinatario(Blackhole bh) {
+
+		for (Cliente cliente : _sala.miembros().instantanea()) {
+			if (cliente != _origen)
+				cliente.encola(Mensaje.deTexto(TEXTO));
+		}
+		vacia(bh);
+
+	} // codificaPorDestinatario
+
+	// --------------------------------------------------------
+
+	/**
+	 * Miembro de la sala sin conexión: sólo tiene su cola de salida.
+	 */
+	static class Miembro extends Cliente {
+
+		@Override
+		void encola(Mensaje mensaje) {
+			_cola.encola(mensaje);
+		}
+
+		@Override
+		void cierra() {
+		}
+
+		@Override
+		int profundidadCola() {
+			return _cola.profundidad();
+		}
+
+		@Override
+		String direccion() {
+			return "-";
+		}
+
+		ColaSalida<Mensaje> _cola = new ColaSalida<Mensaje>(Configuracion.CAPACIDAD_COLA,
+				PoliticaDesbordamiento.DESCARTAR_ANTIGUO, 0);
+
+	} // Miembro
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Saca de las colas lo repartido, como harían las hebras escritoras.
+	 *
+	 * @param bh Sumidero de los mensajes.
+	 */
+	void vacia(Blackhole bh) {
+
+		for (Miembro miembro : _miembros) {
+			Mensaje m;
+			while ((m = miembro._cola.tomaSiHay()) != null)
+				bh.consume(m.vista());
+		}
+
+	} // vacia
+
+	/**
+	 * Texto repartido.
+	 */
+	static final String TEXTO = "[ana] hola qué tal estáis en la sala general";
+
+	/**
+	 * Sala en la que se reparte.
+	 */
+	Sala _sala;
+
+	/**
+	 * Miembros que reciben el mensaje.
+	 */
+	Miembro[] _miembros;
+
+	/**
+	 * Miembro que envía el mensaje.
+	 */
+	Miembro _origen;
+
+} // DifusionBenchmark
@@ -0,0 +1,109 @@
+package es.pps.sockets.salachat;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Escritura de mensajes en la salida de un cliente: println() en un
+ * PrintWriter, que codifica el texto en cada escritura, frente a escribir los
+ * bytes ya codificados de un Mensaje por un canal, como hace la hebra
+ * escritora de ClienteSocket. Cada operación escribe un lote de mensajes y
+ * fuerza el envío una vez; la salida no va a ningún socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscrituraBenchmark {
+
+	/**
+	 * Mensajes escritos antes de cada flush().
+	 */
+	@Param({ "1", "16" })
+	public int lote;
+
+	/**
+	 * Prepara las dos salidas y el mensaje ya codificado.
+	 */
+	@Setup
+	public void prepara() {
+
+		OutputStream sumidero = OutputStream.nullOutputStream();
+		_printWriter = new PrintWriter(new BufferedOutputStream(sumidero, TAM_BUFFER));
+		_out = new BufferedOutputStream(sumidero, TAM_BUFFER);
+		_canal = Channels.newChannel(_out);
+		_mensaje = Mensaje.deTexto(DifusionBenchmark.TEXTO);
+
+	} // prepara
+
+	// --------------------------------------------------------
+
+	@Benchmark
+	public void printWriter() {
+
+		for (int i = 0; i < lote; ++i)
+			_printWriter.println(DifusionBenchmark.TEXTO);
+		_printWriter.flush();
+
+	} // printWriter
+
+	// --------------------------------------------------------
+
+	@Benchmark
+	public void bytesCodificados() throws IOException {
+
+		for (int i = 0; i < lote; ++i)
+			_canal.write(_mensaje.vista());
+		_out.flush();
+
+	} // bytesCodificados
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Tamaño de los buffers de salida.
+	 */
+	static final int TAM_BUFFER = 8192;
+
+	/**
+	 * Salida con PrintWriter.
+	 */
+	PrintWriter _printWriter;
+
+	/**
+	 * Salida de bytes.
+	 */
+	BufferedOutputStream _out;
+
+	/**
+	 * Canal sobre _out.
+	 */
+	WritableByteChannel _canal;
+
+	/**
+	 * Mensaje ya codificado.
+	 */
+	Mensaje _mensaje;
+
+} // EscrituraBenchmark
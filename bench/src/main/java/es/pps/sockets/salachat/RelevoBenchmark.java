@@ -0,0 +1,216 @@
+package es.pps.sockets.salachat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Relevo completo por la interfaz de bucle local: un servidor SalaDeChat de
+ * verdad, un cliente que escribe líneas y los suscriptores indicados, cada uno
+ * con su socket y una hebra que lee. Cada operación manda una línea y espera a
+ * que la hayan recibido todos los suscriptores, así que mide la latencia del
+ * reparto completo (lectura, difusión, colas, escritores y sockets).
+ *
+ * El servidor arranca en la JVM de la prueba y no se puede parar, de modo que
+ * cada combinación de parámetros necesita su propia JVM (@Fork). Su salida
+ * estándar se descarta para no medir la consola. Los latidos y la expulsión
+ * por inactividad se desactivan: los suscriptores no contestan, y cada PING
+ * contaría como una línea recibida.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xss256k", "-Dsalachat.ping=0", "-Dsalachat.inactividad=0" })
+public class RelevoBenchmark {
+
+	/**
+	 * Motor del servidor (ver SalaDeChat).
+	 */
+	@Param({ SalaDeChat.MOTOR_HEBRAS, SalaDeChat.MOTOR_NIO })
+	public String motor;
+
+	/**
+	 * Clientes que reciben cada línea.
+	 */
+	@Param({ "2", "100", "1000" })
+	public int suscriptores;
+
+	/**
+	 * Arranca el servidor y conecta a los clientes. Antes de empezar manda una
+	 * línea y espera a que les llegue a todos, para que todos hayan recibido
+	 * ya el historial de la sala.
+	 */
+	@Setup(Level.Trial)
+	public void arranca() throws IOException, InterruptedException {
+
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		int puerto;
+		try (ServerSocket libre = new ServerSocket(0)) {
+			puerto = libre.getLocalPort();
+		}
+		Thread servidor = new Thread(() -> SalaDeChat.main(new String[] { String.valueOf(puerto), motor }),
+				"servidor");
+		servidor.setDaemon(true);
+		servidor.start();
+
+		_emisor = conecta(puerto);
+		_salida = _emisor.getOutputStream();
+		for (int i = 0; i < suscriptores; ++i) {
+			Socket s = conecta(puerto);
+			_suscriptores.add(s);
+			Thread lector = new Thread(() -> cuentaLineas(s), "suscriptor-" + _suscriptores.size());
+			lector.setDaemon(true);
+			lector.start();
+		}
+		envia();
+
+	} // arranca
+
+	// --------------------------------------------------------
+
+	@Benchmark
+	public void relevo() throws IOException {
+
+		envia();
+
+	} // relevo
+
+	// --------------------------------------------------------
+
+	/**
+	 * Cierra las conexiones.
+	 */
+	@TearDown(Level.Trial)
+	public void cierra() throws IOException {
+
+		_emisor.close();
+		for (Socket s : _suscriptores)
+			s.close();
+
+	} // cierra
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Manda una línea y espera a que llegue a todos los suscriptores.
+	 *
+	 * @throws IOException Si falla el envío.
+	 */
+	void envia() throws IOException {
+
+		_esperadas += suscriptores;
+		_salida.write(LINEA);
+		_salida.flush();
+		while (_recibidas.get() < _esperadas)
+			Thread.onSpinWait();
+
+	} // envia
+
+	/**
+	 * Conecta con el servidor, reintentando mientras todavía no escucha.
+	 *
+	 * @param puerto Puerto del servidor.
+	 * @return Socket conectado.
+	 * @throws IOException          Si falla la conexión.
+	 * @throws InterruptedException Si se interrumpe la espera.
+	 */
+	static Socket conecta(int puerto) throws IOException, InterruptedException {
+
+		for (int intento = 0;; ++intento) {
+			try {
+				Socket s = new Socket("localhost", puerto);
+				s.setTcpNoDelay(true);
+				return s;
+			} catch (ConnectException ce) {
+				if (intento >= 50)
+					throw ce;
+				Thread.sleep(100);
+			}
+		}
+
+	} // conecta
+
+	/**
+	 * Cuerpo de la hebra de cada suscriptor: cuenta los fines de línea que
+	 * recibe.
+	 *
+	 * @param s Socket del suscriptor.
+	 */
+	void cuentaLineas(Socket s) {
+
+		byte[] buffer = new byte[8192];
+		try (InputStream in = s.getInputStream()) {
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				int lineas = 0;
+				for (int i = 0; i < n; ++i) {
+					if (buffer[i] == '\n')
+						++lineas;
+				}
+				if (lineas > 0)
+					_recibidas.addAndGet(lineas);
+			}
+		} catch (IOException ioe) {
+			// Se ha cerrado el socket.
+		}
+
+	} // cuentaLineas
+
+	/**
+	 * Línea que se manda en cada operación.
+	 */
+	static final byte[] LINEA = (DifusionBenchmark.TEXTO + "\n").getBytes(Mensaje.CHARSET);
+
+	/**
+	 * Socket del cliente que escribe.
+	 */
+	Socket _emisor;
+
+	/**
+	 * Salida del cliente que escribe.
+	 */
+	OutputStream _salida;
+
+	/**
+	 * Sockets de los suscriptores.
+	 */
+	List<Socket> _suscriptores = new ArrayList<Socket>();
+
+	/**
+	 * Líneas recibidas entre todos los suscriptores.
+	 */
+	AtomicLong _recibidas = new AtomicLong();
+
+	/**
+	 * Líneas que deberían haber recibido entre todos al acabar el envío en
+	 * curso.
+	 */
+	long _esperadas;
+
+} // RelevoBenchmark
@@ -1,23 +1,28 @@
 package es.pps.sockets.ServidorFullDuplex_1;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Scanner;
-import java.io.BufferedReader;
+
+import es.pps.sockets.comun.Extremos;
+import es.pps.sockets.comun.LectorTramas;
+import es.pps.sockets.comun.Transferencia;
 
 /**
  * Clase que implementa el interfaz Runnable para ser
  * lanzada en otra hebra.
  * 
- * Recibe un InputStream como parámetro en el constructor
+ * Recibe el socket como parámetro en el constructor
  * y se queda contínuamente leyendo líneas de él
- * (a través de un BufferedReader). Cada vez que recibe
+ * (a través de un LectorTramas). Cada vez que recibe
  * una línea la escribe por la salida estándar.
+ * 
+ * Si en lugar de una línea llega la cabecera de un fichero,
+ * lo recibe (ver Transferencia).
  *  
  * @author Pedro Pablo Gómez Martín
  *
@@ -27,10 +32,13 @@ class RecibeYEscribe implements Runnable {
 	/**
 	 * Constructor
 	 * 
-	 * @param is Stream de entrada del que leer líneas.
+	 * @param socket Socket conectado del que leer líneas.
+	 * @throws IOException Si no se puede conseguir su canal de
+	 * lectura.
 	 */
-	RecibeYEscribe(InputStream is) {
-		_reader = new BufferedReader(new InputStreamReader(is));
+	RecibeYEscribe(Socket socket) throws IOException {
+		_socket = socket;
+		_lector = new LectorTramas(socket.getInputStream());
 	}
 
 	/**
@@ -45,7 +53,12 @@ class RecibeYEscribe implements Runnable {
 
 		while(true) {
 			try {
-				leido = _reader.readLine();
+				leido = _lector.siguienteLinea() ? _lector.textoLinea() : null;
+				if ((leido != null) && Transferencia.esCabecera(leido)) {
+					String recibido = recibido(leido);
+					if (recibido != null)
+						leido = recibido;
+				}
 			} catch (IOException e) {
 				break;
 			}
@@ -60,7 +73,27 @@ class RecibeYEscribe implements Runnable {
 
 	} // run
 
-	BufferedReader _reader;
+	/**
+	 * Recibe el fichero cuya cabecera se acaba de leer.
+	 * 
+	 * @param cabecera Línea de cabecera.
+	 * @return Texto que mostrar en su lugar, o null si la cabecera
+	 * no es válida.
+	 * @throws IOException Si falla la recepción; la conexión ya no
+	 * sirve.
+	 */
+	String recibido(String cabecera) throws IOException {
+		try {
+			return Transferencia.recibe(cabecera, _lector, _socket);
+		} catch (IOException e) {
+			System.out.println("[" + e.getLocalizedMessage() + "]");
+			throw e;
+		}
+	}
+
+	Socket _socket;
+
+	LectorTramas _lector;
 
 } // class RecibeYEscribe
 
@@ -75,28 +108,14 @@ class RecibeYEscribe implements Runnable {
  * Para atender los datos que llegan desde el otro extremo
  * utiliza una hebra secundaria.
  * 
+ * "/enviar <ruta>" manda un fichero al otro extremo (ver
+ * Transferencia). Para que se pueda mandar sin copiarlo, se
+ * escucha con un ServerSocketChannel.
+ * 
  * @author Pedro Pablo Gómez Martín
  */
 public class ServidorFullDuplex_1 {
 
-	/**
-	 * Método auxiliar que recibe una dirección de internet y un
-	 * puerto y lo escribe por la salida estándar.
-	 * 
-	 * @param address Dirección de internet
-	 * @param port Puerto
-	 */
-	protected static void escribeExtremo(InetAddress address, int port) {
-
-		System.out.print(address.getHostAddress());
-		System.out.print(":" + port);
-		if (address.getCanonicalHostName() != null)
-		System.out.print(" (" + address.getCanonicalHostName() + ")");
-
-	} // escribeExtremo
-
-	//------------------------------------------------
-
 	/**
 	 * Programa principal.
 	 * 
@@ -126,7 +145,7 @@ public class ServidorFullDuplex_1 {
 		// escuchando.
 		ServerSocket serverSocket;
 		try {
-			serverSocket = new ServerSocket(port);
+			serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
 		} 
 		catch (IOException e) {
 			System.out.println("No pude escuchar en el puerto " + port);
@@ -146,11 +165,8 @@ public class ServidorFullDuplex_1 {
 		}
 
 		// Mostramos información de la conexión.
-		System.out.print("Conectado desde ");
-		escribeExtremo(socket.getLocalAddress(), socket.getLocalPort());
-		System.out.print(" a ");
-		escribeExtremo(socket.getInetAddress(), socket.getPort());
-		System.out.println();
+		System.out.println("Conectado desde " + Extremos.describe(socket.getLocalAddress(), socket.getLocalPort())
+				+ " a " + Extremos.describe(socket.getInetAddress(), socket.getPort()));
 
 		// Obtenemos el canal de escritura del socket para mandar texto
 		// al cliente cuando el usuario escriba..
@@ -165,7 +181,7 @@ public class ServidorFullDuplex_1 {
 		// Lanzamos una hebra para escribir todo lo que nos llegue.
 		RecibeYEscribe rye;
 		try {
-			rye = new RecibeYEscribe(socket.getInputStream());
+			rye = new RecibeYEscribe(socket);
 		} catch (IOException e) {
 			System.err.println("No pude conseguir el canal de lectura del socket.");
 			return;
@@ -180,6 +196,14 @@ public class ServidorFullDuplex_1 {
 		// haya más líneas que leer
 		while (!out.checkError() && scanner.hasNextLine()) {
 			String s = scanner.nextLine();
+			if (Transferencia.esEnvio(s)) {
+				try {
+					System.out.println(Transferencia.envia(s, out, socket));
+				} catch (IOException e) {
+					System.out.println("[No se pudo enviar: " + e.getLocalizedMessage() + "]");
+				}
+				continue;
+			}
 			out.println(s);
 			out.flush(); // Forzamos el envío.
 		} // while
@@ -0,0 +1,532 @@
+package es.pps.sockets.ServidorFullDuplex_2;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.PushbackInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.pps.sockets.comun.Extremos;
+import es.pps.sockets.comun.Histograma;
+import es.pps.sockets.comun.LectorTramas;
+import es.pps.sockets.comun.Transferencia;
+
+/**
+ * Modo de ServidorFullDuplex_2 que, en lugar de atender a un único cliente,
+ * sigue aceptando conexiones y atiende cada una (una "sesión") en una hebra,
+ * normal o virtual, creada para ella. Un semáforo limita las sesiones que
+ * puede haber a la vez; si no quedan plazas, el cliente recibe un aviso y se
+ * le desconecta. Las hebras no se reutilizan: las virtuales no se deben
+ * agrupar, y para las normales el coste de crearlas es pequeño al lado del
+ * de la conexión.
+ *
+ * Lo que se escribe por teclado se manda a todas las sesiones, salvo:
+ *
+ * - "/a <sesión> <texto>": manda el texto (que puede ser "/enviar <ruta>", ver
+ * Transferencia) sólo a esa sesión.
+ *
+ * - "/sesiones": muestra las sesiones abiertas.
+ *
+ * - "/estadisticas": muestra las sesiones activas (y el máximo que ha habido a
+ * la vez), las aceptadas y rechazadas, y la latencia desde que se acepta cada
+ * conexión hasta que llega su primer byte.
+ *
+ * Lo que llega de cada sesión se escribe precedido de su número.
+ *
+ * Cada sesión tiene además su propia hebra de escritura, con una cola acotada:
+ * mandar algo a una sesión sólo lo encola, así que un cliente que no lee no
+ * retrasa a los demás cuando se escribe a todas. Si se le llena la cola, se
+ * le desconecta.
+ *
+ * Se configura con las propiedades del sistema fullduplex.maxSesiones
+ * (sesiones a la vez, 256 por defecto; cada una usa dos hebras, la que lee y
+ * la que escribe, así que en el modo "hebras" son el doble de hebras del
+ * sistema), fullduplex.cola (líneas pendientes de enviar a
+ * cada sesión, 1024 por defecto), fullduplex.eco (si se devuelve a cada
+ * cliente lo que manda, para usarlo como servidor de eco; false por defecto) y
+ * fullduplex.informe (cada cuántos milisegundos se muestran las estadísticas
+ * sin pedirlas; 0, por defecto, para no hacerlo).
+ */
+class Multicliente {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param serverSocket Socket en el que aceptar conexiones.
+	 * @param fabrica      Fábrica de las hebras que atienden las sesiones.
+	 */
+	Multicliente(ServerSocket serverSocket, ThreadFactory fabrica) {
+
+		_serverSocket = serverSocket;
+		_fabrica = fabrica;
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Acepta conexiones en otra hebra y reparte por ellas lo que se escribe
+	 * por teclado, hasta que se acaba la entrada estándar. Entonces cierra
+	 * todo.
+	 */
+	void atiende() {
+
+		Thread aceptador = new Thread(this::acepta, "aceptador");
+		aceptador.setDaemon(true);
+		aceptador.start();
+		if (INFORME_MS > 0) {
+			Thread informe = new Thread(this::informa, "informe");
+			informe.setDaemon(true);
+			informe.start();
+		}
+
+		Scanner scanner = new Scanner(System.in);
+		while (scanner.hasNextLine())
+			ejecuta(scanner.nextLine());
+		scanner.close();
+
+		try {
+			_serverSocket.close();
+		} catch (IOException e) {
+		}
+		for (Sesion sesion : _sesiones.values())
+			sesion.cierra();
+		// Cada sesión devuelve su plaza al terminar.
+		try {
+			_plazas.tryAcquire(MAX_SESIONES, 1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+		}
+		System.out.println(estadisticas());
+
+	} // atiende
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Conexión con un cliente.
+	 */
+	class Sesion implements Runnable {
+
+		/**
+		 * Constructor.
+		 *
+		 * @param numero   Número de la sesión.
+		 * @param socket   Socket conectado.
+		 * @param aceptada Instante (System.nanoTime()) en que se aceptó.
+		 * @throws IOException Si no se puede conseguir el canal de escritura.
+		 */
+		Sesion(int numero, Socket socket, long aceptada) throws IOException {
+			_numero = numero;
+			_socket = socket;
+			_aceptada = aceptada;
+			_out = new PrintWriter(socket.getOutputStream());
+		}
+
+		/**
+		 * Atiende la sesión y, al terminar, devuelve su plaza.
+		 */
+		@Override
+		public void run() {
+
+			try {
+				lee();
+			} finally {
+				_plazas.release();
+			}
+
+		} // run
+
+		/**
+		 * Lee líneas del cliente y las escribe por la salida estándar (o
+		 * recibe los ficheros que mande) hasta que se cierra la conexión.
+		 */
+		void lee() {
+
+			_escritor = _fabrica.newThread(this::escribe);
+			_escritor.start();
+			try {
+				// Esperamos al primer byte para medir cuánto tarda y lo
+				// devolvemos para que lo lea el lector.
+				PushbackInputStream in = new PushbackInputStream(_socket.getInputStream());
+				int primero = in.read();
+				if (primero >= 0) {
+					long us = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - _aceptada);
+					synchronized (_primerByte) {
+						_primerByte.anota(us);
+					}
+					in.unread(primero);
+					LectorTramas lector = new LectorTramas(in);
+					while (lector.siguienteLinea())
+						recibida(lector.textoLinea(), lector);
+				}
+			} catch (IOException e) {
+				// Como si hubiera cerrado.
+			}
+			cierra();
+			_sesiones.remove(_numero);
+			_activas.decrementAndGet();
+			System.out.println("[Sesión " + _numero + " cerrada]");
+
+		} // lee
+
+		/**
+		 * Procesa una línea recibida.
+		 *
+		 * @param leido  Línea, sin fin de línea.
+		 * @param lector Lector de la conexión, por si es la cabecera de un
+		 *               fichero.
+		 * @throws IOException Si falla la recepción de un fichero.
+		 */
+		void recibida(String leido, LectorTramas lector) throws IOException {
+
+			if (Transferencia.esCabecera(leido)) {
+				String recibido = Transferencia.recibe(leido, lector, _socket);
+				if (recibido != null) {
+					System.out.println(_numero + "> " + recibido);
+					return;
+				}
+			}
+			System.out.println(_numero + "> " + leido);
+			if (ECO)
+				manda(leido);
+
+		} // recibida
+
+		/**
+		 * Encola una línea para mandarla al cliente, o un fichero si es
+		 * "/enviar <ruta>". Pueden llamarlo a la vez la hebra del teclado y la
+		 * de la sesión (con el eco). Si la cola está llena, el cliente no está
+		 * leyendo y se le desconecta.
+		 *
+		 * @param s Línea.
+		 */
+		void manda(String s) {
+
+			if (!_cola.offer(s) && !_socket.isClosed()) {
+				System.out.println("[Sesión " + _numero + " no lee; se desconecta]");
+				cierra();
+			}
+
+		} // manda
+
+		/**
+		 * Cuerpo de la hebra de escritura: manda lo que se encola, vaciando
+		 * el buffer cuando la cola se queda vacía, hasta que se cierra la
+		 * sesión.
+		 */
+		void escribe() {
+
+			try {
+				while (true) {
+					String s = _cola.poll();
+					if (s == null) {
+						// checkError() también vacía el buffer.
+						if (_out.checkError()) {
+							cierra();
+							break;
+						}
+						s = _cola.take();
+					}
+					envia(s);
+				}
+			} catch (InterruptedException e) {
+				// Se ha cerrado la sesión.
+			}
+
+		} // escribe
+
+		/**
+		 * Manda directamente una línea al cliente, o un fichero si es
+		 * "/enviar <ruta>". Sólo lo llama la hebra de escritura, salvo al
+		 * rechazar una sesión, que no llega a tenerla.
+		 *
+		 * @param s Línea.
+		 */
+		void envia(String s) {
+
+			if (Transferencia.esEnvio(s)) {
+				try {
+					System.out.println(_numero + "< " + Transferencia.envia(s, _out, _socket));
+				} catch (IOException e) {
+					System.out.println("[No se pudo enviar a " + _numero + ": " + e.getLocalizedMessage() + "]");
+				}
+				return;
+			}
+			_out.println(s);
+
+		} // envia
+
+		/**
+		 * Cierra la conexión. La hebra de la sesión se dará cuenta al fallarle
+		 * la siguiente lectura; a la de escritura se la interrumpe.
+		 */
+		void cierra() {
+
+			try {
+				_socket.close();
+			} catch (IOException e) {
+			}
+			Thread escritor = _escritor;
+			if (escritor != null)
+				escritor.interrupt();
+
+		} // cierra
+
+		@Override
+		public String toString() {
+			return _numero + ": " + Extremos.describe(_socket.getInetAddress(), _socket.getPort());
+		}
+
+		/**
+		 * Número de la sesión.
+		 */
+		final int _numero;
+
+		/**
+		 * Socket conectado con el cliente.
+		 */
+		final Socket _socket;
+
+		/**
+		 * Instante (System.nanoTime()) en que se aceptó la conexión.
+		 */
+		final long _aceptada;
+
+		/**
+		 * Canal de escritura; sólo lo usa la hebra de escritura.
+		 */
+		final PrintWriter _out;
+
+		/**
+		 * Líneas pendientes de mandar.
+		 */
+		final BlockingQueue<String> _cola = new ArrayBlockingQueue<String>(COLA_SESION);
+
+		/**
+		 * Hebra de escritura; null hasta que empieza la sesión.
+		 */
+		volatile Thread _escritor;
+
+	} // Sesion
+
+	/**
+	 * Cuerpo de la hebra que acepta conexiones.
+	 */
+	protected void acepta() {
+
+		while (true) {
+			Socket socket;
+			try {
+				socket = _serverSocket.accept();
+			} catch (IOException ioe) {
+				if (!_serverSocket.isClosed())
+					System.err.println("Error esperando clientes: " + ioe.getLocalizedMessage());
+				return;
+			}
+			long aceptada = System.nanoTime();
+			_aceptadas.incrementAndGet();
+			Sesion sesion;
+			try {
+				sesion = new Sesion(_siguiente.incrementAndGet(), socket, aceptada);
+			} catch (IOException e) {
+				System.err.println("No pude conseguir el canal de escritura del socket.");
+				try {
+					socket.close();
+				} catch (IOException ioe) {
+				}
+				continue;
+			}
+			if (!_plazas.tryAcquire()) {
+				_rechazadas.incrementAndGet();
+				sesion.envia("[Servidor lleno; inténtalo más tarde]");
+				sesion._out.flush();
+				sesion.cierra();
+				continue;
+			}
+			_sesiones.put(sesion._numero, sesion);
+			int activas = _activas.incrementAndGet();
+			_fabrica.newThread(sesion).start();
+			_pico.accumulateAndGet(activas, Math::max);
+			System.out.println("[Sesión " + sesion + "]");
+		}
+
+	} // acepta
+
+	/**
+	 * Ejecuta una línea escrita por teclado.
+	 *
+	 * @param s Línea.
+	 */
+	protected void ejecuta(String s) {
+
+		if (s.equals(SESIONES)) {
+			System.out.println("[" + _sesiones.size() + " sesiones]");
+			for (Sesion sesion : _sesiones.values())
+				System.out.println("  " + sesion);
+			return;
+		}
+		if (s.equals(ESTADISTICAS)) {
+			System.out.println(estadisticas());
+			return;
+		}
+		if (s.startsWith(A + " ")) {
+			String[] partes = s.split(" ", 3);
+			Sesion sesion = null;
+			try {
+				sesion = _sesiones.get(Integer.parseInt(partes[1]));
+			} catch (NumberFormatException nfe) {
+			}
+			if ((sesion == null) || (partes.length < 3))
+				System.out.println("[Uso: " + A + " <sesión abierta> <texto>]");
+			else
+				sesion.manda(partes[2]);
+			return;
+		}
+		// A todas; copiamos la lista para no mandar a medias si llegan
+		// sesiones nuevas. Sólo se encola, así que ninguna espera a otra.
+		List<Sesion> todas = new ArrayList<Sesion>(_sesiones.values());
+		for (Sesion sesion : todas)
+			sesion.manda(s);
+
+	} // ejecuta
+
+	/**
+	 * Cuerpo de la hebra que muestra las estadísticas cada INFORME_MS.
+	 */
+	protected void informa() {
+
+		while (true) {
+			try {
+				Thread.sleep(INFORME_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			System.out.println(estadisticas());
+		}
+
+	} // informa
+
+	/**
+	 * Texto con las estadísticas de las sesiones.
+	 *
+	 * @return Estadísticas.
+	 */
+	protected String estadisticas() {
+
+		synchronized (_primerByte) {
+			return String.format(Locale.ROOT,
+					"[Sesiones: %d activas (máximo %d), %d aceptadas, %d rechazadas; primer byte (us): "
+							+ "media %.0f, p50 %d, p99 %d, máx %d (%d medidas)]",
+					_activas.get(), _pico.get(), _aceptadas.get(), _rechazadas.get(), _primerByte.media(),
+					_primerByte.percentil(50), _primerByte.percentil(99), _primerByte.maximo(),
+					_primerByte.total());
+		}
+
+	} // estadisticas
+
+	/**
+	 * Orden para mandar algo a una sola sesión.
+	 */
+	static final String A = "/a";
+
+	/**
+	 * Orden para ver las sesiones abiertas.
+	 */
+	static final String SESIONES = "/sesiones";
+
+	/**
+	 * Orden para ver las estadísticas.
+	 */
+	static final String ESTADISTICAS = "/estadisticas";
+
+	/**
+	 * Número máximo de sesiones a la vez (fullduplex.maxSesiones).
+	 */
+	static final int MAX_SESIONES = Math.max(1, Integer.getInteger("fullduplex.maxSesiones", 256));
+
+	/**
+	 * Líneas pendientes de enviar a cada sesión antes de desconectarla
+	 * (fullduplex.cola).
+	 */
+	static final int COLA_SESION = Math.max(1, Integer.getInteger("fullduplex.cola", 1024));
+
+	/**
+	 * Si se devuelve a cada cliente lo que manda (fullduplex.eco).
+	 */
+	static final boolean ECO = Boolean.getBoolean("fullduplex.eco");
+
+	/**
+	 * Cada cuántos milisegundos se muestran las estadísticas; 0 para no
+	 * hacerlo (fullduplex.informe).
+	 */
+	static final long INFORME_MS = Long.getLong("fullduplex.informe", 0);
+
+	/**
+	 * Socket en el que se aceptan conexiones.
+	 */
+	ServerSocket _serverSocket;
+
+	/**
+	 * Fábrica de las hebras de las sesiones; también crea sus hebras de
+	 * escritura.
+	 */
+	ThreadFactory _fabrica;
+
+	/**
+	 * Plazas libres para sesiones; cada sesión coge una al empezar y la
+	 * devuelve al terminar.
+	 */
+	Semaphore _plazas = new Semaphore(MAX_SESIONES);
+
+	/**
+	 * Sesiones abiertas, por número.
+	 */
+	Map<Integer, Sesion> _sesiones = new ConcurrentSkipListMap<Integer, Sesion>();
+
+	/**
+	 * Número de la última sesión.
+	 */
+	AtomicInteger _siguiente = new AtomicInteger();
+
+	/**
+	 * Sesiones activas.
+	 */
+	AtomicInteger _activas = new AtomicInteger();
+
+	/**
+	 * Máximo de sesiones activas a la vez.
+	 */
+	AtomicInteger _pico = new AtomicInteger();
+
+	/**
+	 * Conexiones aceptadas.
+	 */
+	AtomicLong _aceptadas = new AtomicLong();
+
+	/**
+	 * Conexiones rechazadas por no quedar plazas libres.
+	 */
+	AtomicLong _rechazadas = new AtomicLong();
+
+	/**
+	 * Latencias, en microsegundos, desde que se acepta cada conexión hasta que
+	 * llega su primer byte. Protegido por su propio cerrojo.
+	 */
+	Histograma _primerByte = new Histograma();
+
+} // Multicliente
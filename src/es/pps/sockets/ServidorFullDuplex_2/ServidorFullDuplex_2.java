@@ -1,24 +1,30 @@
 package es.pps.sockets.ServidorFullDuplex_2;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Scanner;
-import java.io.BufferedReader;
+
+import es.pps.sockets.comun.Extremos;
+import es.pps.sockets.comun.Hebras;
+import es.pps.sockets.comun.LectorTramas;
+import es.pps.sockets.comun.Transferencia;
 
 /**
  * Clase que implementa el interfaz Runnable para ser
  * lanzada en otra hebra.
  * 
- * Recibe un InputStream como parámetro en el constructor
+ * Recibe el socket como parámetro en el constructor
  * y se queda contínuamente leyendo líneas de él
- * (a través de un BufferedReader). Cada vez que recibe
+ * (a través de un LectorTramas). Cada vez que recibe
  * una línea la escribe por la salida estándar.
  * 
+ * Si en lugar de una línea llega la cabecera de un fichero,
+ * lo recibe (ver Transferencia).
+ * 
  * Si se detecta el EOF en el stream, se cierra explícitamente;
  * el socket usará esa indicación y detectará el cierre del
  * canal en sentido inverso.
@@ -31,10 +37,13 @@ class RecibeYEscribe implements Runnable {
 	/**
 	 * Constructor
 	 * 
-	 * @param is Stream de entrada del que leer líneas.
+	 * @param socket Socket conectado del que leer líneas.
+	 * @throws IOException Si no se puede conseguir su canal de
+	 * lectura.
 	 */
-	RecibeYEscribe(InputStream is) {
-		_reader = new BufferedReader(new InputStreamReader(is));
+	RecibeYEscribe(Socket socket) throws IOException {
+		_socket = socket;
+		_lector = new LectorTramas(socket.getInputStream());
 	}
 
 	/**
@@ -49,7 +58,12 @@ class RecibeYEscribe implements Runnable {
 
 		while(true) {
 			try {
-				leido = _reader.readLine();
+				leido = _lector.siguienteLinea() ? _lector.textoLinea() : null;
+				if ((leido != null) && Transferencia.esCabecera(leido)) {
+					String recibido = recibido(leido);
+					if (recibido != null)
+						leido = recibido;
+				}
 			} catch (IOException e) {
 				break;
 			}
@@ -65,7 +79,7 @@ class RecibeYEscribe implements Runnable {
 		// también cerrado (por el otro extremo) y
 		// dará error en el próximo intento de escritura.
 		try {
-			_reader.close();
+			_lector.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -74,7 +88,27 @@ class RecibeYEscribe implements Runnable {
 
 	} // run
 
-	BufferedReader _reader;
+	/**
+	 * Recibe el fichero cuya cabecera se acaba de leer.
+	 * 
+	 * @param cabecera Línea de cabecera.
+	 * @return Texto que mostrar en su lugar, o null si la cabecera
+	 * no es válida.
+	 * @throws IOException Si falla la recepción; la conexión ya no
+	 * sirve.
+	 */
+	String recibido(String cabecera) throws IOException {
+		try {
+			return Transferencia.recibe(cabecera, _lector, _socket);
+		} catch (IOException e) {
+			System.out.println("[" + e.getLocalizedMessage() + "]");
+			throw e;
+		}
+	}
+
+	Socket _socket;
+
+	LectorTramas _lector;
 
 } // class RecibeYEscribe
 
@@ -89,39 +123,35 @@ class RecibeYEscribe implements Runnable {
  * Para atender los datos que llegan desde el otro extremo
  * utiliza una hebra secundaria.
  * 
+ * "/enviar <ruta>" manda un fichero al otro extremo (ver
+ * Transferencia). Para que se pueda mandar sin copiarlo, se
+ * escucha con un ServerSocketChannel.
+ * 
+ * Con un segundo parámetro "hebras" o "virtuales" no se queda en el
+ * primer cliente, sino que sigue aceptando y atiende a cada uno con
+ * hebras normales o virtuales (ver Multicliente).
+ * 
  * @author Pedro Pablo Gómez Martín
  */
 public class ServidorFullDuplex_2 {
 
-	/**
-	 * Método auxiliar que recibe una dirección de internet y un
-	 * puerto y lo escribe por la salida estándar.
-	 * 
-	 * @param address Dirección de internet
-	 * @param port Puerto
-	 */
-	protected static void escribeExtremo(InetAddress address, int port) {
-
-		System.out.print(address.getHostAddress());
-		System.out.print(":" + port);
-		if (address.getCanonicalHostName() != null)
-		System.out.print(" (" + address.getCanonicalHostName() + ")");
-
-	} // escribeExtremo
-
-	//------------------------------------------------
-
 	/**
 	 * Programa principal.
 	 * 
 	 * @param args Argumentos en la línea de órdenes. El primero
-	 * debe ser el nombre del host al que conectarnos (o la IP) y
-	 * el segundo el número de puerto.
+	 * es el número de puerto (4567 si no se indica) y el segundo,
+	 * opcional, el modo: "uno" (por defecto), "hebras" o "virtuales".
 	 */
 	public static void main(String[] args) {
 
 		Socket socket;
 		int port;
+		String modo = (args.length > 1) ? args[1] : MODO_UNO;
+		if (!modo.equals(MODO_UNO) && !modo.equals(MODO_HEBRAS) && !modo.equals(MODO_VIRTUALES)) {
+			System.err.println("Modo inválido: " + modo + " (debe ser " + MODO_UNO + ", " + MODO_HEBRAS
+					+ " o " + MODO_VIRTUALES + ")");
+			return;
+		}
 
 		// Analizamos los parámetros.
 		if (args.length < 1) {
@@ -141,13 +171,20 @@ public class ServidorFullDuplex_2 {
 		// escuchando.
 		ServerSocket serverSocket;
 		try {
-			serverSocket = new ServerSocket(port);
+			serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
 		} 
 		catch (IOException e) {
 			System.out.println("No pude escuchar en el puerto " + port);
 			return;
 		}
 
+		if (!modo.equals(MODO_UNO)) {
+			System.out.println("[Escuchando en el puerto " + port + " (" + modo + ")]");
+			new Multicliente(serverSocket, modo.equals(MODO_VIRTUALES) ? Hebras.virtuales("sesion-")
+					: Hebras.normales("sesion-")).atiende();
+			return;
+		}
+
 		// Esperamos al primer cliente.
 		try {
 			socket = serverSocket.accept();
@@ -161,11 +198,8 @@ public class ServidorFullDuplex_2 {
 		}
 
 		// Mostramos información de la conexión.
-		System.out.print("Conectado desde ");
-		escribeExtremo(socket.getLocalAddress(), socket.getLocalPort());
-		System.out.print(" a ");
-		escribeExtremo(socket.getInetAddress(), socket.getPort());
-		System.out.println();
+		System.out.println("Conectado desde " + Extremos.describe(socket.getLocalAddress(), socket.getLocalPort())
+				+ " a " + Extremos.describe(socket.getInetAddress(), socket.getPort()));
 
 		// Obtenemos el canal de escritura del socket para mandar texto
 		// al cliente cuando el usuario escriba..
@@ -180,7 +214,7 @@ public class ServidorFullDuplex_2 {
 		// Lanzamos una hebra para escribir todo lo que nos llegue.
 		RecibeYEscribe rye;
 		try {
-			rye = new RecibeYEscribe(socket.getInputStream());
+			rye = new RecibeYEscribe(socket);
 		} catch (IOException e) {
 			System.err.println("No pude conseguir el canal de lectura del socket.");
 			return;
@@ -195,6 +229,14 @@ public class ServidorFullDuplex_2 {
 		// haya más líneas que leer
 		while (!out.checkError() && scanner.hasNextLine()) {
 			String s = scanner.nextLine();
+			if (Transferencia.esEnvio(s)) {
+				try {
+					System.out.println(Transferencia.envia(s, out, socket));
+				} catch (IOException e) {
+					System.out.println("[No se pudo enviar: " + e.getLocalizedMessage() + "]");
+				}
+				continue;
+			}
 			out.println(s);
 			out.flush(); // Forzamos el envío.
 		} // while
@@ -208,4 +250,19 @@ public class ServidorFullDuplex_2 {
 
 	} // main
 
+	/**
+	 * Modo en el que se atiende sólo al primer cliente.
+	 */
+	static final String MODO_UNO = "uno";
+
+	/**
+	 * Modo en el que se atiende a varios clientes con hebras normales.
+	 */
+	static final String MODO_HEBRAS = "hebras";
+
+	/**
+	 * Modo en el que se atiende a varios clientes con hebras virtuales.
+	 */
+	static final String MODO_VIRTUALES = "virtuales";
+
 } // class ServidorFullDuplex
\ No newline at end of file
@@ -0,0 +1,349 @@
+package es.pps.sockets.carga;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.pps.sockets.comun.Histograma;
+import es.pps.sockets.comun.Latido;
+
+/**
+ * Hebra que lee, mediante un único Selector, de los sockets de muchos
+ * clientes simulados. Busca en lo recibido las líneas con la marca de tiempo
+ * que pone el emisor (ver Emisor) y anota en su histograma cuánto han tardado
+ * en llegar. Las demás líneas (historial, respuestas del servidor, etc.) se
+ * descartan sin decodificarlas, salvo los latidos del servidor (ver Latido),
+ * que se contestan para que no nos desconecte.
+ *
+ * Igual que en el BucleEventos del servidor, las demás hebras no tocan el
+ * Selector: dejan los canales nuevos en una cola y lo despiertan.
+ */
+class BucleLectura implements Runnable {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param origen   Instante (System.nanoTime()) respecto al que van las
+	 *                 marcas de tiempo.
+	 * @param tamanyo  Bytes de cada mensaje, para dimensionar los buffers.
+	 * @throws IOException Si no se puede abrir el Selector.
+	 */
+	BucleLectura(long origen, int tamanyo) throws IOException {
+
+		_origen = origen;
+		_tamBuffer = Math.max(TAM_BUFFER, 2 * (tamanyo + 2));
+		_selector = Selector.open();
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Entrega al bucle un canal conectado, ya en modo no bloqueante. Se puede
+	 * llamar desde cualquier hebra.
+	 *
+	 * @param canal Canal del que leer.
+	 */
+	void registra(SocketChannel canal) {
+
+		_nuevos.add(canal);
+		_selector.wakeup();
+
+	} // registra
+
+	// --------------------------------------------------------
+
+	/**
+	 * Fija el intervalo de envío cuyos mensajes se miden: los enviados antes
+	 * (calentamiento) o después no se anotan.
+	 *
+	 * @param desde Primer instante medido, relativo al origen.
+	 * @param hasta Primer instante no medido, relativo al origen.
+	 */
+	void mide(long desde, long hasta) {
+
+		_hasta = hasta;
+		_desde = desde;
+
+	} // mide
+
+	// --------------------------------------------------------
+
+	/**
+	 * Indica el emisor que escribe en algunos de nuestros canales: a los
+	 * latidos que lleguen por ellos contesta él (ver Emisor).
+	 *
+	 * @param emisor Emisor.
+	 */
+	void emisor(Emisor emisor) {
+
+		_emisor = emisor;
+
+	} // emisor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Detiene el bucle y espera a que acabe. Después ya se puede consultar el
+	 * histograma.
+	 *
+	 * @param hebra Hebra en la que se ejecuta el bucle.
+	 * @throws InterruptedException Si se interrumpe la espera.
+	 */
+	void para(Thread hebra) throws InterruptedException {
+
+		_parado = true;
+		_selector.wakeup();
+		hebra.join();
+
+	} // para
+
+	// --------------------------------------------------------
+
+	/**
+	 * Método para ser lanzado en otra hebra.
+	 */
+	@Override
+	public void run() {
+
+		while (!_parado) {
+			try {
+				_selector.select();
+			} catch (IOException e) {
+				System.err.println("Error en el bucle de lectura: " + e.getLocalizedMessage());
+				break;
+			}
+
+			SocketChannel canal;
+			while ((canal = _nuevos.poll()) != null) {
+				try {
+					canal.register(_selector, SelectionKey.OP_READ, ByteBuffer.allocate(_tamBuffer));
+				} catch (IOException e) {
+					System.err.println("No pude registrar el canal: " + e.getLocalizedMessage());
+				}
+			}
+
+			Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (key.isValid() && key.isReadable())
+					lee(key);
+			}
+		} // while
+
+		try {
+			_selector.close();
+		} catch (IOException e) {
+		}
+
+	} // run
+
+	// --------------------------------------------------------
+
+	/**
+	 * Histograma de latencias de los mensajes medidos. Sólo se debe consultar
+	 * después de para().
+	 *
+	 * @return Histograma.
+	 */
+	Histograma histograma() {
+
+		return _histograma;
+
+	} // histograma
+
+	// --------------------------------------------------------
+
+	/**
+	 * Mensajes con marca de tiempo recibidos hasta ahora (medidos o no).
+	 *
+	 * @return Número de mensajes.
+	 */
+	long recibidos() {
+
+		return _recibidos.get();
+
+	} // recibidos
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Lee lo que haya en un canal y procesa las líneas completas.
+	 *
+	 * @param key Clave del canal, con su buffer como adjunto.
+	 */
+	protected void lee(SelectionKey key) {
+
+		SocketChannel canal = (SocketChannel) key.channel();
+		ByteBuffer buffer = (ByteBuffer) key.attachment();
+		int n;
+		try {
+			n = canal.read(buffer);
+		} catch (IOException e) {
+			n = -1;
+		}
+		if (n < 0) {
+			key.cancel();
+			try {
+				canal.close();
+			} catch (IOException e) {
+			}
+			return;
+		}
+
+		long ahora = System.nanoTime() - _origen;
+		byte[] datos = buffer.array();
+		int inicio = 0;
+		int lineas = 0;
+		for (int i = 0; i < buffer.position(); ++i) {
+			if (datos[i] == '\n') {
+				if (procesa(datos, inicio, i, ahora))
+					++lineas;
+				else if (esPing(datos, inicio, i))
+					contesta(canal);
+				inicio = i + 1;
+			}
+		}
+		if (lineas > 0)
+			_recibidos.addAndGet(lineas);
+
+		// Dejamos al principio el trozo de línea que queda por completar.
+		buffer.flip().position(inicio);
+		buffer.compact();
+		if (!buffer.hasRemaining()) {
+			// Una línea más larga que el buffer: no es nuestra, la tiramos.
+			buffer.clear();
+		}
+
+	} // lee
+
+	/**
+	 * Procesa una línea recibida.
+	 *
+	 * @param datos  Bytes recibidos.
+	 * @param inicio Primer byte de la línea.
+	 * @param fin    Posición del fin de línea.
+	 * @param ahora  Instante de recepción, relativo al origen.
+	 * @return true si la línea lleva marca de tiempo.
+	 */
+	protected boolean procesa(byte[] datos, int inicio, int fin, long ahora) {
+
+		long enviado = Emisor.marcaDeTiempo(datos, inicio, fin);
+		if (enviado < 0)
+			return false;
+		if ((enviado >= _desde) && (enviado < _hasta))
+			_histograma.anota((ahora - enviado) / 1000);
+		return true;
+
+	} // procesa
+
+	/**
+	 * Indica si una línea es un latido del servidor.
+	 *
+	 * @param datos  Bytes recibidos.
+	 * @param inicio Primer byte de la línea.
+	 * @param fin    Posición del fin de línea.
+	 * @return true si es PING.
+	 */
+	static boolean esPing(byte[] datos, int inicio, int fin) {
+
+		if ((fin > inicio) && (datos[fin - 1] == '\r'))
+			--fin;
+		return Arrays.equals(datos, inicio, fin, PING, 0, PING.length);
+
+	} // esPing
+
+	/**
+	 * Contesta a un latido. Si el canal es de un emisor, se lo pasa a él, que
+	 * es el único que escribe en él. Si no, es una escritura muy corta que
+	 * cabe siempre en el buffer del socket; si aun así no sale entera, el
+	 * servidor acabará desconectando al cliente, como a cualquiera que no
+	 * contesta.
+	 *
+	 * @param canal Canal del que ha llegado el latido.
+	 */
+	protected void contesta(SocketChannel canal) {
+
+		Emisor emisor = _emisor;
+		if ((emisor != null) && emisor.contesta(canal))
+			return;
+		try {
+			canal.write(ByteBuffer.wrap(PONG));
+		} catch (IOException e) {
+			// Lo veremos al leer.
+		}
+
+	} // contesta
+
+	/**
+	 * Latido del servidor.
+	 */
+	static final byte[] PING = Latido.PING.getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Respuesta a los latidos, con su fin de línea.
+	 */
+	static final byte[] PONG = (Latido.PONG + "\n").getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Tamaño mínimo del buffer de cada canal.
+	 */
+	private static final int TAM_BUFFER = 8192;
+
+	/**
+	 * Instante respecto al que van las marcas de tiempo.
+	 */
+	long _origen;
+
+	/**
+	 * Tamaño del buffer de cada canal.
+	 */
+	int _tamBuffer;
+
+	/**
+	 * Emisor que escribe en algunos de nuestros canales, si lo hay.
+	 */
+	volatile Emisor _emisor;
+
+	/**
+	 * Selector con el que esperamos datos de todos nuestros canales.
+	 */
+	Selector _selector;
+
+	/**
+	 * Canales pendientes de registrar en el Selector.
+	 */
+	Queue<SocketChannel> _nuevos = new ConcurrentLinkedQueue<SocketChannel>();
+
+	/**
+	 * Latencias de los mensajes medidos.
+	 */
+	Histograma _histograma = new Histograma();
+
+	/**
+	 * Mensajes con marca de tiempo recibidos.
+	 */
+	AtomicLong _recibidos = new AtomicLong();
+
+	/**
+	 * Intervalo de envío medido. Al principio no se mide nada.
+	 */
+	volatile long _desde = Long.MAX_VALUE, _hasta = Long.MAX_VALUE;
+
+	/**
+	 * Si hay que acabar.
+	 */
+	volatile boolean _parado;
+
+} // BucleLectura
@@ -0,0 +1,72 @@
+package es.pps.sockets.carga;
+
+/**
+ * Parámetros de la prueba de carga. Se leen de propiedades del sistema
+ * (-Dcarga.xxx=valor) al cargar la clase, de modo que la línea de órdenes de
+ * GeneradorCarga sólo lleva el servidor.
+ */
+class Configuracion {
+
+	/**
+	 * Número de clientes simulados (carga.clientes).
+	 */
+	static final int CLIENTES = Integer.getInteger("carga.clientes", 100);
+
+	/**
+	 * Cuántos de los clientes envían mensajes; los demás sólo reciben
+	 * (carga.emisores).
+	 */
+	static final int EMISORES = Integer.getInteger("carga.emisores", 1);
+
+	/**
+	 * Mensajes por segundo que se envían, entre todos los emisores
+	 * (carga.ritmo).
+	 */
+	static final int RITMO = Integer.getInteger("carga.ritmo", 100);
+
+	/**
+	 * Bytes de cada mensaje, sin el fin de línea (carga.tamanyo). Nunca menos
+	 * de lo que ocupa la marca de tiempo.
+	 */
+	static final int TAMANYO = Integer.getInteger("carga.tamanyo", 64);
+
+	/**
+	 * Segundos de medida (carga.duracion).
+	 */
+	static final int DURACION_S = Integer.getInteger("carga.duracion", 30);
+
+	/**
+	 * Segundos que se envía antes de empezar a medir (carga.calentamiento).
+	 */
+	static final int CALENTAMIENTO_S = Integer.getInteger("carga.calentamiento", 5);
+
+	/**
+	 * Milisegundos que se siguen esperando los mensajes en vuelo después de
+	 * dejar de enviar (carga.espera).
+	 */
+	static final long ESPERA_MS = Long.getLong("carga.espera", 2000);
+
+	/**
+	 * Sala en la que entran todos los clientes al conectarse; vacía para
+	 * quedarse en la sala por defecto del servidor (carga.sala).
+	 */
+	static final String SALA = System.getProperty("carga.sala", "");
+
+	/**
+	 * Número de hebras que leen de los sockets de los clientes
+	 * (carga.lectores).
+	 */
+	static final int LECTORES = Integer.getInteger("carga.lectores", Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Formato del informe final: "texto", "csv" o "json" (carga.formato).
+	 */
+	static final String FORMATO = System.getProperty("carga.formato", "texto");
+
+	/**
+	 * Fichero al que se añade el informe; vacío para la salida estándar
+	 * (carga.salida).
+	 */
+	static final String SALIDA = System.getProperty("carga.salida", "");
+
+} // Configuracion
@@ -0,0 +1,308 @@
+package es.pps.sockets.carga;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hebra que envía mensajes a ritmo constante, repartiéndolos por turno entre
+ * los clientes emisores. Cada mensaje es una línea que empieza por la marca
+ * MARCA seguida del instante en que tocaba enviarlo, con un número fijo de
+ * cifras, y se rellena hasta el tamaño pedido.
+ *
+ * La marca es el instante programado y no el real: si el servidor no lee y el
+ * emisor se retrasa, ese retraso cuenta en la latencia de los mensajes que
+ * esperaban, en lugar de desaparecer de la medida (la "omisión coordinada"
+ * de un generador que sólo envía cuando le dejan).
+ *
+ * Por sus canales sólo escribe esta hebra: las respuestas a los latidos que
+ * reciben (ver BucleLectura) se las deja el lector en una cola y las manda el
+ * emisor entre dos mensajes, para que no se mezclen con una línea a medio
+ * escribir.
+ */
+class Emisor implements Runnable {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param emisores Canales por los que enviar, en modo no bloqueante.
+	 * @param ritmo    Mensajes por segundo, entre todos.
+	 * @param tamanyo  Bytes de cada mensaje, sin el fin de línea.
+	 * @param origen   Instante (System.nanoTime()) respecto al que van las
+	 *                 marcas de tiempo.
+	 */
+	Emisor(List<SocketChannel> emisores, int ritmo, int tamanyo, long origen) {
+
+		_emisores = emisores;
+		_propios = new HashSet<SocketChannel>(emisores);
+		_periodoNs = 1_000_000_000L / Math.max(1, ritmo);
+		_origen = origen;
+		_linea = new byte[Math.max(tamanyo, MARCA.length + CIFRAS + 1) + 1];
+		Arrays.fill(_linea, (byte) 'x');
+		System.arraycopy(MARCA, 0, _linea, 0, MARCA.length);
+		_linea[MARCA.length + CIFRAS] = ' ';
+		_linea[_linea.length - 1] = '\n';
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Método para ser lanzado en otra hebra. Envía hasta que se llama a
+	 * para().
+	 */
+	@Override
+	public void run() {
+
+		ByteBuffer buffer = ByteBuffer.wrap(_linea);
+		long inicio = System.nanoTime() - _origen;
+		for (long i = 0; !_parado; ++i) {
+			long programado = inicio + i * _periodoNs;
+			long espera;
+			while (((espera = programado - (System.nanoTime() - _origen)) > 0) && !_parado) {
+				if (!contestaLatidos())
+					break;
+				if (espera > 50_000)
+					LockSupport.parkNanos(espera - 20_000);
+				else
+					Thread.onSpinWait();
+			}
+
+			escribeMarca(programado);
+			buffer.clear();
+			SocketChannel canal = _emisores.get((int) (i % _emisores.size()));
+			try {
+				while (buffer.hasRemaining() && !_parado) {
+					if (canal.write(buffer) == 0)
+						Thread.onSpinWait();
+				}
+			} catch (IOException e) {
+				System.err.println("Error enviando: " + e.getLocalizedMessage());
+				break;
+			}
+			if (!contestaLatidos())
+				break;
+			_enviados = i + 1;
+			if ((programado >= _desde) && (programado < _hasta))
+				++_medidos;
+		}
+
+	} // run
+
+	// --------------------------------------------------------
+
+	/**
+	 * Fija el intervalo de envío cuyos mensajes se cuentan como medidos.
+	 *
+	 * @param desde Primer instante medido, relativo al origen.
+	 * @param hasta Primer instante no medido, relativo al origen.
+	 */
+	void mide(long desde, long hasta) {
+
+		_hasta = hasta;
+		_desde = desde;
+
+	} // mide
+
+	// --------------------------------------------------------
+
+	/**
+	 * Deja de enviar y espera a que acabe la hebra.
+	 *
+	 * @param hebra Hebra en la que se ejecuta el emisor.
+	 * @throws InterruptedException Si se interrumpe la espera.
+	 */
+	void para(Thread hebra) throws InterruptedException {
+
+		_parado = true;
+		hebra.join();
+
+	} // para
+
+	// --------------------------------------------------------
+
+	/**
+	 * Pide contestar a un latido recibido por un canal, si es uno de los
+	 * nuestros. Se puede llamar desde cualquier hebra.
+	 *
+	 * @param canal Canal por el que ha llegado el latido.
+	 * @return false si el canal no es de este emisor, y se puede contestar
+	 *         directamente.
+	 */
+	boolean contesta(SocketChannel canal) {
+
+		if (!_propios.contains(canal))
+			return false;
+		_latidos.add(canal);
+		return true;
+
+	} // contesta
+
+	// --------------------------------------------------------
+
+	/**
+	 * Mensajes enviados hasta ahora.
+	 *
+	 * @return Número de mensajes.
+	 */
+	long enviados() {
+
+		return _enviados;
+
+	} // enviados
+
+	// --------------------------------------------------------
+
+	/**
+	 * Mensajes enviados dentro del intervalo medido.
+	 *
+	 * @return Número de mensajes.
+	 */
+	long medidos() {
+
+		return _medidos;
+
+	} // medidos
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si una línea lleva marca de tiempo, la devuelve.
+	 *
+	 * @param datos  Bytes recibidos.
+	 * @param inicio Primer byte de la línea.
+	 * @param fin    Posición del fin de línea.
+	 * @return Instante de envío programado, relativo al origen, o -1 si la
+	 *         línea no lleva marca.
+	 */
+	static long marcaDeTiempo(byte[] datos, int inicio, int fin) {
+
+		if (fin - inicio < MARCA.length + CIFRAS)
+			return -1;
+		for (int i = 0; i < MARCA.length; ++i) {
+			if (datos[inicio + i] != MARCA[i])
+				return -1;
+		}
+		long valor = 0;
+		for (int i = inicio + MARCA.length; i < inicio + MARCA.length + CIFRAS; ++i) {
+			int cifra = datos[i] - '0';
+			if ((cifra < 0) || (cifra > 9))
+				return -1;
+			valor = valor * 10 + cifra;
+		}
+		return valor;
+
+	} // marcaDeTiempo
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Contesta a los latidos pendientes.
+	 *
+	 * @return false si ha fallado alguna escritura.
+	 */
+	protected boolean contestaLatidos() {
+
+		SocketChannel canal;
+		while ((canal = _latidos.poll()) != null) {
+			ByteBuffer pong = ByteBuffer.wrap(BucleLectura.PONG);
+			try {
+				while (pong.hasRemaining() && !_parado) {
+					if (canal.write(pong) == 0)
+						Thread.onSpinWait();
+				}
+			} catch (IOException e) {
+				System.err.println("Error enviando: " + e.getLocalizedMessage());
+				return false;
+			}
+		}
+		return true;
+
+	} // contestaLatidos
+
+	/**
+	 * Escribe en la línea el instante programado, con CIFRAS cifras.
+	 *
+	 * @param instante Instante relativo al origen.
+	 */
+	protected void escribeMarca(long instante) {
+
+		for (int i = MARCA.length + CIFRAS - 1; i >= MARCA.length; --i) {
+			_linea[i] = (byte) ('0' + instante % 10);
+			instante /= 10;
+		}
+
+	} // escribeMarca
+
+	/**
+	 * Principio de las líneas con marca de tiempo.
+	 */
+	static final byte[] MARCA = "~carga ".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Cifras de la marca de tiempo (nanosegundos; llega para unos 11 días).
+	 */
+	static final int CIFRAS = 15;
+
+	/**
+	 * Canales por los que se envía.
+	 */
+	List<SocketChannel> _emisores;
+
+	/**
+	 * Los mismos canales, para saber si un latido es nuestro.
+	 */
+	Set<SocketChannel> _propios;
+
+	/**
+	 * Canales con un latido por contestar.
+	 */
+	Queue<SocketChannel> _latidos = new ConcurrentLinkedQueue<SocketChannel>();
+
+	/**
+	 * Nanosegundos entre dos envíos.
+	 */
+	long _periodoNs;
+
+	/**
+	 * Instante respecto al que van las marcas de tiempo.
+	 */
+	long _origen;
+
+	/**
+	 * Línea que se envía; sólo cambia la marca de tiempo.
+	 */
+	byte[] _linea;
+
+	/**
+	 * Mensajes enviados. Sólo lo cambia la hebra del emisor.
+	 */
+	volatile long _enviados;
+
+	/**
+	 * Mensajes enviados en el intervalo medido. Sólo lo cambia la hebra del
+	 * emisor.
+	 */
+	volatile long _medidos;
+
+	/**
+	 * Intervalo de envío medido. Al principio no se mide nada.
+	 */
+	volatile long _desde = Long.MAX_VALUE, _hasta = Long.MAX_VALUE;
+
+	/**
+	 * Si hay que acabar.
+	 */
+	volatile boolean _parado;
+
+} // Emisor
@@ -0,0 +1,251 @@
+package es.pps.sockets.carga;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import es.pps.sockets.comun.Histograma;
+
+/**
+ * Generador de carga para SalaDeChat: abre desde una sola JVM los clientes
+ * indicados (miles, si hace falta; se leen todos desde unas pocas hebras con
+ * Selector), hace que algunos envíen mensajes a ritmo constante y mide cuánto
+ * tardan en llegarles a los demás y cuántos llegan por segundo.
+ *
+ * Todo se configura con propiedades del sistema (ver Configuracion); por
+ * ejemplo:
+ *
+ * java -Dcarga.clientes=2000 -Dcarga.ritmo=200 -Dcarga.formato=csv
+ * -Dcarga.salida=carga.csv es.pps.sockets.carga.GeneradorCarga localhost 4567
+ *
+ * Con los ServidorFullDuplex_* también se puede usar para medir cuánto
+ * aceptan, pero como no reenvían nada a otros clientes no habrá entregas ni
+ * latencias.
+ */
+public class GeneradorCarga {
+
+	/**
+	 * Programa principal.
+	 *
+	 * @param args Argumentos en la línea de órdenes: el nombre del host (o la
+	 *             IP) del servidor y su número de puerto.
+	 */
+	public static void main(String[] args) {
+
+		String hostname;
+		int port;
+
+		// Analizamos los parámetros.
+		if (args.length < 2) {
+			System.err.println("Faltan parámetros: <host> <puerto>");
+			return;
+		}
+		hostname = args[0];
+		try {
+			port = Integer.parseInt(args[1]);
+		} catch (NumberFormatException e) {
+			System.err.println("Puerto inválido");
+			return;
+		}
+		if ((Configuracion.CLIENTES < 1) || (Configuracion.EMISORES < 1) || (Configuracion.LECTORES < 1)) {
+			System.err.println("Hacen falta al menos un cliente, un emisor y un lector");
+			return;
+		}
+
+		try {
+			Informe informe = new GeneradorCarga(new InetSocketAddress(hostname, port)).ejecuta();
+			publica(informe);
+		} catch (IOException e) {
+			System.err.println("Error en la prueba: " + e.getLocalizedMessage());
+		} catch (InterruptedException e) {
+			System.err.println("Prueba interrumpida");
+		}
+
+	} // main
+
+	// --------------------------------------------------------
+
+	/**
+	 * Constructor.
+	 *
+	 * @param servidor Dirección del servidor.
+	 */
+	GeneradorCarga(InetSocketAddress servidor) {
+
+		_servidor = servidor;
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Conecta a los clientes, envía durante el calentamiento y la medida, y
+	 * espera a que lleguen los mensajes en vuelo.
+	 *
+	 * @return Resultado.
+	 * @throws IOException          Si no se pueden abrir los Selector o
+	 *                              conectar a los clientes.
+	 * @throws InterruptedException Si se interrumpe la prueba.
+	 */
+	Informe ejecuta() throws IOException, InterruptedException {
+
+		long origen = System.nanoTime();
+		int numEmisores = Math.min(Configuracion.EMISORES, Configuracion.CLIENTES);
+
+		// Lectores.
+		List<BucleLectura> bucles = new ArrayList<BucleLectura>();
+		List<Thread> hebras = new ArrayList<Thread>();
+		for (int i = 0; i < Configuracion.LECTORES; ++i) {
+			BucleLectura bucle = new BucleLectura(origen, Configuracion.TAMANYO);
+			Thread hebra = new Thread(bucle, "lector-" + i);
+			hebra.setDaemon(true);
+			hebra.start();
+			bucles.add(bucle);
+			hebras.add(hebra);
+		}
+
+		// Clientes.
+		List<SocketChannel> canales = new ArrayList<SocketChannel>();
+		try {
+			for (int i = 0; i < Configuracion.CLIENTES; ++i) {
+				SocketChannel canal = conecta();
+				canales.add(canal);
+				bucles.get(i % bucles.size()).registra(canal);
+			}
+			System.err.println("[ Conectados " + canales.size() + " clientes a " + describe() + " ]");
+
+			// Envío.
+			Emisor emisor = new Emisor(canales.subList(0, numEmisores), Configuracion.RITMO, Configuracion.TAMANYO,
+					origen);
+			long desde = System.nanoTime() - origen + Configuracion.CALENTAMIENTO_S * 1_000_000_000L;
+			long hasta = desde + Configuracion.DURACION_S * 1_000_000_000L;
+			emisor.mide(desde, hasta);
+			for (BucleLectura bucle : bucles) {
+				bucle.mide(desde, hasta);
+				bucle.emisor(emisor);
+			}
+			Thread hebraEmisor = new Thread(emisor, "emisor");
+			hebraEmisor.start();
+
+			// Informamos del progreso cada segundo mientras tanto.
+			long enviados = 0, recibidos = 0;
+			for (int s = 1; System.nanoTime() - origen < hasta; ++s) {
+				Thread.sleep(1000);
+				long e = emisor.enviados();
+				long r = 0;
+				for (BucleLectura bucle : bucles)
+					r += bucle.recibidos();
+				System.err.println("[ " + s + " s: " + (e - enviados) + " enviados/s, " + (r - recibidos)
+						+ " recibidos/s ]");
+				enviados = e;
+				recibidos = r;
+			}
+			emisor.para(hebraEmisor);
+			Thread.sleep(Configuracion.ESPERA_MS);
+
+			Histograma latencias = new Histograma();
+			for (int i = 0; i < bucles.size(); ++i) {
+				bucles.get(i).para(hebras.get(i));
+				latencias.suma(bucles.get(i).histograma());
+			}
+			return new Informe(OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS).toString(), describe(),
+					emisor.medidos(), latencias, Configuracion.DURACION_S);
+		} finally {
+			for (SocketChannel canal : canales) {
+				try {
+					canal.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+	} // ejecuta
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Conecta un cliente y, si se ha pedido una sala, lo mete en ella.
+	 *
+	 * @return Canal conectado, en modo no bloqueante.
+	 * @throws IOException Si falla la conexión.
+	 */
+	protected SocketChannel conecta() throws IOException {
+
+		SocketChannel canal = SocketChannel.open(_servidor);
+		canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		if (!Configuracion.SALA.isEmpty()) {
+			ByteBuffer orden = ByteBuffer.wrap(("/entrar " + Configuracion.SALA + "\n").getBytes());
+			while (orden.hasRemaining())
+				canal.write(orden);
+		}
+		canal.configureBlocking(false);
+		return canal;
+
+	} // conecta
+
+	/**
+	 * Servidor como "host:puerto".
+	 *
+	 * @return Descripción del servidor.
+	 */
+	protected String describe() {
+
+		return _servidor.getHostString() + ":" + _servidor.getPort();
+
+	} // describe
+
+	/**
+	 * Escribe el informe en el formato y el destino configurados. En CSV, la
+	 * cabecera sólo se escribe si el fichero está vacío, de modo que se pueden
+	 * ir acumulando ejecuciones.
+	 *
+	 * @param informe Resultado de la prueba.
+	 * @throws IOException Si no se puede escribir el fichero.
+	 */
+	static void publica(Informe informe) throws IOException {
+
+		String texto;
+		switch (Configuracion.FORMATO) {
+		case "csv":
+			texto = informe.csv() + System.lineSeparator();
+			if (Configuracion.SALIDA.isEmpty() || !Files.exists(Paths.get(Configuracion.SALIDA))
+					|| (Files.size(Paths.get(Configuracion.SALIDA)) == 0))
+				texto = Informe.cabeceraCsv() + System.lineSeparator() + texto;
+			break;
+		case "json":
+			texto = informe.json() + System.lineSeparator();
+			break;
+		default:
+			texto = informe.texto();
+		}
+
+		if (Configuracion.SALIDA.isEmpty()) {
+			System.out.print(texto);
+		} else {
+			Path fichero = Paths.get(Configuracion.SALIDA);
+			Files.write(fichero, texto.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+			System.err.println("[ Informe añadido a " + fichero + " ]");
+		}
+
+	} // publica
+
+	/**
+	 * Dirección del servidor.
+	 */
+	InetSocketAddress _servidor;
+
+} // GeneradorCarga
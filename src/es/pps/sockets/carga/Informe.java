@@ -0,0 +1,147 @@
+package es.pps.sockets.carga;
+
+import java.util.Locale;
+
+import es.pps.sockets.comun.Histograma;
+
+/**
+ * Resultado de una prueba de carga, con los parámetros con los que se hizo,
+ * listo para escribirlo como texto, como fila CSV o como objeto JSON (uno por
+ * línea, para ir acumulando ejecuciones en el mismo fichero y comparar).
+ */
+class Informe {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fecha     Momento de la prueba, ISO 8601.
+	 * @param servidor  "host:puerto" del servidor.
+	 * @param enviados  Mensajes enviados en el intervalo medido.
+	 * @param latencias Latencias de los mensajes medidos recibidos.
+	 * @param segundos  Duración del intervalo medido.
+	 */
+	Informe(String fecha, String servidor, long enviados, Histograma latencias, double segundos) {
+
+		_fecha = fecha;
+		_servidor = servidor;
+		_enviados = enviados;
+		_latencias = latencias;
+		_segundos = segundos;
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Informe legible.
+	 *
+	 * @return Texto de varias líneas.
+	 */
+	String texto() {
+
+		long entregados = _latencias.total();
+		return String.format(Locale.ROOT,
+				"Servidor:        %s%n" + "Clientes:        %d (%d emisores), mensajes de %d bytes%n"
+						+ "Enviados:        %d (%.1f/s, pedidos %d/s)%n"
+						+ "Entregados:      %d (%.1f/s, %.2f por envío)%n"
+						+ "Latencia (us):   p50 %d  p99 %d  p99.9 %d  máx %d  media %.1f%n",
+				_servidor, Configuracion.CLIENTES, Configuracion.EMISORES, Configuracion.TAMANYO, _enviados,
+				_enviados / _segundos, Configuracion.RITMO, entregados, entregados / _segundos, porEnvio(),
+				_latencias.percentil(50), _latencias.percentil(99), _latencias.percentil(99.9), _latencias.maximo(),
+				_latencias.media());
+
+	} // texto
+
+	// --------------------------------------------------------
+
+	/**
+	 * Cabecera de las filas CSV.
+	 *
+	 * @return Línea de cabecera, sin fin de línea.
+	 */
+	static String cabeceraCsv() {
+
+		return "fecha,servidor,clientes,emisores,ritmo,tamanyo,segundos,enviados,entregados,"
+				+ "entregadosPorSegundo,p50us,p99us,p999us,maxUs,mediaUs";
+
+	} // cabeceraCsv
+
+	// --------------------------------------------------------
+
+	/**
+	 * Fila CSV.
+	 *
+	 * @return Línea, sin fin de línea.
+	 */
+	String csv() {
+
+		return String.format(Locale.ROOT, "%s,%s,%d,%d,%d,%d,%.1f,%d,%d,%.1f,%d,%d,%d,%d,%.1f", _fecha, _servidor,
+				Configuracion.CLIENTES, Configuracion.EMISORES, Configuracion.RITMO, Configuracion.TAMANYO, _segundos,
+				_enviados, _latencias.total(), _latencias.total() / _segundos, _latencias.percentil(50),
+				_latencias.percentil(99), _latencias.percentil(99.9), _latencias.maximo(), _latencias.media());
+
+	} // csv
+
+	// --------------------------------------------------------
+
+	/**
+	 * Objeto JSON en una sola línea.
+	 *
+	 * @return Línea, sin fin de línea.
+	 */
+	String json() {
+
+		return String.format(Locale.ROOT,
+				"{\"fecha\":\"%s\",\"servidor\":\"%s\",\"clientes\":%d,\"emisores\":%d,\"ritmo\":%d,"
+						+ "\"tamanyo\":%d,\"segundos\":%.1f,\"enviados\":%d,\"entregados\":%d,"
+						+ "\"entregadosPorSegundo\":%.1f,\"latenciaUs\":{\"p50\":%d,\"p99\":%d,\"p999\":%d,"
+						+ "\"max\":%d,\"media\":%.1f}}",
+				_fecha, _servidor, Configuracion.CLIENTES, Configuracion.EMISORES, Configuracion.RITMO,
+				Configuracion.TAMANYO, _segundos, _enviados, _latencias.total(), _latencias.total() / _segundos,
+				_latencias.percentil(50), _latencias.percentil(99), _latencias.percentil(99.9), _latencias.maximo(),
+				_latencias.media());
+
+	} // json
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Entregas por mensaje enviado; en una sala donde están todos, debería
+	 * ser el número de clientes menos uno.
+	 *
+	 * @return Media de entregas por envío.
+	 */
+	protected double porEnvio() {
+
+		return (_enviados == 0) ? 0 : (double) _latencias.total() / _enviados;
+
+	} // porEnvio
+
+	/**
+	 * Momento de la prueba.
+	 */
+	String _fecha;
+
+	/**
+	 * "host:puerto" del servidor.
+	 */
+	String _servidor;
+
+	/**
+	 * Mensajes enviados en el intervalo medido.
+	 */
+	long _enviados;
+
+	/**
+	 * Latencias de los mensajes medidos.
+	 */
+	Histograma _latencias;
+
+	/**
+	 * Duración del intervalo medido.
+	 */
+	double _segundos;
+
+} // Informe
@@ -10,11 +10,14 @@ import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
+import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
-import javax.swing.SwingUtilities;
+
+import es.pps.sockets.comun.AreaMensajes;
+import es.pps.sockets.comun.ListaMensajes;
 
 
 //--------------------------------------------------------
@@ -36,7 +39,8 @@ import javax.swing.SwingUtilities;
  * Se utiliza un objeto de la clase RecibeYEscribe que se lanza en una hebra
  * secundaria para leer líneas contínuamente del socket. Cada vez que la hebra
  * detecta una, llama al método onTextoRecibido() de esta clase para que se le
- * muestre al usuario.
+ * muestre al usuario. Si se cae la conexión, la misma hebra vuelve a conectar
+ * y nos pasa el nuevo canal de salida con onConectado().
  * 
  * @author Pedro Pablo Gómez Martín
  */
@@ -57,36 +61,62 @@ public class Chat extends JFrame {
 
 		inicializarVentana();
 
-		// Obtenemos el canal de salida donde mandaremos las
-		// cadenas al servidor (desde enviarServidor(String) ).
-		try {
-			_canalSalida = new PrintWriter(socket.getOutputStream());
-		} catch (IOException e) {
-			anyadeTexto("  [Error de conexión]");
-			return;
-		}
-
 		// Preparamos la hebra que se mantendrá a la escucha
 		// del canal de entrada del socket y mandará todas las
-		// líneas a nuestro método onTextoRecibido().
-		RecibeYEscribe rye;
-		try {
-			rye = new RecibeYEscribe(socket.getInputStream(), this);
-		} catch (IOException e) {
-			anyadeTexto("  [Error de conexión]");
-			return;
-		}
+		// líneas a nuestro método onTextoRecibido(). Ella nos
+		// dará el canal de salida donde mandaremos las cadenas
+		// al servidor (desde enviarServidor(String) ).
+		RecibeYEscribe rye = new RecibeYEscribe(socket, this);
 		new Thread(rye).start();
 
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Método llamado desde la hebra de RecibeYEscribe cada vez que se conecta
+	 * (o reconecta) con el servidor.
+	 * 
+	 * @param canalSalida Canal de salida de la nueva conexión.
+	 */
+	void onConectado(PrintWriter canalSalida) {
+
+		_canalSalida = canalSalida;
 		enviarServidor(" [CONECTADO]");
 
-	} // Constructor
+	} // onConectado
+
+	// --------------------------------------------------------
+
+	/**
+	 * Método llamado desde la hebra de RecibeYEscribe cuando se cae la conexión
+	 * con el servidor.
+	 */
+	void onDesconectado() {
+
+		_canalSalida = null;
+
+	} // onDesconectado
+
+	// --------------------------------------------------------
+
+	/**
+	 * Indica si el usuario ha cerrado la ventana, para dejar de reconectar.
+	 * 
+	 * @return true si se ha cerrado.
+	 */
+	boolean cerrada() {
+
+		return _cerrada;
+
+	} // cerrada
 
 	// --------------------------------------------------------
 
 	/**
 	 * Método llamado externamente cuando se recibe texto por el socket que se debe
-	 * mostrar al usuario. Se añade el texto al área de texto.
+	 * mostrar al usuario. Se añade el texto al área de texto en el siguiente
+	 * volcado (ver AreaMensajes), así que se puede llamar desde cualquier hebra.
 	 * 
 	 * Ten en cuenta que este método no se llama cuando es el usuario el que ha
 	 * escrito algo.
@@ -96,14 +126,10 @@ public class Chat extends JFrame {
 	public void onTextoRecibido(final String texto) {
 
 		// No podemos llamar a Swing alegremente desde
-		// otra hebra. Le pedimos que nos invoque más
-		// adelante a través de un Runnable.
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				anyadeTexto(texto);
-			}
-		});
+		// otra hebra; AreaMensajes lo acumula y lo vuelca
+		// desde la hebra de eventos junto con lo que llegue
+		// a la vez.
+		_mensajes.anyade(texto);
 
 	} // onTextoRecibido
 
@@ -112,13 +138,13 @@ public class Chat extends JFrame {
 	/**
 	 * Añade al área de texto del chat el texto que se recibe como parámetro. Hace
 	 * desplazarse también a la barra de desplazamiento para que esté siempre abajo.
+	 * Pasa por la misma cola que el texto recibido, para respetar el orden.
 	 * 
 	 * @param texto Texto a añadir. Debe acabar en \n
 	 */
 	protected void anyadeTexto(String texto) {
 
-		_taChat.append(texto);
-		_taChat.setCaretPosition(_taChat.getDocument().getLength());
+		_mensajes.anyade(texto);
 
 	} // anyadeTexto
 
@@ -153,8 +179,14 @@ public class Chat extends JFrame {
 	 */
 	protected void enviarServidor(String texto) {
 
-		_canalSalida.println("[" + _nombreUsuario + "] " + texto);
-		_canalSalida.flush(); // Forzamos el envío.
+		PrintWriter canal = _canalSalida;
+		if (canal == null) {
+			// Estamos reconectando.
+			anyadeTexto("  [Sin conexión; no se ha enviado]\n");
+			return;
+		}
+		canal.println("[" + _nombreUsuario + "] " + texto);
+		canal.flush(); // Forzamos el envío.
 
 	} // enviarServidor
 
@@ -181,12 +213,25 @@ public class Chat extends JFrame {
 		// corten palabras, sino que se utilice el espacio
 		// como separador para el cambio de línea.
 		_taChat.setWrapStyleWord(true);
+		// Los mensajes se vuelcan por lotes y sólo se
+		// guardan los últimos.
+		_mensajes = new AreaMensajes(_taChat);
 
 		// El área de texto lo vamos a "decorar" en un
 		// panel que muestre, cuando sea necesario, las
 		// barras de desplazamiento.
 		JScrollPane scrollPane = new JScrollPane(_taChat);
 
+		// Con chat.vista=lista, en lugar del área de texto
+		// usamos una ListaMensajes, que sólo pinta lo que se
+		// ve y aguanta historiales mucho más largos.
+		JComponent vista = scrollPane;
+		if (AreaMensajes.usarLista()) {
+			ListaMensajes lista = new ListaMensajes();
+			_mensajes = new AreaMensajes(lista);
+			vista = lista.panel();
+		}
+
 		// Creamos un cuadro de texto donde el usuario
 		// escribirá lo que quiere mandar.
 		_tfEntradaUsuario = new JTextField();
@@ -196,7 +241,7 @@ public class Chat extends JFrame {
 		setLayout(new BorderLayout());
 		// ... poniendo en el centro el área de texto
 		// del chat ...
-		add(scrollPane, BorderLayout.CENTER);
+		add(vista, BorderLayout.CENTER);
 		// ... y en e sur el cuadro de texto donde el
 		// usuario escribe.
 		add(_tfEntradaUsuario, BorderLayout.SOUTH);
@@ -212,9 +257,12 @@ public class Chat extends JFrame {
 		addWindowListener(new WindowAdapter() {
 			public void windowClosing(WindowEvent e) {
 
-				enviarServidor(" [DESCONECTADO]");
-
-				_canalSalida.close();
+				_cerrada = true;
+				PrintWriter canal = _canalSalida;
+				if (canal != null) {
+					enviarServidor(" [DESCONECTADO]");
+					canal.close();
+				}
 
 			}
 		});
@@ -311,6 +359,11 @@ public class Chat extends JFrame {
 	 */
 	JTextArea _taChat;
 
+	/**
+	 * Quien vuelca en _taChat lo que se recibe y se escribe.
+	 */
+	AreaMensajes _mensajes;
+
 	/**
 	 * Cuadro de texto donde el usuario escribe lo que quiere enviar.
 	 */
@@ -323,8 +376,14 @@ public class Chat extends JFrame {
 	String _nombreUsuario;
 
 	/**
-	 * Canal de salida del socket por donde mandamos lo que el usuario escribe.
+	 * Canal de salida del socket por donde mandamos lo que el usuario escribe,
+	 * o null mientras se reconecta.
+	 */
+	volatile PrintWriter _canalSalida;
+
+	/**
+	 * Si el usuario ha cerrado la ventana.
 	 */
-	PrintWriter _canalSalida;
+	volatile boolean _cerrada;
 
 } // Chat
\ No newline at end of file
@@ -1,73 +1,287 @@
 package es.pps.sockets.chat;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+import es.pps.sockets.comun.Latido;
+import es.pps.sockets.comun.LectorTramas;
+import es.pps.sockets.comun.Reanudacion;
 
 
 /**
  * Clase que implementa el interfaz runnable para ser ejecutada en otra hebra.
- * 
- * En el constructor recibe un InputStream del que leer lneas contnuamente una
- * vez envuelto en un BufferedReader. Cada vez que lee una lnea, la enva a la
- * ventana de chat, recibida en el constructor, a travs de su mtodo
- * onTextoIntroducido(). Si se detecta el cierre del stream, se enva a la
- * ventana de chat un aviso que indica que se ha detectado el cierre del socket
- * por parte del servidor.
+ *
+ * En el constructor recibe el socket conectado con el servidor, del que leer
+ * líneas contínuamente a través de un LectorTramas. Cada vez que lee
+ * una línea, la envía a la ventana de chat, recibida en el constructor, a
+ * través de su método onTextoRecibido().
+ *
+ * Si se detecta el cierre del socket por parte del servidor, se avisa a la
+ * ventana y se intenta volver a conectar con la misma dirección, esperando
+ * entre intento e intento un tiempo aleatorio entre 0 y un tope que se dobla
+ * con cada fallo (desde chat.esperaMin hasta chat.esperaMax milisegundos).
+ * Así, cuando el servidor se reinicia, sus clientes no vuelven todos a la vez.
+ *
+ * Para no perder ni repetir mensajes al reconectar, se usa la reanudación (ver
+ * Reanudacion): nada más conectar se le pide al servidor que numere los
+ * mensajes, se apunta la secuencia del último recibido y, tras una
+ * reconexión, se le pide sólo lo posterior.
+ *
+ * Los latidos del servidor (ver Latido) se contestan aquí mismo, sin
+ * mostrarlos.
  */
 class RecibeYEscribe implements Runnable {
 
 	/**
 	 * Constructor
-	 * 
-	 * @param is Stream de entrada del que leer lneas.
+	 *
+	 * @param socket      Socket conectado con el servidor.
+	 * @param ventanaChat Ventana donde mostrar lo recibido.
 	 */
-	RecibeYEscribe(InputStream is, Chat ventanaChat) {
+	RecibeYEscribe(Socket socket, Chat ventanaChat) {
 
-		_reader = new BufferedReader(new InputStreamReader(is));
+		_socket = socket;
+		_direccion = new InetSocketAddress(socket.getInetAddress(), socket.getPort());
 		_ventanaChat = ventanaChat;
 
 	} // Constructor
 
 	/**
-	 * Mtodo para ser lanzado en otra hebra. Lee lineas del canal recibido en el
-	 * constructor y las escribe por la salida estndar.
+	 * Método para ser lanzado en otra hebra. Lee lineas del socket y se las
+	 * pasa a la ventana de chat; si se cierra, vuelve a conectar hasta que se
+	 * cierre la ventana.
 	 */
 	@Override
 	public void run() {
 
-		String leido;
+		Socket socket = _socket;
+		int fallos = 0;
 
 		while (true) {
+			if (socket != null) {
+				fallos = 0;
+				try {
+					atiende(socket);
+				} catch (IOException e) {
+					// Como si hubiera cerrado.
+				}
+				// Cerramos el socket; lo que se escriba mientras
+				// tanto se descarta (ver Chat.enviarServidor()).
+				_ventanaChat.onDesconectado();
+				try {
+					socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				if (_ventanaChat.cerrada())
+					return;
+				_ventanaChat.onTextoRecibido("  [El servidor cerró la entrada]\n");
+				_reconectando = true;
+			}
+
+			long espera = espera(fallos++);
+			_ventanaChat.onTextoRecibido(
+					String.format(Locale.getDefault(), "  [Reconectando en %.1f s]%n", espera / 1000.0));
 			try {
-				leido = _reader.readLine();
-			} catch (IOException e) {
-				break;
+				Thread.sleep(espera);
+			} catch (InterruptedException ie) {
+				return;
 			}
-			if (leido == null) {
-				// EOF.
-				break;
+			if (_ventanaChat.cerrada())
+				return;
+			socket = new Socket();
+			try {
+				socket.connect(_direccion, (int) ESPERA_MAX_MS);
+			} catch (IOException e) {
+				socket = null;
 			}
-			_ventanaChat.onTextoRecibido(leido + "\n");
 		} // while
 
-		// Cerramos el canal de entrada. El socket se dar
-		// cuenta, y ver que el canal de salida est
-		// tambin cerrado (por el otro extremo) y
-		// dar error en el prximo intento de escritura.
-		try {
-			_reader.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+	} // run
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Atiende una conexión con el servidor: pide la reanudación, le pasa a la
+	 * ventana el canal de salida y lee líneas hasta que se cierra.
+	 *
+	 * @param socket Socket conectado.
+	 * @throws IOException Si falla la conexión.
+	 */
+	protected void atiende(Socket socket) throws IOException {
+
+		PrintWriter salida = new PrintWriter(socket.getOutputStream());
+		LectorTramas lector = new LectorTramas(socket.getInputStream());
+
+		// Lo primero que debe recibir el servidor es la orden de
+		// reanudación; si no, nos manda el historial entero.
+		if (_epoca == null)
+			salida.println(Reanudacion.orden());
+		else
+			salida.println(Reanudacion.orden(_epoca, _secuencia, _sala));
+		salida.flush();
+		_pedida = _secuencia;
+		_secuencia = 0;
+		_recuperados = 0;
+		_salida = salida;
+		_ventanaChat.onConectado(salida);
+
+		while (lector.siguienteLinea())
+			procesa(lector.textoLinea());
+
+	} // atiende
+
+	/**
+	 * Procesa una línea recibida: le quita el número, si lo tiene, y se la pasa
+	 * a la ventana, salvo las que son respuestas de la reanudación.
+	 *
+	 * @param linea Línea leída, sin fin de línea.
+	 */
+	protected void procesa(String linea) {
+
+		long secuencia = Reanudacion.secuencia(linea);
+		if (secuencia >= 0) {
+			_secuencia = Math.max(_secuencia, secuencia);
+			linea = Reanudacion.sinNumero(linea);
+			if (_reconectando) {
+				// Lo que escribimos nosotros ya se mostró con "[Yo]".
+				if (linea.startsWith("[" + _ventanaChat._nombreUsuario + "] "))
+					return;
+				++_recuperados;
+			}
+		} else if (linea.equals(Latido.PING)) {
+			_salida.println(Latido.PONG);
+			_salida.flush();
+			return;
+		} else if (linea.equals(Reanudacion.ORDEN)) {
+			return;
+		} else if (linea.startsWith(PREFIJO_AL_DIA)) {
+			alDia(linea.substring(PREFIJO_AL_DIA.length()));
+			return;
 		}
+		_ventanaChat.onTextoRecibido(linea + "\n");
 
-		_ventanaChat.onTextoRecibido("  [El servidor cerr la entrada]");
+	} // procesa
 
-	} // run
+	/**
+	 * Procesa el aviso del servidor de que estamos al día en una sala: apunta
+	 * la época y la sala y, si veníamos de una reconexión, dice cómo ha ido.
+	 *
+	 * @param aviso Texto del aviso tras la orden: "época estado sala".
+	 */
+	protected void alDia(String aviso) {
+
+		String[] partes = aviso.split(" ", 3);
+		if (partes.length < 3)
+			return;
+		String estado = partes[1];
+		// Si la época es la misma y no nos ha mandado nada, seguimos por
+		// donde íbamos.
+		if (partes[0].equals(_epoca) && !estado.equals(Reanudacion.HISTORIAL))
+			_secuencia = Math.max(_secuencia, _pedida);
+		_pedida = 0;
+		_epoca = partes[0];
+		_sala = partes[2];
+
+		if (!_reconectando)
+			return;
+		_reconectando = false;
+		if (estado.equals(Reanudacion.COMPLETO))
+			_ventanaChat.onTextoRecibido("  [Reconectado; " + _recuperados + " mensajes recuperados]\n");
+		else if (estado.equals(Reanudacion.INCOMPLETO))
+			_ventanaChat.onTextoRecibido("  [Reconectado; " + _recuperados
+					+ " mensajes recuperados, pero se han perdido algunos anteriores]\n");
+		else
+			_ventanaChat.onTextoRecibido("  [Reconectado a un servidor nuevo; historial de la sala " + _sala + "]\n");
+
+	} // alDia
+
+	/**
+	 * Tiempo que esperar antes de un reintento: aleatorio entre 0 y un tope
+	 * que se dobla con cada fallo, hasta ESPERA_MAX_MS.
+	 *
+	 * @param fallos Reintentos fallidos desde la última conexión.
+	 * @return Milisegundos de espera.
+	 */
+	static long espera(int fallos) {
+
+		long tope = ESPERA_MAX_MS;
+		if (fallos < 31)
+			tope = Math.min(ESPERA_MAX_MS, ESPERA_MIN_MS << fallos);
+		return ThreadLocalRandom.current().nextLong(Math.max(1, tope) + 1);
+
+	} // espera
+
+	/**
+	 * Tope de la espera antes del primer reintento, en milisegundos
+	 * (chat.esperaMin).
+	 */
+	static final long ESPERA_MIN_MS = Long.getLong("chat.esperaMin", 500);
 
-	BufferedReader _reader;
+	/**
+	 * Tope máximo de la espera entre reintentos, en milisegundos
+	 * (chat.esperaMax).
+	 */
+	static final long ESPERA_MAX_MS = Long.getLong("chat.esperaMax", 30000);
+
+	/**
+	 * Principio del aviso del servidor de que estamos al día en una sala.
+	 */
+	static final String PREFIJO_AL_DIA = "[Servidor] " + Reanudacion.AL_DIA + " ";
+
+	/**
+	 * Socket de la primera conexión.
+	 */
+	Socket _socket;
+
+	/**
+	 * Dirección del servidor, para reconectar.
+	 */
+	SocketAddress _direccion;
 
 	Chat _ventanaChat;
 
+	/**
+	 * Canal de salida de la conexión actual, para contestar a los latidos.
+	 */
+	PrintWriter _salida;
+
+	/**
+	 * Época de las secuencias del servidor, o null si todavía no la sabemos.
+	 */
+	String _epoca;
+
+	/**
+	 * Secuencia del último mensaje recibido.
+	 */
+	long _secuencia;
+
+	/**
+	 * Secuencia que pedimos al reconectar, hasta que llega el aviso de que
+	 * estamos al día.
+	 */
+	long _pedida;
+
+	/**
+	 * Sala en la que estamos.
+	 */
+	String _sala;
+
+	/**
+	 * Si estamos recibiendo lo que nos perdimos durante una desconexión.
+	 */
+	boolean _reconectando;
+
+	/**
+	 * Mensajes recuperados en la reconexión actual.
+	 */
+	int _recuperados;
+
 } // RecibeYEscribe
@@ -1,23 +1,38 @@
 package es.pps.sockets.clientefullduplex;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.util.Scanner;
-import java.io.BufferedReader;
+
+import es.pps.sockets.comun.Compresion;
+import es.pps.sockets.comun.Extremos;
+import es.pps.sockets.comun.Latido;
+import es.pps.sockets.comun.LectorTramas;
+import es.pps.sockets.comun.Tramas;
+import es.pps.sockets.comun.Transferencia;
 
 /**
  * Clase que implementa el interfaz Runnable para ser
  * lanzado en otra hebra.
  * 
- * Recibe un InputStream como parámetro en el constructor
- * y se queda contínuamente leyendo líneas de él
- * (a través de un BufferedReader). Cada vez que recibe
- * una línea la escribe por la salida estándar. 
+ * Recibe un LectorTramas como parámetro en el constructor
+ * y se queda contínuamente leyendo de él líneas o, si se
+ * negociaron, tramas (ver Tramas). Cada vez que recibe
+ * una línea (o una trama) escribe su contenido por la salida
+ * estándar.
+ * 
+ * A los latidos del servidor (ver Latido) contesta sin
+ * mostrarlos, escribiendo en el socket con el mismo cerrojo
+ * (el del canal de salida) que la hebra principal.
+ * 
+ * Si en lugar de una línea llega la cabecera de un fichero,
+ * lo recibe (ver Transferencia).
  *  
  * @author Pedro Pablo Gómez Martín
  *
@@ -27,10 +42,20 @@ class RecibeYEscribe implements Runnable {
 	/**
 	 * Constructor
 	 * 
-	 * @param is Stream de entrada del que leer líneas.
+	 * @param socket Socket conectado, para recibir ficheros.
+	 * @param lector Lector del socket (el usado en la negociación, si
+	 * la hubo).
+	 * @param tramas Si el servidor aceptó las tramas.
+	 * @param os Canal de salida del socket, también cerrojo de las
+	 * escrituras.
+	 * @param out Escritor de líneas sobre os.
 	 */
-	RecibeYEscribe(InputStream is) {
-		_reader = new BufferedReader(new InputStreamReader(is));
+	RecibeYEscribe(Socket socket, LectorTramas lector, boolean tramas, OutputStream os, PrintWriter out) {
+		_socket = socket;
+		_lector = lector;
+		_tramas = tramas;
+		_os = os;
+		_out = out;
 	}
 
 	/**
@@ -45,7 +70,26 @@ class RecibeYEscribe implements Runnable {
 
 		while(true) {
 			try {
-				leido = _reader.readLine();
+				if (_tramas) {
+					Tramas.Trama trama = _lector.leeTrama();
+					leido = (trama == null) ? null : trama.texto();
+					if ((trama != null) && (trama.tipo == Tramas.CONTROL) && leido.equals(Latido.PING)) {
+						contesta();
+						continue;
+					}
+				}
+				else {
+					leido = _lector.siguienteLinea() ? _lector.textoLinea() : null;
+					if (Latido.PING.equals(leido)) {
+						contesta();
+						continue;
+					}
+					if ((leido != null) && Transferencia.esCabecera(leido)) {
+						String recibido = recibido(leido);
+						if (recibido != null)
+							leido = recibido;
+					}
+				}
 			} catch (IOException e) {
 				break;
 			}
@@ -61,7 +105,7 @@ class RecibeYEscribe implements Runnable {
 		// también cerrado (por el otro extremo) y
 		// dará error en el próximo intento de escritura.
 		try {
-			_reader.close();
+			_lector.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -70,7 +114,51 @@ class RecibeYEscribe implements Runnable {
 
 	} // run
 
-	BufferedReader _reader;
+	/**
+	 * Recibe el fichero cuya cabecera se acaba de leer.
+	 * 
+	 * @param cabecera Línea de cabecera.
+	 * @return Texto que mostrar en su lugar, o null si la cabecera
+	 * no es válida.
+	 * @throws IOException Si falla la recepción; la conexión ya no
+	 * sirve.
+	 */
+	String recibido(String cabecera) throws IOException {
+		try {
+			return Transferencia.recibe(cabecera, _lector, _socket);
+		} catch (IOException e) {
+			System.out.println("[" + e.getLocalizedMessage() + "]");
+			throw e;
+		}
+	}
+
+	/**
+	 * Contesta a un latido del servidor.
+	 * 
+	 * @throws IOException Si falla la escritura.
+	 */
+	void contesta() throws IOException {
+		synchronized (_os) {
+			if (_tramas) {
+				Tramas.escribe(_os, Tramas.CONTROL, Latido.PONG);
+				_os.flush();
+			}
+			else {
+				_out.println(Latido.PONG);
+				_out.flush();
+			}
+		}
+	}
+
+	Socket _socket;
+
+	LectorTramas _lector;
+
+	boolean _tramas;
+
+	OutputStream _os;
+
+	PrintWriter _out;
 
 } // class RecibeYEscribe
 
@@ -85,34 +173,26 @@ class RecibeYEscribe implements Runnable {
  * Para atender los datos que llegan desde el otro extremo
  * utiliza una hebra secundaria.
  * 
+ * Con un tercer parámetro "tramas" intenta pasar al protocolo de
+ * tramas de SalaDeChat (ver Tramas); si el servidor no lo acepta,
+ * sigue con líneas. Con "comprimidas", además, intenta usar tramas
+ * comprimidas (ver Compresion).
+ * 
+ * Con líneas, "/enviar <ruta>" manda un fichero al otro extremo
+ * (ver Transferencia). Para que se pueda mandar sin copiarlo, el
+ * socket se crea a partir de un SocketChannel.
+ * 
  * @author Pedro Pablo Gómez Martín
  */
 public class ClienteFullDuplex {
 
-	/**
-	 * Método auxiliar que recibe una dirección de internet y un
-	 * puerto y lo escribe por la salida estándar.
-	 * 
-	 * @param address Dirección de internet
-	 * @param port Puerto
-	 */
-	protected static void escribeExtremo(InetAddress address, int port) {
-
-		System.out.print(address.getHostAddress());
-		System.out.print(":" + port);
-		if (address.getCanonicalHostName() != null)
-		System.out.print(" (" + address.getCanonicalHostName() + ")");
-
-	} // escribeExtremo
-
-	//------------------------------------------------
-
 	/**
 	 * Programa principal.
 	 * 
 	 * @param args Argumentos en la línea de órdenes. El primero
 	 * debe ser el nombre del host al que conectarnos (o la IP) y
-	 * el segundo el número de puerto.
+	 * el segundo el número de puerto. Opcionalmente, el tercero puede
+	 * ser "tramas" o "comprimidas".
 	 */
 	public static void main(String[] args) {
 
@@ -136,7 +216,8 @@ public class ClienteFullDuplex {
 
 		// Intentamos conectarnos al servidor solicitado.
 		try {
-			socket = new Socket(hostname, port);
+			socket = SocketChannel.open().socket();
+			socket.connect(new InetSocketAddress(hostname, port));
 		}
 		catch(UnknownHostException uhe) {
 			System.err.println("No se pudo resolver " + hostname);
@@ -148,17 +229,19 @@ public class ClienteFullDuplex {
 		}
 
 		// Mostramos información de la conexión.
-		System.out.print("Conectado desde ");
-		escribeExtremo(socket.getLocalAddress(), socket.getLocalPort());
-		System.out.print(" a ");
-		escribeExtremo(socket.getInetAddress(), socket.getPort());
-		System.out.println();
+		System.out.println("Conectado desde " + Extremos.describe(socket.getLocalAddress(), socket.getLocalPort())
+				+ " a " + Extremos.describe(socket.getInetAddress(), socket.getPort()));
+
+		boolean comprimir = (args.length > 2) && args[2].equals("comprimidas");
+		boolean tramas = comprimir || ((args.length > 2) && args[2].equals("tramas"));
 
 		// Obtenemos el canal de escritura del socket para mandar texto
 		// al servidor.
 		PrintWriter out;
+		OutputStream os;
 		try {
-			out = new PrintWriter(socket.getOutputStream());
+			os = new BufferedOutputStream(socket.getOutputStream());
+			out = new PrintWriter(os);
 		} catch (IOException e) {
 			System.err.println("No pude conseguir el canal de escritura del socket.");
 			try {
@@ -170,7 +253,16 @@ public class ClienteFullDuplex {
 
 		RecibeYEscribe rye;
 		try {
-			rye = new RecibeYEscribe(socket.getInputStream());
+			LectorTramas lector = new LectorTramas(socket.getInputStream());
+			if (tramas) {
+				tramas = Tramas.negocia(socket, lector, os, System.out::println);
+				System.out.println(tramas ? "[Usando tramas]" : "[El servidor no acepta tramas; se usan líneas]");
+				if (tramas && comprimir) {
+					comprimir = Compresion.negocia(socket, lector, os, System.out::println);
+					System.out.println(comprimir ? "[Usando compresión]" : "[El servidor no acepta compresión]");
+				}
+			}
+			rye = new RecibeYEscribe(socket, lector, tramas, os, out);
 		} catch (IOException e) {
 			System.err.println("No pude conseguir el canal de lectura del socket.");
 			try {
@@ -186,11 +278,39 @@ public class ClienteFullDuplex {
 		Scanner scanner = new Scanner(System.in); 
 	
 		// Damos vueltas mientras el canal de salida esté funcionando y
-		// haya más líneas que leer
+		// haya más líneas que leer. Las escrituras, con el cerrojo
+		// de os, porque la hebra de entrada contesta a los latidos.
 		while (!out.checkError() && scanner.hasNextLine()) {
 			String s = scanner.nextLine();
-			out.println(s);
-			out.flush(); // Forzamos el envío.
+			if (Transferencia.esEnvio(s)) {
+				if (tramas) {
+					System.out.println("[Los ficheros sólo se pueden enviar con líneas]");
+					continue;
+				}
+				try {
+					synchronized (os) {
+						System.out.println(Transferencia.envia(s, out, socket));
+					}
+				} catch (IOException e) {
+					System.out.println("[No se pudo enviar: " + e.getLocalizedMessage() + "]");
+				}
+				continue;
+			}
+			if (tramas) {
+				try {
+					synchronized (os) {
+						Tramas.escribe(os, Tramas.tipoDe(s), s, comprimir);
+						os.flush();
+					}
+				} catch (IOException e) {
+					break;
+				}
+				continue;
+			}
+			synchronized (os) {
+				out.println(s);
+				out.flush(); // Forzamos el envío.
+			}
 		} // while
 
 		try {
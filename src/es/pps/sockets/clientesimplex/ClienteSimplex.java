@@ -2,11 +2,12 @@ package es.pps.sockets.clientesimplex;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Scanner;
 
+import es.pps.sockets.comun.Extremos;
+
 /**
  * Programa sencillo que se conecta por TCP a un host y puerto
  * especificados como parámetros al programa, y que envía todo lo
@@ -18,24 +19,6 @@ import java.util.Scanner;
  */
 public class ClienteSimplex {
 
-	/**
-	 * Método auxiliar que recibe una dirección de internet y un
-	 * puerto y lo escribe por la salida estándar.
-	 * 
-	 * @param address Dirección de internet
-	 * @param port Puerto
-	 */
-	protected static void escribeExtremo(InetAddress address, int port) {
-
-		System.out.print(address.getHostAddress());
-		System.out.print(":" + port);
-		if (address.getCanonicalHostName() != null)
-		System.out.print(" (" + address.getCanonicalHostName() + ")");
-
-	} // escribeExtremo
-
-	//------------------------------------------------
-
 	/**
 	 * Programa principal.
 	 * 
@@ -77,11 +60,8 @@ public class ClienteSimplex {
 		}
 
 		// Mostramos información de la conexión.
-		System.out.print("Conectado desde ");
-		escribeExtremo(socket.getLocalAddress(), socket.getLocalPort());
-		System.out.print(" a ");
-		escribeExtremo(socket.getInetAddress(), socket.getPort());
-		System.out.println();
+		System.out.println("Conectado desde " + Extremos.describe(socket.getLocalAddress(), socket.getLocalPort())
+				+ " a " + Extremos.describe(socket.getInetAddress(), socket.getPort()));
 
 		// Obtenemos el canal de escritura del socket para mandar texto
 		// al servidor.
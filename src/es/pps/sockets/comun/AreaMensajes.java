@@ -0,0 +1,244 @@
+package es.pps.sockets.comun;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/**
+ * Muestra los mensajes del chat en un JTextArea sin ahogar a la hebra de
+ * eventos de Swing cuando llegan miles por segundo.
+ *
+ * Los textos se pueden añadir desde cualquier hebra: se dejan en una cola sin
+ * cerrojos y se vuelcan juntos en el área de texto en una sola tarea de la
+ * hebra de eventos. Como mucho se programa una tarea a la vez, y nunca más de
+ * FPS por segundo, así que cuantos más mensajes llegan, más grande es cada
+ * volcado y no más frecuente. Además, el área sólo guarda las últimas
+ * LINEAS_MAX líneas; las más antiguas se van borrando.
+ *
+ * Los dos límites se pueden cambiar con las propiedades del sistema
+ * chat.lineasMax y chat.fps.
+ *
+ * En lugar de en un JTextArea, los mensajes se pueden volcar en una
+ * ListaMensajes, que aguanta historiales mucho más largos; la propiedad
+ * chat.vista=lista indica a las ventanas de chat que la usen (ver
+ * usarLista()).
+ */
+public class AreaMensajes {
+
+	/**
+	 * Constructor con los límites configurados.
+	 *
+	 * @param area Área de texto donde mostrar los mensajes.
+	 */
+	public AreaMensajes(JTextArea area) {
+
+		this(area, LINEAS_MAX, FPS);
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Constructor.
+	 *
+	 * @param area      Área de texto donde mostrar los mensajes.
+	 * @param lineasMax Número máximo de líneas que se guardan.
+	 * @param fps       Número máximo de volcados por segundo.
+	 */
+	public AreaMensajes(JTextArea area, int lineasMax, int fps) {
+
+		_area = area;
+		_lineasMax = Math.max(1, lineasMax);
+		_periodoNs = TimeUnit.SECONDS.toNanos(1) / Math.max(1, fps);
+		_ultimoVolcado = System.nanoTime() - _periodoNs;
+		_temporizador = new Timer(0, e -> vuelca());
+		_temporizador.setRepeats(false);
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Constructor para volcar en una ListaMensajes, con el número máximo de
+	 * volcados por segundo configurado. El número de líneas lo limita la
+	 * capacidad de la lista.
+	 *
+	 * @param lista Lista donde mostrar los mensajes.
+	 */
+	public AreaMensajes(ListaMensajes lista) {
+
+		this(null, Integer.MAX_VALUE, FPS);
+		_lista = lista;
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si las ventanas de chat deben usar una ListaMensajes en lugar de un
+	 * JTextArea (propiedad chat.vista=lista).
+	 *
+	 * @return true para usar la lista.
+	 */
+	public static boolean usarLista() {
+
+		return "lista".equals(System.getProperty("chat.vista"));
+
+	} // usarLista
+
+	// --------------------------------------------------------
+
+	/**
+	 * Añade texto al final del área. Se puede llamar desde cualquier hebra; el
+	 * texto aparecerá en el siguiente volcado, en el mismo orden en que se
+	 * añadió.
+	 *
+	 * @param texto Texto a añadir. Debe acabar en \n.
+	 */
+	public void anyade(String texto) {
+
+		_pendientes.add(texto);
+		if (_programado.compareAndSet(false, true))
+			SwingUtilities.invokeLater(this::programa);
+
+	} // anyade
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Programa el siguiente volcado, en seguida si ya ha pasado un periodo
+	 * desde el anterior o, si no, cuando pase. Se llama en la hebra de eventos.
+	 */
+	protected void programa() {
+
+		long espera = _ultimoVolcado + _periodoNs - System.nanoTime();
+		if (espera <= 0) {
+			vuelca();
+		} else {
+			_temporizador.setInitialDelay((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(espera)));
+			_temporizador.restart();
+		}
+
+	} // programa
+
+	/**
+	 * Vuelca en el área todo lo pendiente, recorta las líneas más antiguas y
+	 * baja hasta el final. Se llama en la hebra de eventos.
+	 */
+	protected void vuelca() {
+
+		// Lo que se añada a partir de aquí programará otro volcado.
+		_programado.set(false);
+		_ultimoVolcado = System.nanoTime();
+
+		StringBuilder sb = new StringBuilder(_resto);
+		_resto = "";
+		String texto;
+		while ((texto = _pendientes.poll()) != null)
+			sb.append(texto);
+		if (sb.length() == 0)
+			return;
+
+		if (_lista != null) {
+			// Una entrada por línea; un texto sin fin de línea se junta
+			// con el siguiente, igual que en el JTextArea.
+			List<String> lineas = new ArrayList<String>();
+			int inicio = 0;
+			for (int fin; (fin = sb.indexOf("\n", inicio)) >= 0; inicio = fin + 1)
+				lineas.add(sb.substring(inicio, fin));
+			_resto = sb.substring(inicio);
+			_lista.anyade(lineas);
+			return;
+		}
+
+		// Si el lote solo ya llena el área, se queda sólo con sus últimas
+		// líneas y sustituye a todo lo anterior, en lugar de añadirlo
+		// entero para recortarlo después.
+		int corte = sb.length();
+		for (int n = 0; (n < _lineasMax) && (corte >= 0); ++n)
+			corte = sb.lastIndexOf("\n", corte - 1);
+		if (corte >= 0) {
+			_area.setText(sb.substring(corte + 1));
+		} else {
+			_area.append(sb.toString());
+			int sobrantes = _area.getLineCount() - _lineasMax;
+			if (sobrantes > 0) {
+				try {
+					_area.replaceRange("", 0, _area.getLineEndOffset(sobrantes - 1));
+				} catch (BadLocationException e) {
+					// No puede pasar: hay más líneas que las sobrantes.
+				}
+			}
+		}
+		_area.setCaretPosition(_area.getDocument().getLength());
+
+	} // vuelca
+
+	/**
+	 * Número máximo de líneas que se guardan por defecto (chat.lineasMax).
+	 */
+	public static final int LINEAS_MAX = Integer.getInteger("chat.lineasMax", 5000);
+
+	/**
+	 * Número máximo de volcados por segundo por defecto (chat.fps).
+	 */
+	public static final int FPS = Integer.getInteger("chat.fps", 30);
+
+	/**
+	 * Área de texto donde se muestran los mensajes.
+	 */
+	JTextArea _area;
+
+	/**
+	 * Lista donde se muestran los mensajes, si se usa en lugar del área.
+	 */
+	ListaMensajes _lista;
+
+	/**
+	 * Texto sin fin de línea que queda del último volcado en la lista, a la
+	 * espera del resto de su línea. Sólo se usa en la hebra de eventos.
+	 */
+	String _resto = "";
+
+	/**
+	 * Número máximo de líneas que se guardan.
+	 */
+	int _lineasMax;
+
+	/**
+	 * Nanosegundos mínimos entre dos volcados.
+	 */
+	long _periodoNs;
+
+	/**
+	 * Textos añadidos que todavía no se han volcado.
+	 */
+	Queue<String> _pendientes = new ConcurrentLinkedQueue<String>();
+
+	/**
+	 * Si ya hay un volcado programado.
+	 */
+	AtomicBoolean _programado = new AtomicBoolean();
+
+	/**
+	 * Instante (System.nanoTime()) del último volcado. Sólo se usa en la hebra
+	 * de eventos.
+	 */
+	long _ultimoVolcado;
+
+	/**
+	 * Temporizador para los volcados que hay que retrasar.
+	 */
+	Timer _temporizador;
+
+} // AreaMensajes
@@ -0,0 +1,304 @@
+package es.pps.sockets.comun;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresión opcional del contenido de las tramas (ver Tramas).
+ *
+ * Cada trama se comprime por separado (Deflate sin cabeceras, vaciado con
+ * SYNC_FLUSH y quitándole los cuatro bytes 00 00 FF FF del final, como hace
+ * permessage-deflate en WebSocket), partiendo siempre de un diccionario
+ * predefinido con los trozos que más se repiten en el chat. Como no depende
+ * de lo enviado antes, la trama comprimida de un mensaje es la misma para
+ * todos los destinatarios y el servidor la calcula una sola vez por mensaje,
+ * no una por destinatario; a cambio comprime algo menos que un flujo
+ * continuo.
+ *
+ * Las tramas comprimidas llevan el bit COMPRIMIDA en el tipo. Sólo se
+ * comprime si la trama sale más pequeña.
+ *
+ * Se negocia una vez pasados a tramas: el cliente manda la trama de control
+ * "/comprimir <versión>" y el servidor le responde con otra igual con la
+ * versión elegida; a partir de ella el servidor le puede mandar tramas
+ * comprimidas. El servidor acepta tramas comprimidas de los clientes que lo
+ * han negociado.
+ *
+ * Los Deflater e Inflater (que usan memoria nativa) se reutilizan desde una
+ * reserva común, y se lleva la cuenta de lo comprimido y del tiempo de CPU
+ * empleado.
+ */
+public final class Compresion {
+
+	/**
+	 * Negocia la compresión desde el lado del cliente, que ya debe estar usando
+	 * tramas: manda la orden y lee tramas hasta que llega la respuesta o se
+	 * agota la espera.
+	 *
+	 * @param socket  Socket conectado con el servidor (para la espera máxima).
+	 * @param lector  Lector de la entrada del socket.
+	 * @param out     Salida del socket.
+	 * @param previas Quien recibe el texto de las tramas que lleguen antes de
+	 *                la respuesta.
+	 * @return true si el servidor ha aceptado.
+	 * @throws IOException Si falla la conexión.
+	 */
+	public static boolean negocia(Socket socket, LectorTramas lector, OutputStream out, Consumer<String> previas)
+			throws IOException {
+
+		Tramas.escribe(out, Tramas.CONTROL, orden(VERSION));
+		out.flush();
+		int esperaAnterior = socket.getSoTimeout();
+		socket.setSoTimeout(ESPERA_MS);
+		try {
+			Tramas.Trama trama;
+			while ((trama = lector.leeTrama()) != null) {
+				if ((trama.tipo == Tramas.CONTROL) && (version(trama.texto()) > 0)) {
+					// Lo que mande a partir de aquí el servidor puede venir
+					// comprimido.
+					lector.aceptaComprimidas(() -> true);
+					return true;
+				}
+				previas.accept(trama.texto());
+			}
+			return false;
+		} catch (SocketTimeoutException ste) {
+			return false;
+		} finally {
+			socket.setSoTimeout(esperaAnterior);
+		}
+
+	} // negocia
+
+	// --------------------------------------------------------
+
+	/**
+	 * Orden (o respuesta) de compresión para una versión.
+	 *
+	 * @param version Versión.
+	 * @return Texto de la orden.
+	 */
+	public static String orden(int version) {
+
+		return ORDEN + " " + version;
+
+	} // orden
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si un texto es una orden de compresión, devuelve su versión.
+	 *
+	 * @param texto Texto recibido.
+	 * @return Versión, o -1 si no es una orden de compresión válida.
+	 */
+	public static int version(String texto) {
+
+		String[] partes = texto.trim().split("\\s+");
+		if ((partes.length != 2) || !partes[0].equals(ORDEN))
+			return -1;
+		try {
+			return Integer.parseInt(partes[1]);
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+
+	} // version
+
+	// --------------------------------------------------------
+
+	/**
+	 * Comprime unos bytes.
+	 *
+	 * @param datos Bytes a comprimir, entre la posición y el límite. No se
+	 *              modifica su posición.
+	 * @return Bytes comprimidos, o null si no salen menos que los originales.
+	 */
+	public static byte[] comprime(ByteBuffer datos) {
+
+		long antes = System.nanoTime();
+		int longitud = datos.remaining();
+		Deflater deflater = _deflaters.poll();
+		if (deflater == null)
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		byte[] salida = new byte[longitud + 16];
+		int n;
+		try {
+			deflater.setDictionary(DICCIONARIO);
+			deflater.setInput(datos.duplicate());
+			n = deflater.deflate(salida, 0, salida.length, Deflater.SYNC_FLUSH);
+			// Si ha llenado la salida, no ha acabado y no merece la pena.
+			if (n == salida.length)
+				n = Integer.MAX_VALUE;
+		} finally {
+			deflater.reset();
+			_deflaters.offer(deflater);
+		}
+
+		_nanos.add(System.nanoTime() - antes);
+		_mensajes.increment();
+		_originales.add(longitud);
+		n -= COLA_SYNC.length;
+		if (n >= longitud) {
+			_comprimidos.add(longitud);
+			return null;
+		}
+		_comprimidos.add(n);
+		return Arrays.copyOf(salida, n);
+
+	} // comprime
+
+	// --------------------------------------------------------
+
+	/**
+	 * Descomprime unos bytes comprimidos con comprime().
+	 *
+	 * @param datos    Buffer con los bytes comprimidos.
+	 * @param inicio   Índice del primer byte.
+	 * @param longitud Número de bytes.
+	 * @return Bytes descomprimidos.
+	 * @throws IOException Si los datos no son válidos o descomprimidos pasan
+	 *                     de Tramas.MAX_TRAMA.
+	 */
+	public static byte[] descomprime(byte[] datos, int inicio, int longitud) throws IOException {
+
+		long antes = System.nanoTime();
+		Inflater inflater = _inflaters.poll();
+		if (inflater == null)
+			inflater = new Inflater(true);
+		byte[] salida = new byte[Math.max(64, longitud * 4)];
+		int n = 0;
+		try {
+			inflater.setDictionary(DICCIONARIO);
+			byte[] entrada = Arrays.copyOfRange(datos, inicio, inicio + longitud + COLA_SYNC.length);
+			System.arraycopy(COLA_SYNC, 0, entrada, longitud, COLA_SYNC.length);
+			inflater.setInput(entrada);
+			while (true) {
+				int leidos = inflater.inflate(salida, n, salida.length - n);
+				n += leidos;
+				if (n < salida.length) {
+					// Con hueco libre, sólo para si ya no puede sacar más.
+					if ((leidos == 0) || inflater.needsInput() || inflater.finished())
+						break;
+					continue;
+				}
+				if (salida.length >= Tramas.MAX_TRAMA)
+					throw new IOException("Trama comprimida demasiado larga");
+				salida = Arrays.copyOf(salida, Math.min(salida.length * 2, Tramas.MAX_TRAMA));
+			}
+		} catch (DataFormatException dfe) {
+			throw new IOException("Trama comprimida inválida", dfe);
+		} finally {
+			inflater.reset();
+			_inflaters.offer(inflater);
+		}
+		_nanos.add(System.nanoTime() - antes);
+		return Arrays.copyOf(salida, n);
+
+	} // descomprime
+
+	// --------------------------------------------------------
+
+	/**
+	 * Resumen de lo comprimido hasta ahora.
+	 *
+	 * @return Mensajes comprimidos, relación entre el tamaño comprimido y el
+	 *         original, y microsegundos de CPU por mensaje (contando también
+	 *         las descompresiones).
+	 */
+	public static String resumen() {
+
+		long mensajes = _mensajes.sum();
+		long originales = _originales.sum();
+		if ((mensajes == 0) || (originales == 0))
+			return "0 mensajes comprimidos";
+		return String.format("%d mensajes comprimidos, %.2f del tamaño original, %.1f us/mensaje", mensajes,
+				(double) _comprimidos.sum() / originales, _nanos.sum() / 1000.0 / mensajes);
+
+	} // resumen
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Clase de utilidad; no se instancia.
+	 */
+	private Compresion() {
+	}
+
+	/**
+	 * Versión de la compresión (y del diccionario) que se entiende.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Orden con la que se pide (y se confirma) la compresión.
+	 */
+	public static final String ORDEN = "/comprimir";
+
+	/**
+	 * Bit del tipo de trama que indica que su contenido está comprimido.
+	 */
+	public static final byte COMPRIMIDA = (byte) 0x80;
+
+	/**
+	 * Milisegundos que se espera la respuesta a la orden.
+	 */
+	private static final int ESPERA_MS = 2000;
+
+	/**
+	 * Bytes con los que acaba siempre un vaciado SYNC_FLUSH; no se mandan.
+	 */
+	private static final byte[] COLA_SYNC = { 0, 0, (byte) 0xff, (byte) 0xff };
+
+	/**
+	 * Diccionario predefinido. Deflate busca coincidencias hacia atrás, así que
+	 * lo más frecuente va al final.
+	 */
+	private static final byte[] DICCIONARIO = (" que de la el en los las por con para una esto pero como más hay "
+			+ "sala salas general /entrar /salir /salas Uso: Estás en la sala Orden desconocida "
+			+ "[Servidor] [DESCONECTADO] [CONECTADO] ] [").getBytes(Tramas.CHARSET);
+
+	/**
+	 * Deflaters libres para reutilizar.
+	 */
+	private static final Queue<Deflater> _deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	/**
+	 * Inflaters libres para reutilizar.
+	 */
+	private static final Queue<Inflater> _inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	/**
+	 * Mensajes comprimidos.
+	 */
+	private static final LongAdder _mensajes = new LongAdder();
+
+	/**
+	 * Bytes antes de comprimir.
+	 */
+	private static final LongAdder _originales = new LongAdder();
+
+	/**
+	 * Bytes después de comprimir (o sin comprimir, si no compensaba).
+	 */
+	private static final LongAdder _comprimidos = new LongAdder();
+
+	/**
+	 * Nanosegundos empleados en comprimir y descomprimir.
+	 */
+	private static final LongAdder _nanos = new LongAdder();
+
+} // Compresion
@@ -0,0 +1,193 @@
+package es.pps.sockets.comun;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Descripción de los extremos (dirección y puerto) de una conexión para
+ * mostrarlos por la salida estándar. Sustituye al método escribeExtremo() que
+ * tenía copiado cada programa.
+ *
+ * La dirección numérica se devuelve en el momento. La resolución inversa del
+ * nombre (getCanonicalHostName(), que puede tardar lo que el tiempo de espera
+ * del DNS) se hace en unas pocas hebras de fondo, y el nombre se escribe en una
+ * línea aparte cuando llega. Los nombres se guardan en una caché durante un
+ * tiempo limitado, de modo que las conexiones siguientes desde la misma
+ * dirección lo muestran ya en la misma línea.
+ *
+ * Si el DNS no responde, las peticiones se acumulan en una cola acotada y las
+ * que no caben se descartan: nunca se retrasa a quien llama.
+ *
+ * Se configura con las propiedades del sistema extremos.ttl (segundos que se
+ * guarda un nombre, 300 por defecto) y extremos.hebras (hebras de resolución,
+ * 2 por defecto).
+ */
+public class Extremos {
+
+	/**
+	 * Devuelve la dirección y el puerto en texto. Si el nombre de la dirección
+	 * ya se conoce, se añade entre paréntesis; si no, se pide su resolución y,
+	 * cuando llegue, se escribirá por la salida estándar en su propia línea.
+	 *
+	 * @param address Dirección de internet
+	 * @param port    Puerto
+	 * @return Descripción del extremo.
+	 */
+	public static String describe(InetAddress address, int port) {
+
+		String numerica = address.getHostAddress();
+		String nombre = nombreConocido(address);
+		if (nombre != null)
+			return nombre.equals(numerica) ? numerica + ":" + port : numerica + ":" + port + " (" + nombre + ")";
+
+		resuelve(address).thenAccept(n -> {
+			if (!n.equals(numerica))
+				System.out.println("  [" + numerica + " es " + n + "]");
+		});
+		return numerica + ":" + port;
+
+	} // describe
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve el nombre de una dirección si está en la caché y no ha
+	 * caducado.
+	 *
+	 * @param address Dirección de internet.
+	 * @return Nombre de la dirección (o la propia dirección en texto si no
+	 *         tiene), o null si todavía no se conoce.
+	 */
+	public static String nombreConocido(InetAddress address) {
+
+		Entrada e = _cache.get(address);
+		if ((e == null) || e.caducada() || !e.nombre.isDone())
+			return null;
+		return e.nombre.getNow(null);
+
+	} // nombreConocido
+
+	// --------------------------------------------------------
+
+	/**
+	 * Pide la resolución inversa de una dirección, reutilizando la que esté en
+	 * curso o en la caché.
+	 *
+	 * @param address Dirección de internet.
+	 * @return Futuro con el nombre de la dirección (o la propia dirección en
+	 *         texto si no tiene). Si no se pudo pedir la resolución, se
+	 *         completa en el momento con la dirección en texto.
+	 */
+	public static CompletableFuture<String> resuelve(InetAddress address) {
+
+		Entrada e = _cache.get(address);
+		if ((e != null) && !e.caducada())
+			return e.nombre;
+
+		Entrada nueva = new Entrada();
+		if (e == null) {
+			e = _cache.putIfAbsent(address, nueva);
+			if (e != null)
+				return e.nombre;
+		} else if (!_cache.replace(address, e, nueva)) {
+			return resuelve(address);
+		}
+
+		try {
+			_ejecutor.execute(() -> nueva.nombre.complete(address.getCanonicalHostName()));
+		} catch (RejectedExecutionException ree) {
+			// El DNS no da abasto; ya lo intentará la siguiente conexión.
+			// Quien ya espera este futuro (aquí o tras el putIfAbsent de
+			// otra hebra) se queda con la dirección numérica.
+			_cache.remove(address, nueva);
+			nueva.nombre.complete(address.getHostAddress());
+		}
+		purga();
+		return nueva.nombre;
+
+	} // resuelve
+
+	// --------------------------------------------------------
+
+	/**
+	 * Quita de la caché las entradas caducadas si ha crecido demasiado.
+	 */
+	protected static void purga() {
+
+		if (_cache.size() <= MAX_ENTRADAS)
+			return;
+		Iterator<Map.Entry<InetAddress, Entrada>> it = _cache.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue().caducada())
+				it.remove();
+		}
+
+	} // purga
+
+	// --------------------------------------------------------
+
+	/**
+	 * Entrada de la caché: el nombre (quizá todavía por resolver) y cuándo
+	 * caduca.
+	 */
+	static class Entrada {
+
+		boolean caducada() {
+			return System.nanoTime() - creada > TTL_NS;
+		}
+
+		final CompletableFuture<String> nombre = new CompletableFuture<String>();
+
+		final long creada = System.nanoTime();
+
+	} // Entrada
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Tiempo que se guarda un nombre en la caché, en nanosegundos.
+	 */
+	private static final long TTL_NS = TimeUnit.SECONDS.toNanos(Long.getLong("extremos.ttl", 300));
+
+	/**
+	 * Tamaño de la caché a partir del cual se purgan las entradas caducadas.
+	 */
+	private static final int MAX_ENTRADAS = 10000;
+
+	/**
+	 * Resoluciones pendientes que se admiten como mucho.
+	 */
+	private static final int MAX_PENDIENTES = 1000;
+
+	/**
+	 * Caché de nombres por dirección.
+	 */
+	static Map<InetAddress, Entrada> _cache = new ConcurrentHashMap<InetAddress, Entrada>();
+
+	/**
+	 * Hebras de fondo que hacen las resoluciones.
+	 */
+	static ThreadPoolExecutor _ejecutor;
+
+	static {
+		int hebras = Integer.getInteger("extremos.hebras", 2);
+		AtomicInteger contador = new AtomicInteger();
+		_ejecutor = new ThreadPoolExecutor(hebras, hebras, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_PENDIENTES), r -> {
+					Thread t = new Thread(r, "resolutor-" + contador.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+} // Extremos
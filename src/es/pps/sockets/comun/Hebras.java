@@ -0,0 +1,65 @@
+package es.pps.sockets.comun;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fábricas de hebras para los servidores que atienden cada conexión en su
+ * propia hebra.
+ *
+ * Las hebras virtuales sólo existen a partir de Java 21, así que su fábrica se
+ * obtiene por reflexión (Thread.ofVirtual().factory()); en máquinas virtuales
+ * anteriores se avisa y se usan hebras normales, de modo que los programas
+ * siguen compilando y funcionando con cualquier JRE.
+ */
+public final class Hebras {
+
+	/**
+	 * Fábrica de hebras virtuales o, si la máquina virtual no las soporta, de
+	 * hebras normales.
+	 *
+	 * @param prefijo Principio del nombre de las hebras, al que se añade un
+	 *                número.
+	 * @return Fábrica de hebras.
+	 */
+	public static ThreadFactory virtuales(String prefijo) {
+
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefijo, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			System.err.println("[Esta máquina virtual no tiene hebras virtuales; se usarán hebras normales]");
+			return normales(prefijo);
+		}
+
+	} // virtuales
+
+	// --------------------------------------------------------
+
+	/**
+	 * Fábrica de hebras normales.
+	 *
+	 * @param prefijo Principio del nombre de las hebras, al que se añade un
+	 *                número.
+	 * @return Fábrica de hebras.
+	 */
+	public static ThreadFactory normales(String prefijo) {
+
+		AtomicLong contador = new AtomicLong();
+		return r -> new Thread(r, prefijo + contador.getAndIncrement());
+
+	} // normales
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Clase de utilidad; no se instancia.
+	 */
+	private Hebras() {
+	}
+
+} // Hebras
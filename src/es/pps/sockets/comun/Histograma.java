@@ -0,0 +1,178 @@
+package es.pps.sockets.comun;
+
+/**
+ * Histograma de latencias en microsegundos, con cubos exactos hasta 127 us y,
+ * a partir de ahí, 64 cubos por cada potencia de dos (un error relativo
+ * menor del 1,6 %). Ocupa lo mismo sea cual sea el número de valores, así que
+ * anotar no reserva memoria.
+ *
+ * No es seguro entre hebras: o cada hebra tiene el suyo y al final se suman
+ * (como los lectores de GeneradorCarga), o se sincroniza quien lo use.
+ */
+public class Histograma {
+
+	/**
+	 * Anota un valor.
+	 *
+	 * @param us Latencia en microsegundos; las negativas cuentan como 0.
+	 */
+	public void anota(long us) {
+
+		if (us < 0)
+			us = 0;
+		int i = Math.min(cubo(us), _cubos.length - 1);
+		++_cubos[i];
+		++_total;
+		_suma += us;
+		if (us > _maximo)
+			_maximo = us;
+
+	} // anota
+
+	// --------------------------------------------------------
+
+	/**
+	 * Suma a este histograma los valores de otro.
+	 *
+	 * @param otro Histograma a sumar.
+	 */
+	public void suma(Histograma otro) {
+
+		for (int i = 0; i < _cubos.length; ++i)
+			_cubos[i] += otro._cubos[i];
+		_total += otro._total;
+		_suma += otro._suma;
+		_maximo = Math.max(_maximo, otro._maximo);
+
+	} // suma
+
+	// --------------------------------------------------------
+
+	/**
+	 * Percentil de los valores anotados.
+	 *
+	 * @param p Percentil, entre 0 y 100.
+	 * @return Límite superior del cubo en el que cae el percentil, o 0 si no
+	 *         hay valores.
+	 */
+	public long percentil(double p) {
+
+		if (_total == 0)
+			return 0;
+		long posicion = Math.max(1, (long) Math.ceil(p / 100.0 * _total));
+		long acumulado = 0;
+		for (int i = 0; i < _cubos.length; ++i) {
+			acumulado += _cubos[i];
+			if (acumulado >= posicion)
+				return Math.min(limiteSuperior(i), _maximo);
+		}
+		return _maximo;
+
+	} // percentil
+
+	// --------------------------------------------------------
+
+	/**
+	 * Número de valores anotados.
+	 *
+	 * @return Total.
+	 */
+	public long total() {
+
+		return _total;
+
+	} // total
+
+	// --------------------------------------------------------
+
+	/**
+	 * Media de los valores anotados.
+	 *
+	 * @return Media, o 0 si no hay valores.
+	 */
+	public double media() {
+
+		return (_total == 0) ? 0 : (double) _suma / _total;
+
+	} // media
+
+	// --------------------------------------------------------
+
+	/**
+	 * Mayor valor anotado.
+	 *
+	 * @return Máximo.
+	 */
+	public long maximo() {
+
+		return _maximo;
+
+	} // maximo
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Cubo en el que cae un valor.
+	 *
+	 * @param v Valor, no negativo.
+	 * @return Índice del cubo.
+	 */
+	static int cubo(long v) {
+
+		if (v < 2 * SUBCUBOS)
+			return (int) v;
+		int desplazamiento = 63 - Long.numberOfLeadingZeros(v) - BITS_SUBCUBO;
+		return 2 * SUBCUBOS + (desplazamiento - 1) * SUBCUBOS + (int) (v >>> desplazamiento) - SUBCUBOS;
+
+	} // cubo
+
+	/**
+	 * Mayor valor que cae en un cubo.
+	 *
+	 * @param i Índice del cubo.
+	 * @return Límite superior.
+	 */
+	static long limiteSuperior(int i) {
+
+		if (i < 2 * SUBCUBOS)
+			return i;
+		int desplazamiento = (i - 2 * SUBCUBOS) / SUBCUBOS + 1;
+		long mantisa = (i - 2 * SUBCUBOS) % SUBCUBOS + SUBCUBOS;
+		return ((mantisa + 1) << desplazamiento) - 1;
+
+	} // limiteSuperior
+
+	/**
+	 * Bits de la mantisa de cada cubo.
+	 */
+	static final int BITS_SUBCUBO = 6;
+
+	/**
+	 * Cubos por cada potencia de dos.
+	 */
+	static final int SUBCUBOS = 1 << BITS_SUBCUBO;
+
+	/**
+	 * Cubos: los exactos más los de desplazamientos de 1 a 40 (hasta unos 12
+	 * días); lo que pase de ahí cae en el último.
+	 */
+	long[] _cubos = new long[2 * SUBCUBOS + 40 * SUBCUBOS];
+
+	/**
+	 * Número de valores anotados.
+	 */
+	long _total;
+
+	/**
+	 * Suma de los valores anotados.
+	 */
+	long _suma;
+
+	/**
+	 * Mayor valor anotado.
+	 */
+	long _maximo;
+
+} // Histograma
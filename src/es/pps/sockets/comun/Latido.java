@@ -0,0 +1,43 @@
+package es.pps.sockets.comun;
+
+/**
+ * Latidos entre el servidor de chat y sus clientes, para descubrir las
+ * conexiones medio abiertas (el otro extremo desapareció sin cerrar y TCP no
+ * se entera).
+ *
+ * Cuando un cliente lleva un rato sin mandar nada, o sin recibir nada, el
+ * servidor le manda la orden PING (como línea o como trama de control, según
+ * el protocolo que use), y el cliente debe contestar con PONG. Cualquier otra
+ * cosa que mande el cliente también cuenta como señal de vida. Si no llega
+ * nada en el plazo de inactividad, el servidor lo da por muerto y cierra la
+ * conexión.
+ *
+ * Los clientes que no entienden los latidos siguen funcionando: el servidor
+ * sólo da por muerto por no mandar nada a quien ha contestado (o mandado)
+ * algún latido, y a los demás sólo les manda uno, de prueba.
+ *
+ * Un cliente también puede mandar PING, y el servidor le contesta con PONG.
+ */
+public final class Latido {
+
+	/**
+	 * Petición de señal de vida.
+	 */
+	public static final String PING = "/ping";
+
+	/**
+	 * Respuesta a PING.
+	 */
+	public static final String PONG = "/pong";
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Clase de utilidad; no se instancia.
+	 */
+	private Latido() {
+	}
+
+} // Latido
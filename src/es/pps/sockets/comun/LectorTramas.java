@@ -0,0 +1,377 @@
+package es.pps.sockets.comun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Lee de un InputStream líneas o tramas (ver Tramas), buscándolas
+ * directamente en un buffer de bytes propio. Como el buffer es el mismo para
+ * los dos protocolos, se puede pasar de leer líneas a leer tramas en cualquier
+ * momento sin perder lo que ya se hubiera leído del socket.
+ *
+ * Las tramas comprimidas (ver Compresion) se devuelven ya descomprimidas,
+ * pero sólo si se ha negociado la compresión (aceptaComprimidas()); si no,
+ * son un error, para que nadie haga descomprimir al otro lado sin haberlo
+ * pedido.
+ *
+ * Las líneas se pueden leer sin reservar memoria: siguienteLinea() deja la
+ * línea en el propio buffer, de donde se puede copiar (linea()) sin
+ * decodificarla, y sólo quien necesita el texto lo pide (textoLinea()). La
+ * línea es válida hasta la siguiente lectura. leeLinea() es lo mismo, pero
+ * devuelve una copia.
+ */
+public class LectorTramas {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in Canal del que leer.
+	 */
+	public LectorTramas(InputStream in) {
+
+		_in = in;
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Lee la siguiente línea.
+	 *
+	 * @return Bytes de la línea, sin el fin de línea, o null si se ha acabado
+	 *         la entrada.
+	 * @throws IOException Si falla la lectura.
+	 */
+	public byte[] leeLinea() throws IOException {
+
+		if (!siguienteLinea())
+			return null;
+		return Arrays.copyOfRange(_buffer, _lineaInicio, _lineaFin);
+
+	} // leeLinea
+
+	// --------------------------------------------------------
+
+	/**
+	 * Lee la siguiente línea y la deja en el buffer, sin copiarla. Se consulta
+	 * con linea() o textoLinea() hasta la siguiente lectura.
+	 *
+	 * @return false si se ha acabado la entrada.
+	 * @throws IOException Si falla la lectura.
+	 */
+	public boolean siguienteLinea() throws IOException {
+
+		// Lo ya buscado, relativo a _inicio, que cambia al rellenar.
+		int buscado = 0;
+		while (true) {
+			int i = buscaFinLinea(_buffer, _inicio + buscado, _fin);
+			if (i >= 0) {
+				_lineaInicio = _inicio;
+				_lineaFin = ((i > _inicio) && (_buffer[i - 1] == '\r')) ? i - 1 : i;
+				_inicio = i + 1;
+				return true;
+			}
+			buscado = _fin - _inicio;
+			if (!rellena(_fin - _inicio + 1)) {
+				if (_fin == _inicio)
+					return false;
+				// Última línea, sin fin de línea.
+				_lineaInicio = _inicio;
+				_lineaFin = _fin;
+				_inicio = _fin;
+				return true;
+			}
+		}
+
+	} // siguienteLinea
+
+	// --------------------------------------------------------
+
+	/**
+	 * Bytes de la última línea leída con siguienteLinea(), sin el fin de
+	 * línea, entre la posición y el límite. El buffer devuelto es siempre el
+	 * mismo y comparte los bytes con el lector: sólo vale hasta la siguiente
+	 * lectura y no se debe modificar.
+	 *
+	 * @return Vista de la línea.
+	 */
+	public ByteBuffer linea() {
+
+		if (_vista == null)
+			_vista = ByteBuffer.wrap(_buffer);
+		_vista.limit(_lineaFin).position(_lineaInicio);
+		return _vista;
+
+	} // linea
+
+	// --------------------------------------------------------
+
+	/**
+	 * Texto de la última línea leída con siguienteLinea().
+	 *
+	 * @return Línea decodificada con Tramas.CHARSET.
+	 */
+	public String textoLinea() {
+
+		return new String(_buffer, _lineaInicio, _lineaFin - _lineaInicio, Tramas.CHARSET);
+
+	} // textoLinea
+
+	// --------------------------------------------------------
+
+	/**
+	 * Busca un fin de línea ('\n') en un trozo de un array. Mira los bytes de
+	 * ocho en ocho, como un long, de modo que en las líneas largas hace un
+	 * octavo de comparaciones.
+	 *
+	 * @param datos Bytes.
+	 * @param desde Primer byte en el que buscar.
+	 * @param hasta Fin (excluido) de la búsqueda.
+	 * @return Índice del primer '\n', o -1 si no hay.
+	 */
+	public static int buscaFinLinea(byte[] datos, int desde, int hasta) {
+
+		int i = desde;
+		for (; i + 8 <= hasta; i += 8) {
+			// Los bytes que son '\n' quedan a 0; el truco de "hay un byte
+			// a 0" marca su bit alto, y el primero marcado es el bueno.
+			long v = (long) LARGOS.get(datos, i) ^ SALTOS;
+			long ceros = (v - 0x0101010101010101L) & ~v & 0x8080808080808080L;
+			if (ceros != 0)
+				return i + (Long.numberOfTrailingZeros(ceros) >>> 3);
+		}
+		for (; i < hasta; ++i) {
+			if (datos[i] == '\n')
+				return i;
+		}
+		return -1;
+
+	} // buscaFinLinea
+
+	// --------------------------------------------------------
+
+	/**
+	 * Busca un fin de línea ('\n') en un trozo de un buffer, que puede ser
+	 * directo, igual que buscaFinLinea(byte[], int, int).
+	 *
+	 * @param datos Bytes. No se modifica su posición.
+	 * @param desde Primer byte en el que buscar.
+	 * @param hasta Fin (excluido) de la búsqueda.
+	 * @return Índice del primer '\n', o -1 si no hay.
+	 */
+	public static int buscaFinLinea(ByteBuffer datos, int desde, int hasta) {
+
+		int i = desde;
+		for (; i + 8 <= hasta; i += 8) {
+			long v = (long) LARGOS_BUFFER.get(datos, i) ^ SALTOS;
+			long ceros = (v - 0x0101010101010101L) & ~v & 0x8080808080808080L;
+			if (ceros != 0)
+				return i + (Long.numberOfTrailingZeros(ceros) >>> 3);
+		}
+		for (; i < hasta; ++i) {
+			if (datos.get(i) == '\n')
+				return i;
+		}
+		return -1;
+
+	} // buscaFinLinea
+
+	// --------------------------------------------------------
+
+	/**
+	 * Lee la siguiente trama.
+	 *
+	 * @return Trama, o null si se ha acabado la entrada.
+	 * @throws IOException Si falla la lectura, la entrada acaba a mitad de
+	 *                     una trama, llega una trama demasiado larga o llega
+	 *                     una comprimida sin haber negociado la compresión.
+	 */
+	public Tramas.Trama leeTrama() throws IOException {
+
+		if (!rellena(Tramas.CABECERA)) {
+			if (_fin == _inicio)
+				return null;
+			throw new IOException("Trama incompleta");
+		}
+		int longitud = ((_buffer[_inicio] & 0xff) << 24) | ((_buffer[_inicio + 1] & 0xff) << 16)
+				| ((_buffer[_inicio + 2] & 0xff) << 8) | (_buffer[_inicio + 3] & 0xff);
+		if ((longitud < 0) || (longitud > Tramas.MAX_TRAMA))
+			throw new IOException("Trama de longitud inválida: " + longitud);
+		if (!rellena(Tramas.CABECERA + longitud))
+			throw new IOException("Trama incompleta");
+
+		byte tipo = _buffer[_inicio + 4];
+		int inicio = _inicio + Tramas.CABECERA;
+		_inicio = inicio + longitud;
+		if ((tipo & Compresion.COMPRIMIDA) != 0) {
+			if (!_comprimidas.getAsBoolean())
+				throw new IOException("Trama comprimida sin negociar la compresión");
+			return new Tramas.Trama((byte) (tipo & ~Compresion.COMPRIMIDA),
+					Compresion.descomprime(_buffer, inicio, longitud));
+		}
+		return new Tramas.Trama(tipo, Arrays.copyOfRange(_buffer, inicio, inicio + longitud));
+
+	} // leeTrama
+
+	// --------------------------------------------------------
+
+	/**
+	 * Indica cuándo se aceptan tramas comprimidas. Se consulta al llegar cada
+	 * una, así que puede depender de un estado que cambie otra hebra (por
+	 * ejemplo, el servidor al aceptar la orden de compresión).
+	 *
+	 * @param acepta Si se aceptan en ese momento.
+	 */
+	public void aceptaComprimidas(BooleanSupplier acepta) {
+
+		_comprimidas = acepta;
+
+	} // aceptaComprimidas
+
+	// --------------------------------------------------------
+
+	/**
+	 * Pasa a un canal los bytes ya leídos del socket y todavía sin consumir,
+	 * sin leer más. Sirve para cambiar a leer directamente del canal del
+	 * socket (ver Transferencia) sin perder lo que ya estaba en el buffer.
+	 *
+	 * @param destino Canal en el que escribirlos.
+	 * @param maximo  Número máximo de bytes que pasar.
+	 * @return Bytes pasados.
+	 * @throws IOException Si falla la escritura.
+	 */
+	public int vuelca(WritableByteChannel destino, long maximo) throws IOException {
+
+		int n = (int) Math.min(maximo, _fin - _inicio);
+		ByteBuffer pendientes = ByteBuffer.wrap(_buffer, _inicio, n);
+		while (pendientes.hasRemaining())
+			destino.write(pendientes);
+		_inicio += n;
+		return n;
+
+	} // vuelca
+
+	// --------------------------------------------------------
+
+	/**
+	 * Cierra el canal de entrada.
+	 *
+	 * @throws IOException Si falla el cierre.
+	 */
+	public void close() throws IOException {
+
+		_in.close();
+
+	} // close
+
+	// --------------------------------------------------------
+
+	/**
+	 * Lee del canal hasta tener al menos los bytes indicados sin consumir,
+	 * moviéndolos al principio del buffer o agrandándolo si hace falta.
+	 *
+	 * @param necesarios Número de bytes sin consumir que se necesitan.
+	 * @return false si la entrada se acaba antes.
+	 * @throws IOException Si falla la lectura.
+	 */
+	protected boolean rellena(int necesarios) throws IOException {
+
+		if (_fin - _inicio >= necesarios)
+			return true;
+		if (_inicio > 0) {
+			System.arraycopy(_buffer, _inicio, _buffer, 0, _fin - _inicio);
+			_fin -= _inicio;
+			_inicio = 0;
+		}
+		if (necesarios > _buffer.length) {
+			_buffer = Arrays.copyOf(_buffer, Math.max(necesarios, _buffer.length * 2));
+			_vista = null;
+		}
+		while (_fin < necesarios) {
+			int n = _in.read(_buffer, _fin, _buffer.length - _fin);
+			if (n < 0)
+				return false;
+			_fin += n;
+		}
+		return true;
+
+	} // rellena
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Tamaño inicial del buffer.
+	 */
+	private static final int TAM_BUFFER = 8192;
+
+	/**
+	 * Acceso a un array de bytes como longs, con el primer byte en el bit más
+	 * bajo.
+	 */
+	private static final VarHandle LARGOS = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Lo mismo que LARGOS para un ByteBuffer. Lee sin alinear, así que vale
+	 * para cualquier índice.
+	 */
+	private static final VarHandle LARGOS_BUFFER = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Ocho '\n' seguidos.
+	 */
+	private static final long SALTOS = 0x0A0A0A0A0A0A0A0AL;
+
+	/**
+	 * Canal de entrada.
+	 */
+	InputStream _in;
+
+	/**
+	 * Bytes leídos del canal; los que quedan por consumir van de _inicio a
+	 * _fin.
+	 */
+	byte[] _buffer = new byte[TAM_BUFFER];
+
+	/**
+	 * Primer byte sin consumir.
+	 */
+	int _inicio;
+
+	/**
+	 * Fin de los bytes leídos.
+	 */
+	int _fin;
+
+	/**
+	 * Principio de la última línea leída con siguienteLinea().
+	 */
+	int _lineaInicio;
+
+	/**
+	 * Fin de la última línea leída, sin el fin de línea.
+	 */
+	int _lineaFin;
+
+	/**
+	 * Vista de _buffer que devuelve linea(); se crea de nuevo si el buffer
+	 * crece.
+	 */
+	ByteBuffer _vista;
+
+	/**
+	 * Si se aceptan tramas comprimidas; al principio, no.
+	 */
+	volatile BooleanSupplier _comprimidas = () -> false;
+
+} // LectorTramas
@@ -0,0 +1,649 @@
+package es.pps.sockets.comun;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.AbstractAction;
+import javax.swing.JComponent;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.JViewport;
+import javax.swing.KeyStroke;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.UIManager;
+
+/**
+ * Vista de mensajes alternativa al JTextArea, pensada para sesiones muy largas
+ * (de hasta un millón de líneas o más). Sólo guarda los textos, en un buffer
+ * circular, y sólo pinta las líneas que se ven:
+ *
+ * - Añadir una línea cuesta lo mismo tenga la vista las que tenga: se calcula
+ * en cuántas filas de pantalla se parte (según el ancho actual) y se anota en
+ * un árbol de Fenwick, que da la posición vertical de cualquier línea en
+ * tiempo logarítmico. Cuando el buffer se llena, la línea nueva sustituye a la
+ * más antigua.
+ * - Pintar sólo recorre las líneas que caen en la zona a repintar.
+ * - Sólo cuando cambia el ancho hay que volver a calcular las filas de todas
+ * las líneas.
+ *
+ * Si la vista está abajo del todo, sigue abajo al llegar líneas nuevas; si el
+ * usuario se ha ido hacia arriba, se queda donde está.
+ *
+ * Se añaden líneas desde la hebra de eventos; desde otras hebras hay que pasar
+ * por AreaMensajes. panel() la devuelve dentro de un JScrollPane con un
+ * buscador (Ctrl+F).
+ */
+public class ListaMensajes extends JComponent implements Scrollable {
+
+	/**
+	 * Constructor con la capacidad configurada.
+	 */
+	public ListaMensajes() {
+
+		this(CAPACIDAD);
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacidad Número máximo de líneas que se guardan.
+	 */
+	public ListaMensajes(int capacidad) {
+
+		_lineas = new String[Math.max(1, capacidad)];
+		_filas = new int[_lineas.length];
+		_arbol = new long[_lineas.length + 1];
+		setFont(UIManager.getFont("TextArea.font"));
+		setOpaque(true);
+		setBackground(UIManager.getColor("TextArea.background"));
+		setForeground(UIManager.getColor("TextArea.foreground"));
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Añade líneas al final. Se llama en la hebra de eventos.
+	 *
+	 * @param nuevas Líneas, sin fin de línea.
+	 */
+	public void anyade(List<String> nuevas) {
+
+		JViewport viewport = viewport();
+		boolean abajo = (viewport == null) || estaAbajo(viewport);
+		FontMetrics fm = getFontMetrics(getFont());
+		int ancho = anchoTexto();
+		long filasQuitadas = 0;
+
+		for (String linea : nuevas) {
+			int hueco;
+			if (_n < _lineas.length) {
+				hueco = (_inicio + _n) % _lineas.length;
+				++_n;
+			} else {
+				// Lleno: la nueva ocupa el sitio de la más antigua.
+				hueco = _inicio;
+				_inicio = (_inicio + 1) % _lineas.length;
+				filasQuitadas += _filas[hueco];
+				if (_seleccion >= 0)
+					--_seleccion;
+			}
+			_lineas[hueco] = linea;
+			int filas = filas(linea, fm, ancho);
+			suma(hueco, filas - _filas[hueco]);
+			_filas[hueco] = filas;
+		}
+
+		revalidate();
+		repaint();
+		if (abajo) {
+			// El JScrollPane aún no conoce el nuevo tamaño; lo forzamos.
+			setSize(getWidth(), getPreferredSize().height);
+			scrollRectToVisible(new Rectangle(0, getHeight() - 1, 1, 1));
+		} else if ((viewport != null) && (filasQuitadas > 0)) {
+			// Que no se mueva lo que el usuario está leyendo.
+			Rectangle visible = viewport.getViewRect();
+			setSize(getWidth(), getPreferredSize().height);
+			viewport.setViewPosition(new Point(visible.x,
+					(int) Math.max(0, visible.y - filasQuitadas * altoFila())));
+		}
+
+	} // anyade
+
+	// --------------------------------------------------------
+
+	/**
+	 * Busca, sin distinguir mayúsculas, la siguiente línea que contiene un
+	 * texto, a partir de la seleccionada (o del final, si no hay ninguna), la
+	 * selecciona y la hace visible.
+	 *
+	 * @param texto      Texto a buscar.
+	 * @param haciaAtras true para buscar hacia las líneas más antiguas.
+	 * @return true si se ha encontrado.
+	 */
+	public boolean busca(String texto, boolean haciaAtras) {
+
+		if (texto.isEmpty() || (_n == 0))
+			return false;
+		int paso = haciaAtras ? -1 : 1;
+		int desde = (_seleccion >= 0) ? _seleccion + paso : (haciaAtras ? _n - 1 : 0);
+		for (int vistas = 0; vistas < _n; ++vistas, desde += paso) {
+			int i = Math.floorMod(desde, _n);
+			if (contiene(linea(i), texto)) {
+				_seleccion = i;
+				repaint();
+				scrollRectToVisible(rectangulo(i));
+				return true;
+			}
+		}
+		return false;
+
+	} // busca
+
+	// --------------------------------------------------------
+
+	/**
+	 * Número de líneas guardadas.
+	 *
+	 * @return Líneas.
+	 */
+	public int numLineas() {
+
+		return _n;
+
+	} // numLineas
+
+	// --------------------------------------------------------
+
+	/**
+	 * Línea guardada.
+	 *
+	 * @param i Índice, de 0 (la más antigua) a numLineas() - 1.
+	 * @return Texto de la línea.
+	 */
+	public String linea(int i) {
+
+		return _lineas[(_inicio + i) % _lineas.length];
+
+	} // linea
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve la vista dentro de un JScrollPane, con un cuadro de búsqueda
+	 * que aparece con Ctrl+F. En él, Intro busca hacia atrás, Mayúsculas+Intro
+	 * hacia delante y Escape lo cierra.
+	 *
+	 * @return Panel con la vista.
+	 */
+	public JPanel panel() {
+
+		JPanel panel = new JPanel(new BorderLayout());
+		JScrollPane scrollPane = new JScrollPane(this);
+		scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+		panel.add(scrollPane, BorderLayout.CENTER);
+
+		JTextField buscador = new JTextField();
+		buscador.setVisible(false);
+		panel.add(buscador, BorderLayout.NORTH);
+
+		buscador.addActionListener(e -> buscaDesde(buscador, true));
+		buscador.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, InputEvent.SHIFT_DOWN_MASK),
+				"buscarAdelante");
+		buscador.getActionMap().put("buscarAdelante", new AbstractAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				buscaDesde(buscador, false);
+			}
+		});
+		buscador.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "cerrar");
+		buscador.getActionMap().put("cerrar", new AbstractAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				buscador.setVisible(false);
+				_seleccion = -1;
+				repaint();
+				panel.revalidate();
+			}
+		});
+
+		panel.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW)
+				.put(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK), "buscar");
+		panel.getActionMap().put("buscar", new AbstractAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				buscador.setVisible(true);
+				panel.revalidate();
+				buscador.selectAll();
+				buscador.requestFocusInWindow();
+			}
+		});
+		return panel;
+
+	} // panel
+
+	// --------------------------------------------------------
+	// Scrollable
+	// --------------------------------------------------------
+
+	@Override
+	public Dimension getPreferredScrollableViewportSize() {
+		return getPreferredSize();
+	}
+
+	@Override
+	public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return (orientation == SwingConstants.VERTICAL) ? altoFila() : 10;
+	}
+
+	@Override
+	public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return (orientation == SwingConstants.VERTICAL) ? Math.max(altoFila(), visibleRect.height - altoFila())
+				: visibleRect.width;
+	}
+
+	@Override
+	public boolean getScrollableTracksViewportWidth() {
+		// Las líneas se parten al ancho de la vista.
+		return true;
+	}
+
+	@Override
+	public boolean getScrollableTracksViewportHeight() {
+		JViewport viewport = viewport();
+		return (viewport != null) && (viewport.getHeight() > getPreferredSize().height);
+	}
+
+	// --------------------------------------------------------
+
+	@Override
+	public Dimension getPreferredSize() {
+
+		long alto = totalFilas() * altoFila() + 2 * MARGEN;
+		return new Dimension(100, (int) Math.min(Integer.MAX_VALUE, alto));
+
+	} // getPreferredSize
+
+	// --------------------------------------------------------
+
+	@Override
+	public void setBounds(int x, int y, int width, int height) {
+
+		if (width != getWidth()) {
+			super.setBounds(x, y, width, height);
+			recalcula();
+			revalidate();
+		} else {
+			super.setBounds(x, y, width, height);
+		}
+
+	} // setBounds
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	@Override
+	protected void paintComponent(Graphics g) {
+
+		Rectangle clip = g.getClipBounds();
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		if (_n == 0)
+			return;
+
+		FontMetrics fm = g.getFontMetrics(getFont());
+		int alto = altoFila();
+		int ancho = anchoTexto();
+		int i = lineaEnFila(Math.max(0, clip.y - MARGEN) / alto);
+		long fila = filasAntesDe(i);
+		while ((i < _n) && (MARGEN + fila * alto < clip.y + clip.height)) {
+			int y = (int) (MARGEN + fila * alto);
+			int filas = _filas[(_inicio + i) % _lineas.length];
+			if (i == _seleccion) {
+				g.setColor(UIManager.getColor("TextArea.selectionBackground"));
+				g.fillRect(0, y, getWidth(), filas * alto);
+			}
+			g.setColor(getForeground());
+			for (String trozo : parte(linea(i), fm, ancho)) {
+				g.drawString(trozo, MARGEN, y + fm.getAscent());
+				y += alto;
+			}
+			fila += filas;
+			++i;
+		}
+
+	} // paintComponent
+
+	/**
+	 * Busca el texto de un cuadro de búsqueda y lo colorea si no lo encuentra.
+	 *
+	 * @param buscador   Cuadro de búsqueda.
+	 * @param haciaAtras true para buscar hacia las líneas más antiguas.
+	 */
+	protected void buscaDesde(JTextField buscador, boolean haciaAtras) {
+
+		if (busca(buscador.getText(), haciaAtras))
+			buscador.setBackground(UIManager.getColor("TextField.background"));
+		else
+			buscador.setBackground(COLOR_NO_ENCONTRADO);
+
+	} // buscaDesde
+
+	/**
+	 * Vuelve a calcular las filas de todas las líneas con el ancho actual, y
+	 * reconstruye el árbol.
+	 */
+	protected void recalcula() {
+
+		FontMetrics fm = getFontMetrics(getFont());
+		int ancho = anchoTexto();
+		Arrays.fill(_arbol, 0);
+		for (int i = 0; i < _n; ++i) {
+			int hueco = (_inicio + i) % _lineas.length;
+			_filas[hueco] = filas(_lineas[hueco], fm, ancho);
+			suma(hueco, _filas[hueco]);
+		}
+
+	} // recalcula
+
+	/**
+	 * Número de filas de pantalla que ocupa una línea partida por palabras.
+	 *
+	 * @param linea Texto.
+	 * @param fm    Medidas de la fuente.
+	 * @param ancho Ancho disponible.
+	 * @return Filas, al menos una.
+	 */
+	static int filas(String linea, FontMetrics fm, int ancho) {
+
+		return recorre(linea, fm, ancho, null);
+
+	} // filas
+
+	/**
+	 * Parte una línea en las filas de pantalla que ocupa.
+	 *
+	 * @param linea Texto.
+	 * @param fm    Medidas de la fuente.
+	 * @param ancho Ancho disponible.
+	 * @return Trozos de cada fila.
+	 */
+	static List<String> parte(String linea, FontMetrics fm, int ancho) {
+
+		List<String> trozos = new ArrayList<String>();
+		recorre(linea, fm, ancho, trozos);
+		return trozos;
+
+	} // parte
+
+	/**
+	 * Parte una línea por palabras (o por caracteres, si una palabra no cabe
+	 * entera) sin pasar del ancho.
+	 *
+	 * @param linea  Texto.
+	 * @param fm     Medidas de la fuente.
+	 * @param ancho  Ancho disponible.
+	 * @param trozos Dónde dejar los trozos, o null si sólo hay que contarlos.
+	 * @return Número de filas.
+	 */
+	static int recorre(String linea, FontMetrics fm, int ancho, List<String> trozos) {
+
+		int filas = 0;
+		int inicio = 0;
+		int n = linea.length();
+		while (true) {
+			int medido = 0;
+			int fin = inicio;
+			int ultimoEspacio = -1;
+			while (fin < n) {
+				char c = linea.charAt(fin);
+				int w = fm.charWidth(c);
+				if ((medido + w > ancho) && (fin > inicio))
+					break;
+				medido += w;
+				if (c == ' ')
+					ultimoEspacio = fin;
+				++fin;
+			}
+			if ((fin < n) && (ultimoEspacio > inicio))
+				fin = ultimoEspacio + 1;
+			if (trozos != null)
+				trozos.add(linea.substring(inicio, fin));
+			++filas;
+			if (fin >= n)
+				return filas;
+			inicio = fin;
+		}
+
+	} // recorre
+
+	/**
+	 * Índice de la línea en la que cae una fila de pantalla.
+	 *
+	 * @param fila Fila, desde 0.
+	 * @return Índice de la línea, o _n si la fila está después de la última.
+	 */
+	protected int lineaEnFila(long fila) {
+
+		// La primera línea cuyas filas acumuladas pasan de la buscada.
+		int bajo = 0, alto = _n;
+		while (bajo < alto) {
+			int medio = (bajo + alto) >>> 1;
+			if (filasAntesDe(medio + 1) > fila)
+				alto = medio;
+			else
+				bajo = medio + 1;
+		}
+		return bajo;
+
+	} // lineaEnFila
+
+	/**
+	 * Filas de pantalla que ocupan las líneas anteriores a una.
+	 *
+	 * @param i Índice de la línea, de 0 a _n.
+	 * @return Filas acumuladas.
+	 */
+	protected long filasAntesDe(int i) {
+
+		if (i == 0)
+			return 0;
+		int primero = _inicio;
+		int ultimo = _inicio + i - 1;
+		if (ultimo < _lineas.length)
+			return acumulado(ultimo) - acumulado(primero - 1);
+		return acumulado(_lineas.length - 1) - acumulado(primero - 1) + acumulado(ultimo - _lineas.length);
+
+	} // filasAntesDe
+
+	/**
+	 * Filas de pantalla de todas las líneas.
+	 *
+	 * @return Total de filas.
+	 */
+	protected long totalFilas() {
+
+		return acumulado(_lineas.length - 1);
+
+	} // totalFilas
+
+	/**
+	 * Rectángulo que ocupa una línea.
+	 *
+	 * @param i Índice de la línea.
+	 * @return Rectángulo.
+	 */
+	protected Rectangle rectangulo(int i) {
+
+		int alto = altoFila();
+		return new Rectangle(0, (int) (MARGEN + filasAntesDe(i) * alto), getWidth(),
+				_filas[(_inicio + i) % _lineas.length] * alto);
+
+	} // rectangulo
+
+	/**
+	 * Suma un valor a un hueco en el árbol de Fenwick.
+	 *
+	 * @param hueco Hueco del buffer circular.
+	 * @param valor Valor a sumar.
+	 */
+	protected void suma(int hueco, long valor) {
+
+		for (int i = hueco + 1; i < _arbol.length; i += i & -i)
+			_arbol[i] += valor;
+
+	} // suma
+
+	/**
+	 * Suma de las filas de los huecos 0 a hueco, ambos incluidos.
+	 *
+	 * @param hueco Último hueco, o -1.
+	 * @return Suma.
+	 */
+	protected long acumulado(int hueco) {
+
+		long total = 0;
+		for (int i = hueco + 1; i > 0; i -= i & -i)
+			total += _arbol[i];
+		return total;
+
+	} // acumulado
+
+	/**
+	 * Alto de cada fila de pantalla.
+	 *
+	 * @return Píxeles.
+	 */
+	protected int altoFila() {
+
+		return getFontMetrics(getFont()).getHeight();
+
+	} // altoFila
+
+	/**
+	 * Ancho disponible para el texto.
+	 *
+	 * @return Píxeles.
+	 */
+	protected int anchoTexto() {
+
+		return Math.max(1, getWidth() - 2 * MARGEN);
+
+	} // anchoTexto
+
+	/**
+	 * JViewport que contiene la vista, si está en un JScrollPane.
+	 *
+	 * @return Viewport, o null.
+	 */
+	protected JViewport viewport() {
+
+		return (getParent() instanceof JViewport) ? (JViewport) getParent() : null;
+
+	} // viewport
+
+	/**
+	 * Si la vista está desplazada hasta abajo del todo.
+	 *
+	 * @param viewport Viewport que la contiene.
+	 * @return true si se ve la última fila.
+	 */
+	protected boolean estaAbajo(JViewport viewport) {
+
+		Rectangle visible = viewport.getViewRect();
+		return visible.y + visible.height >= getHeight() - altoFila();
+
+	} // estaAbajo
+
+	/**
+	 * Si un texto contiene otro, sin distinguir mayúsculas.
+	 *
+	 * @param texto  Texto donde buscar.
+	 * @param buscado Texto buscado.
+	 * @return true si lo contiene.
+	 */
+	static boolean contiene(String texto, String buscado) {
+
+		for (int i = 0; i + buscado.length() <= texto.length(); ++i) {
+			if (texto.regionMatches(true, i, buscado, 0, buscado.length()))
+				return true;
+		}
+		return false;
+
+	} // contiene
+
+	/**
+	 * JComponent implementa el interfaz serializable; necesitamos el
+	 * identificador único de versión para la serialización.
+	 */
+	private static final long serialVersionUID = 7731164035412297418L;
+
+	/**
+	 * Número máximo de líneas que se guardan por defecto (chat.capacidadLista).
+	 */
+	public static final int CAPACIDAD = Integer.getInteger("chat.capacidadLista", 1_000_000);
+
+	/**
+	 * Margen alrededor del texto, en píxeles.
+	 */
+	static final int MARGEN = 3;
+
+	/**
+	 * Color del buscador cuando no encuentra nada.
+	 */
+	static final Color COLOR_NO_ENCONTRADO = new Color(255, 200, 200);
+
+	/**
+	 * Líneas guardadas, en un buffer circular que empieza en _inicio.
+	 */
+	String[] _lineas;
+
+	/**
+	 * Filas de pantalla que ocupa cada hueco de _lineas con el ancho actual.
+	 */
+	int[] _filas;
+
+	/**
+	 * Árbol de Fenwick sobre _filas, indexado por hueco (desde 1).
+	 */
+	long[] _arbol;
+
+	/**
+	 * Hueco de la línea más antigua.
+	 */
+	int _inicio;
+
+	/**
+	 * Número de líneas guardadas.
+	 */
+	int _n;
+
+	/**
+	 * Línea seleccionada por la búsqueda, o -1.
+	 */
+	int _seleccion = -1;
+
+} // ListaMensajes
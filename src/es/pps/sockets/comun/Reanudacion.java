@@ -0,0 +1,186 @@
+package es.pps.sockets.comun;
+
+/**
+ * Reanudación de la conexión de un cliente de chat (protocolo de líneas) sin
+ * perder ni repetir mensajes.
+ *
+ * El servidor da a cada mensaje que reparte un número de secuencia, creciente
+ * en todo el servidor, y los números de un mismo servidor forman una "época"
+ * (si guarda los mensajes en un diario, la época sobrevive a sus reinicios;
+ * si no, cada arranque empieza una nueva).
+ *
+ * La primera línea que manda el cliente al conectarse es la orden
+ *
+ * "/reanudar [<época> <secuencia> <sala>]"
+ *
+ * sin argumentos la primera vez, y con la época, la última secuencia recibida
+ * y la sala en la que estaba cuando se reconecta. El servidor le responde con
+ * la misma orden y, desde ella, le manda los mensajes numerados: cada línea de
+ * chat va precedida de "#<secuencia> " (las respuestas del servidor no llevan
+ * número). Después lo mete en la sala y le manda de su historial sólo lo
+ * posterior a esa secuencia, si es de la misma época, o el historial entero si
+ * no. Al acabar, y cada vez que el cliente cambia de sala, le manda la línea
+ *
+ * "[Servidor] /aldia <época> <estado> <sala>"
+ *
+ * donde el estado dice si se ha mandado todo lo que faltaba (COMPLETO), si
+ * parte ya no estaba en el historial (INCOMPLETO) o si se ha mandado el
+ * historial entero (HISTORIAL).
+ */
+public final class Reanudacion {
+
+	/**
+	 * Orden de reanudación, para la primera conexión.
+	 *
+	 * @return Texto de la orden.
+	 */
+	public static String orden() {
+
+		return ORDEN;
+
+	} // orden
+
+	// --------------------------------------------------------
+
+	/**
+	 * Orden de reanudación tras una reconexión.
+	 *
+	 * @param epoca     Época de la última secuencia recibida.
+	 * @param secuencia Última secuencia recibida.
+	 * @param sala      Sala en la que estaba el cliente.
+	 * @return Texto de la orden.
+	 */
+	public static String orden(String epoca, long secuencia, String sala) {
+
+		return ORDEN + " " + epoca + " " + secuencia + " " + sala;
+
+	} // orden
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si un texto es una orden de reanudación.
+	 *
+	 * @param texto Texto de una orden (empezando por '/'), o null.
+	 * @return true si es la orden de reanudación, con o sin argumentos.
+	 */
+	public static boolean esOrden(String texto) {
+
+		return (texto != null) && texto.startsWith(ORDEN)
+				&& ((texto.length() == ORDEN.length()) || Character.isWhitespace(texto.charAt(ORDEN.length())));
+
+	} // esOrden
+
+	// --------------------------------------------------------
+
+	/**
+	 * Línea con la que el servidor avisa de que el cliente ya está al día en
+	 * una sala.
+	 *
+	 * @param epoca  Época del servidor.
+	 * @param estado COMPLETO, INCOMPLETO o HISTORIAL.
+	 * @param sala   Sala.
+	 * @return Texto de la línea, sin el prefijo "[Servidor] ".
+	 */
+	public static String alDia(String epoca, String estado, String sala) {
+
+		return AL_DIA + " " + epoca + " " + estado + " " + sala;
+
+	} // alDia
+
+	// --------------------------------------------------------
+
+	/**
+	 * Prefijo con el que se numera una línea de chat.
+	 *
+	 * @param secuencia Secuencia del mensaje.
+	 * @return Prefijo, incluido el espacio final.
+	 */
+	public static String prefijo(long secuencia) {
+
+		return NUMERO + Long.toString(secuencia) + " ";
+
+	} // prefijo
+
+	// --------------------------------------------------------
+
+	/**
+	 * Secuencia de una línea numerada.
+	 *
+	 * @param linea Línea recibida.
+	 * @return Su secuencia, o -1 si no está numerada.
+	 */
+	public static long secuencia(String linea) {
+
+		if (!linea.startsWith(NUMERO))
+			return -1;
+		int espacio = linea.indexOf(' ');
+		if (espacio < 2)
+			return -1;
+		try {
+			return Long.parseLong(linea, 1, espacio, 10);
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+
+	} // secuencia
+
+	// --------------------------------------------------------
+
+	/**
+	 * Quita el número a una línea numerada.
+	 *
+	 * @param linea Línea con número.
+	 * @return Línea sin el prefijo.
+	 */
+	public static String sinNumero(String linea) {
+
+		return linea.substring(linea.indexOf(' ') + 1);
+
+	} // sinNumero
+
+	// --------------------------------------------------------
+
+	/**
+	 * Orden de reanudación.
+	 */
+	public static final String ORDEN = "/reanudar";
+
+	/**
+	 * Orden con la que el servidor avisa de que el cliente está al día.
+	 */
+	public static final String AL_DIA = "/aldia";
+
+	/**
+	 * Se ha mandado todo lo posterior a la secuencia pedida.
+	 */
+	public static final String COMPLETO = "completo";
+
+	/**
+	 * Parte de lo posterior a la secuencia pedida ya no estaba en el
+	 * historial.
+	 */
+	public static final String INCOMPLETO = "incompleto";
+
+	/**
+	 * Se ha mandado el historial entero (primera conexión, cambio de sala u
+	 * otra época).
+	 */
+	public static final String HISTORIAL = "historial";
+
+	/**
+	 * Carácter con el que empiezan las líneas numeradas.
+	 */
+	public static final String NUMERO = "#";
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Clase de utilidad; no se instancia.
+	 */
+	private Reanudacion() {
+	}
+
+} // Reanudacion
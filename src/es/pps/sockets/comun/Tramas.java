@@ -0,0 +1,264 @@
+package es.pps.sockets.comun;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.function.Consumer;
+
+/**
+ * Protocolo de tramas binarias, alternativo al de líneas de texto. Cada trama
+ * lleva su longitud delante, así que el contenido puede tener saltos de línea
+ * y quien sólo la reenvía no necesita decodificarla:
+ *
+ * - longitud (int, big endian): bytes del contenido.
+ * - tipo (byte): CHAT, CONTROL o PRESENCIA.
+ * - contenido: texto, con el mismo juego de caracteres que el protocolo de
+ * líneas.
+ *
+ * Todas las conexiones empiezan con el protocolo de líneas, de modo que los
+ * clientes antiguos siguen funcionando. Para pasar a tramas, el cliente manda
+ * la línea "/binario <versión>" con la mayor versión que entiende, y espera:
+ * el servidor responde con la línea "/binario <versión>" con la versión
+ * elegida y, a partir de ella, los dos extremos usan tramas. Antes de esa
+ * respuesta pueden llegar otras líneas (el historial de la sala, por
+ * ejemplo). Si la respuesta no llega, el cliente sigue con líneas.
+ */
+public final class Tramas {
+
+	/**
+	 * Trama recibida.
+	 */
+	public static final class Trama {
+
+		/**
+		 * Constructor.
+		 *
+		 * @param tipo  Tipo de la trama.
+		 * @param datos Contenido.
+		 */
+		public Trama(byte tipo, byte[] datos) {
+			this.tipo = tipo;
+			this.datos = datos;
+		}
+
+		/**
+		 * Decodifica el contenido.
+		 *
+		 * @return Texto de la trama.
+		 */
+		public String texto() {
+			return new String(datos, CHARSET);
+		}
+
+		/**
+		 * Tipo de la trama.
+		 */
+		public final byte tipo;
+
+		/**
+		 * Contenido de la trama.
+		 */
+		public final byte[] datos;
+
+	} // Trama
+
+	// --------------------------------------------------------
+
+	/**
+	 * Negocia el paso a tramas desde el lado del cliente: manda el saludo y lee
+	 * líneas hasta que llega la respuesta del servidor o se agota la espera.
+	 *
+	 * @param socket Socket conectado con el servidor (para la espera máxima).
+	 * @param lector Lector de la entrada del socket; después hay que seguir
+	 *               leyendo de él, porque puede tener ya tramas leídas.
+	 * @param out    Salida del socket.
+	 * @param previas Quien recibe las líneas que lleguen antes de la respuesta.
+	 * @return true si el servidor ha aceptado; false si hay que seguir con
+	 *         líneas.
+	 * @throws IOException Si falla la conexión.
+	 */
+	public static boolean negocia(Socket socket, LectorTramas lector, OutputStream out, Consumer<String> previas)
+			throws IOException {
+
+		out.write((saludo(VERSION) + System.lineSeparator()).getBytes(CHARSET));
+		out.flush();
+		int esperaAnterior = socket.getSoTimeout();
+		socket.setSoTimeout(ESPERA_SALUDO_MS);
+		try {
+			byte[] linea;
+			while ((linea = lector.leeLinea()) != null) {
+				String texto = new String(linea, CHARSET);
+				if (version(texto) > 0)
+					return true;
+				previas.accept(texto);
+			}
+			return false;
+		} catch (SocketTimeoutException ste) {
+			return false;
+		} finally {
+			socket.setSoTimeout(esperaAnterior);
+		}
+
+	} // negocia
+
+	// --------------------------------------------------------
+
+	/**
+	 * Línea de saludo (o de respuesta) para una versión.
+	 *
+	 * @param version Versión.
+	 * @return Línea, sin fin de línea.
+	 */
+	public static String saludo(int version) {
+
+		return SALUDO + " " + version;
+
+	} // saludo
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si una línea (o una orden) es un saludo, devuelve su versión.
+	 *
+	 * @param linea Línea recibida.
+	 * @return Versión, o -1 si no es un saludo válido.
+	 */
+	public static int version(String linea) {
+
+		String[] partes = linea.trim().split("\\s+");
+		if ((partes.length != 2) || !partes[0].equals(SALUDO))
+			return -1;
+		try {
+			return Integer.parseInt(partes[1]);
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+
+	} // version
+
+	// --------------------------------------------------------
+
+	/**
+	 * Escribe una trama. No fuerza el envío.
+	 *
+	 * @param out   Canal de salida.
+	 * @param tipo  Tipo de la trama.
+	 * @param texto Contenido.
+	 * @throws IOException Si falla la escritura.
+	 */
+	public static void escribe(OutputStream out, byte tipo, String texto) throws IOException {
+
+		escribe(out, tipo, texto, false);
+
+	} // escribe
+
+	// --------------------------------------------------------
+
+	/**
+	 * Escribe una trama, comprimida si se pide y si sale más pequeña (ver
+	 * Compresion). No fuerza el envío.
+	 *
+	 * @param out       Canal de salida.
+	 * @param tipo      Tipo de la trama.
+	 * @param texto     Contenido.
+	 * @param comprimir Si hay que intentar comprimirla.
+	 * @throws IOException Si falla la escritura.
+	 */
+	public static void escribe(OutputStream out, byte tipo, String texto, boolean comprimir) throws IOException {
+
+		byte[] datos = texto.getBytes(CHARSET);
+		if (comprimir) {
+			byte[] comprimidos = Compresion.comprime(ByteBuffer.wrap(datos));
+			if (comprimidos != null) {
+				datos = comprimidos;
+				tipo |= Compresion.COMPRIMIDA;
+			}
+		}
+		byte[] cabecera = { (byte) (datos.length >>> 24), (byte) (datos.length >>> 16), (byte) (datos.length >>> 8),
+				(byte) datos.length, tipo };
+		out.write(cabecera);
+		out.write(datos);
+
+	} // escribe
+
+	// --------------------------------------------------------
+
+	/**
+	 * Tipo de trama que le corresponde a un texto escrito por el usuario: las
+	 * órdenes (que empiezan por '/') son de control y los avisos de conexión y
+	 * desconexión, de presencia.
+	 *
+	 * @param texto Texto escrito, sin el nombre del usuario delante.
+	 * @return Tipo de trama.
+	 */
+	public static byte tipoDe(String texto) {
+
+		String t = texto.trim();
+		if (t.startsWith("/"))
+			return CONTROL;
+		if (t.equals("[CONECTADO]") || t.equals("[DESCONECTADO]"))
+			return PRESENCIA;
+		return CHAT;
+
+	} // tipoDe
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Clase de utilidad; no se instancia.
+	 */
+	private Tramas() {
+	}
+
+	/**
+	 * Mayor versión del protocolo de tramas que se entiende.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Orden con la que se pide (y se confirma) el paso a tramas.
+	 */
+	public static final String SALUDO = "/binario";
+
+	/**
+	 * Trama con un mensaje normal de chat.
+	 */
+	public static final byte CHAT = 1;
+
+	/**
+	 * Trama con una orden para el servidor, o con su respuesta.
+	 */
+	public static final byte CONTROL = 2;
+
+	/**
+	 * Trama con un aviso de conexión o desconexión.
+	 */
+	public static final byte PRESENCIA = 3;
+
+	/**
+	 * Bytes de la cabecera de cada trama.
+	 */
+	public static final int CABECERA = 5;
+
+	/**
+	 * Longitud máxima del contenido de una trama.
+	 */
+	public static final int MAX_TRAMA = 1024 * 1024;
+
+	/**
+	 * Juego de caracteres del contenido de las tramas (el mismo que el de las
+	 * líneas).
+	 */
+	public static final Charset CHARSET = Charset.defaultCharset();
+
+	/**
+	 * Milisegundos que se espera la respuesta al saludo.
+	 */
+	private static final int ESPERA_SALUDO_MS = 2000;
+
+} // Tramas
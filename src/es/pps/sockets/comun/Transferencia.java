@@ -0,0 +1,271 @@
+package es.pps.sockets.comun;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Envío de ficheros por una conexión de líneas (ClienteFullDuplex y
+ * ServidorFullDuplex_*), sin pasar el contenido por el programa.
+ *
+ * Cuando el usuario escribe
+ *
+ * "/enviar <ruta>"
+ *
+ * se manda la línea de cabecera
+ *
+ * "/fichero <longitud> <crc32> <nombre>"
+ *
+ * (la longitud en bytes, el CRC-32 en hexadecimal y el nombre sin directorios)
+ * seguida del contenido del fichero tal cual. El contenido se manda con
+ * FileChannel.transferTo() sobre el canal del socket, que en Linux es un
+ * sendfile(): los bytes van de la caché de disco al socket sin copiarse al
+ * espacio de usuario. El otro extremo, al leer la cabecera, pasa al fichero lo
+ * que ya tuviera en su buffer y el resto con FileChannel.transferFrom(); al
+ * acabar comprueba el CRC y, si cuadra, deja el fichero en el directorio
+ * indicado por la propiedad del sistema ficheros.directorio (el actual por
+ * defecto). Mientras llega, se guarda con el sufijo ".parcial".
+ *
+ * La cabecera delimita el contenido, así que tras un fichero la conexión sigue
+ * con líneas normales, aunque el CRC no cuadre.
+ *
+ * Para que haya sendfile el socket tiene que venir de un SocketChannel (o de
+ * un ServerSocketChannel); si no, se copia a través de su OutputStream.
+ */
+public final class Transferencia {
+
+	/**
+	 * Si una línea escrita por el usuario es la orden de enviar un fichero.
+	 *
+	 * @param linea Línea escrita.
+	 * @return true si es "/enviar <ruta>".
+	 */
+	public static boolean esEnvio(String linea) {
+
+		return linea.startsWith(ENVIAR + " ") && !linea.substring(ENVIAR.length() + 1).isBlank();
+
+	} // esEnvio
+
+	// --------------------------------------------------------
+
+	/**
+	 * Manda un fichero al otro extremo: la cabecera y, a continuación, el
+	 * contenido.
+	 *
+	 * @param orden  Orden escrita por el usuario ("/enviar <ruta>").
+	 * @param out    Canal de escritura de líneas del socket; se vacía antes de
+	 *               mandar el contenido.
+	 * @param socket Socket conectado.
+	 * @return Resumen del envío para mostrarlo.
+	 * @throws IOException Si no se puede leer el fichero o falla el envío
+	 *                     (y entonces, si ya se había mandado la cabecera, se
+	 *                     cierra el socket).
+	 */
+	public static String envia(String orden, PrintWriter out, Socket socket) throws IOException {
+
+		Path ruta = Path.of(orden.substring(ENVIAR.length() + 1).strip());
+		Path nombre = ruta.getFileName();
+		if ((nombre == null) || !Files.isRegularFile(ruta))
+			throw new IOException("No es un fichero: " + ruta);
+
+		try (FileChannel fichero = FileChannel.open(ruta, StandardOpenOption.READ)) {
+			long longitud = fichero.size();
+			long crc = crc(fichero, longitud);
+			long inicio = System.nanoTime();
+			out.println(CABECERA + " " + longitud + " " + Long.toHexString(crc) + " " + nombre);
+			out.flush();
+			if (out.checkError())
+				throw new IOException("Conexión cerrada");
+
+			// Desde aquí, si algo falla el otro extremo ya no sabe dónde
+			// acaba el fichero, así que se cierra la conexión.
+			try {
+				WritableByteChannel canal = canalEscritura(socket);
+				long enviados = 0;
+				while (enviados < longitud) {
+					long n = fichero.transferTo(enviados, longitud - enviados, canal);
+					if (n == 0)
+						throw new IOException("El fichero " + ruta + " ha encogido durante el envío");
+					enviados += n;
+				}
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			return resumen("Enviado", nombre.toString(), longitud, System.nanoTime() - inicio);
+		}
+
+	} // envia
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si una línea recibida es la cabecera de un fichero.
+	 *
+	 * @param linea Línea recibida.
+	 * @return true si empieza por "/fichero ".
+	 */
+	public static boolean esCabecera(String linea) {
+
+		return linea.startsWith(CABECERA + " ");
+
+	} // esCabecera
+
+	// --------------------------------------------------------
+
+	/**
+	 * Recibe el contenido de un fichero tras su cabecera.
+	 *
+	 * @param cabecera Línea de cabecera ya leída.
+	 * @param lector   Lector con el que se leyó la cabecera; lo que tenga ya
+	 *                 leído es el principio del contenido.
+	 * @param socket   Socket conectado.
+	 * @return Resumen de la recepción para mostrarlo, o null si la cabecera
+	 *         no es válida (y entonces no se ha leído nada más).
+	 * @throws IOException Si falla la escritura del fichero, o la conexión se
+	 *                     cierra antes de que llegue entero.
+	 */
+	public static String recibe(String cabecera, LectorTramas lector, Socket socket) throws IOException {
+
+		String[] partes = cabecera.split(" ", 4);
+		if (partes.length < 4)
+			return null;
+		long longitud;
+		long crc;
+		try {
+			longitud = Long.parseLong(partes[1]);
+			crc = Long.parseLong(partes[2], 16);
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+		Path nombre = Path.of(partes[3]).getFileName();
+		if ((longitud < 0) || (nombre == null))
+			return null;
+
+		Path destino = DIRECTORIO.resolve(nombre);
+		Path parcial = DIRECTORIO.resolve(nombre + ".parcial");
+		long inicio = System.nanoTime();
+		boolean correcto;
+		try (FileChannel fichero = FileChannel.open(parcial, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long recibidos = lector.vuelca(fichero, longitud);
+			ReadableByteChannel canal = canalLectura(socket);
+			while (recibidos < longitud) {
+				long n = fichero.transferFrom(canal, recibidos, longitud - recibidos);
+				// Con un canal bloqueante, 0 es que se ha acabado.
+				if (n == 0)
+					throw new IOException("Fichero " + nombre + " incompleto: " + recibidos + " de " + longitud
+							+ " bytes");
+				recibidos += n;
+			}
+			correcto = crc(fichero, longitud) == crc;
+		}
+		if (!correcto) {
+			Files.deleteIfExists(parcial);
+			return "[El fichero " + nombre + " ha llegado dañado (CRC incorrecto); se descarta]";
+		}
+		Files.move(parcial, destino, StandardCopyOption.REPLACE_EXISTING);
+		return resumen("Recibido", destino.toString(), longitud, System.nanoTime() - inicio);
+
+	} // recibe
+
+	// --------------------------------------------------------
+
+	/**
+	 * Orden con la que el usuario pide enviar un fichero.
+	 */
+	public static final String ENVIAR = "/enviar";
+
+	/**
+	 * Principio de la línea de cabecera de un fichero.
+	 */
+	public static final String CABECERA = "/fichero";
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Clase de utilidad; no se instancia.
+	 */
+	private Transferencia() {
+	}
+
+	/**
+	 * CRC-32 del principio de un fichero. Se calcula sobre el fichero
+	 * proyectado en memoria, por trozos, para no copiarlo a un array.
+	 *
+	 * @param fichero  Canal del fichero.
+	 * @param longitud Bytes que cubrir.
+	 * @return CRC-32.
+	 * @throws IOException Si falla la lectura.
+	 */
+	static long crc(FileChannel fichero, long longitud) throws IOException {
+
+		CRC32 crc = new CRC32();
+		for (long pos = 0; pos < longitud; pos += TROZO_CRC) {
+			MappedByteBuffer trozo = fichero.map(FileChannel.MapMode.READ_ONLY, pos,
+					Math.min(TROZO_CRC, longitud - pos));
+			crc.update(trozo);
+		}
+		return crc.getValue();
+
+	} // crc
+
+	/**
+	 * Canal de escritura del socket: el suyo propio si lo tiene (y entonces
+	 * transferTo() puede usar sendfile) o uno sobre su OutputStream.
+	 */
+	static WritableByteChannel canalEscritura(Socket socket) throws IOException {
+
+		if (socket.getChannel() != null)
+			return socket.getChannel();
+		return Channels.newChannel(socket.getOutputStream());
+
+	} // canalEscritura
+
+	/**
+	 * Canal de lectura del socket: el suyo propio si lo tiene o uno sobre su
+	 * InputStream.
+	 */
+	static ReadableByteChannel canalLectura(Socket socket) throws IOException {
+
+		if (socket.getChannel() != null)
+			return socket.getChannel();
+		return Channels.newChannel(socket.getInputStream());
+
+	} // canalLectura
+
+	/**
+	 * Texto con el resultado de una transferencia.
+	 */
+	static String resumen(String que, String nombre, long bytes, long nanos) {
+
+		double segundos = Math.max(nanos, 1) / 1e9;
+		return String.format(Locale.ROOT, "[%s %s: %d bytes en %.3f s (%.1f MB/s)]", que, nombre, bytes, segundos,
+				bytes / segundos / (1024 * 1024));
+
+	} // resumen
+
+	/**
+	 * Tamaño de los trozos que se proyectan en memoria para calcular el CRC.
+	 */
+	private static final long TROZO_CRC = 64L * 1024 * 1024;
+
+	/**
+	 * Directorio donde se dejan los ficheros recibidos (ficheros.directorio).
+	 */
+	private static final Path DIRECTORIO = Path.of(System.getProperty("ficheros.directorio", "."));
+
+} // Transferencia
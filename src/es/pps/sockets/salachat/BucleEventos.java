@@ -0,0 +1,159 @@
+package es.pps.sockets.salachat;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Bucle de eventos del motor no bloqueante. Se lanza en su propia hebra y
+ * atiende, mediante un único Selector, a todas las conexiones que le ha
+ * asignado ServidorNio.
+ *
+ * Las demás hebras nunca tocan el Selector directamente: dejan las conexiones
+ * nuevas, o las que tienen datos pendientes de enviar, en colas concurrentes y
+ * despiertan al Selector para que sea esta hebra la que las atienda.
+ */
+class BucleEventos implements Runnable {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param servidor Servidor al que pertenece el bucle.
+	 * @throws IOException Si no se puede abrir el Selector.
+	 */
+	BucleEventos(ServidorNio servidor) throws IOException {
+
+		_servidor = servidor;
+		_selector = Selector.open();
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Entrega al bucle una conexión recién aceptada. Se puede llamar desde
+	 * cualquier hebra.
+	 *
+	 * @param conexion Conexión nueva.
+	 */
+	void registra(ConexionNio conexion) {
+
+		_nuevas.add(conexion);
+		_selector.wakeup();
+
+	} // registra
+
+	// --------------------------------------------------------
+
+	/**
+	 * Avisa al bucle de que una conexión tiene datos pendientes de enviar (o
+	 * de que se ha cerrado y tiene que soltar sus buffers). Se puede llamar
+	 * desde cualquier hebra.
+	 *
+	 * @param conexion Conexión con datos en su cola de salida, o cerrada.
+	 */
+	void programaEscritura(ConexionNio conexion) {
+
+		_pendientes.add(conexion);
+		_selector.wakeup();
+
+	} // programaEscritura
+
+	// --------------------------------------------------------
+
+	/**
+	 * Método para ser lanzado en otra hebra. Espera eventos en el Selector y se
+	 * los pasa a la conexión correspondiente.
+	 */
+	@Override
+	public void run() {
+
+		while (true) {
+			try {
+				_selector.select();
+			} catch (IOException e) {
+				System.err.println("Error en el bucle de eventos: " + e.getLocalizedMessage());
+				break;
+			}
+
+			registraNuevas();
+			atiendePendientes();
+
+			Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				ConexionNio conexion = (ConexionNio) key.attachment();
+				if (key.isValid() && key.isReadable())
+					conexion.lee();
+				if (key.isValid() && key.isWritable())
+					conexion.escribe();
+			}
+		} // while
+
+	} // run
+
+	// --------------------------------------------------------
+
+	/**
+	 * Registra en el Selector las conexiones que nos han entregado desde la
+	 * última vuelta.
+	 */
+	protected void registraNuevas() {
+
+		ConexionNio conexion;
+		while ((conexion = _nuevas.poll()) != null) {
+			try {
+				conexion.registra(_selector);
+			} catch (IOException e) {
+				System.err.println("No pude registrar la conexión: " + e.getLocalizedMessage());
+				conexion.cierra();
+				continue;
+			}
+			_servidor.onConectado(conexion);
+		}
+
+	} // registraNuevas
+
+	// --------------------------------------------------------
+
+	/**
+	 * Intenta enviar los datos de las conexiones que tienen algo en su cola de
+	 * salida.
+	 */
+	protected void atiendePendientes() {
+
+		ConexionNio conexion;
+		while ((conexion = _pendientes.poll()) != null)
+			conexion.escribe();
+
+	} // atiendePendientes
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Servidor al que pertenece el bucle.
+	 */
+	ServidorNio _servidor;
+
+	/**
+	 * Selector con el que esperamos eventos de todas nuestras conexiones.
+	 */
+	Selector _selector;
+
+	/**
+	 * Conexiones aceptadas pendientes de registrar en el Selector.
+	 */
+	Queue<ConexionNio> _nuevas = new ConcurrentLinkedQueue<ConexionNio>();
+
+	/**
+	 * Conexiones con datos pendientes de enviar.
+	 */
+	Queue<ConexionNio> _pendientes = new ConcurrentLinkedQueue<ConexionNio>();
+
+} // BucleEventos
@@ -5,17 +5,24 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.LinkedList;
 
+import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
-import javax.swing.SwingUtilities;
+
+import es.pps.sockets.comun.AreaMensajes;
+import es.pps.sockets.comun.ListaMensajes;
+import es.pps.sockets.comun.Compresion;
+import es.pps.sockets.comun.LectorTramas;
+import es.pps.sockets.comun.Tramas;
 
 
 
@@ -25,22 +32,28 @@ import javax.swing.SwingUtilities;
 /**
 * Ventana de chat. Recibimos en el constructor un socket ya conectado con el
 * servidor, y el nombre del usuario actual. Configuramos la ventana (heredamos
-* de JFrame) para incluir un rea de texto donde mostraremos los mensajes del
+* de JFrame) para incluir un área de texto donde mostraremos los mensajes del
 * chat, y un cuadro de texto donde el usuario escribe lo que quiere enviar.
 * 
 * Cada vez que detectamos que el usuario ha pulsado intro en el cuadro de
-* texto, escribimos el texto directamente en el rea de texto, y luego lo
-* enviamos por el socket aadindole por delante la cadena "[<nombreUsuario>]
-* ". Adems, en el momento de creacin del objeto, enviamos por el socket
+* texto, escribimos el texto directamente en el área de texto, y luego lo
+* enviamos por el socket añadiéndole por delante la cadena "[<nombreUsuario>]
+* ". Además, en el momento de creación del objeto, enviamos por el socket
 * "[<nombreUsuario> CONECTADO]" y un mensaje similar cuando el usuario cierra
 * la ventana.
 * 
-* Se utiliza un objeto de la clase RecibeYEscribe que se lanza en una hebra
-* secundaria para leer lneas contnuamente del socket. Cada vez que la hebra
-* detecta una, llama al mtodo onTextoRecibido() de esta clase para que se le
+* Se utiliza un objeto de la clase RecibeYMuestra que se lanza en una hebra
+* secundaria para leer líneas contínuamente del socket. Cada vez que la hebra
+* detecta una, llama al método onTextoRecibido() de esta clase para que se le
 * muestre al usuario.
 * 
-* @author Pedro Pablo Gmez Martn
+* Opcionalmente, la ventana puede negociar con el servidor el protocolo de
+* tramas (ver Tramas). En ese caso las órdenes se mandan en tramas de control,
+* sin el nombre del usuario delante, y los avisos de conexión en tramas de
+* presencia. Con tramas, se puede negociar también su compresión (ver
+* Compresion).
+* 
+* @author Pedro Pablo Gómez Martín
 */
 public class Chat extends JFrame {
 
@@ -52,7 +65,38 @@ public class Chat extends JFrame {
 	 */
 	
 	
-	public Chat(Socket socket, String nombreUsuario,  LinkedList<PrintWriter> writers) {
+	public Chat(Socket socket, String nombreUsuario) {
+
+		this(socket, nombreUsuario, false);
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param socket        Socket conectado con el servidor.
+	 * @param nombreUsuario Nombre del usuario dentro del chat.
+	 * @param tramas        Si hay que intentar usar el protocolo de tramas.
+	 */
+	public Chat(Socket socket, String nombreUsuario, boolean tramas) {
+
+		this(socket, nombreUsuario, tramas, false);
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param socket        Socket conectado con el servidor.
+	 * @param nombreUsuario Nombre del usuario dentro del chat.
+	 * @param tramas        Si hay que intentar usar el protocolo de tramas.
+	 * @param comprimir     Si, con tramas, hay que intentar comprimirlas.
+	 */
+	public Chat(Socket socket, String nombreUsuario, boolean tramas, boolean comprimir) {
 
 		super(nombreUsuario + " - Ventana de chat");
 		_nombreUsuario = nombreUsuario;
@@ -62,23 +106,34 @@ public class Chat extends JFrame {
 		// Obtenemos el canal de salida donde mandaremos las
 		// cadenas al servidor (desde enviarServidor(String) ).
 		try {
-			_canalSalida = new PrintWriter(socket.getOutputStream());
+			_salida = new BufferedOutputStream(socket.getOutputStream());
+			_canalSalida = new PrintWriter(_salida);
 		} catch (IOException e) {
-			anyadeTexto("  [Error de conexin]");
+			anyadeTexto("  [Error de conexión]");
 			return;
 		}
 
-		// Preparamos la hebra que se mantendr a la escucha
-		// del canal de entrada del socket y mandar todas las
-		// lneas a nuestro mtodo onTextoRecibido().
-		RecibeYEscribe rye;
+		// Preparamos la hebra que se mantendrá a la escucha
+		// del canal de entrada del socket y mandará todas las
+		// líneas a nuestro método onTextoRecibido().
+		RecibeYMuestra rym;
 		try {
-			rye = new RecibeYEscribe(socket.getInputStream(), _canalSalida, writers );
+			LectorTramas lector = new LectorTramas(socket.getInputStream());
+			if (tramas) {
+				// Lo que llegue antes de la respuesta lo mostramos
+				// sin más.
+				_tramas = Tramas.negocia(socket, lector, _salida, linea -> onTextoRecibido(linea + "\n"));
+				if (!_tramas)
+					anyadeTexto("  [El servidor no acepta tramas]\n");
+				else if (comprimir)
+					_comprime = Compresion.negocia(socket, lector, _salida, texto -> onTextoRecibido(texto + "\n"));
+			}
+			rym = new RecibeYMuestra(lector, _tramas, this);
 		} catch (IOException e) {
-			anyadeTexto("  [Error de conexin]");
+			anyadeTexto("  [Error de conexión]");
 			return;
 		}
-		new Thread(rye).start();
+		new Thread(rym).start();
 
 		enviarServidor(" [CONECTADO]");
 
@@ -87,10 +142,11 @@ public class Chat extends JFrame {
 	// --------------------------------------------------------
 
 	/**
-	 * Mtodo llamado externamente cuando se recibe texto por el socket que se debe
-	 * mostrar al usuario. Se aade el texto al rea de texto.
+	 * Método llamado externamente cuando se recibe texto por el socket que se debe
+	 * mostrar al usuario. Se añade el texto al área de texto en el siguiente
+	 * volcado (ver AreaMensajes), así que se puede llamar desde cualquier hebra.
 	 * 
-	 * Ten en cuenta que este mtodo no se llama cuando es el usuario el que ha
+	 * Ten en cuenta que este método no se llama cuando es el usuario el que ha
 	 * escrito algo.
 	 * 
 	 * @param texto Texto recibido.
@@ -98,29 +154,25 @@ public class Chat extends JFrame {
 	public void onTextoRecibido(final String texto) {
 
 		// No podemos llamar a Swing alegremente desde
-		// otra hebra. Le pedimos que nos invoque ms
-		// adelante a travs de un Runnable.
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				anyadeTexto(texto);
-			}
-		});
+		// otra hebra; AreaMensajes lo acumula y lo vuelca
+		// desde la hebra de eventos junto con lo que llegue
+		// a la vez.
+		_mensajes.anyade(texto);
 
 	} // onTextoRecibido
 
 	// --------------------------------------------------------
 
 	/**
-	 * Aade al rea de texto del chat el texto que se recibe como parmetro. Hace
-	 * desplazarse tambin a la barra de desplazamiento para que est siempre abajo.
+	 * Añade al área de texto del chat el texto que se recibe como parámetro. Hace
+	 * desplazarse también a la barra de desplazamiento para que esté siempre abajo.
+	 * Pasa por la misma cola que el texto recibido, para respetar el orden.
 	 * 
-	 * @param texto Texto a aadir. Debe acabar en \n
+	 * @param texto Texto a añadir. Debe acabar en \n
 	 */
 	protected void anyadeTexto(String texto) {
 
-		_taChat.append(texto);
-		_taChat.setCaretPosition(_taChat.getDocument().getLength());
+		_mensajes.anyade(texto);
 
 	} // anyadeTexto
 
@@ -134,7 +186,7 @@ public class Chat extends JFrame {
 
 		String textoUsuario = _tfEntradaUsuario.getText();
 		if (textoUsuario != null) {
-			// El usuario ha escrito texto. Lo aadimos al rea
+			// El usuario ha escrito texto. Lo añadimos al área
 			// de texto, y borramos el cuadro de texto del
 			// usuario.
 			anyadeTexto("[Yo] " + textoUsuario + "\n");
@@ -148,63 +200,89 @@ public class Chat extends JFrame {
 	// --------------------------------------------------------
 
 	/**
-	 * Enva por el socket al servidor el texto recibido como parmetro, aadindole
-	 * delante el nombre del usuario.
+	 * Envía por el socket al servidor el texto recibido como parámetro, añadiéndole
+	 * delante el nombre del usuario. Se llama desde la hebra de eventos y desde
+	 * la de RecibeYMuestra (para contestar a los latidos), así que está
+	 * sincronizado para que no se mezclen las tramas.
 	 * 
-	 * @param texto Texto a aadir. Debe contener el "\n".
+	 * @param texto Texto a añadir. Debe contener el "\n".
 	 */
-	protected void enviarServidor(String texto) {
+	protected synchronized void enviarServidor(String texto) {
 
+		if (_tramas) {
+			byte tipo = Tramas.tipoDe(texto);
+			try {
+				Tramas.escribe(_salida, tipo,
+						(tipo == Tramas.CONTROL) ? texto.trim() : "[" + _nombreUsuario + "] " + texto, _comprime);
+				_salida.flush();
+			} catch (IOException e) {
+				anyadeTexto("  [Error de conexión]\n");
+			}
+			return;
+		}
 		_canalSalida.println("[" + _nombreUsuario + "] " + texto);
-		_canalSalida.flush(); // Forzamos el envo.
+		_canalSalida.flush(); // Forzamos el envío.
 
 	} // enviarServidor
 
 	// --------------------------------------------------------
 
 	/**
-	 * Mtodo llamado desde el constructor para inicializar el interfaz grfico del
+	 * Método llamado desde el constructor para inicializar el interfaz gráfico del
 	 * JFrame.
 	 */
 	protected void inicializarVentana() {
 
-		// Establecemos el tamao predefinido.
+		// Establecemos el tamaño predefinido.
 		setSize(300, 420);
 
-		// Creamos el rea de texto de la ventana del
+		// Creamos el área de texto de la ventana del
 		// chat.
 		_taChat = new JTextArea();
-		// El rea de texto no ser editable...
+		// El área de texto no será editable...
 		_taChat.setEditable(false);
-		// ... queremos que el ancho de sus lneas se ajusten
+		// ... queremos que el ancho de sus líneas se ajusten
 		// al ancho de la ventana ...
 		_taChat.setLineWrap(true);
 		// ... y que en la medida de lo posible no se
 		// corten palabras, sino que se utilice el espacio
-		// como separador para el cambio de lnea.
+		// como separador para el cambio de línea.
 		_taChat.setWrapStyleWord(true);
+		// Los mensajes se vuelcan por lotes y sólo se
+		// guardan los últimos.
+		_mensajes = new AreaMensajes(_taChat);
 
-		// El rea de texto lo vamos a "decorar" en un
+		// El área de texto lo vamos a "decorar" en un
 		// panel que muestre, cuando sea necesario, las
 		// barras de desplazamiento.
 		JScrollPane scrollPane = new JScrollPane(_taChat);
 
+		// Con chat.vista=lista, en lugar del área de texto
+		// usamos una ListaMensajes, que sólo pinta lo que se
+		// ve y aguanta historiales mucho más largos.
+		JComponent vista = scrollPane;
+		if (AreaMensajes.usarLista()) {
+			ListaMensajes lista = new ListaMensajes();
+			_mensajes = new AreaMensajes(lista);
+			vista = lista.panel();
+		}
+
 		// Creamos un cuadro de texto donde el usuario
-		// escribir lo que quiere mandar.
+		// escribirá lo que quiere mandar.
 		_tfEntradaUsuario = new JTextField();
 
-		// Ponemos como disposicin de los controles
+		// Ponemos como disposición de los controles
 		// del JFrame un BorderLayout...
 		setLayout(new BorderLayout());
-		// ... poniendo en el centro el rea de texto
+		// ... poniendo en el centro el área de texto
 		// del chat ...
-		add(scrollPane, BorderLayout.CENTER);
+		add(vista, BorderLayout.CENTER);
 		// ... y en e sur el cuadro de texto donde el
 		// usuario escribe.
 		add(_tfEntradaUsuario, BorderLayout.SOUTH);
 
 		// Si el usuario pulsa intro en el cuadro
-		// de texto, llamamos al mtodo onTextoEscrito().
+		// de texto, llamamos al método onTextoEscrito().
 		_tfEntradaUsuario.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
@@ -231,12 +309,12 @@ public class Chat extends JFrame {
 	// --------------------------------------------------------
 
 	/**
-	 * Programa principal. Interpreta los parmetros crea el socket con el servidor
+	 * Programa principal. Interpreta los parámetros crea el socket con el servidor
 	 * y lanza la ventana de chat.
 	 * 
-	 * @param args Parmetros en la lnea de rdenes. El primero debe ser el nombre
+	 * @param args Parámetros en la línea de órdenes. El primero debe ser el nombre
 	 *             del servidor, el segundo el puerto, y el tercero el nombre con el
-	 *             que se conocer al usuario en el chat.
+	 *             que se conocerá al usuario en el chat.
 	 */
 /*
 	public static void main(String[] args) {
@@ -246,9 +324,9 @@ public class Chat extends JFrame {
 		String nombreUsuario;
 		int port;
 
-		// Analizamos los parmetros.
+		// Analizamos los parámetros.
 		if (args.length < 3) {
-			// System.err.println("Faltan parmetros: <host> <puerto> <nombre>");
+			// System.err.println("Faltan parámetros: <host> <puerto> <nombre>");
 			// return;
 			port = 4567;
 			hostname = "localhost";
@@ -258,7 +336,7 @@ public class Chat extends JFrame {
 			try {
 				port = Integer.parseInt(args[1]);
 			} catch (NumberFormatException e) {
-				System.err.println("Puerto invlido");
+				System.err.println("Puerto inválido");
 				return;
 			}
 			nombreUsuario = args[2];
@@ -279,7 +357,24 @@ public class Chat extends JFrame {
 	} // main
 */
 	
-	public static void run(int port, String hostname,String nombreUsuario, LinkedList<PrintWriter> writers) {
+	public static void run(int port, String hostname,String nombreUsuario) {
+
+		run(port, hostname, nombreUsuario, false, false);
+
+	} // run
+
+	// --------------------------------------------------------
+
+	/**
+	 * Se conecta al servidor y lanza la ventana de chat.
+	 * 
+	 * @param port          Puerto del servidor.
+	 * @param hostname      Máquina del servidor.
+	 * @param nombreUsuario Nombre del usuario dentro del chat.
+	 * @param tramas        Si hay que intentar usar el protocolo de tramas.
+	 * @param comprimir     Si, con tramas, hay que intentar comprimirlas.
+	 */
+	public static void run(int port, String hostname, String nombreUsuario, boolean tramas, boolean comprimir) {
 
 		Socket socket;	
 			
@@ -294,32 +389,37 @@ public class Chat extends JFrame {
 			return;
 		}
 
-		new Chat(socket, nombreUsuario, writers);
+		new Chat(socket, nombreUsuario, tramas, comprimir);
 
-	} // main
+	} // run
 	// --------------------------------------------------------
 	// Atributos protegidos/privados
 	// --------------------------------------------------------
 
 	/**
 	 * JFrame implementa el interfaz serializable; necesitamos el identificador
-	 * nico de versin para la serializacin.
+	 * único de versión para la serialización.
 	 */
 	private static final long serialVersionUID = -2565821798757834656L;
 
 	/**
-	 * Area de texto con el texto del chat. Cada vez que se enva algo o se recibe
-	 * algo, se aade aqu.
+	 * Area de texto con el texto del chat. Cada vez que se envía algo o se recibe
+	 * algo, se añade aquí.
 	 */
 	JTextArea _taChat;
 
+	/**
+	 * Quien vuelca en _taChat lo que se recibe y se escribe.
+	 */
+	AreaMensajes _mensajes;
+
 	/**
 	 * Cuadro de texto donde el usuario escribe lo que quiere enviar.
 	 */
 	JTextField _tfEntradaUsuario;
 
 	/**
-	 * Nombre del usuario que est usando la aplicacin. Se recibe como parmetro
+	 * Nombre del usuario que está usando la aplicación. Se recibe como parámetro
 	 * del programa.
 	 */
 	String _nombreUsuario;
@@ -329,4 +429,20 @@ public class Chat extends JFrame {
 	 */
 	PrintWriter _canalSalida;
 
+	/**
+	 * Canal de salida del socket, debajo de _canalSalida; por él se mandan las
+	 * tramas.
+	 */
+	OutputStream _salida;
+
+	/**
+	 * Si se usa el protocolo de tramas.
+	 */
+	boolean _tramas;
+
+	/**
+	 * Si se ha negociado la compresión de las tramas.
+	 */
+	boolean _comprime;
+
 } // Chat
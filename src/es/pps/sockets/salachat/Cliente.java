@@ -0,0 +1,180 @@
+package es.pps.sockets.salachat;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import es.pps.sockets.comun.Compresion;
+import es.pps.sockets.comun.Reanudacion;
+import es.pps.sockets.comun.Tramas;
+
+/**
+ * Cliente conectado al servidor, visto desde las salas. Cada motor tiene su
+ * propia implementación (ClienteSocket para los bloqueantes, ConexionNio para
+ * el no bloqueante); las salas sólo necesitan poder encolarles mensajes y
+ * cerrarlos.
+ *
+ * Todos empiezan usando el protocolo de líneas; pueden pasar al de tramas
+ * (ver Tramas) con un saludo.
+ */
+abstract class Cliente {
+
+	/**
+	 * Encola un mensaje para mandárselo al cliente. No debe bloquear más de lo
+	 * que indique la política de desbordamiento.
+	 *
+	 * @param mensaje Mensaje a enviar.
+	 */
+	abstract void encola(Mensaje mensaje);
+
+	/**
+	 * Cierra la conexión con el cliente. Las llamadas posteriores no tienen
+	 * efecto.
+	 */
+	abstract void cierra();
+
+	/**
+	 * Número de mensajes pendientes de enviar al cliente.
+	 *
+	 * @return Profundidad de su cola de salida.
+	 */
+	abstract int profundidadCola();
+
+	/**
+	 * Dirección y puerto remotos del cliente.
+	 *
+	 * @return Texto "dirección:puerto".
+	 */
+	abstract String direccion();
+
+	// --------------------------------------------------------
+
+	/**
+	 * Pasa la conexión al protocolo de tramas: lo que se lea a partir de ahora
+	 * son tramas, y lo que se le mande, después de la respuesta al saludo,
+	 * también. Se llama desde la hebra que lee del cliente, al procesar su
+	 * saludo.
+	 *
+	 * @param version Versión del protocolo elegida.
+	 */
+	void pasaATramas(int version) {
+
+		_leeTramas = true;
+		encola(Mensaje.cambioDeModo(Tramas.saludo(version), Mensaje.TRAMAS));
+
+	} // pasaATramas
+
+	// --------------------------------------------------------
+
+	/**
+	 * Empieza a mandarle al cliente tramas comprimidas (ver Compresion), a
+	 * partir de la respuesta a su orden.
+	 *
+	 * @param version Versión de la compresión elegida.
+	 */
+	void pasaAComprimir(int version) {
+
+		_comprime = true;
+		encola(Mensaje.cambioDeModo(Compresion.orden(version), Mensaje.COMPRIMIDAS));
+
+	} // pasaAComprimir
+
+	// --------------------------------------------------------
+
+	/**
+	 * Empieza a mandarle al cliente las líneas numeradas (ver Reanudacion), a
+	 * partir de la respuesta a su orden de reanudación.
+	 */
+	void pasaANumerar() {
+
+		_numera = true;
+		encola(Mensaje.cambioDeModo(Reanudacion.ORDEN, Mensaje.NUMERADAS));
+
+	} // pasaANumerar
+
+	// --------------------------------------------------------
+
+	/**
+	 * Sala en la que está el cliente.
+	 *
+	 * @return Sala actual, o null si todavía no ha entrado en ninguna o ya se
+	 *         ha ido.
+	 */
+	Sala sala() {
+
+		return _sala;
+
+	} // sala
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Sala en la que está el cliente. Sólo la cambia GestorSalas.
+	 */
+	volatile Sala _sala;
+
+	/**
+	 * Última sala que le ha mandado su historial al cliente; sólo desde ese
+	 * momento recibe los mensajes nuevos de la sala. Sólo la leen y cambian
+	 * los despachadores de las salas.
+	 */
+	volatile Sala _alDia;
+
+	/**
+	 * Si lo que llega del cliente son tramas en lugar de líneas.
+	 */
+	volatile boolean _leeTramas;
+
+	/**
+	 * Si el cliente ha pedido compresión.
+	 */
+	volatile boolean _comprime;
+
+	/**
+	 * Si el cliente ha pedido reanudación y recibe los mensajes numerados
+	 * (ver Reanudacion).
+	 */
+	volatile boolean _numera;
+
+	/**
+	 * Instante (System.nanoTime()) en el que se recibió algo del cliente por
+	 * última vez. Lo actualiza GestorSalas con cada línea o trama.
+	 */
+	volatile long _ultimaLectura = System.nanoTime();
+
+	/**
+	 * Instante (System.nanoTime()) en el que se le escribió algo al cliente
+	 * por última vez. Lo actualiza quien escribe en su socket.
+	 */
+	volatile long _ultimaEscritura = System.nanoTime();
+
+	/**
+	 * Si el cliente ha mandado alguna vez un latido o su respuesta, y por
+	 * tanto se le puede dar por muerto si deja de mandar cosas.
+	 */
+	volatile boolean _contestaLatidos;
+
+	/**
+	 * Si ya se le ha mandado el latido de prueba (ver GestorSalas.revisa()).
+	 * Sólo lo usa la hebra de la rueda.
+	 */
+	boolean _sondeado;
+
+	/**
+	 * Si el cliente se ha dado de baja; su vigilancia se para.
+	 */
+	volatile boolean _deBaja;
+
+	/**
+	 * Nombre con el que se ha presentado el cliente, o null si todavía no se
+	 * ha presentado. Sólo lo cambia GestorSalas.
+	 */
+	volatile String _nombre;
+
+	/**
+	 * Si ya se le ha mandado el historial de la sala en la que entró al
+	 * conectarse (ver GestorSalas.alta()).
+	 */
+	final AtomicBoolean _bienvenido = new AtomicBoolean();
+
+} // Cliente
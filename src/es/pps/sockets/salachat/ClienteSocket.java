@@ -0,0 +1,298 @@
+package es.pps.sockets.salachat;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cliente conectado al servidor en los motores bloqueantes. Además del socket,
+ * tiene su propia cola de salida acotada y una hebra escritora que la vacía
+ * sobre el socket. Así, quien difunde un mensaje sólo tiene que encolarlo, y
+ * un cliente que no lee no frena a los demás.
+ *
+ * Los mensajes llegan ya codificados (ver Mensaje) y se escriben como bytes,
+ * sin pasar por ningún PrintWriter. La hebra escritora agrupa en una sola
+ * escritura en el socket los mensajes que vayan llegando, sin retrasar
+ * ninguno más de una latencia máxima y sin pasar de un tamaño de lote. Si el
+ * cliente usa tramas, escribe la trama (quizá comprimida) de cada mensaje en
+ * lugar de su línea.
+ *
+ * Los lotes se juntan en un buffer directo que se pide a ReservaBuffers al
+ * empezar cada uno y se devuelve tras escribirlo, en lugar de tener un buffer
+ * de salida por cliente: un cliente sin nada que enviar no ocupa ninguno.
+ * Para escribir el buffer directo sin copiarlo, el socket debería venir de un
+ * ServerSocketChannel.
+ */
+class ClienteSocket extends Cliente {
+
+	/**
+	 * Constructor. No lanza la hebra escritora; para eso está arranca().
+	 *
+	 * @param socket        Socket conectado con el cliente.
+	 * @param cola          Cola de salida del cliente.
+	 * @param latenciaMaxUs Microsegundos que, como mucho, se retrasa un mensaje
+	 *                      esperando a otros para enviarlos juntos.
+	 * @param loteMax       Número máximo de mensajes por escritura.
+	 * @throws IOException Si no se puede conseguir el canal de escritura.
+	 */
+	ClienteSocket(Socket socket, ColaSalida<Mensaje> cola, long latenciaMaxUs, int loteMax) throws IOException {
+
+		_socket = socket;
+		_canal = (socket.getChannel() != null) ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+		_cola = cola;
+		_latenciaMaxNs = TimeUnit.MICROSECONDS.toNanos(latenciaMaxUs);
+		_loteMax = loteMax;
+		_descripcion = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Lanza la hebra escritora.
+	 *
+	 * @param fabrica Fábrica con la que crear la hebra.
+	 */
+	void arranca(ThreadFactory fabrica) {
+
+		_escritor = fabrica.newThread(this::escribe);
+		_escritor.start();
+
+	} // arranca
+
+	// --------------------------------------------------------
+
+	/**
+	 * Encola un mensaje para mandárselo al cliente. Si la cola está llena y la
+	 * política así lo indica, se desconecta al cliente.
+	 *
+	 * @param mensaje Mensaje a enviar.
+	 */
+	@Override
+	void encola(Mensaje mensaje) {
+
+		if (_cerrado.get())
+			return;
+		// Si quien encola es un despachador, esperar aquí frenaría todas
+		// sus salas, así que nunca espera.
+		if (!_cola.encola(mensaje, !GestorSalas.enDespachador())) {
+			System.err.println("\t[Cola de " + _descripcion + " llena; se desconecta]");
+			cierra();
+		}
+
+	} // encola
+
+	// --------------------------------------------------------
+
+	/**
+	 * Cierra la conexión con el cliente y detiene la hebra escritora. La hebra
+	 * lectora se dará cuenta al fallarle la siguiente lectura. Las llamadas
+	 * posteriores no tienen efecto.
+	 */
+	@Override
+	void cierra() {
+
+		if (!_cerrado.compareAndSet(false, true))
+			return;
+		// Primero el socket: si la hebra escritora está bloqueada en una
+		// escritura, falla y suelta lo que tenga cogido antes de que la
+		// interrumpamos.
+		try {
+			_socket.close();
+		} catch (IOException e) {
+		}
+		if (_escritor != null)
+			_escritor.interrupt();
+		_cola.vacia();
+
+	} // cierra
+
+	// --------------------------------------------------------
+
+	/**
+	 * Número de mensajes pendientes de enviar.
+	 *
+	 * @return Profundidad de la cola de salida.
+	 */
+	@Override
+	int profundidadCola() {
+
+		return _cola.profundidad();
+
+	} // profundidadCola
+
+	// --------------------------------------------------------
+
+	@Override
+	String direccion() {
+
+		return _descripcion;
+
+	} // direccion
+
+	// --------------------------------------------------------
+
+	@Override
+	public String toString() {
+
+		return _descripcion + " " + _cola.profundidad() + "/" + _cola.capacidad() + " (" + _cola.descartados()
+				+ " descartados, " + _enviados + " enviados en " + _lotes + " lotes)";
+
+	} // toString
+
+	// --------------------------------------------------------
+
+	/**
+	 * Bucle de la hebra escritora. Saca mensajes de la cola y los va dejando en
+	 * un buffer prestado; fuerza el envío cuando se completa el lote o cuando
+	 * se agota la latencia máxima del primer mensaje del lote sin que lleguen
+	 * más.
+	 */
+	protected void escribe() {
+
+		// Si el cliente pasa a tramas (o a tramas comprimidas), a partir de
+		// la respuesta a su petición.
+		int modo = Mensaje.LINEAS;
+		ByteBuffer lote = null;
+		try {
+			while (!_cerrado.get()) {
+				Mensaje mensaje = _cola.toma();
+				long limite = System.nanoTime() + _latenciaMaxNs;
+				int enLote = 0;
+				lote = ReservaBuffers.toma(TAM_LOTE);
+				while (mensaje != null) {
+					ByteBuffer vista = mensaje.codificado(modo);
+					if (vista.remaining() > lote.remaining()) {
+						vacia(lote);
+						if (vista.remaining() > lote.capacity())
+							// No cabe ni solo; sale directamente.
+							envia(vista);
+					}
+					lote.put(vista);
+					if (mensaje.modoSiguiente() >= 0)
+						modo = mensaje.modoSiguiente();
+					if (++enLote >= _loteMax)
+						break;
+					mensaje = _cola.tomaSiHay();
+					if (mensaje == null) {
+						long espera = limite - System.nanoTime();
+						if (espera > 0)
+							mensaje = _cola.toma(espera);
+					}
+				}
+				vacia(lote);
+				ReservaBuffers.devuelve(lote);
+				lote = null;
+				_ultimaEscritura = System.nanoTime();
+				ContadoresEscritura.mensajes(enLote);
+				_enviados += enLote;
+				++_lotes;
+			}
+		} catch (InterruptedException e) {
+			// Nos han cerrado.
+		} catch (IOException e) {
+			if (!_cerrado.get()) {
+				Metricas.errorEscritura();
+				System.err.println("\t[Error en el último envío]");
+			}
+		}
+		if (lote != null)
+			ReservaBuffers.devuelve(lote);
+		cierra();
+
+	} // escribe
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Escribe en el socket lo que se ha juntado en el buffer de un lote y lo
+	 * deja vacío para seguir llenándolo.
+	 *
+	 * @param lote Buffer del lote.
+	 * @throws IOException Si falla la escritura.
+	 */
+	void vacia(ByteBuffer lote) throws IOException {
+
+		lote.flip();
+		envia(lote);
+		lote.clear();
+
+	} // vacia
+
+	/**
+	 * Escribe en el socket todos los bytes restantes de un buffer.
+	 *
+	 * @param datos Bytes a escribir.
+	 * @throws IOException Si falla la escritura.
+	 */
+	void envia(ByteBuffer datos) throws IOException {
+
+		while (datos.hasRemaining())
+			ContadoresEscritura.escritura(_canal.write(datos));
+
+	} // envia
+
+	/**
+	 * Tamaño del buffer de cada lote; cabe un lote entero de mensajes
+	 * normales.
+	 */
+	private static final int TAM_LOTE = 32 * 1024;
+
+	/**
+	 * Socket conectado con el cliente.
+	 */
+	Socket _socket;
+
+	/**
+	 * Canal de escritura del socket. Sólo lo usa la hebra escritora.
+	 */
+	WritableByteChannel _canal;
+
+	/**
+	 * Mensajes pendientes de enviar.
+	 */
+	ColaSalida<Mensaje> _cola;
+
+	/**
+	 * Retraso máximo de un mensaje para agruparlo con otros, en nanosegundos.
+	 */
+	long _latenciaMaxNs;
+
+	/**
+	 * Número máximo de mensajes por escritura.
+	 */
+	int _loteMax;
+
+	/**
+	 * Mensajes enviados. Sólo lo modifica la hebra escritora.
+	 */
+	volatile long _enviados;
+
+	/**
+	 * Lotes enviados. Sólo lo modifica la hebra escritora.
+	 */
+	volatile long _lotes;
+
+	/**
+	 * Dirección y puerto del cliente, para los mensajes de depuración.
+	 */
+	String _descripcion;
+
+	/**
+	 * Hebra escritora.
+	 */
+	Thread _escritor;
+
+	/**
+	 * Indica si el cliente ya se ha cerrado.
+	 */
+	AtomicBoolean _cerrado = new AtomicBoolean(false);
+
+} // ClienteSocket
@@ -0,0 +1,264 @@
+package es.pps.sockets.salachat;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Cola acotada de mensajes pendientes de enviar a un cliente. Las hebras que
+ * difunden mensajes sólo encolan; la vacía la hebra escritora propia del
+ * cliente.
+ *
+ * Cuando la cola está llena se aplica la política de desbordamiento
+ * configurada. Al descartar, se saltan los mensajes que se hayan indicado
+ * como imprescindibles.
+ *
+ * @param <T> Tipo de los mensajes.
+ */
+class ColaSalida<T> {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacidad Número máximo de mensajes pendientes.
+	 * @param politica  Qué hacer cuando la cola está llena.
+	 * @param esperaMs  Tiempo máximo de espera, en milisegundos, con la política
+	 *                  BLOQUEAR.
+	 */
+	ColaSalida(int capacidad, PoliticaDesbordamiento politica, long esperaMs) {
+
+		this(capacidad, politica, esperaMs, mensaje -> false);
+
+	} // Constructor
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacidad      Número máximo de mensajes pendientes.
+	 * @param politica       Qué hacer cuando la cola está llena.
+	 * @param esperaMs       Tiempo máximo de espera, en milisegundos, con la
+	 *                       política BLOQUEAR.
+	 * @param imprescindible Mensajes que no se pueden descartar con la
+	 *                       política DESCARTAR_ANTIGUO.
+	 */
+	ColaSalida(int capacidad, PoliticaDesbordamiento politica, long esperaMs, Predicate<T> imprescindible) {
+
+		_cola = new ArrayBlockingQueue<T>(capacidad);
+		_politica = politica;
+		_esperaMs = esperaMs;
+		_imprescindible = imprescindible;
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Añade un mensaje a la cola aplicando la política de desbordamiento si
+	 * está llena.
+	 *
+	 * @param mensaje Mensaje a añadir.
+	 * @return false si, según la política, hay que desconectar al cliente.
+	 */
+	boolean encola(T mensaje) {
+
+		return encola(mensaje, true);
+
+	} // encola
+
+	// --------------------------------------------------------
+
+	/**
+	 * Añade un mensaje a la cola aplicando la política de desbordamiento si
+	 * está llena, pero sin esperar si quien encola no puede hacerlo.
+	 *
+	 * @param mensaje     Mensaje a añadir.
+	 * @param puedeEsperar false si quien encola no puede esperar a que haya
+	 *                     sitio (por ejemplo, un despachador de salas); con
+	 *                     BLOQUEAR, la cola llena desconecta al cliente sin
+	 *                     esperar.
+	 * @return false si, según la política, hay que desconectar al cliente.
+	 */
+	boolean encola(T mensaje, boolean puedeEsperar) {
+
+		if (_cola.offer(mensaje))
+			return true;
+
+		switch (_politica) {
+		case DESCARTAR_ANTIGUO:
+			// Puede que el escritor haya vaciado algo entre medias, así que
+			// descartamos sólo mientras siga llena.
+			while (!_cola.offer(mensaje)) {
+				if (descartaAntiguo()) {
+					_descartados.incrementAndGet();
+				} else if (!_cola.offer(mensaje)) {
+					// Todo lo pendiente es imprescindible: si el nuevo no lo
+					// es, se descarta él; si lo es, no hay forma de seguir.
+					if (_imprescindible.test(mensaje))
+						return false;
+					_descartados.incrementAndGet();
+					return true;
+				}
+			}
+			return true;
+		case BLOQUEAR:
+			if (!puedeEsperar)
+				return false;
+			try {
+				if (_cola.offer(mensaje, _esperaMs, TimeUnit.MILLISECONDS))
+					return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return false;
+		case DESCONECTAR:
+		default:
+			return false;
+		}
+
+	} // encola
+
+	// --------------------------------------------------------
+
+	/**
+	 * Quita de la cola el mensaje más antiguo que no sea imprescindible.
+	 *
+	 * @return false si no había ninguno.
+	 */
+	private boolean descartaAntiguo() {
+
+		Iterator<T> it = _cola.iterator();
+		while (it.hasNext()) {
+			if (!_imprescindible.test(it.next())) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+
+	} // descartaAntiguo
+
+	// --------------------------------------------------------
+
+	/**
+	 * Saca el siguiente mensaje, esperando si no hay ninguno.
+	 *
+	 * @return Mensaje más antiguo de la cola.
+	 * @throws InterruptedException Si se interrumpe la espera.
+	 */
+	T toma() throws InterruptedException {
+
+		return _cola.take();
+
+	} // toma
+
+	// --------------------------------------------------------
+
+	/**
+	 * Saca el siguiente mensaje, esperando como mucho el tiempo indicado.
+	 *
+	 * @param nanos Espera máxima, en nanosegundos.
+	 * @return Mensaje más antiguo de la cola, o null si no llegó ninguno.
+	 * @throws InterruptedException Si se interrumpe la espera.
+	 */
+	T toma(long nanos) throws InterruptedException {
+
+		return _cola.poll(nanos, TimeUnit.NANOSECONDS);
+
+	} // toma
+
+	// --------------------------------------------------------
+
+	/**
+	 * Saca el siguiente mensaje si lo hay, sin esperar.
+	 *
+	 * @return Mensaje más antiguo de la cola, o null si está vacía.
+	 */
+	T tomaSiHay() {
+
+		return _cola.poll();
+
+	} // tomaSiHay
+
+	// --------------------------------------------------------
+
+	/**
+	 * Número de mensajes pendientes.
+	 *
+	 * @return Profundidad actual de la cola.
+	 */
+	int profundidad() {
+
+		return _cola.size();
+
+	} // profundidad
+
+	// --------------------------------------------------------
+
+	/**
+	 * Número máximo de mensajes pendientes.
+	 *
+	 * @return Capacidad de la cola.
+	 */
+	int capacidad() {
+
+		return _cola.size() + _cola.remainingCapacity();
+
+	} // capacidad
+
+	// --------------------------------------------------------
+
+	/**
+	 * Número de mensajes descartados por desbordamiento.
+	 *
+	 * @return Mensajes descartados.
+	 */
+	long descartados() {
+
+		return _descartados.get();
+
+	} // descartados
+
+	// --------------------------------------------------------
+
+	/**
+	 * Vacía la cola.
+	 */
+	void vacia() {
+
+		_cola.clear();
+
+	} // vacia
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Mensajes pendientes.
+	 */
+	BlockingQueue<T> _cola;
+
+	/**
+	 * Qué hacer cuando la cola está llena.
+	 */
+	PoliticaDesbordamiento _politica;
+
+	/**
+	 * Espera máxima con la política BLOQUEAR.
+	 */
+	long _esperaMs;
+
+	/**
+	 * Mensajes que no se descartan al desbordarse la cola.
+	 */
+	Predicate<T> _imprescindible;
+
+	/**
+	 * Mensajes descartados.
+	 */
+	AtomicLong _descartados = new AtomicLong();
+
+} // ColaSalida
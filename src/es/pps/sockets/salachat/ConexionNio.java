@@ -0,0 +1,502 @@
+package es.pps.sockets.salachat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import es.pps.sockets.comun.Compresion;
+import es.pps.sockets.comun.LectorTramas;
+import es.pps.sockets.comun.Tramas;
+
+/**
+ * Conexión con un cliente en el motor no bloqueante. Guarda el canal, los
+ * bytes recibidos que todavía no forman una línea completa y la cola de datos
+ * pendientes de enviar.
+ *
+ * El buffer de entrada se pide a ReservaBuffers al leer y se devuelve en
+ * cuanto se han procesado todas las líneas completas; sólo se queda con la
+ * conexión mientras haya una línea (o trama) a medias. Así, los clientes
+ * callados no ocupan buffer.
+ *
+ * lee() y escribe() sólo se llaman desde la hebra del bucle de eventos al que
+ * pertenece la conexión; encola() se puede llamar desde cualquier hebra.
+ *
+ * Los mensajes pendientes se mandan con escrituras agrupadas (gathering
+ * write) de hasta salachat.loteMax mensajes, de modo que todo lo que se
+ * acumula mientras el bucle atiende otros eventos sale en una sola llamada al
+ * sistema.
+ *
+ * La cola de salida está acotada a salachat.capacidadCola mensajes y, como en
+ * ClienteSocket, al llenarse se aplica salachat.politica. Como sólo la hebra
+ * del bucle saca de la cola, con DESCARTAR_ANTIGUO quien encola no descarta
+ * nada, sino que le pide al bucle que recorte los más antiguos (salvo el que
+ * esté a medio escribir). Quien encola es un despachador compartido por varias
+ * salas y no puede esperar a que haya sitio, así que BLOQUEAR desconecta al
+ * cliente igual que DESCONECTAR.
+ */
+class ConexionNio extends Cliente {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param canal Canal del socket aceptado.
+	 * @param bucle Bucle de eventos que atenderá la conexión.
+	 */
+	ConexionNio(SocketChannel canal, BucleEventos bucle) {
+
+		_canal = canal;
+		_bucle = bucle;
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Pone el canal en modo no bloqueante y lo registra para lectura en el
+	 * Selector del bucle.
+	 *
+	 * @param selector Selector del bucle de eventos.
+	 * @throws IOException Si el canal ya no es válido.
+	 */
+	void registra(Selector selector) throws IOException {
+
+		_canal.configureBlocking(false);
+		_key = _canal.register(selector, SelectionKey.OP_READ, this);
+
+	} // registra
+
+	// --------------------------------------------------------
+
+	/**
+	 * Lee lo que haya disponible en el canal y manda al servidor cada línea (o
+	 * trama) completa.
+	 */
+	void lee() {
+
+		if (_entrada == null)
+			_entrada = ReservaBuffers.toma(TAM_ENTRADA);
+		int n;
+		try {
+			n = _canal.read(_entrada);
+		} catch (IOException e) {
+			n = -1;
+		}
+		if (n < 0) {
+			// EOF o error.
+			cierra();
+			sueltaEntrada();
+			return;
+		}
+
+		_entrada.flip();
+		int inicio = _entrada.position();
+		int fin = _entrada.limit();
+		while (inicio < fin) {
+			// Una línea puede ser el saludo que nos pasa a tramas, así que
+			// miramos el protocolo antes de cada una.
+			int usados = _leeTramas ? trama(inicio, fin) : linea(inicio, fin);
+			if (usados == 0)
+				break;
+			inicio += usados;
+		}
+		if (_cerrada.get() || (inicio == fin)) {
+			// No queda nada a medias: el buffer vuelve a la reserva.
+			sueltaEntrada();
+			return;
+		}
+		_entrada.position(inicio);
+		_entrada.compact();
+
+		if (!_entrada.hasRemaining()) {
+			// Línea o trama más larga que el buffer; cambiamos a uno mayor.
+			ByteBuffer mayor = ReservaBuffers.toma(_entrada.capacity() * 2);
+			_entrada.flip();
+			mayor.put(_entrada);
+			ReservaBuffers.devuelve(_entrada);
+			_entrada = mayor;
+		}
+
+	} // lee
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si hay una línea completa al principio de los bytes recibidos, se la
+	 * manda al servidor.
+	 *
+	 * @param inicio Primer byte sin procesar de _entrada.
+	 * @param fin    Fin de los bytes recibidos.
+	 * @return Bytes usados (con el fin de línea), o 0 si la línea no está
+	 *         completa.
+	 */
+	protected int linea(int inicio, int fin) {
+
+		int i = LectorTramas.buscaFinLinea(_entrada, inicio, fin);
+		if (i < 0)
+			return 0;
+		int longitud = i - inicio;
+		if ((longitud > 0) && (_entrada.get(i - 1) == '\r'))
+			--longitud;
+		_bucle._servidor.difunde(this, Mensaje.deBytes(_entrada, inicio, longitud));
+		return i + 1 - inicio;
+
+	} // linea
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si hay una trama completa al principio de los bytes recibidos, se la
+	 * manda al servidor. Si la longitud de la trama no es válida, o llega
+	 * comprimida sin que el cliente haya negociado la compresión, cierra la
+	 * conexión.
+	 *
+	 * @param inicio Primer byte sin procesar de _entrada.
+	 * @param fin    Fin de los bytes recibidos.
+	 * @return Bytes usados, o 0 si la trama no está completa.
+	 */
+	protected int trama(int inicio, int fin) {
+
+		if (fin - inicio < Tramas.CABECERA)
+			return 0;
+		int longitud = _entrada.getInt(inicio);
+		if ((longitud < 0) || (longitud > Tramas.MAX_TRAMA)) {
+			cierra();
+			return 0;
+		}
+		if (fin - inicio < Tramas.CABECERA + longitud)
+			return 0;
+		byte tipo = _entrada.get(inicio + 4);
+		Mensaje mensaje;
+		if ((tipo & Compresion.COMPRIMIDA) == 0) {
+			mensaje = Mensaje.deBytes(tipo, _entrada, inicio + Tramas.CABECERA, longitud);
+		} else if (!_comprime) {
+			cierra();
+			return 0;
+		} else {
+			byte[] comprimidos = new byte[longitud];
+			_entrada.get(inicio + Tramas.CABECERA, comprimidos);
+			try {
+				byte[] datos = Compresion.descomprime(comprimidos, 0, longitud);
+				mensaje = Mensaje.deBytes((byte) (tipo & ~Compresion.COMPRIMIDA), ByteBuffer.wrap(datos), 0,
+						datos.length);
+			} catch (IOException e) {
+				cierra();
+				return 0;
+			}
+		}
+		_bucle._servidor.difundeTrama(this, mensaje);
+		return Tramas.CABECERA + longitud;
+
+	} // trama
+
+	// --------------------------------------------------------
+
+	/**
+	 * Añade un mensaje a la cola de salida y avisa al bucle de eventos si no
+	 * tenía ya esta conexión pendiente.
+	 *
+	 * @param mensaje Mensaje a enviar.
+	 */
+	@Override
+	void encola(Mensaje mensaje) {
+
+		if (_cerrada.get())
+			return;
+		// El formato se decide al encolar, así que el cambio a tramas tiene
+		// que ser atómico respecto al orden de la cola. Es un bloque muy
+		// corto y sin E/S.
+		synchronized (_salida) {
+			ByteBuffer buf = mensaje.codificado(_modo);
+			// Antes que en la cola, para que quien lo vea en ella lo vea
+			// también aquí.
+			if (mensaje.imprescindible())
+				_imprescindibles.add(buf);
+			_salida.add(buf);
+			if (mensaje.modoSiguiente() >= 0)
+				_modo = mensaje.modoSiguiente();
+		}
+		if ((_pendientes.incrementAndGet() > Configuracion.CAPACIDAD_COLA) && desborda())
+			return;
+		if (_programada.compareAndSet(false, true))
+			_bucle.programaEscritura(this);
+
+	} // encola
+
+	// --------------------------------------------------------
+
+	/**
+	 * Envía todo lo que se pueda de la cola de salida. Si el canal no admite
+	 * más datos, se pide al Selector que nos avise cuando vuelva a admitirlos.
+	 */
+	void escribe() {
+
+		if (_cerrada.get()) {
+			// Nos ha programado cierra() para soltar el buffer de entrada
+			// desde esta hebra.
+			sueltaEntrada();
+			return;
+		}
+		if (_recortar.getAndSet(false))
+			recorta();
+
+		try {
+			while (!_salida.isEmpty()) {
+				// Sólo esta hebra saca elementos, así que los primeros de la
+				// cola no cambian mientras los recorremos.
+				int n = 0;
+				for (ByteBuffer buf : _salida) {
+					_lote[n++] = buf;
+					if (n == _lote.length)
+						break;
+				}
+				long escritos = _canal.write(_lote, 0, n);
+				ContadoresEscritura.escritura(escritos);
+				if (escritos > 0)
+					_ultimaEscritura = System.nanoTime();
+				int completos = 0;
+				while ((completos < n) && !_lote[completos].hasRemaining()) {
+					_salida.poll();
+					++completos;
+				}
+				_pendientes.addAndGet(-completos);
+				ContadoresEscritura.mensajes(completos);
+				if (!_imprescindibles.isEmpty()) {
+					synchronized (_salida) {
+						for (int i = 0; i < completos; ++i)
+							_imprescindibles.remove(_lote[i]);
+					}
+				}
+				Arrays.fill(_lote, 0, n, null);
+				if (completos < n) {
+					// El socket está lleno; esperamos a OP_WRITE.
+					_key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+		} catch (IOException e) {
+			Metricas.errorEscritura();
+			cierra();
+			return;
+		}
+
+		_key.interestOps(SelectionKey.OP_READ);
+		_programada.set(false);
+		// Alguien pudo encolar entre el último poll() y el set(false).
+		if (!_salida.isEmpty() && _programada.compareAndSet(false, true))
+			_bucle.programaEscritura(this);
+
+	} // escribe
+
+	// --------------------------------------------------------
+
+	/**
+	 * Cierra la conexión y avisa al servidor. Las llamadas posteriores no
+	 * tienen efecto.
+	 */
+	@Override
+	void cierra() {
+
+		if (!_cerrada.compareAndSet(false, true))
+			return;
+		if (_key != null)
+			_key.cancel();
+		try {
+			_canal.close();
+		} catch (IOException e) {
+		}
+		synchronized (_salida) {
+			_salida.clear();
+			_imprescindibles.clear();
+		}
+		_pendientes.set(0);
+		_bucle._servidor.onDesconectado(this);
+		// El buffer de entrada sólo lo toca la hebra del bucle; si nos
+		// cierran desde otra, que lo devuelva ella.
+		_bucle.programaEscritura(this);
+
+	} // cierra
+
+	// --------------------------------------------------------
+
+	/**
+	 * Número de mensajes pendientes de enviar.
+	 *
+	 * @return Mensajes en la cola de salida.
+	 */
+	@Override
+	int profundidadCola() {
+
+		return _pendientes.get();
+
+	} // profundidadCola
+
+	// --------------------------------------------------------
+
+	@Override
+	String direccion() {
+
+		return _canal.socket().getInetAddress().getHostAddress() + ":" + _canal.socket().getPort();
+
+	} // direccion
+
+	// --------------------------------------------------------
+
+	@Override
+	public String toString() {
+
+		return direccion() + " " + _pendientes.get() + "/" + Configuracion.CAPACIDAD_COLA + " pendientes (" + _descartados
+				+ " descartados)";
+
+	} // toString
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Aplica la política de desbordamiento cuando la cola de salida pasa de
+	 * su capacidad.
+	 *
+	 * @return true si se ha cerrado la conexión.
+	 */
+	boolean desborda() {
+
+		if (Configuracion.POLITICA == PoliticaDesbordamiento.DESCARTAR_ANTIGUO) {
+			if (_recortar.compareAndSet(false, true))
+				_bucle.programaEscritura(this);
+			return false;
+		}
+		System.err.println("\t[Cola de " + this + " llena; se desconecta]");
+		cierra();
+		return true;
+
+	} // desborda
+
+	/**
+	 * Descarta los mensajes más antiguos de la cola de salida hasta dejarla
+	 * en su capacidad, sin tocar el primero si ya se ha escrito una parte ni
+	 * los imprescindibles (ver Mensaje.imprescindible()). Sólo desde la hebra
+	 * del bucle.
+	 */
+	void recorta() {
+
+		synchronized (_salida) {
+			int sobran = _pendientes.get() - Configuracion.CAPACIDAD_COLA;
+			Iterator<ByteBuffer> it = _salida.iterator();
+			if (it.hasNext() && (_salida.peek().position() > 0))
+				it.next();
+			while ((sobran > 0) && it.hasNext()) {
+				if (_imprescindibles.contains(it.next()))
+					continue;
+				it.remove();
+				_pendientes.decrementAndGet();
+				++_descartados;
+				--sobran;
+			}
+		}
+
+	} // recorta
+
+	/**
+	 * Devuelve a la reserva el buffer de entrada, si se tiene uno. Sólo desde
+	 * la hebra del bucle.
+	 */
+	void sueltaEntrada() {
+
+		if (_entrada != null) {
+			ReservaBuffers.devuelve(_entrada);
+			_entrada = null;
+		}
+
+	} // sueltaEntrada
+
+	/**
+	 * Tamaño inicial del buffer de entrada.
+	 */
+	private static final int TAM_ENTRADA = 8192;
+
+	/**
+	 * Canal del socket.
+	 */
+	SocketChannel _canal;
+
+	/**
+	 * Bucle de eventos al que pertenece la conexión.
+	 */
+	BucleEventos _bucle;
+
+	/**
+	 * Clave de registro en el Selector del bucle.
+	 */
+	SelectionKey _key;
+
+	/**
+	 * Bytes recibidos que todavía no forman una línea (o trama) completa, en
+	 * un buffer directo prestado por ReservaBuffers; null si no queda nada a
+	 * medias.
+	 */
+	ByteBuffer _entrada;
+
+	/**
+	 * Vistas de los mensajes pendientes de enviar, en orden.
+	 */
+	Queue<ByteBuffer> _salida = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * Vistas de _salida que no se pueden descartar al recortarla (ver
+	 * Mensaje.imprescindible()). Se modifica con el monitor de _salida
+	 * cogido; se quitan al terminar de escribirlas.
+	 */
+	Set<ByteBuffer> _imprescindibles = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+	/**
+	 * Número de mensajes en _salida; size() de la cola no es de coste
+	 * constante.
+	 */
+	AtomicInteger _pendientes = new AtomicInteger();
+
+	/**
+	 * Array reutilizable para las escrituras agrupadas.
+	 */
+	ByteBuffer[] _lote = new ByteBuffer[Configuracion.LOTE_MAX];
+
+	/**
+	 * Indica si la conexión está ya en la lista de pendientes del bucle (o
+	 * esperando OP_WRITE), para no añadirla varias veces.
+	 */
+	AtomicBoolean _programada = new AtomicBoolean(false);
+
+	/**
+	 * Codificación con la que se encolan los mensajes (ver Mensaje). Sólo se
+	 * usa con el monitor de _salida cogido.
+	 */
+	int _modo = Mensaje.LINEAS;
+
+	/**
+	 * Indica si se ha pedido al bucle que recorte la cola de salida.
+	 */
+	AtomicBoolean _recortar = new AtomicBoolean(false);
+
+	/**
+	 * Mensajes descartados por desbordamiento. Sólo lo modifica la hebra del
+	 * bucle.
+	 */
+	volatile long _descartados;
+
+	/**
+	 * Indica si la conexión ya se ha cerrado.
+	 */
+	AtomicBoolean _cerrada = new AtomicBoolean(false);
+
+} // ConexionNio
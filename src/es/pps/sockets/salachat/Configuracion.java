@@ -0,0 +1,178 @@
+package es.pps.sockets.salachat;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Parámetros de ajuste del servidor. Se leen de propiedades del sistema
+ * (-Dsalachat.xxx=valor) al cargar la clase, de modo que no complican la
+ * línea de órdenes de SalaDeChat.
+ */
+class Configuracion {
+
+	/**
+	 * Duración mínima, en milisegundos, de los anclajes de hebras virtuales que
+	 * se avisan (salachat.umbralAnclaje).
+	 */
+	static final long UMBRAL_ANCLAJE_MS = Long.getLong("salachat.umbralAnclaje", 20);
+
+	/**
+	 * Número máximo de mensajes en la cola de salida de cada cliente
+	 * (salachat.capacidadCola).
+	 */
+	static final int CAPACIDAD_COLA = Integer.getInteger("salachat.capacidadCola", 1024);
+
+	/**
+	 * Qué hacer cuando se llena la cola de salida de un cliente
+	 * (salachat.politica).
+	 */
+	static final PoliticaDesbordamiento POLITICA = PoliticaDesbordamiento
+			.deNombre(System.getProperty("salachat.politica", "descartar_antiguo"));
+
+	/**
+	 * Tiempo máximo, en milisegundos, que se espera con la política BLOQUEAR
+	 * (salachat.esperaCola).
+	 */
+	static final long ESPERA_COLA_MS = Long.getLong("salachat.esperaCola", 1000);
+
+	/**
+	 * Número de hebras entre las que se reparten las salas para hacer el
+	 * reparto de sus mensajes (salachat.despachadores).
+	 */
+	static final int DESPACHADORES = Integer.getInteger("salachat.despachadores",
+			Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Número máximo de tareas pendientes en la cola de cada despachador
+	 * (salachat.colaDespacho). Con la cola llena, los mensajes nuevos de sus
+	 * salas se descartan.
+	 */
+	static final int COLA_DESPACHO = Integer.getInteger("salachat.colaDespacho", 65536);
+
+	/**
+	 * Latencia máxima, en microsegundos, que se puede añadir a un mensaje
+	 * esperando a otros para mandarlos todos en la misma escritura; 0 para no
+	 * esperar nunca (salachat.latenciaMax).
+	 */
+	static final long LATENCIA_MAX_US = Long.getLong("salachat.latenciaMax", 1000);
+
+	/**
+	 * Número máximo de mensajes que se agrupan en una misma escritura
+	 * (salachat.loteMax).
+	 */
+	static final int LOTE_MAX = Integer.getInteger("salachat.loteMax", 64);
+
+	/**
+	 * Cada cuántos milisegundos se muestra la profundidad de las colas de
+	 * salida y los contadores de escrituras; 0 para no mostrarlos nunca
+	 * (salachat.informeColas).
+	 */
+	static final long INFORME_COLAS_MS = Long.getLong("salachat.informeColas", 0);
+
+	/**
+	 * Puerto de administración, sólo en la interfaz de bucle local, donde se
+	 * publican las métricas en texto; 0 para no abrirlo (salachat.puertoAdmin).
+	 */
+	static final int PUERTO_ADMIN = Integer.getInteger("salachat.puertoAdmin", 0);
+
+	/**
+	 * Cada cuántos milisegundos se manda un latido (ver Latido) a los clientes
+	 * de los que no se ha recibido nada, o a los que no se ha mandado nada, en
+	 * ese tiempo; 0 para no mandarlos (salachat.ping).
+	 */
+	static final long PING_MS = Long.getLong("salachat.ping", 15000);
+
+	/**
+	 * Milisegundos que se espera la respuesta al latido que se le manda al
+	 * dueño de un nombre cuando otro cliente se presenta con él y el dueño
+	 * lleva callado más de un periodo de latido (salachat.esperaPong).
+	 */
+	static final long ESPERA_PONG_MS = Long.getLong("salachat.esperaPong", 3000);
+
+	/**
+	 * Milisegundos sin recibir nada de un cliente que entiende los latidos (o
+	 * sin poder escribirle lo que tiene pendiente, a cualquiera) tras los que
+	 * se le da por muerto y se le desconecta; 0 para no desconectar nunca a
+	 * nadie por inactividad (salachat.inactividad).
+	 */
+	static final long INACTIVIDAD_MS = Long.getLong("salachat.inactividad", 45000);
+
+	/**
+	 * MiB que, como mucho, retiene la reserva de buffers de E/S en buffers
+	 * libres (salachat.reservaMax).
+	 */
+	static final long RESERVA_MAX = Long.getLong("salachat.reservaMax", 64) * 1024 * 1024;
+
+	/**
+	 * La reserva de buffers sigue, para detectar fugas, uno de cada tantos
+	 * préstamos; 0 para no seguir ninguno (salachat.muestreoFugas).
+	 */
+	static final int MUESTREO_FUGAS = Integer.getInteger("salachat.muestreoFugas", 128);
+
+	/**
+	 * Número de mensajes recientes que guarda cada sala para mandárselos a
+	 * quien entra; 0 para no guardar ninguno (salachat.historial).
+	 */
+	static final int HISTORIAL_MENSAJES = Integer.getInteger("salachat.historial", 50);
+
+	/**
+	 * Máximo de bytes que suman los mensajes guardados por cada sala
+	 * (salachat.historialBytes).
+	 */
+	static final long HISTORIAL_BYTES = Long.getLong("salachat.historialBytes", 64 * 1024);
+
+	/**
+	 * Tiempo máximo, en milisegundos, que se espera a la primera línea de un
+	 * cliente antes de mandarle el historial de la sala general; 0 para
+	 * mandárselo nada más conectarse, aunque luego pida la reanudación
+	 * (salachat.esperaBienvenida).
+	 */
+	static final long ESPERA_BIENVENIDA_MS = Long.getLong("salachat.esperaBienvenida", 200);
+
+	/**
+	 * Directorio del diario donde se guardan todos los mensajes repartidos;
+	 * vacío para no guardarlos (salachat.diario).
+	 */
+	static final String DIARIO = System.getProperty("salachat.diario", "");
+
+	/**
+	 * Tamaño, en bytes, de cada segmento del diario (salachat.diarioSegmento).
+	 */
+	static final int DIARIO_SEGMENTO = Integer.getInteger("salachat.diarioSegmento", 64 * 1024 * 1024);
+
+	/**
+	 * Cada cuántos milisegundos se lleva el diario a disco; 0 para hacerlo con
+	 * cada mensaje y negativo para dejárselo al sistema operativo
+	 * (salachat.diarioSync).
+	 */
+	static final long DIARIO_SYNC_MS = Long.getLong("salachat.diarioSync", 100);
+
+	/**
+	 * Número de mensajes que se recuperan del diario al arrancar para los
+	 * historiales de las salas (salachat.diarioRecupera).
+	 */
+	static final long DIARIO_RECUPERA = Long.getLong("salachat.diarioRecupera", 1000);
+
+	/**
+	 * Puerto donde se escuchan los enlaces de los demás nodos de la federación;
+	 * 0 para no federarse (salachat.puertoPares).
+	 */
+	static final int PUERTO_PARES = Integer.getInteger("salachat.puertoPares", 0);
+
+	/**
+	 * Nodos pares de la federación, como lista "host:puerto" separada por comas
+	 * (salachat.pares).
+	 */
+	static final List<String> PARES = Arrays.stream(System.getProperty("salachat.pares", "").split(","))
+			.map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+
+	/**
+	 * Identificador de este nodo en la federación; por defecto, uno aleatorio
+	 * (salachat.nodo).
+	 */
+	static final String NODO = System.getProperty("salachat.nodo",
+			Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36));
+
+} // Configuracion
@@ -0,0 +1,73 @@
+package es.pps.sockets.salachat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores globales de escrituras en los sockets de los clientes, para poder
+ * ajustar el agrupamiento de mensajes: cuantos más mensajes salgan en cada
+ * escritura, menos llamadas al sistema, a cambio de algo más de latencia.
+ */
+class ContadoresEscritura {
+
+	/**
+	 * Anota una escritura (una llamada al sistema) en un socket.
+	 *
+	 * @param bytes Bytes escritos.
+	 */
+	static void escritura(long bytes) {
+
+		_escrituras.increment();
+		_bytes.add(bytes);
+
+	} // escritura
+
+	// --------------------------------------------------------
+
+	/**
+	 * Anota mensajes enviados a un cliente.
+	 *
+	 * @param n Número de mensajes.
+	 */
+	static void mensajes(int n) {
+
+		_mensajes.add(n);
+
+	} // mensajes
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve un resumen legible de los contadores.
+	 *
+	 * @return Mensajes, escrituras y escrituras por mensaje.
+	 */
+	static String resumen() {
+
+		long mensajes = _mensajes.sum();
+		long escrituras = _escrituras.sum();
+		double porMensaje = (mensajes == 0) ? 0 : (double) escrituras / mensajes;
+		return String.format("%d mensajes, %d escrituras, %d bytes, %.3f escrituras/mensaje", mensajes, escrituras,
+				_bytes.sum(), porMensaje);
+
+	} // resumen
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Mensajes enviados.
+	 */
+	static LongAdder _mensajes = new LongAdder();
+
+	/**
+	 * Escrituras en sockets.
+	 */
+	static LongAdder _escrituras = new LongAdder();
+
+	/**
+	 * Bytes escritos en sockets.
+	 */
+	static LongAdder _bytes = new LongAdder();
+
+} // ContadoresEscritura
@@ -0,0 +1,674 @@
+package es.pps.sockets.salachat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Diario persistente de todos los mensajes repartidos en las salas. Sólo se
+ * añade al final, y se guarda en segmentos (ficheros de tamaño fijo
+ * proyectados en memoria) con el nombre de su primer número de secuencia, de
+ * modo que escribir un mensaje es copiar sus bytes a memoria.
+ *
+ * Cada registro lleva una cabecera fija seguida de la sala y de los bytes del
+ * mensaje tal cual se mandaron:
+ *
+ * - longitud (int): bytes del registro detrás de este campo.
+ * - crc (int): CRC32C de esos bytes, salvo el propio crc.
+ * - secuencia (long): número de secuencia, consecutivos desde 1.
+ * - instante (long): milisegundos desde 1970; nunca decrece.
+ * - tipo (byte): tipo de trama del mensaje (ver Tramas), para que al
+ * recuperarlo sea el mismo mensaje que se repartió.
+ * - longitud de la sala (short), y la sala en UTF-8.
+ * - mensaje, con su fin de línea.
+ *
+ * La longitud se escribe la última, así que un registro a medias tiene
+ * longitud 0 (los ficheros nuevos están a cero) y marca el final del diario.
+ * Al abrir un diario existente se recorre su último segmento comprobando los
+ * crc para encontrar dónde seguir.
+ *
+ * Los datos se llevan a disco por grupos: una hebra lo hace periódicamente si
+ * ha habido escrituras desde la última vez. Con periodo 0 se lleva a disco
+ * cada mensaje (muy lento) y con periodo negativo se deja al sistema
+ * operativo. Anotar es lo único que se hace con el cerrojo del diario cogido,
+ * que comparten los despachadores de todas las salas, así que con él nunca se
+ * espera al disco: ni al llevar a disco cada mensaje con periodo 0, ni al
+ * llenarse un segmento, cuyo volcado final también hace la hebra periódica.
+ *
+ * Sólo el segmento activo se queda proyectado en memoria. Los anteriores se
+ * sueltan en cuanto están en disco, y al leerlos se proyectan de nuevo cada
+ * vez; la proyección la libera el recolector cuando ya no se usa ninguno de
+ * los mensajes sacados de ella.
+ *
+ * Cada segmento tiene un índice disperso en memoria (una entrada cada
+ * INDICE_CADA bytes, con su posición e instante) que se construye la
+ * primera vez que se necesita. Para buscar por secuencia o por instante se
+ * elige el segmento, se busca en su índice y se avanza saltando registros por
+ * su longitud, sin mirar su contenido. Al recorrerlo no se decodifica ni se
+ * copia nada: cada mensaje devuelto usa directamente sus bytes del fichero
+ * proyectado, igual que los mensajes que se reparten.
+ */
+class Diario implements Closeable {
+
+	/**
+	 * Quien recibe los registros al recorrer el diario.
+	 */
+	interface Lector {
+
+		/**
+		 * Recibe un registro.
+		 *
+		 * @param secuencia Número de secuencia.
+		 * @param instante  Milisegundos desde 1970.
+		 * @param sala      Sala donde se repartió.
+		 * @param mensaje   Mensaje repartido.
+		 */
+		void registro(long secuencia, long instante, String sala, Mensaje mensaje);
+
+	} // Lector
+
+	// --------------------------------------------------------
+
+	/**
+	 * Constructor. Abre el diario del directorio indicado, creándolo si no
+	 * existe.
+	 *
+	 * @param directorio      Directorio de los segmentos.
+	 * @param tamanyoSegmento Tamaño de cada segmento, en bytes.
+	 * @param periodoMs       Cada cuántos milisegundos se llevan los datos a
+	 *                        disco; 0 para hacerlo en cada mensaje, negativo
+	 *                        para no hacerlo nunca explícitamente.
+	 * @throws IOException Si no se puede abrir o crear el diario.
+	 */
+	Diario(Path directorio, int tamanyoSegmento, long periodoMs) throws IOException {
+
+		_directorio = directorio;
+		_tamanyoSegmento = tamanyoSegmento;
+		_periodoMs = periodoMs;
+
+		Files.createDirectories(directorio);
+		List<Path> ficheros = new ArrayList<Path>();
+		try (Stream<Path> lista = Files.list(directorio)) {
+			lista.filter(f -> f.getFileName().toString().endsWith(EXTENSION)).sorted().forEach(ficheros::add);
+		}
+		for (Path f : ficheros) {
+			String nombre = f.getFileName().toString();
+			_segmentos.add(new Segmento(f, Long.parseLong(nombre.substring(0, nombre.length() - EXTENSION.length()))));
+		}
+
+		if (_segmentos.isEmpty()) {
+			_activo = creaSegmento(1);
+			_segmentos.add(_activo);
+		} else {
+			_activo = _segmentos.get(_segmentos.size() - 1);
+			_activo.abreEscritura();
+			_ultima = _activo._primera + _activo._registros - 1;
+			_ultimoInstante = _activo._ultimoInstante;
+		}
+
+		if (periodoMs > 0) {
+			_sincronizador = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "diario-sync");
+				t.setDaemon(true);
+				return t;
+			});
+			_sincronizador.scheduleWithFixedDelay(this::sincroniza, periodoMs, periodoMs, TimeUnit.MILLISECONDS);
+		}
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Añade un mensaje al final del diario.
+	 *
+	 * @param sala    Sala donde se ha repartido.
+	 * @param mensaje Mensaje repartido.
+	 * @return Número de secuencia asignado, o -1 si el mensaje no cabe en un
+	 *         segmento (o el nombre de la sala es enorme) y no se ha guardado.
+	 * @throws IOException Si no se puede crear un segmento nuevo.
+	 */
+	long anota(String sala, Mensaje mensaje) throws IOException {
+
+		byte[] bytesSala = sala.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer datos = mensaje.vista();
+		int longitud = CABECERA - 4 + bytesSala.length + datos.remaining();
+		if ((4 + longitud > _tamanyoSegmento) || (bytesSala.length > Short.MAX_VALUE))
+			return -1;
+
+		long secuencia;
+		ByteBuffer mapa;
+		synchronized (this) {
+			if (_activo._fin + 4 + longitud > _tamanyoSegmento)
+				cambiaSegmento();
+
+			secuencia = _ultima + 1;
+			long instante = Math.max(System.currentTimeMillis(), _ultimoInstante);
+			mapa = _activo._mapa;
+			ByteBuffer escritura = mapa.duplicate();
+			int inicio = _activo._fin;
+			escritura.position(inicio + 8);
+			escritura.putLong(secuencia).putLong(instante).put(mensaje.tipo()).putShort((short) bytesSala.length)
+					.put(bytesSala).put(datos);
+			escritura.putInt(inicio + 4, crc(escritura, inicio + 8, longitud - 4));
+			// La longitud, la última: desde aquí el registro es visible.
+			escritura.putInt(inicio, longitud);
+
+			_activo.anotado(inicio, secuencia, instante);
+			_activo._fin = inicio + 4 + longitud;
+			_ultima = secuencia;
+			_ultimoInstante = instante;
+			if (_periodoMs != 0) {
+				_sucio = true;
+				return secuencia;
+			}
+		}
+		// Con periodo 0, cada uno espera a su mensaje fuera del cerrojo. La
+		// proyección es la de cuando se escribió, aunque entre tanto se haya
+		// pasado a otro segmento.
+		fuerza(mapa);
+		return secuencia;
+
+	} // anota
+
+	// --------------------------------------------------------
+
+	/**
+	 * Número de secuencia del último mensaje guardado.
+	 *
+	 * @return Última secuencia, o 0 si el diario está vacío.
+	 */
+	synchronized long ultimaSecuencia() {
+
+		return _ultima;
+
+	} // ultimaSecuencia
+
+	// --------------------------------------------------------
+
+	/**
+	 * Recorre los mensajes guardados a partir de una secuencia, hasta el último
+	 * que hubiera al empezar.
+	 *
+	 * @param desde  Primera secuencia que interesa.
+	 * @param lector Quien recibe los registros.
+	 * @throws IOException Si no se puede leer algún segmento.
+	 */
+	void recorre(long desde, Lector lector) throws IOException {
+
+		long hasta = ultimaSecuencia();
+		List<Segmento> segmentos = new ArrayList<Segmento>(_segmentos);
+		for (int i = segmentoDe(segmentos, desde); (i < segmentos.size()) && (desde <= hasta); ++i) {
+			Segmento s = segmentos.get(i);
+			ByteBuffer mapa = s.lectura();
+			int fin = s._fin;
+			int p = s.posicionDe(mapa, desde);
+			while (p < fin) {
+				int longitud = mapa.getInt(p);
+				long secuencia = mapa.getLong(p + 8);
+				if (secuencia > hasta)
+					return;
+				long instante = mapa.getLong(p + 16);
+				byte tipo = mapa.get(p + 24);
+				int longitudSala = mapa.getShort(p + 25);
+				int inicioSala = p + CABECERA;
+				byte[] bytesSala = new byte[longitudSala];
+				mapa.get(inicioSala, bytesSala);
+				int inicioMensaje = inicioSala + longitudSala;
+				mapa.limit(p + 4 + longitud).position(inicioMensaje);
+				lector.registro(secuencia, instante, new String(bytesSala, StandardCharsets.UTF_8),
+						Mensaje.envuelve(tipo, mapa));
+				mapa.clear();
+				desde = secuencia + 1;
+				p += 4 + longitud;
+			}
+		}
+
+	} // recorre
+
+	// --------------------------------------------------------
+
+	/**
+	 * Busca el primer mensaje guardado en un instante dado o después.
+	 *
+	 * @param instante Milisegundos desde 1970.
+	 * @return Su número de secuencia, o la última secuencia más uno si no hay
+	 *         ninguno tan reciente.
+	 * @throws IOException Si no se puede leer algún segmento.
+	 */
+	long secuenciaEn(long instante) throws IOException {
+
+		long hasta = ultimaSecuencia();
+		List<Segmento> segmentos = new ArrayList<Segmento>(_segmentos);
+		// El primer segmento cuyo último instante llega al buscado.
+		for (Segmento s : segmentos) {
+			ByteBuffer mapa = s.lectura();
+			if (s._registros == 0 || s._ultimoInstante < instante)
+				continue;
+			int p = s.posicionEn(mapa, instante);
+			while (p < s._fin) {
+				if (mapa.getLong(p + 16) >= instante)
+					return Math.min(mapa.getLong(p + 8), hasta + 1);
+				p += 4 + mapa.getInt(p);
+			}
+		}
+		return hasta + 1;
+
+	} // secuenciaEn
+
+	// --------------------------------------------------------
+
+	/**
+	 * Lleva a disco lo escrito y para la hebra de sincronización.
+	 */
+	@Override
+	public synchronized void close() {
+
+		if (_sincronizador != null)
+			_sincronizador.shutdown();
+		for (Segmento s : _porSincronizar)
+			s.fuerza();
+		_porSincronizar.clear();
+		_activo.fuerza();
+
+	} // close
+
+	// --------------------------------------------------------
+
+	/**
+	 * Lleva a disco el segmento activo si ha habido escrituras desde la última
+	 * vez. Se llama periódicamente desde la hebra de sincronización.
+	 */
+	protected void sincroniza() {
+
+		Segmento activo;
+		List<Segmento> llenos;
+		synchronized (this) {
+			if (!_sucio)
+				return;
+			_sucio = false;
+			activo = _activo;
+			llenos = new ArrayList<Segmento>(_porSincronizar);
+			_porSincronizar.clear();
+		}
+		// Fuera del cerrojo: mientras tanto se puede seguir anotando. En
+		// los segmentos llenos ya no se escribe, así que, una vez en disco,
+		// se sueltan.
+		for (Segmento s : llenos) {
+			s.fuerza();
+			s.suelta();
+		}
+		activo.fuerza();
+
+	} // sincroniza
+
+	// --------------------------------------------------------
+
+	/**
+	 * Pasa a escribir en un segmento nuevo. El anterior lo lleva a disco (y
+	 * lo suelta) la hebra de sincronización; si no la hay, ya está en disco
+	 * (periodo 0) o se deja al sistema operativo, así que se suelta ya. Se
+	 * llama con el cerrojo del diario cogido.
+	 *
+	 * @throws IOException Si no se puede crear el segmento nuevo.
+	 */
+	protected void cambiaSegmento() throws IOException {
+
+		Segmento anterior = _activo;
+		_activo = creaSegmento(_ultima + 1);
+		_segmentos.add(_activo);
+		if (_sincronizador != null) {
+			_porSincronizar.add(anterior);
+			_sucio = true;
+		} else {
+			anterior.suelta();
+		}
+
+	} // cambiaSegmento
+
+	// --------------------------------------------------------
+
+	/**
+	 * Crea un segmento vacío.
+	 *
+	 * @param primera Secuencia de su primer mensaje.
+	 * @return Segmento nuevo, abierto para escribir.
+	 * @throws IOException Si no se puede crear el fichero.
+	 */
+	protected Segmento creaSegmento(long primera) throws IOException {
+
+		Segmento s = new Segmento(_directorio.resolve(String.format("%020d%s", primera, EXTENSION)), primera);
+		s.abreEscritura();
+		return s;
+
+	} // creaSegmento
+
+	// --------------------------------------------------------
+
+	/**
+	 * Busca el segmento que contiene una secuencia.
+	 *
+	 * @param segmentos Segmentos, en orden.
+	 * @param secuencia Secuencia buscada.
+	 * @return Índice del último segmento que empieza en esa secuencia o antes
+	 *         (0 si es anterior a todos).
+	 */
+	static int segmentoDe(List<Segmento> segmentos, long secuencia) {
+
+		int bajo = 0, alto = segmentos.size() - 1;
+		while (bajo < alto) {
+			int medio = (bajo + alto + 1) >>> 1;
+			if (segmentos.get(medio)._primera <= secuencia)
+				bajo = medio;
+			else
+				alto = medio - 1;
+		}
+		return bajo;
+
+	} // segmentoDe
+
+	// --------------------------------------------------------
+
+	/**
+	 * Calcula el CRC32C de un trozo de un buffer.
+	 *
+	 * @param mapa     Buffer.
+	 * @param inicio   Primer byte.
+	 * @param longitud Número de bytes.
+	 * @return CRC, truncado a int.
+	 */
+	static int crc(ByteBuffer mapa, int inicio, int longitud) {
+
+		CRC32C crc = new CRC32C();
+		crc.update(mapa.duplicate().limit(inicio + longitud).position(inicio));
+		return (int) crc.getValue();
+
+	} // crc
+
+	// --------------------------------------------------------
+
+	/**
+	 * Lleva a disco una proyección de escritura.
+	 *
+	 * @param mapa Proyección; si no es de escritura no se hace nada.
+	 */
+	static void fuerza(ByteBuffer mapa) {
+
+		if (mapa instanceof MappedByteBuffer && !mapa.isReadOnly())
+			((MappedByteBuffer) mapa).force();
+
+	} // fuerza
+
+	// --------------------------------------------------------
+
+	/**
+	 * Un fichero del diario.
+	 */
+	class Segmento {
+
+		/**
+		 * Constructor. No abre el fichero.
+		 *
+		 * @param ruta    Fichero.
+		 * @param primera Secuencia de su primer mensaje.
+		 */
+		Segmento(Path ruta, long primera) {
+			_ruta = ruta;
+			_primera = primera;
+		}
+
+		/**
+		 * Proyecta el fichero para escribir en él (creándolo si hace falta)
+		 * y busca el final de lo escrito, construyendo el índice.
+		 *
+		 * @throws IOException Si no se puede proyectar.
+		 */
+		void abreEscritura() throws IOException {
+			try (FileChannel canal = FileChannel.open(_ruta, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE)) {
+				_mapa = canal.map(FileChannel.MapMode.READ_WRITE, 0, _tamanyoSegmento);
+			}
+			explora(_mapa, true);
+		}
+
+		/**
+		 * Devuelve una vista del fichero para leer. Si no es el segmento
+		 * activo lo proyecta de nuevo, sin guardar la proyección (y
+		 * construye el índice la primera vez).
+		 *
+		 * @return Vista de sólo lectura.
+		 * @throws IOException Si no se puede proyectar.
+		 */
+		synchronized ByteBuffer lectura() throws IOException {
+			ByteBuffer mapa = _mapa;
+			if (mapa == null) {
+				try (FileChannel canal = FileChannel.open(_ruta, StandardOpenOption.READ)) {
+					mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+				}
+				if (!_explorado)
+					explora(mapa, false);
+			}
+			return mapa.asReadOnlyBuffer();
+		}
+
+		/**
+		 * Deja de tener proyectado el fichero, que ya no se va a escribir.
+		 */
+		synchronized void suelta() {
+			_mapa = null;
+		}
+
+		/**
+		 * Recorre los registros desde el principio para saber dónde acaban,
+		 * cuántos hay y construir el índice. Se para en el primero que no
+		 * tenga la secuencia esperada (o, si se pide, el crc correcto): es
+		 * el final, o un registro que quedó a medias.
+		 *
+		 * @param mapa         Contenido del fichero.
+		 * @param compruebaCrc Si hay que comprobar el crc de cada registro.
+		 */
+		synchronized void explora(ByteBuffer mapa, boolean compruebaCrc) {
+			int p = 0;
+			while (p + CABECERA <= mapa.limit()) {
+				int longitud = mapa.getInt(p);
+				if ((longitud < CABECERA - 4) || (p + 4 + longitud > mapa.limit()))
+					break;
+				if (mapa.getLong(p + 8) != _primera + _registros)
+					break;
+				if (compruebaCrc && (crc(mapa, p + 8, longitud - 4) != mapa.getInt(p + 4)))
+					break;
+				anotado(p, mapa.getLong(p + 8), mapa.getLong(p + 16));
+				p += 4 + longitud;
+			}
+			_fin = p;
+			_explorado = true;
+		}
+
+		/**
+		 * Tiene en cuenta un registro nuevo.
+		 *
+		 * @param posicion  Posición del registro.
+		 * @param secuencia Su secuencia.
+		 * @param instante  Su instante.
+		 */
+		synchronized void anotado(int posicion, long secuencia, long instante) {
+			if ((_indice == 0) || (posicion - _posiciones[_indice - 1] >= INDICE_CADA)) {
+				if (_indice == _posiciones.length) {
+					_posiciones = Arrays.copyOf(_posiciones, _indice * 2);
+					_instantes = Arrays.copyOf(_instantes, _indice * 2);
+				}
+				_posiciones[_indice] = posicion;
+				_instantes[_indice] = instante;
+				++_indice;
+			}
+			++_registros;
+			_ultimoInstante = instante;
+		}
+
+		/**
+		 * Posición del registro con una secuencia, o de donde debería estar.
+		 *
+		 * @param mapa      Contenido del fichero.
+		 * @param secuencia Secuencia buscada.
+		 * @return Posición.
+		 */
+		int posicionDe(ByteBuffer mapa, long secuencia) {
+			int p = 0;
+			synchronized (this) {
+				// El índice guarda posiciones; la secuencia de cada una se
+				// lee del propio registro.
+				int bajo = 0, alto = _indice - 1;
+				while (bajo < alto) {
+					int medio = (bajo + alto + 1) >>> 1;
+					if (mapa.getLong(_posiciones[medio] + 8) <= secuencia)
+						bajo = medio;
+					else
+						alto = medio - 1;
+				}
+				if (_indice > 0)
+					p = _posiciones[bajo];
+			}
+			while ((p < _fin) && (mapa.getLong(p + 8) < secuencia))
+				p += 4 + mapa.getInt(p);
+			return p;
+		}
+
+		/**
+		 * Posición de la última entrada del índice anterior a un instante.
+		 *
+		 * @param mapa     Contenido del fichero.
+		 * @param instante Instante buscado.
+		 * @return Posición desde la que buscar.
+		 */
+		synchronized int posicionEn(ByteBuffer mapa, long instante) {
+			int bajo = 0, alto = _indice - 1;
+			while (bajo < alto) {
+				int medio = (bajo + alto + 1) >>> 1;
+				if (_instantes[medio] < instante)
+					bajo = medio;
+				else
+					alto = medio - 1;
+			}
+			return (_indice == 0) ? 0 : _posiciones[bajo];
+		}
+
+		/**
+		 * Lleva a disco el contenido del fichero, si está abierto para
+		 * escribir.
+		 */
+		void fuerza() {
+			ByteBuffer mapa;
+			synchronized (this) {
+				mapa = _mapa;
+			}
+			Diario.fuerza(mapa);
+		}
+
+		final Path _ruta;
+
+		final long _primera;
+
+		ByteBuffer _mapa;
+
+		boolean _explorado;
+
+		volatile int _fin;
+
+		volatile int _registros;
+
+		volatile long _ultimoInstante;
+
+		int[] _posiciones = new int[16];
+
+		long[] _instantes = new long[16];
+
+		int _indice;
+
+	} // Segmento
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Extensión de los ficheros de los segmentos.
+	 */
+	static final String EXTENSION = ".diario";
+
+	/**
+	 * Bytes de la cabecera de cada registro, contando la longitud de la sala.
+	 */
+	static final int CABECERA = 4 + 4 + 8 + 8 + 1 + 2;
+
+	/**
+	 * Cada cuántos bytes se añade una entrada al índice de un segmento.
+	 */
+	static final int INDICE_CADA = 64 * 1024;
+
+	/**
+	 * Directorio de los segmentos.
+	 */
+	Path _directorio;
+
+	/**
+	 * Tamaño de cada segmento.
+	 */
+	int _tamanyoSegmento;
+
+	/**
+	 * Periodo de sincronización con el disco.
+	 */
+	long _periodoMs;
+
+	/**
+	 * Segmentos, en orden.
+	 */
+	List<Segmento> _segmentos = new CopyOnWriteArrayList<Segmento>();
+
+	/**
+	 * Segmento en el que se escribe.
+	 */
+	Segmento _activo;
+
+	/**
+	 * Última secuencia asignada.
+	 */
+	long _ultima;
+
+	/**
+	 * Último instante guardado.
+	 */
+	long _ultimoInstante;
+
+	/**
+	 * Segmentos llenos que la hebra de sincronización tiene que llevar a
+	 * disco y soltar. Sólo con el cerrojo del diario cogido.
+	 */
+	List<Segmento> _porSincronizar = new ArrayList<Segmento>();
+
+	/**
+	 * Si se ha escrito algo desde la última sincronización.
+	 */
+	boolean _sucio;
+
+	/**
+	 * Hebra que sincroniza periódicamente, o null.
+	 */
+	ScheduledExecutorService _sincronizador;
+
+} // Diario
@@ -0,0 +1,146 @@
+package es.pps.sockets.salachat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Enlace saliente con un nodo par de la federación. Los mensajes a reenviar se
+ * meten en una cola acotada que, cuando se llena, descarta los más antiguos;
+ * la vacía una hebra propia del enlace. Así, encolar nunca bloquea aunque el
+ * par esté caído o vaya lento.
+ *
+ * Si la conexión falla, la hebra vuelve a intentarla una y otra vez, esperando
+ * cada vez el doble (hasta un máximo). Mientras tanto los mensajes se siguen
+ * acumulando en la cola, y se mandan en cuanto se restablece el enlace. El
+ * lote que se estaba mandando cuando falló no se pierde: se vuelve a mandar
+ * entero al reconectar (los pares descartan lo que ya hubiesen recibido, ver
+ * Federacion).
+ */
+class EnlacePar implements Runnable {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param host   Máquina del par.
+	 * @param puerto Puerto donde escucha los enlaces de los pares.
+	 */
+	EnlacePar(String host, int puerto) {
+
+		_host = host;
+		_puerto = puerto;
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Encola una línea para mandársela al par. No bloquea nunca.
+	 *
+	 * @param linea Línea a enviar, sin fin de línea.
+	 */
+	void encola(String linea) {
+
+		_cola.encola(linea);
+
+	} // encola
+
+	// --------------------------------------------------------
+
+	/**
+	 * Bucle de la hebra del enlace: conecta, manda lo que haya en la cola y,
+	 * si algo falla, espera y vuelve a conectar.
+	 */
+	@Override
+	public void run() {
+
+		long espera = ESPERA_MIN_MS;
+		while (!Thread.currentThread().isInterrupted()) {
+			try (Socket socket = new Socket()) {
+				socket.connect(new InetSocketAddress(_host, _puerto), (int) ESPERA_MAX_MS);
+				System.out.println("  [Enlace con " + this + " establecido]");
+				espera = ESPERA_MIN_MS;
+				Writer writer = new BufferedWriter(
+						new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+				while (true) {
+					if (_lote.isEmpty()) {
+						_lote.add(_cola.toma());
+						String linea;
+						while ((_lote.size() < Configuracion.CAPACIDAD_COLA) && ((linea = _cola.tomaSiHay()) != null))
+							_lote.add(linea);
+					}
+					for (String linea : _lote) {
+						writer.write(linea);
+						writer.write('\n');
+					}
+					writer.flush();
+					_lote.clear();
+				}
+			} catch (IOException ioe) {
+				System.err.println("  [Enlace con " + this + " caído: " + ioe.getLocalizedMessage() + "]");
+			} catch (InterruptedException ie) {
+				return;
+			}
+			try {
+				Thread.sleep(espera);
+			} catch (InterruptedException ie) {
+				return;
+			}
+			espera = Math.min(espera * 2, ESPERA_MAX_MS);
+		}
+
+	} // run
+
+	// --------------------------------------------------------
+
+	@Override
+	public String toString() {
+
+		return _host + ":" + _puerto;
+
+	} // toString
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Espera inicial, en milisegundos, antes de reintentar la conexión.
+	 */
+	private static final long ESPERA_MIN_MS = 500;
+
+	/**
+	 * Espera máxima, en milisegundos, entre reintentos.
+	 */
+	private static final long ESPERA_MAX_MS = 10000;
+
+	/**
+	 * Máquina del par.
+	 */
+	String _host;
+
+	/**
+	 * Puerto del par.
+	 */
+	int _puerto;
+
+	/**
+	 * Líneas pendientes de mandar al par.
+	 */
+	ColaSalida<String> _cola = new ColaSalida<String>(Configuracion.CAPACIDAD_COLA,
+			PoliticaDesbordamiento.DESCARTAR_ANTIGUO, 0);
+
+	/**
+	 * Líneas sacadas de la cola que se están mandando. Sólo se vacía cuando
+	 * se han escrito todas, de modo que si el enlace cae se mandan otra vez.
+	 * Sólo la usa la hebra del enlace.
+	 */
+	List<String> _lote = new ArrayList<String>();
+
+} // EnlacePar
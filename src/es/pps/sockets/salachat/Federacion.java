@@ -0,0 +1,332 @@
+package es.pps.sockets.salachat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.pps.sockets.comun.Extremos;
+
+/**
+ * Federación de varios servidores SalaDeChat. Cada servidor (nodo) abre
+ * enlaces TCP con los nodos pares que se le indiquen y escucha en un puerto
+ * propio los enlaces que abren ellos.
+ *
+ * Cada mensaje que un cliente local manda a una sala se reenvía una sola vez a
+ * cada par, que lo reparte entre sus propios clientes de la sala con ese
+ * nombre (si la tiene) pero no lo vuelve a reenviar: los nodos deben formar
+ * una malla completa. Cada mensaje lleva un identificador
+ * "nodoOrigen:encarnación:secuencia"; los mensajes que vuelven a su nodo de
+ * origen o que ya se habían visto se descartan, de modo que no hay bucles
+ * aunque un enlace se restablezca y repita algo. La encarnación es aleatoria y
+ * cambia en cada arranque del proceso: la secuencia vuelve a empezar en 1 al
+ * reiniciarlo, y sin ella los pares tomarían los mensajes nuevos por
+ * repetidos mientras recordasen los identificadores de antes del reinicio.
+ *
+ * Por el enlace viaja una línea UTF-8 por mensaje, con cuatro campos
+ * separados por tabuladores: identificador, tipo de trama (ver Tramas, en
+ * decimal), sala y línea original. El contenido de una trama puede tener
+ * saltos de línea, así que en la línea original '\', CR y LF van escapados
+ * como "\\", "\r" y "\n"; el par los deshace y el mensaje llega igual, y
+ * con su mismo tipo, a sus clientes de tramas.
+ *
+ * Cada enlace saliente tiene su propia cola acotada y su propia hebra (ver
+ * EnlacePar), así que un par caído o lento nunca retrasa el reparto local.
+ *
+ * Para probarlo en una sola máquina basta con lanzar varios procesos con
+ * puertos distintos, por ejemplo:
+ *
+ * java -Dsalachat.nodo=a -Dsalachat.puertoPares=6001
+ * -Dsalachat.pares=localhost:6002 es.pps.sockets.salachat.SalaDeChat 5001
+ *
+ * java -Dsalachat.nodo=b -Dsalachat.puertoPares=6002
+ * -Dsalachat.pares=localhost:6001 es.pps.sockets.salachat.SalaDeChat 5002
+ */
+class Federacion {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param nodo   Identificador de este nodo. Debe ser distinto en cada uno.
+	 * @param salas  Gestor de salas local, donde se reparten los mensajes que
+	 *               llegan de los pares.
+	 * @param puerto Puerto donde escuchar los enlaces de los pares.
+	 * @param pares  Direcciones "host:puerto" de los pares.
+	 */
+	Federacion(String nodo, GestorSalas salas, int puerto, List<String> pares) {
+
+		_nodo = nodo;
+		_salas = salas;
+		_puerto = puerto;
+		for (String par : pares) {
+			int dosPuntos = par.lastIndexOf(':');
+			_enlaces.add(new EnlacePar(par.substring(0, dosPuntos).trim(),
+					Integer.parseInt(par.substring(dosPuntos + 1).trim())));
+		}
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Abre el puerto de los pares y lanza las hebras de los enlaces.
+	 *
+	 * @throws IOException Si no se puede escuchar en el puerto de los pares.
+	 */
+	void arranca() throws IOException {
+
+		ServerSocket serverSocket = new ServerSocket(_puerto);
+		Thread aceptador = new Thread(() -> aceptaPares(serverSocket), "federacion-aceptador");
+		aceptador.setDaemon(true);
+		aceptador.start();
+
+		for (EnlacePar enlace : _enlaces) {
+			Thread t = new Thread(enlace, "federacion-" + enlace);
+			t.setDaemon(true);
+			t.start();
+		}
+		System.out.println("[ Nodo " + _nodo + " escuchando pares en el puerto " + _puerto + " ]");
+
+	} // arranca
+
+	// --------------------------------------------------------
+
+	/**
+	 * Reenvía a todos los pares un mensaje que un cliente local ha mandado a
+	 * una sala.
+	 *
+	 * @param sala    Sala donde se envió.
+	 * @param mensaje Mensaje enviado.
+	 */
+	void reenvia(Sala sala, Mensaje mensaje) {
+
+		if (_enlaces.isEmpty())
+			return;
+		String id = _nodo + ":" + _encarnacion + ":" + _secuencia.incrementAndGet();
+		_vistos.anota(id);
+		String linea = id + '\t' + mensaje.tipo() + '\t' + sala.nombre().replace('\t', ' ') + '\t'
+				+ escapa(mensaje.texto());
+		for (EnlacePar enlace : _enlaces)
+			enlace.encola(linea);
+
+	} // reenvia
+
+	// --------------------------------------------------------
+
+	/**
+	 * Procesa una línea recibida de un par.
+	 *
+	 * @param linea Línea recibida.
+	 */
+	protected void onRecibido(String linea) {
+
+		String[] campos = linea.split("\t", 4);
+		if (campos.length < 4)
+			return;
+		byte tipo;
+		try {
+			tipo = Byte.parseByte(campos[1]);
+		} catch (NumberFormatException nfe) {
+			return;
+		}
+		String id = campos[0];
+		if (id.startsWith(_nodo + ":") || !_vistos.anota(id))
+			// Es nuestro o ya lo habíamos visto.
+			return;
+		Sala sala = _salas._salas.get(campos[2]);
+		if (sala != null)
+			sala.difunde(null, Mensaje.deTexto(tipo, desescapa(campos[3])));
+		System.out.println(campos[3]);
+
+	} // onRecibido
+
+	// --------------------------------------------------------
+
+	/**
+	 * Escapa los '\', CR y LF de un texto para que quepa en una línea.
+	 *
+	 * @param texto Texto.
+	 * @return Texto escapado; el mismo objeto si no había nada que escapar.
+	 */
+	static String escapa(String texto) {
+
+		if ((texto.indexOf('\\') < 0) && (texto.indexOf('\n') < 0) && (texto.indexOf('\r') < 0))
+			return texto;
+		StringBuilder sb = new StringBuilder(texto.length() + 8);
+		for (int i = 0; i < texto.length(); ++i) {
+			char c = texto.charAt(i);
+			if (c == '\\')
+				sb.append("\\\\");
+			else if (c == '\n')
+				sb.append("\\n");
+			else if (c == '\r')
+				sb.append("\\r");
+			else
+				sb.append(c);
+		}
+		return sb.toString();
+
+	} // escapa
+
+	// --------------------------------------------------------
+
+	/**
+	 * Deshace escapa().
+	 *
+	 * @param texto Texto escapado.
+	 * @return Texto original.
+	 */
+	static String desescapa(String texto) {
+
+		if (texto.indexOf('\\') < 0)
+			return texto;
+		StringBuilder sb = new StringBuilder(texto.length());
+		for (int i = 0; i < texto.length(); ++i) {
+			char c = texto.charAt(i);
+			if ((c == '\\') && (i + 1 < texto.length())) {
+				char s = texto.charAt(++i);
+				sb.append((s == 'n') ? '\n' : (s == 'r') ? '\r' : s);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+
+	} // desescapa
+
+	// --------------------------------------------------------
+
+	/**
+	 * Bucle de la hebra que acepta los enlaces de los pares. Lanza una hebra
+	 * lectora por enlace.
+	 *
+	 * @param serverSocket Socket donde escuchar.
+	 */
+	protected void aceptaPares(ServerSocket serverSocket) {
+
+		while (true) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException ioe) {
+				System.err.println("Error esperando pares: " + ioe.getLocalizedMessage());
+				return;
+			}
+			System.out.println("[ Par conectado desde " + Extremos.describe(socket.getInetAddress(), socket.getPort())
+					+ " ]");
+			Thread t = new Thread(() -> leePar(socket), "federacion-lector");
+			t.setDaemon(true);
+			t.start();
+		}
+
+	} // aceptaPares
+
+	// --------------------------------------------------------
+
+	/**
+	 * Bucle de la hebra que lee un enlace entrante.
+	 *
+	 * @param socket Socket del enlace.
+	 */
+	protected void leePar(Socket socket) {
+
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+			String linea;
+			while ((linea = reader.readLine()) != null)
+				onRecibido(linea);
+		} catch (IOException e) {
+		}
+		System.out.println("  [Fin del enlace con un par]");
+
+	} // leePar
+
+	// --------------------------------------------------------
+
+	/**
+	 * Conjunto acotado con los identificadores de los últimos mensajes vistos.
+	 * Cuando se llena se olvidan los más antiguos.
+	 */
+	static class Vistos {
+
+		Vistos(int capacidad) {
+			_orden = new String[capacidad];
+		}
+
+		/**
+		 * Anota un identificador.
+		 *
+		 * @param id Identificador.
+		 * @return false si ya estaba anotado.
+		 */
+		synchronized boolean anota(String id) {
+			if (!_ids.add(id))
+				return false;
+			if (_orden[_siguiente] != null)
+				_ids.remove(_orden[_siguiente]);
+			_orden[_siguiente] = id;
+			_siguiente = (_siguiente + 1) % _orden.length;
+			return true;
+		}
+
+		final Set<String> _ids = ConcurrentHashMap.newKeySet();
+
+		final String[] _orden;
+
+		int _siguiente;
+
+	} // Vistos
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Número de identificadores recientes que se recuerdan.
+	 */
+	private static final int MAX_VISTOS = 65536;
+
+	/**
+	 * Identificador de este nodo.
+	 */
+	String _nodo;
+
+	/**
+	 * Gestor de salas local.
+	 */
+	GestorSalas _salas;
+
+	/**
+	 * Puerto donde escuchamos a los pares.
+	 */
+	int _puerto;
+
+	/**
+	 * Enlaces salientes, uno por par.
+	 */
+	List<EnlacePar> _enlaces = new ArrayList<EnlacePar>();
+
+	/**
+	 * Encarnación de este nodo: distinta en cada arranque del proceso.
+	 */
+	String _encarnacion = GestorSalas.nuevaEpoca();
+
+	/**
+	 * Secuencia de los mensajes originados en este nodo, dentro de su
+	 * encarnación.
+	 */
+	AtomicLong _secuencia = new AtomicLong();
+
+	/**
+	 * Identificadores de los mensajes vistos recientemente.
+	 */
+	Vistos _vistos = new Vistos(MAX_VISTOS);
+
+} // Federacion
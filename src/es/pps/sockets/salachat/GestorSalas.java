@@ -0,0 +1,908 @@
+package es.pps.sockets.salachat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import es.pps.sockets.comun.Compresion;
+import es.pps.sockets.comun.Latido;
+import es.pps.sockets.comun.Reanudacion;
+import es.pps.sockets.comun.Tramas;
+
+/**
+ * Gestor de las salas de chat del servidor. Cada cliente está siempre en una
+ * sala (al conectarse, en la sala "general") y lo que escribe sólo llega a los
+ * demás miembros de esa sala.
+ *
+ * Los clientes cambian de sala con órdenes del protocolo de líneas (pueden ir
+ * precedidas del "[nombre] " que añaden las ventanas de chat):
+ *
+ * - "/entrar sala": sale de la sala actual y entra en la indicada, creándola
+ * si no existe.
+ * - "/salir": vuelve a la sala general.
+ * - "/salas": pide la lista de salas con su número de miembros.
+ * - "/binario versión": pasa al protocolo de tramas (ver Tramas).
+ * - "/comprimir versión": con tramas, pasa a recibirlas comprimidas (ver
+ * Compresion).
+ * - "/reanudar [época secuencia sala]": pasa a recibir los mensajes numerados
+ * y, tras una reconexión, vuelve a la sala y recibe sólo lo que se perdió
+ * (ver Reanudacion).
+ * - "/ping" y "/pong": latidos (ver Latido).
+ * - "/historia minutos": con diario, pide los mensajes de la sala de los
+ * últimos minutos, aunque ya no estén en el historial.
+ * - "/msg nombre texto": manda el texto sólo al cliente con ese nombre, esté
+ * en la sala que esté.
+ *
+ * Cualquier otra línea, aunque empiece por '/', se reparte sin más.
+ *
+ * Los nombres salen del aviso de conexión que mandan las ventanas de chat
+ * ("[nombre] [CONECTADO]"), que se reparte como cualquier otro mensaje pero
+ * además apunta al cliente en un índice por nombre. Así, un mensaje privado
+ * cuesta una búsqueda en el índice y una escritura, en lugar de recorrer la
+ * sala. Un nombre es de quien lo tiene mientras siga conectado: si otro
+ * cliente se presenta con él, se le avisa de que está en uso y su
+ * presentación no se reparte. Si el dueño lleva callado más de un periodo de
+ * latido, lo normal es que sea el mismo usuario, que se ha reconectado antes
+ * de que se note que la conexión anterior está muerta; entonces se le manda
+ * un latido al dueño en ese momento y, si no contesta en un momento
+ * (salachat.esperaPong), se le expulsa y el nombre pasa al nuevo. Al darse
+ * de baja, el cliente sale del índice si el nombre sigue siendo suyo.
+ *
+ * El historial de la sala general no se le manda a un cliente nada más
+ * conectarse, sino con su primera línea o, si no manda ninguna, pasado un
+ * momento (salachat.esperaBienvenida). Así, si esa primera línea es una orden
+ * de reanudación, se le manda sólo lo que le falta y no el historial entero.
+ *
+ * Cada cliente se vigila periódicamente: si lleva un tiempo sin mandar nada,
+ * o sin que se le mande nada, se le manda un latido, y si sigue sin mandar
+ * nada (o sin poder recibir lo que tiene pendiente) pasado el plazo de
+ * inactividad, se le da por muerto, se cierra y se da de baja. No todos los
+ * clientes entienden los latidos: a uno que todavía no ha contestado a
+ * ninguno se le manda un único latido de prueba, y no se le expulsa por no
+ * mandar nada (un cliente que sólo escucha, o uno que sólo escribe y no lee,
+ * son normales), sino sólo por no recibir lo que tiene pendiente. Tanto esta
+ * vigilancia como la espera del historial usan una única rueda de
+ * temporizadores (ver RuedaTemporizadores), no un temporizador por cliente.
+ *
+ * El reparto de cada sala lo hace un despachador (un ejecutor de una sola
+ * hebra). Hay tantos despachadores como se indique, normalmente uno por
+ * núcleo, y las salas se les asignan por turnos al crearlas, de modo que con
+ * muchas salas la carga se extiende por todos los núcleos. Las salas que se
+ * quedan vacías desaparecen, salvo la general.
+ *
+ * Como un despachador es compartido, nunca debe esperar: su cola está acotada
+ * (salachat.colaDespacho) y, si se llena, los mensajes nuevos de sus salas se
+ * descartan en lugar de bloquear a quien los recibe; y al encolar en un
+ * cliente lento no se espera aunque la política sea BLOQUEAR, sino que se le
+ * desconecta (ver enDespachador()).
+ *
+ * Opcionalmente, el gestor puede federarse con los de otros servidores (ver
+ * Federacion).
+ */
+class GestorSalas {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param numDespachadores Número de hebras entre las que se reparten las
+	 *                         salas.
+	 */
+	GestorSalas(int numDespachadores) {
+
+		// Al arrancar se recuperan del diario hasta DIARIO_RECUPERA
+		// mensajes de golpe, y deben caber.
+		int capacidad = (int) Math.max(Configuracion.COLA_DESPACHO, Configuracion.DIARIO_RECUPERA);
+		_despachadores = new ExecutorService[numDespachadores];
+		for (int i = 0; i < numDespachadores; ++i) {
+			final String nombre = "sala-" + i;
+			_despachadores[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(capacidad), r -> {
+						Thread t = new Thread(() -> {
+							DESPACHADOR.set(Boolean.TRUE);
+							r.run();
+						}, nombre);
+						t.setDaemon(true);
+						return t;
+					});
+		}
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Da de alta a un cliente recién conectado y lo mete en la sala general.
+	 * El historial se le manda con su primera línea o cuando pase la espera
+	 * configurada, lo que ocurra antes.
+	 *
+	 * @param cliente Cliente nuevo.
+	 */
+	void alta(Cliente cliente) {
+
+		_clientes.alta(cliente);
+		Metricas.conexion();
+		vigila(cliente);
+		if (Configuracion.ESPERA_BIENVENIDA_MS <= 0) {
+			cliente._bienvenido.set(true);
+			entra(cliente, SALA_GENERAL, 0);
+			return;
+		}
+		entra(cliente, SALA_GENERAL, -1);
+		_rueda.programa(Configuracion.ESPERA_BIENVENIDA_MS, () -> daBienvenida(cliente));
+
+	} // alta
+
+	// --------------------------------------------------------
+
+	/**
+	 * Da de baja a un cliente que se ha desconectado, sacándolo de su sala.
+	 *
+	 * @param cliente Cliente que se va.
+	 */
+	void baja(Cliente cliente) {
+
+		cliente._deBaja = true;
+		sale(cliente);
+		String nombre = cliente._nombre;
+		if (nombre != null)
+			_nombres.remove(nombre, cliente);
+		if (_clientes.baja(cliente))
+			Metricas.desconexion();
+
+	} // baja
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si está configurado (salachat.puertoPares), une este servidor a la
+	 * federación de nodos pares, de modo que lo que se escribe en una sala
+	 * llegue también a la sala con el mismo nombre en los demás nodos.
+	 *
+	 * @throws IOException Si no se puede escuchar en el puerto de los pares.
+	 */
+	void federa() throws IOException {
+
+		if (Configuracion.PUERTO_PARES <= 0)
+			return;
+		_federacion = new Federacion(Configuracion.NODO, this, Configuracion.PUERTO_PARES, Configuracion.PARES);
+		_federacion.arranca();
+
+	} // federa
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si está configurado (salachat.diario), abre el diario donde se guarda
+	 * todo lo que se reparte y recupera de él los últimos mensajes para los
+	 * historiales de las salas. Debe llamarse antes de que entre nadie.
+	 *
+	 * @throws IOException Si no se puede abrir el diario.
+	 */
+	void abreDiario() throws IOException {
+
+		if (Configuracion.DIARIO.isEmpty())
+			return;
+		Diario diario = new Diario(Paths.get(Configuracion.DIARIO), Configuracion.DIARIO_SEGMENTO,
+				Configuracion.DIARIO_SYNC_MS);
+		// Las salas que se creen al recuperar ya deben escribir en él,
+		// con la época del diario y sabiendo qué se ha recuperado.
+		_diario = diario;
+		_epoca = epoca(Paths.get(Configuracion.DIARIO));
+		long ultima = diario.ultimaSecuencia();
+		_recuperadaDesde = Math.max(1, ultima - Configuracion.DIARIO_RECUPERA + 1);
+		diario.recorre(_recuperadaDesde, (secuencia, instante, nombre, mensaje) -> {
+			mensaje.numera(secuencia);
+			_salas.computeIfAbsent(nombre, this::creaSala).recuerda(mensaje);
+		});
+		System.out.println("[ Diario en " + Configuracion.DIARIO + ", último mensaje " + ultima + " ]");
+
+	} // abreDiario
+
+	// --------------------------------------------------------
+
+	/**
+	 * Procesa una línea recibida de un cliente: si es una orden conocida la
+	 * ejecuta y si no la reparte en la sala del cliente. Una presentación
+	 * con un nombre que ya es de otro no se reparte.
+	 *
+	 * @param origen  Cliente que envió la línea.
+	 * @param mensaje Línea recibida.
+	 */
+	void procesa(Cliente origen, Mensaje mensaje) {
+
+		Metricas.entrada(mensaje.longitud());
+		origen._ultimaLectura = System.nanoTime();
+		String orden = mensaje.orden();
+		if (!Reanudacion.esOrden(orden))
+			daBienvenida(origen);
+		if ((orden != null) && ejecuta(origen, orden))
+			return;
+		String nombre = mensaje.presentado();
+		if ((nombre != null) && !presenta(origen, nombre))
+			return;
+
+		reparte(origen, mensaje);
+
+	} // procesa
+
+	// --------------------------------------------------------
+
+	/**
+	 * Procesa una trama recibida de un cliente que usa el protocolo de
+	 * tramas. Las de control se ejecutan como órdenes; las demás se reparten
+	 * en la sala del cliente sin mirar su contenido, salvo las presentaciones
+	 * con un nombre que ya es de otro.
+	 *
+	 * @param origen  Cliente que envió la trama.
+	 * @param mensaje Contenido de la trama.
+	 */
+	void procesaTrama(Cliente origen, Mensaje mensaje) {
+
+		Metricas.entrada(mensaje.longitud());
+		origen._ultimaLectura = System.nanoTime();
+		daBienvenida(origen);
+		if (mensaje.tipo() != Tramas.CONTROL) {
+			if (mensaje.tipo() == Tramas.PRESENCIA) {
+				String nombre = mensaje.presentado();
+				if ((nombre != null) && !presenta(origen, nombre))
+					return;
+			}
+			reparte(origen, mensaje);
+			return;
+		}
+		String orden = mensaje.texto().trim();
+		if (!ejecuta(origen, orden))
+			responde(origen, "Orden desconocida: " + orden);
+
+	} // procesaTrama
+
+	// --------------------------------------------------------
+
+	/**
+	 * Reparte un mensaje en la sala de quien lo envió y, si hay federación, lo
+	 * reenvía a los demás nodos.
+	 *
+	 * @param origen  Cliente que lo envió.
+	 * @param mensaje Mensaje.
+	 */
+	protected void reparte(Cliente origen, Mensaje mensaje) {
+
+		Sala sala = origen.sala();
+		if (sala == null)
+			return;
+		sala.difunde(origen, mensaje);
+		Federacion federacion = _federacion;
+		if (federacion != null)
+			federacion.reenvia(sala, mensaje);
+
+	} // reparte
+
+	// --------------------------------------------------------
+
+	/**
+	 * Registro con todos los clientes conectados, estén en la sala que estén.
+	 *
+	 * @return Registro de clientes.
+	 */
+	RegistroClientes<Cliente> clientes() {
+
+		return _clientes;
+
+	} // clientes
+
+	// --------------------------------------------------------
+
+	/**
+	 * Ejecuta una orden.
+	 *
+	 * @param cliente Cliente que la envió.
+	 * @param orden   Texto de la orden, empezando por '/'.
+	 * @return false si no es una orden conocida.
+	 */
+	protected boolean ejecuta(Cliente cliente, String orden) {
+
+		String[] partes = orden.trim().split("\\s+", 2);
+		switch (partes[0]) {
+		case "/entrar":
+			if (partes.length < 2) {
+				responde(cliente, "Uso: /entrar <sala>");
+			} else {
+				cambia(cliente, partes[1].trim());
+				responde(cliente, "Estás en la sala " + cliente.sala().nombre());
+			}
+			return true;
+		case "/salir":
+			cambia(cliente, SALA_GENERAL);
+			responde(cliente, "Estás en la sala " + SALA_GENERAL);
+			return true;
+		case Tramas.SALUDO:
+			// Pasamos a tramas con la mayor versión que entendemos los dos.
+			int version = Math.min(Tramas.version(orden), Tramas.VERSION);
+			if (version < 1)
+				responde(cliente, "Uso: " + Tramas.saludo(Tramas.VERSION));
+			else if (!cliente._leeTramas)
+				cliente.pasaATramas(version);
+			return true;
+		case Compresion.ORDEN:
+			int comprimir = Math.min(Compresion.version(orden), Compresion.VERSION);
+			if (!cliente._leeTramas)
+				responde(cliente, "La compresión sólo se puede usar con tramas");
+			else if (comprimir < 1)
+				responde(cliente, "Uso: " + Compresion.orden(Compresion.VERSION));
+			else if (!cliente._comprime)
+				cliente.pasaAComprimir(comprimir);
+			return true;
+		case Reanudacion.ORDEN:
+			reanuda(cliente, orden);
+			return true;
+		case Latido.PING:
+			cliente._contestaLatidos = true;
+			cliente.encola(PONG);
+			return true;
+		case "/msg":
+			privado(cliente, orden);
+			return true;
+		case Latido.PONG:
+			// Ya se ha anotado que está vivo; además, sabemos que entiende
+			// los latidos.
+			cliente._contestaLatidos = true;
+			return true;
+		case "/historia":
+			long minutos = -1;
+			try {
+				if (partes.length == 2)
+					minutos = Long.parseLong(partes[1].trim());
+			} catch (NumberFormatException nfe) {
+			}
+			Sala sala = cliente.sala();
+			if (minutos < 0)
+				responde(cliente, "Uso: /historia <minutos>");
+			else if (_diario == null)
+				responde(cliente, "No hay diario (salachat.diario)");
+			else if (sala != null)
+				sala.historia(cliente, System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(minutos));
+			return true;
+		case "/salas":
+			Map<String, Integer> lista = new TreeMap<String, Integer>();
+			for (Sala s : _salas.values())
+				lista.put(s.nombre(), s.miembros().tamanyo());
+			responde(cliente, "Salas: " + lista);
+			return true;
+		default:
+			return false;
+		}
+
+	} // ejecuta
+
+	// --------------------------------------------------------
+
+	/**
+	 * Apunta en el índice de nombres a un cliente que se acaba de presentar,
+	 * quitando el nombre que tuviera antes. Un nombre es de quien lo tiene
+	 * mientras siga conectado: si otro se presenta con él, se le avisa y no
+	 * se le apunta.
+	 *
+	 * @param cliente Cliente.
+	 * @param nombre  Nombre con el que se presenta.
+	 * @return false si el nombre ya es de otro cliente.
+	 */
+	protected boolean presenta(Cliente cliente, String nombre) {
+
+		String anterior = cliente._nombre;
+		if (nombre.equals(anterior))
+			return true;
+		while (true) {
+			Cliente dueno = _nombres.putIfAbsent(nombre, cliente);
+			if ((dueno == null) || (dueno == cliente))
+				break;
+			if (!dueno._deBaja) {
+				responde(cliente, "El nombre " + nombre + " ya está en uso");
+				disputa(dueno, cliente, nombre);
+				return false;
+			}
+			// Se está dando de baja; el nombre queda libre.
+			if (_nombres.replace(nombre, dueno, cliente))
+				break;
+		}
+		cliente._nombre = nombre;
+		if (anterior != null)
+			_nombres.remove(anterior, cliente);
+		// Si se ha dado de baja mientras tanto, baja() puede no haber visto
+		// el nombre nuevo; _deBaja y _nombre son volátiles, así que al menos
+		// uno de los dos lo quita.
+		if (cliente._deBaja)
+			_nombres.remove(nombre, cliente);
+		return true;
+
+	} // presenta
+
+	// --------------------------------------------------------
+
+	/**
+	 * Cuando un cliente se presenta con un nombre que ya es de otro, y el
+	 * dueño lleva callado más de un periodo de latido, le manda un latido al
+	 * dueño. Si no ha contestado pasado ESPERA_PONG_MS, lo expulsa y le da el
+	 * nombre al que lo pedía.
+	 *
+	 * @param dueno   Cliente que tiene el nombre.
+	 * @param cliente Cliente que lo pide.
+	 * @param nombre  Nombre.
+	 */
+	protected void disputa(Cliente dueno, Cliente cliente, String nombre) {
+
+		long pedido = System.nanoTime();
+		if ((Configuracion.PING_MS <= 0)
+				|| (pedido - dueno._ultimaLectura < TimeUnit.MILLISECONDS.toNanos(Configuracion.PING_MS)))
+			return;
+		dueno.encola(PING);
+		Metricas.latido();
+		_rueda.programa(Configuracion.ESPERA_PONG_MS, () -> {
+			if (!dueno._deBaja) {
+				if (dueno._ultimaLectura - pedido >= 0)
+					// Ha contestado: sigue siendo suyo.
+					return;
+				expulsa(dueno, true);
+			}
+			if (!cliente._deBaja && presenta(cliente, nombre))
+				responde(cliente, "Ahora el nombre " + nombre + " es tuyo");
+		});
+
+	} // disputa
+
+	// --------------------------------------------------------
+
+	/**
+	 * Ejecuta la orden de mensaje privado: busca al destinatario por su
+	 * nombre y le encola sólo a él el texto, con el nombre de quien lo manda
+	 * delante.
+	 *
+	 * @param cliente Cliente que la envió.
+	 * @param orden   Texto de la orden.
+	 */
+	protected void privado(Cliente cliente, String orden) {
+
+		String[] partes = orden.trim().split("\\s+", 3);
+		if (partes.length < 3) {
+			responde(cliente, "Uso: /msg <nombre> <texto>");
+			return;
+		}
+		String remitente = cliente._nombre;
+		if (remitente == null) {
+			responde(cliente, "Para mandar mensajes privados hay que presentarse antes ([nombre] [CONECTADO])");
+			return;
+		}
+		Cliente destino = _nombres.get(partes[1]);
+		if ((destino == null) || destino._deBaja) {
+			responde(cliente, partes[1] + " no está conectado");
+			return;
+		}
+		destino.encola(Mensaje.deTexto("[" + remitente + "] (privado) " + partes[2]));
+
+	} // privado
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si la hebra actual es la de un despachador de salas, que nunca debe
+	 * esperar a que un cliente haga sitio en su cola.
+	 *
+	 * @return true en los despachadores.
+	 */
+	static boolean enDespachador() {
+
+		return DESPACHADOR.get();
+
+	} // enDespachador
+
+	// --------------------------------------------------------
+
+	/**
+	 * Manda al cliente una línea de respuesta del servidor.
+	 *
+	 * @param cliente Destinatario.
+	 * @param texto   Texto de la respuesta.
+	 */
+	static void responde(Cliente cliente, String texto) {
+
+		cliente.encola(Mensaje.deTexto(Tramas.CONTROL, "[Servidor] " + texto));
+
+	} // responde
+
+	// --------------------------------------------------------
+
+	/**
+	 * Manda a un cliente recién conectado el historial de su sala, si no se le
+	 * ha mandado ya.
+	 *
+	 * @param cliente Cliente.
+	 */
+	protected void daBienvenida(Cliente cliente) {
+
+		if (cliente._bienvenido.get() || !cliente._bienvenido.compareAndSet(false, true))
+			return;
+		Sala sala = cliente.sala();
+		if (sala != null)
+			sala.bienvenida(cliente, 0);
+
+	} // daBienvenida
+
+	// --------------------------------------------------------
+
+	/**
+	 * Programa la siguiente revisión de un cliente, si está configurada la
+	 * vigilancia: cada salachat.ping milisegundos o, si no se mandan latidos,
+	 * cada salachat.inactividad.
+	 *
+	 * @param cliente Cliente.
+	 */
+	protected void vigila(Cliente cliente) {
+
+		long periodo = (Configuracion.PING_MS > 0) ? Configuracion.PING_MS : Configuracion.INACTIVIDAD_MS;
+		if (periodo > 0)
+			_rueda.programa(periodo, () -> revisa(cliente));
+
+	} // vigila
+
+	// --------------------------------------------------------
+
+	/**
+	 * Revisa si un cliente sigue vivo. Si ha pasado el plazo de inactividad
+	 * sin poder escribirle lo que tiene pendiente, o sin recibir nada de él
+	 * si entiende los latidos, lo expulsa; si no, y lleva un periodo de
+	 * latido sin recibir o sin escribir nada, le manda un latido (sólo uno,
+	 * de prueba, si todavía no ha contestado a ninguno). Se llama en la hebra
+	 * de la rueda.
+	 *
+	 * @param cliente Cliente.
+	 */
+	protected void revisa(Cliente cliente) {
+
+		if (cliente._deBaja)
+			return;
+		long ahora = System.nanoTime();
+		long sinLeer = ahora - cliente._ultimaLectura;
+		long sinEscribir = ahora - cliente._ultimaEscritura;
+		int pendientes = cliente.profundidadCola();
+
+		long plazo = TimeUnit.MILLISECONDS.toNanos(Configuracion.INACTIVIDAD_MS);
+		boolean mudo = cliente._contestaLatidos && (sinLeer >= plazo);
+		if ((plazo > 0) && (mudo || ((pendientes > 0) && (sinEscribir >= plazo)))) {
+			expulsa(cliente, mudo);
+			return;
+		}
+		// Con mensajes pendientes no hace falta latido: o se están
+		// escribiendo o acabará venciendo el plazo.
+		long latido = TimeUnit.MILLISECONDS.toNanos(Configuracion.PING_MS);
+		if ((latido > 0) && (pendientes == 0) && ((sinLeer >= latido) || (sinEscribir >= latido))
+				&& (cliente._contestaLatidos || !cliente._sondeado)) {
+			cliente._sondeado = true;
+			cliente.encola(PING);
+			Metricas.latido();
+		}
+		vigila(cliente);
+
+	} // revisa
+
+	// --------------------------------------------------------
+
+	/**
+	 * Desconecta a un cliente inactivo y lo da de baja.
+	 *
+	 * @param cliente    Cliente.
+	 * @param porLectura true si no se ha recibido nada de él; false si no se
+	 *                   le ha podido escribir.
+	 */
+	protected void expulsa(Cliente cliente, boolean porLectura) {
+
+		System.err.println("\t[" + cliente + (porLectura ? " no responde" : " no lee") + "; se desconecta]");
+		Metricas.expulsion(porLectura);
+		cliente.cierra();
+		baja(cliente);
+
+	} // expulsa
+
+	// --------------------------------------------------------
+
+	/**
+	 * Ejecuta la orden de reanudación: pasa al cliente a recibir los mensajes
+	 * numerados y, si viene de una reconexión a este mismo servidor (la misma
+	 * época), lo devuelve a su sala mandándole sólo lo posterior a la última
+	 * secuencia que recibió.
+	 *
+	 * @param cliente Cliente que la envió.
+	 * @param orden   Texto de la orden.
+	 */
+	protected void reanuda(Cliente cliente, String orden) {
+
+		String[] partes = orden.trim().split("\\s+", 4);
+		if (cliente._leeTramas || ((partes.length != 1) && (partes.length != 4))) {
+			responde(cliente, cliente._leeTramas ? "La reanudación sólo se puede usar con líneas"
+					: "Uso: " + Reanudacion.ORDEN + " [<época> <secuencia> <sala>]");
+			daBienvenida(cliente);
+			return;
+		}
+		Sala actual = cliente.sala();
+		if (actual == null)
+			return;
+
+		String nombre = actual.nombre();
+		long desde = 0;
+		if (partes.length == 4) {
+			nombre = partes[3];
+			if (partes[1].equals(_epoca)) {
+				try {
+					desde = Math.max(0, Long.parseLong(partes[2]));
+				} catch (NumberFormatException nfe) {
+					// Le mandamos el historial entero.
+				}
+			}
+		}
+
+		if (!cliente._numera)
+			cliente.pasaANumerar();
+		boolean primera = cliente._bienvenido.compareAndSet(false, true);
+		if (!nombre.equals(actual.nombre())) {
+			sale(cliente);
+			entra(cliente, nombre, desde);
+		} else {
+			// Si ya tenía el historial, sólo le falta el aviso de que
+			// está al día.
+			actual.bienvenida(cliente, primera ? desde : Long.MAX_VALUE);
+		}
+
+	} // reanuda
+
+	// --------------------------------------------------------
+
+	/**
+	 * Saca a un cliente de su sala y lo mete en otra.
+	 *
+	 * @param cliente Cliente.
+	 * @param nombre  Nombre de la sala nueva.
+	 */
+	protected void cambia(Cliente cliente, String nombre) {
+
+		Sala actual = cliente.sala();
+		if ((actual != null) && actual.nombre().equals(nombre))
+			return;
+		sale(cliente);
+		entra(cliente, nombre, 0);
+
+	} // cambia
+
+	// --------------------------------------------------------
+
+	/**
+	 * Mete a un cliente en una sala, creándola si no existe. La sala le manda
+	 * su historial antes que los mensajes nuevos. Si el cliente se ha dado de
+	 * baja, no entra.
+	 *
+	 * La baja puede llegar en otra hebra (la de la rueda, al expulsarlo) a la
+	 * vez que un cambio de sala, así que aquí se apunta la sala y luego se
+	 * mira _deBaja, y baja() hace lo contrario: apunta _deBaja y luego mira
+	 * la sala. Como los dos son volátiles, al menos uno ve lo que ha hecho el
+	 * otro, y el cliente no se queda en la sala.
+	 *
+	 * @param cliente Cliente.
+	 * @param nombre  Nombre de la sala.
+	 * @param desde   Última secuencia que ya tiene el cliente (ver
+	 *                Sala.bienvenida()); negativa para no mandarle todavía el
+	 *                historial.
+	 */
+	protected void entra(Cliente cliente, String nombre, long desde) {
+
+		while (true) {
+			Sala sala = _salas.computeIfAbsent(nombre, this::creaSala);
+			synchronized (sala) {
+				// Si se quedó vacía y se quitó justo ahora, probamos
+				// otra vez con una nueva.
+				if (!sala._cerrada) {
+					if (cliente._deBaja)
+						return;
+					sala.miembros().alta(cliente);
+					cliente._sala = sala;
+					if (cliente._deBaja) {
+						quita(cliente, sala);
+						return;
+					}
+					if (desde >= 0)
+						sala.bienvenida(cliente, desde);
+					return;
+				}
+			}
+		}
+
+	} // entra
+
+	// --------------------------------------------------------
+
+	/**
+	 * Saca a un cliente de su sala. Si la sala se queda vacía, se quita.
+	 *
+	 * @param cliente Cliente.
+	 */
+	protected void sale(Cliente cliente) {
+
+		while (true) {
+			Sala sala = cliente.sala();
+			if (sala == null)
+				return;
+			synchronized (sala) {
+				// Si otra hebra lo ha sacado (o cambiado de sala) mientras
+				// tanto, volvemos a mirar.
+				if (cliente._sala == sala) {
+					quita(cliente, sala);
+					return;
+				}
+			}
+		}
+
+	} // sale
+
+	// --------------------------------------------------------
+
+	/**
+	 * Quita a un cliente de una sala. Si la sala se queda vacía, se quita.
+	 * Se llama con el cerrojo de la sala cogido.
+	 *
+	 * @param cliente Cliente.
+	 * @param sala    Sala en la que está.
+	 */
+	protected void quita(Cliente cliente, Sala sala) {
+
+		cliente._sala = null;
+		sala.miembros().baja(cliente);
+		if ((sala.miembros().tamanyo() == 0) && !sala.nombre().equals(SALA_GENERAL)) {
+			sala._cerrada = true;
+			_salas.remove(sala.nombre(), sala);
+		}
+
+	} // quita
+
+	// --------------------------------------------------------
+
+	/**
+	 * Crea una sala nueva asignándole el siguiente despachador.
+	 *
+	 * @param nombre Nombre de la sala.
+	 * @return Sala nueva.
+	 */
+	protected Sala creaSala(String nombre) {
+
+		int i = Math.floorMod(_siguiente.getAndIncrement(), _despachadores.length);
+		Sala sala = new Sala(nombre, _despachadores[i], _diario);
+		sala._epoca = _epoca;
+		// Lo anterior a lo recuperado del diario no está en su historial.
+		sala._historial.olvidaHasta(_recuperadaDesde - 1);
+		return sala;
+
+	} // creaSala
+
+	// --------------------------------------------------------
+
+	/**
+	 * Lee la época guardada junto al diario o, si todavía no tiene, crea una
+	 * nueva y la guarda.
+	 *
+	 * @param directorio Directorio del diario.
+	 * @return Época de las secuencias del diario.
+	 * @throws IOException Si no se puede leer o escribir el fichero.
+	 */
+	protected static String epoca(Path directorio) throws IOException {
+
+		Path fichero = directorio.resolve(FICHERO_EPOCA);
+		if (Files.exists(fichero))
+			return new String(Files.readAllBytes(fichero), StandardCharsets.UTF_8).trim();
+		String epoca = nuevaEpoca();
+		Files.write(fichero, epoca.getBytes(StandardCharsets.UTF_8));
+		return epoca;
+
+	} // epoca
+
+	// --------------------------------------------------------
+
+	/**
+	 * Genera una época aleatoria.
+	 *
+	 * @return Época nueva.
+	 */
+	protected static String nuevaEpoca() {
+
+		return Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+
+	} // nuevaEpoca
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Sala en la que entran los clientes al conectarse.
+	 */
+	static final String SALA_GENERAL = "general";
+
+	/**
+	 * Latido que se manda a los clientes inactivos. Es el mismo objeto para
+	 * todos, así que su codificación se comparte.
+	 */
+	static final Mensaje PING = Mensaje.deTexto(Tramas.CONTROL, Latido.PING);
+
+	/**
+	 * Respuesta a los latidos de los clientes.
+	 */
+	static final Mensaje PONG = Mensaje.deTexto(Tramas.CONTROL, Latido.PONG);
+
+	/**
+	 * Marca de las hebras de los despachadores.
+	 */
+	static final ThreadLocal<Boolean> DESPACHADOR = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+	/**
+	 * Fichero, en el directorio del diario, donde se guarda su época.
+	 */
+	static final String FICHERO_EPOCA = "epoca";
+
+	/**
+	 * Salas existentes, por nombre.
+	 */
+	Map<String, Sala> _salas = new ConcurrentHashMap<String, Sala>();
+
+	/**
+	 * Todos los clientes conectados.
+	 */
+	RegistroClientes<Cliente> _clientes = new RegistroClientes<Cliente>();
+
+	/**
+	 * Clientes que se han presentado, por nombre.
+	 */
+	Map<String, Cliente> _nombres = new ConcurrentHashMap<String, Cliente>();
+
+	/**
+	 * Despachadores entre los que se reparten las salas.
+	 */
+	ExecutorService[] _despachadores;
+
+	/**
+	 * Despachador que se asignará a la próxima sala.
+	 */
+	AtomicInteger _siguiente = new AtomicInteger();
+
+	/**
+	 * Federación con otros servidores, o null si no se usa.
+	 */
+	volatile Federacion _federacion;
+
+	/**
+	 * Diario donde se guarda todo lo que se reparte, o null si no se usa.
+	 */
+	Diario _diario;
+
+	/**
+	 * Época de las secuencias de los mensajes: la del diario, si lo hay, o
+	 * una nueva en cada arranque.
+	 */
+	String _epoca = nuevaEpoca();
+
+	/**
+	 * Primera secuencia recuperada del diario al arrancar, o 0.
+	 */
+	long _recuperadaDesde;
+
+	/**
+	 * Temporizadores de los clientes: la espera del historial y la vigilancia
+	 * de su actividad. Con tics de 100 ms, una vuelta son 51,2 s.
+	 */
+	RuedaTemporizadores _rueda = new RuedaTemporizadores("temporizadores", 100, 512);
+
+} // GestorSalas
@@ -0,0 +1,121 @@
+package es.pps.sockets.salachat;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+import es.pps.sockets.comun.Hebras;
+
+/**
+ * Utilidades para el motor de hebras virtuales de SalaDeChat.
+ *
+ * Las hebras virtuales sólo existen a partir de Java 21; la fábrica (ver
+ * Hebras) usa hebras normales en máquinas virtuales anteriores.
+ *
+ * Una hebra virtual que se bloquea mientras tiene cogido un monitor
+ * (synchronized) queda "anclada" a su hebra portadora y deja de escalar. Para
+ * detectarlo se escuchan, mediante Java Flight Recorder, los eventos
+ * jdk.VirtualThreadPinned y se muestra por la salida de error dónde se
+ * produjeron, llevando además la cuenta.
+ */
+class HebrasVirtuales {
+
+	/**
+	 * Devuelve una fábrica de hebras virtuales o, si la máquina virtual no las
+	 * soporta, una que crea hebras normales.
+	 *
+	 * @return Fábrica de hebras para los manejadores de conexión.
+	 */
+	static ThreadFactory fabrica() {
+
+		return Hebras.virtuales("cliente-");
+
+	} // fabrica
+
+	// --------------------------------------------------------
+
+	/**
+	 * Empieza a vigilar los anclajes de hebras virtuales. Cada anclaje que dure
+	 * al menos el umbral indicado se cuenta y se muestra por la salida de error
+	 * junto con el método donde ocurrió.
+	 *
+	 * @param umbral Duración mínima de los anclajes a registrar.
+	 */
+	static void vigilaAnclajes(Duration umbral) {
+
+		// Arrancar JFR lleva su tiempo; lo hacemos en otra hebra para no
+		// retrasar la apertura del puerto.
+		Thread t = new Thread(() -> {
+			try (RecordingStream rs = new RecordingStream()) {
+				rs.enable(EVENTO_ANCLAJE).withThreshold(umbral).withStackTrace();
+				rs.onEvent(EVENTO_ANCLAJE, HebrasVirtuales::onAnclaje);
+				rs.start();
+			} catch (IllegalStateException | SecurityException e) {
+				System.err.println("[No se pueden vigilar los anclajes: " + e.getLocalizedMessage() + "]");
+			}
+		}, "vigilante-anclajes");
+		t.setDaemon(true);
+		t.start();
+
+	} // vigilaAnclajes
+
+	// --------------------------------------------------------
+
+	/**
+	 * Número de anclajes detectados desde que se empezó a vigilar.
+	 *
+	 * @return Número de anclajes.
+	 */
+	static long anclajes() {
+
+		return _anclajes.get();
+
+	} // anclajes
+
+	// --------------------------------------------------------
+
+	/**
+	 * Método llamado por cada evento de anclaje.
+	 *
+	 * @param e Evento recibido.
+	 */
+	protected static void onAnclaje(RecordedEvent e) {
+
+		long total = _anclajes.incrementAndGet();
+		StringBuilder sb = new StringBuilder();
+		sb.append("[Hebra virtual anclada ").append(e.getDuration().toMillis()).append(" ms (").append(total)
+				.append(" en total)");
+		if (e.getStackTrace() != null) {
+			for (RecordedFrame frame : e.getStackTrace().getFrames()) {
+				if (frame.isJavaFrame()) {
+					sb.append(" en ").append(frame.getMethod().getType().getName()).append('.')
+							.append(frame.getMethod().getName()).append(':').append(frame.getLineNumber());
+					break;
+				}
+			}
+		}
+		sb.append(']');
+		System.err.println(sb);
+
+	} // onAnclaje
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Nombre del evento de JFR que se emite cuando una hebra virtual se bloquea
+	 * estando anclada.
+	 */
+	private static final String EVENTO_ANCLAJE = "jdk.VirtualThreadPinned";
+
+	/**
+	 * Anclajes detectados.
+	 */
+	static AtomicLong _anclajes = new AtomicLong();
+
+} // HebrasVirtuales
@@ -0,0 +1,178 @@
+package es.pps.sockets.salachat;
+
+import java.util.function.Consumer;
+
+/**
+ * Últimos mensajes de una sala, para mandárselos a quien entra en ella. Es un
+ * anillo de capacidad fija acotado a la vez por número de mensajes y por bytes:
+ * al añadir uno nuevo se olvidan los más antiguos que hagan falta, así que la
+ * memoria que ocupa no crece con el tiempo que lleve funcionando el servidor.
+ *
+ * Como los mensajes ya están codificados y son inmutables, el anillo guarda
+ * los mismos objetos que se repartieron y reenviarlos no copia nada.
+ *
+ * Para reanudar la conexión de un cliente (ver Reanudacion) se le puede mandar
+ * sólo lo posterior a una secuencia; el historial recuerda la secuencia del
+ * último mensaje olvidado para saber si falta algo de lo que pide.
+ *
+ * No está sincronizado: sólo debe usarlo el despachador de la sala.
+ */
+class Historial {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxMensajes Número máximo de mensajes que se guardan.
+	 * @param maxBytes    Número máximo de bytes que suman los mensajes
+	 *                    guardados.
+	 */
+	Historial(int maxMensajes, long maxBytes) {
+
+		_anillo = new Mensaje[maxMensajes];
+		_maxBytes = maxBytes;
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Añade un mensaje, olvidando los más antiguos si hace falta. Los mensajes
+	 * que por sí solos superan el máximo de bytes no se guardan.
+	 *
+	 * @param mensaje Mensaje repartido.
+	 */
+	void anota(Mensaje mensaje) {
+
+		int longitud = mensaje.longitud();
+		if ((_anillo.length == 0) || (longitud > _maxBytes)) {
+			olvidaHasta(mensaje.secuencia());
+			return;
+		}
+		while ((_cuantos == _anillo.length) || (_bytes + longitud > _maxBytes))
+			olvidaPrimero();
+
+		_anillo[(_primero + _cuantos) % _anillo.length] = mensaje;
+		++_cuantos;
+		_bytes += longitud;
+
+	} // anota
+
+	// --------------------------------------------------------
+
+	/**
+	 * Recorre los mensajes guardados, del más antiguo al más reciente.
+	 *
+	 * @param accion Qué hacer con cada mensaje.
+	 */
+	void recorre(Consumer<Mensaje> accion) {
+
+		for (int i = 0; i < _cuantos; ++i)
+			accion.accept(_anillo[(_primero + i) % _anillo.length]);
+
+	} // recorre
+
+	// --------------------------------------------------------
+
+	/**
+	 * Recorre los mensajes guardados posteriores a una secuencia, del más
+	 * antiguo al más reciente.
+	 *
+	 * @param desde  Última secuencia que ya se tiene; 0 o menos para
+	 *               recorrerlos todos.
+	 * @param accion Qué hacer con cada mensaje.
+	 * @return false si se ha olvidado alguno posterior a esa secuencia.
+	 */
+	boolean recorreDesde(long desde, Consumer<Mensaje> accion) {
+
+		if (desde <= 0) {
+			recorre(accion);
+			return _olvidada == 0;
+		}
+		for (int i = 0; i < _cuantos; ++i) {
+			Mensaje mensaje = _anillo[(_primero + i) % _anillo.length];
+			if (mensaje.secuencia() > desde)
+				accion.accept(mensaje);
+		}
+		return _olvidada <= desde;
+
+	} // recorreDesde
+
+	// --------------------------------------------------------
+
+	/**
+	 * Indica si todavía se guardan todos los mensajes posteriores a una
+	 * secuencia.
+	 *
+	 * @param desde Última secuencia que ya se tiene.
+	 * @return false si se ha olvidado alguno posterior.
+	 */
+	boolean cubre(long desde) {
+
+		return _olvidada <= desde;
+
+	} // cubre
+
+	// --------------------------------------------------------
+
+	/**
+	 * Da por olvidados los mensajes hasta una secuencia (por ejemplo, los del
+	 * diario que no se han recuperado al arrancar).
+	 *
+	 * @param secuencia Secuencia.
+	 */
+	void olvidaHasta(long secuencia) {
+
+		_olvidada = Math.max(_olvidada, secuencia);
+
+	} // olvidaHasta
+
+	// --------------------------------------------------------
+
+	/**
+	 * Olvida el mensaje más antiguo.
+	 */
+	protected void olvidaPrimero() {
+
+		_bytes -= _anillo[_primero].longitud();
+		olvidaHasta(_anillo[_primero].secuencia());
+		_anillo[_primero] = null;
+		_primero = (_primero + 1) % _anillo.length;
+		--_cuantos;
+
+	} // olvidaPrimero
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Mensajes guardados, desde _primero y dando la vuelta.
+	 */
+	Mensaje[] _anillo;
+
+	/**
+	 * Posición del mensaje más antiguo.
+	 */
+	int _primero;
+
+	/**
+	 * Número de mensajes guardados.
+	 */
+	int _cuantos;
+
+	/**
+	 * Bytes que suman los mensajes guardados.
+	 */
+	long _bytes;
+
+	/**
+	 * Secuencia del último mensaje olvidado, o 0.
+	 */
+	long _olvidada;
+
+	/**
+	 * Máximo de bytes.
+	 */
+	long _maxBytes;
+
+} // Historial
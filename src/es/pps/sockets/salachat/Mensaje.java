@@ -0,0 +1,597 @@
+package es.pps.sockets.salachat;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import es.pps.sockets.comun.Compresion;
+import es.pps.sockets.comun.Reanudacion;
+import es.pps.sockets.comun.Tramas;
+
+/**
+ * Línea ya codificada, lista para mandar a los clientes. Se codifica una única
+ * vez, al difundirla, en un buffer inmutable; cada destinatario escribe a
+ * partir de su propia vista de sólo lectura (con su propia posición), de modo
+ * que difundir a N clientes cuesta una codificación y N escrituras de bytes en
+ * lugar de N codificaciones.
+ *
+ * Los buffers son del montón y no directos: crear un buffer directo es mucho
+ * más caro, lo tiene que seguir un Cleaner y cuenta contra el límite de
+ * memoria directa, y aquí se crea uno (o varios) por cada mensaje. Al
+ * escribirlos en el socket se copian a un buffer directo que no se crea cada
+ * vez (el temporal de cada hebra de NIO, o el prestado por ReservaBuffers en
+ * ClienteSocket).
+ *
+ * Los bytes incluyen el mismo fin de línea que pondría PrintWriter.println().
+ *
+ * Para los clientes que usan el protocolo de tramas (ver Tramas) el mensaje
+ * también tiene un tipo, y su trama (normal o comprimida, ver Compresion) se
+ * construye una sola vez, la primera vez que se pide, y se comparte igual que
+ * la línea.
+ *
+ * El contenido de una trama puede tener saltos de línea, y se guarda y se
+ * reenvía en tramas tal cual. A los clientes de líneas, en cambio, se les
+ * manda con los CR y LF de dentro cambiados por espacios (ver linea()): si
+ * no, un cliente podría partir su mensaje en varias líneas y hacerlas pasar
+ * por líneas del servidor o por órdenes.
+ *
+ * Al repartirlo, la sala le da un número de secuencia. Los clientes que han
+ * pedido la reanudación (ver Reanudacion) reciben la línea precedida de ese
+ * número, que también se construye una sola vez.
+ */
+final class Mensaje {
+
+	/**
+	 * Crea un mensaje codificando un texto con el juego de caracteres por
+	 * defecto, como haría un PrintWriter.
+	 *
+	 * @param linea Texto de la línea, sin fin de línea.
+	 * @return Mensaje codificado.
+	 */
+	static Mensaje deTexto(String linea) {
+
+		return deTexto(Tramas.CHAT, linea);
+
+	} // deTexto
+
+	// --------------------------------------------------------
+
+	/**
+	 * Crea un mensaje de un tipo dado codificando un texto.
+	 *
+	 * @param tipo  Tipo de trama del mensaje.
+	 * @param linea Texto de la línea, sin fin de línea.
+	 * @return Mensaje codificado.
+	 */
+	static Mensaje deTexto(byte tipo, String linea) {
+
+		byte[] bytes = linea.getBytes(CHARSET);
+		byte[] datos = Arrays.copyOf(bytes, bytes.length + FIN_LINEA.length);
+		System.arraycopy(FIN_LINEA, 0, datos, bytes.length, FIN_LINEA.length);
+		return new Mensaje(tipo, ByteBuffer.wrap(datos));
+
+	} // deTexto
+
+	// --------------------------------------------------------
+
+	/**
+	 * Crea un mensaje a partir de los bytes de una línea ya codificada.
+	 *
+	 * @param origen   Buffer que contiene la línea. No se modifica su posición.
+	 * @param inicio   Índice del primer byte de la línea.
+	 * @param longitud Longitud de la línea, sin fin de línea.
+	 * @return Mensaje con una copia de los bytes.
+	 */
+	static Mensaje deBytes(ByteBuffer origen, int inicio, int longitud) {
+
+		return deBytes(Tramas.CHAT, origen, inicio, longitud);
+
+	} // deBytes
+
+	// --------------------------------------------------------
+
+	/**
+	 * Crea un mensaje de un tipo dado a partir de unos bytes ya codificados
+	 * (una línea o el contenido de una trama). Se copian tal cual, aunque
+	 * tengan saltos de línea (ver linea()).
+	 *
+	 * @param tipo     Tipo de trama del mensaje.
+	 * @param origen   Buffer que contiene los bytes. No se modifica su
+	 *                 posición.
+	 * @param inicio   Índice del primer byte.
+	 * @param longitud Número de bytes, sin fin de línea.
+	 * @return Mensaje con una copia de los bytes en un array del montón, de
+	 *         modo que el buffer de origen (normalmente, uno prestado por
+	 *         ReservaBuffers) se puede devolver en seguida.
+	 */
+	static Mensaje deBytes(byte tipo, ByteBuffer origen, int inicio, int longitud) {
+
+		byte[] datos = new byte[longitud + FIN_LINEA.length];
+		origen.get(inicio, datos, 0, longitud);
+		System.arraycopy(FIN_LINEA, 0, datos, longitud, FIN_LINEA.length);
+		return new Mensaje(tipo, ByteBuffer.wrap(datos));
+
+	} // deBytes
+
+	// --------------------------------------------------------
+
+	/**
+	 * Crea un mensaje que usa directamente unos bytes ya codificados, sin
+	 * copiarlos (por ejemplo, un trozo de un fichero proyectado en memoria).
+	 * Quien lo llama no debe volver a modificarlos.
+	 *
+	 * @param tipo  Tipo de trama del mensaje.
+	 * @param datos Bytes de la línea, incluido el fin de línea, entre la
+	 *              posición y el límite.
+	 * @return Mensaje que comparte los bytes.
+	 */
+	static Mensaje envuelve(byte tipo, ByteBuffer datos) {
+
+		return new Mensaje(tipo, datos.slice());
+
+	} // envuelve
+
+	// --------------------------------------------------------
+
+	/**
+	 * Crea un mensaje de control tras el cual su destinatario pasa a recibir
+	 * los mensajes con otra codificación (la respuesta a un saludo de tramas
+	 * o a una orden de compresión). El propio mensaje va todavía con la
+	 * codificación anterior.
+	 *
+	 * @param texto Texto del mensaje.
+	 * @param modo  Codificación con la que seguir: TRAMAS o COMPRIMIDAS.
+	 * @return Mensaje de respuesta.
+	 */
+	static Mensaje cambioDeModo(String texto, int modo) {
+
+		Mensaje m = deTexto(Tramas.CONTROL, texto);
+		m._modoSiguiente = modo;
+		return m;
+
+	} // cambioDeModo
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve una vista de sólo lectura de los bytes del mensaje, con la
+	 * posición al principio. Cada destinatario debe pedir la suya.
+	 *
+	 * @return Vista nueva de los bytes.
+	 */
+	ByteBuffer vista() {
+
+		return _datos.duplicate();
+
+	} // vista
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve una vista de sólo lectura de la trama del mensaje (cabecera y
+	 * contenido, sin fin de línea), con la posición al principio. La trama se
+	 * construye la primera vez que se pide.
+	 *
+	 * @return Vista nueva de la trama.
+	 */
+	ByteBuffer trama() {
+
+		ByteBuffer trama = _trama;
+		if (trama == null) {
+			// Si dos hebras la construyen a la vez, las dos son iguales.
+			int longitud = _datos.limit() - FIN_LINEA.length;
+			ByteBuffer nueva = ByteBuffer.allocate(Tramas.CABECERA + longitud);
+			nueva.putInt(longitud).put(_tipo).put(vista().limit(longitud)).flip();
+			_trama = trama = nueva.asReadOnlyBuffer();
+		}
+		return trama.duplicate();
+
+	} // trama
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve una vista de sólo lectura de la trama comprimida del mensaje,
+	 * o de la normal si comprimida no sale más pequeña. Se calcula la primera
+	 * vez que se pide y se comparte entre todos los destinatarios.
+	 *
+	 * @return Vista nueva de la trama.
+	 */
+	ByteBuffer tramaComprimida() {
+
+		ByteBuffer trama = _tramaComprimida;
+		if (trama == null) {
+			byte[] comprimidos = Compresion.comprime(vista().limit(_datos.limit() - FIN_LINEA.length));
+			if (comprimidos == null) {
+				trama = trama();
+			} else {
+				ByteBuffer nueva = ByteBuffer.allocate(Tramas.CABECERA + comprimidos.length);
+				nueva.putInt(comprimidos.length).put((byte) (_tipo | Compresion.COMPRIMIDA)).put(comprimidos).flip();
+				trama = nueva.asReadOnlyBuffer();
+			}
+			_tramaComprimida = trama;
+		}
+		return trama.duplicate();
+
+	} // tramaComprimida
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve una vista de sólo lectura de la línea precedida de su número de
+	 * secuencia, o de la línea sin más si el mensaje no tiene número. Se
+	 * construye la primera vez que se pide y se comparte entre todos los
+	 * destinatarios.
+	 *
+	 * @return Vista nueva de la línea numerada.
+	 */
+	ByteBuffer numerada() {
+
+		if (_secuencia <= 0)
+			return linea();
+		ByteBuffer numerada = _numerada;
+		if (numerada == null) {
+			byte[] prefijo = Reanudacion.prefijo(_secuencia).getBytes(CHARSET);
+			ByteBuffer nueva = ByteBuffer.allocate(prefijo.length + _datos.limit());
+			nueva.put(prefijo).put(linea()).flip();
+			_numerada = numerada = nueva.asReadOnlyBuffer();
+		}
+		return numerada.duplicate();
+
+	} // numerada
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve una vista de los bytes del mensaje para mandarlo como línea:
+	 * los mismos, salvo que el contenido tenga CR o LF, que se cambian por
+	 * espacios. En ese caso la copia se hace una sola vez, la primera vez
+	 * que se pide, y se comparte entre todos los destinatarios.
+	 *
+	 * @return Vista nueva de la línea.
+	 */
+	ByteBuffer linea() {
+
+		ByteBuffer linea = _linea;
+		if (linea == null) {
+			int longitud = _datos.limit() - FIN_LINEA.length;
+			byte[] copia = null;
+			for (int i = 0; i < longitud; ++i) {
+				byte b = _datos.get(i);
+				if ((b == '\r') || (b == '\n')) {
+					if (copia == null) {
+						copia = new byte[_datos.limit()];
+						_datos.get(0, copia);
+					}
+					copia[i] = ' ';
+				}
+			}
+			_linea = linea = (copia == null) ? _datos : ByteBuffer.wrap(copia).asReadOnlyBuffer();
+		}
+		return linea.duplicate();
+
+	} // linea
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve una vista nueva de los bytes del mensaje con la codificación
+	 * indicada.
+	 *
+	 * @param modo LINEAS, TRAMAS, COMPRIMIDAS o NUMERADAS.
+	 * @return Vista de la línea, de la trama, de la trama comprimida o de la
+	 *         línea numerada.
+	 */
+	ByteBuffer codificado(int modo) {
+
+		switch (modo) {
+		case TRAMAS:
+			return trama();
+		case COMPRIMIDAS:
+			return tramaComprimida();
+		case NUMERADAS:
+			return numerada();
+		default:
+			return linea();
+		}
+
+	} // codificado
+
+	// --------------------------------------------------------
+
+	/**
+	 * Le da al mensaje su número de secuencia. Lo llama el despachador de la
+	 * sala antes de repartirlo, así que los destinatarios lo ven ya puesto.
+	 *
+	 * @param secuencia Número de secuencia; 0 si no tiene.
+	 */
+	void numera(long secuencia) {
+
+		_secuencia = secuencia;
+
+	} // numera
+
+	// --------------------------------------------------------
+
+	/**
+	 * Número de secuencia del mensaje.
+	 *
+	 * @return Secuencia, o 0 si no se ha repartido o no tiene.
+	 */
+	long secuencia() {
+
+		return _secuencia;
+
+	} // secuencia
+
+	// --------------------------------------------------------
+
+	/**
+	 * Tipo de trama del mensaje.
+	 *
+	 * @return Tramas.CHAT, Tramas.CONTROL o Tramas.PRESENCIA.
+	 */
+	byte tipo() {
+
+		return _tipo;
+
+	} // tipo
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si tras este mensaje su destinatario pasa a otra codificación, la
+	 * devuelve.
+	 *
+	 * @return TRAMAS o COMPRIMIDAS, o -1 si el mensaje no cambia nada.
+	 */
+	int modoSiguiente() {
+
+		return _modoSiguiente;
+
+	} // modoSiguiente
+
+	// --------------------------------------------------------
+
+	/**
+	 * Indica si el mensaje no se puede descartar cuando se desborda la cola
+	 * de un cliente: las respuestas de control y, sobre todo, las que le
+	 * cambian la codificación, sin las que dejaría de entender lo que sigue.
+	 *
+	 * @return true si es de control o cambia la codificación.
+	 */
+	boolean imprescindible() {
+
+		return (_tipo == Tramas.CONTROL) || (_modoSiguiente >= 0);
+
+	} // imprescindible
+
+	// --------------------------------------------------------
+
+	/**
+	 * Número de bytes del mensaje, incluido el fin de línea.
+	 *
+	 * @return Longitud en bytes.
+	 */
+	int longitud() {
+
+		return _datos.limit();
+
+	} // longitud
+
+	// --------------------------------------------------------
+
+	/**
+	 * Decodifica el mensaje, sin el fin de línea. Sólo para quien necesita el
+	 * texto (por ejemplo, para mostrarlo por la salida estándar).
+	 *
+	 * @return Texto del mensaje.
+	 */
+	String texto() {
+
+		ByteBuffer v = vista();
+		v.limit(v.limit() - FIN_LINEA.length);
+		return CHARSET.decode(v).toString();
+
+	} // texto
+
+	// --------------------------------------------------------
+
+	/**
+	 * Escribe el mensaje, con su fin de línea, en un stream como
+	 * println(texto()), pero sin decodificarlo: se copian los bytes a un
+	 * array de la hebra, que se reutiliza, y se escriben tal cual.
+	 *
+	 * @param salida Stream en el que escribirlo (la salida estándar).
+	 */
+	void muestra(PrintStream salida) {
+
+		int n = _datos.limit();
+		byte[] copia = _copias.get();
+		if (copia.length < n) {
+			copia = new byte[Math.max(n, copia.length * 2)];
+			_copias.set(copia);
+		}
+		_datos.get(0, copia, 0, n);
+		salida.write(copia, 0, n);
+
+	} // muestra
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si el mensaje es una orden para el servidor, la devuelve. Una orden es
+	 * una línea que empieza por '/', o por '/' después del prefijo
+	 * "[nombre] " que añaden las ventanas de chat. La comprobación se hace
+	 * sobre los bytes, de modo que los mensajes normales no se decodifican.
+	 *
+	 * @return Texto de la orden, desde la '/', o null si no es una orden.
+	 */
+	String orden() {
+
+		int fin = _datos.limit() - FIN_LINEA.length;
+		int inicio = 0;
+		if ((fin > 0) && (_datos.get(0) == '[')) {
+			// Buscamos el "] " que cierra el nombre.
+			inicio = -1;
+			for (int i = 1; i + 1 < fin; ++i) {
+				if ((_datos.get(i) == ']') && (_datos.get(i + 1) == ' ')) {
+					inicio = i + 2;
+					break;
+				}
+			}
+			if (inicio < 0)
+				return null;
+		}
+		if ((inicio >= fin) || (_datos.get(inicio) != '/'))
+			return null;
+
+		ByteBuffer v = vista();
+		v.position(inicio).limit(fin);
+		return CHARSET.decode(v).toString();
+
+	} // orden
+
+	// --------------------------------------------------------
+
+	/**
+	 * Si el mensaje es el aviso de conexión que mandan las ventanas de chat
+	 * ("[nombre] [CONECTADO]"), devuelve el nombre. Como orden(), mira los
+	 * bytes desde el final, de modo que con los mensajes normales falla en
+	 * la primera comparación y sin decodificar nada.
+	 *
+	 * @return Nombre con el que se presenta el cliente, o null si no es un
+	 *         aviso de conexión.
+	 */
+	String presentado() {
+
+		int fin = _datos.limit() - FIN_LINEA.length;
+		while ((fin > 0) && (_datos.get(fin - 1) == ' '))
+			--fin;
+		int aviso = fin - CONECTADO.length;
+		if (aviso < 3)
+			return null;
+		for (int i = CONECTADO.length - 1; i >= 0; --i) {
+			if (_datos.get(aviso + i) != CONECTADO[i])
+				return null;
+		}
+		if (_datos.get(0) != '[')
+			return null;
+		int cierre = 1;
+		while ((cierre < aviso) && (_datos.get(cierre) != ']'))
+			++cierre;
+		// Nombre no vacío y, hasta el aviso, sólo espacios.
+		if ((cierre == 1) || (cierre + 1 >= aviso))
+			return null;
+		for (int i = cierre + 1; i < aviso; ++i) {
+			if (_datos.get(i) != ' ')
+				return null;
+		}
+
+		ByteBuffer v = vista();
+		v.position(1).limit(cierre);
+		return CHARSET.decode(v).toString();
+
+	} // presentado
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tipo  Tipo de trama del mensaje.
+	 * @param datos Bytes del mensaje, desde la posición 0 hasta el límite.
+	 */
+	private Mensaje(byte tipo, ByteBuffer datos) {
+
+		_tipo = tipo;
+		_datos = datos.asReadOnlyBuffer();
+
+	} // Constructor
+
+	/**
+	 * Codificación como líneas de texto.
+	 */
+	static final int LINEAS = 0;
+
+	/**
+	 * Codificación como tramas.
+	 */
+	static final int TRAMAS = 1;
+
+	/**
+	 * Codificación como tramas comprimidas cuando compensa.
+	 */
+	static final int COMPRIMIDAS = 2;
+
+	/**
+	 * Codificación como líneas de texto precedidas de su secuencia.
+	 */
+	static final int NUMERADAS = 3;
+
+	/**
+	 * Juego de caracteres con el que se codifican los mensajes.
+	 */
+	static final Charset CHARSET = Charset.defaultCharset();
+
+	/**
+	 * Aviso con el que las ventanas de chat anuncian que se conectan, detrás
+	 * del nombre del usuario.
+	 */
+	static final byte[] CONECTADO = "[CONECTADO]".getBytes(CHARSET);
+
+	/**
+	 * Fin de línea añadido a cada mensaje.
+	 */
+	static final byte[] FIN_LINEA = System.lineSeparator().getBytes(CHARSET);
+
+	/**
+	 * Array de cada hebra en el que muestra() copia los bytes.
+	 */
+	private static final ThreadLocal<byte[]> _copias = ThreadLocal.withInitial(() -> new byte[256]);
+
+	/**
+	 * Bytes del mensaje. Nunca se modifica su posición ni su límite.
+	 */
+	private final ByteBuffer _datos;
+
+	/**
+	 * Tipo de trama del mensaje.
+	 */
+	private final byte _tipo;
+
+	/**
+	 * Trama del mensaje, o null si todavía no se ha pedido.
+	 */
+	private volatile ByteBuffer _trama;
+
+	/**
+	 * Trama comprimida (o normal, si no compensa), o null si todavía no se
+	 * ha pedido.
+	 */
+	private volatile ByteBuffer _tramaComprimida;
+
+	/**
+	 * Línea para los clientes de líneas, o null si todavía no se ha pedido.
+	 */
+	private volatile ByteBuffer _linea;
+
+	/**
+	 * Línea numerada, o null si todavía no se ha pedido.
+	 */
+	private volatile ByteBuffer _numerada;
+
+	/**
+	 * Número de secuencia que le ha dado la sala al repartirlo, o 0.
+	 */
+	private long _secuencia;
+
+	/**
+	 * Codificación a la que pasa el destinatario tras este mensaje, o -1.
+	 */
+	private int _modoSiguiente = -1;
+
+} // Mensaje
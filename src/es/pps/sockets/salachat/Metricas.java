@@ -0,0 +1,644 @@
+package es.pps.sockets.salachat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import es.pps.sockets.comun.Compresion;
+
+/**
+ * Métricas del servidor: conexiones, mensajes y bytes de entrada y de salida,
+ * errores de escritura, latidos y clientes expulsados por inactividad,
+ * duración de los repartos de las salas y profundidad de las colas de salida
+ * (la mayor, la suma y la de cada cliente que tenga algo pendiente),
+ * junto con los contadores que ya llevaban ContadoresEscritura,
+ * ReservaBuffers, HebrasVirtuales y Compresion.
+ *
+ * Quien está en el camino del reparto sólo incrementa contadores LongAdder,
+ * sin cerrojos; el resto (ritmos por segundo, colas, percentiles) se calcula
+ * al consultarlas. Se publican de dos formas:
+ *
+ * - Como MBean (es.pps.sockets.salachat:type=Metricas), para jconsole o
+ * cualquier cliente JMX.
+ * - En texto, con el formato de exposición de Prometheus, en un puerto de
+ * administración (salachat.puertoAdmin) que sólo escucha en la interfaz de
+ * bucle local. Responde en HTTP si la petición empieza por "GET" y, si no, en
+ * texto sin más (para nc o telnet).
+ */
+class Metricas implements MetricasMBean {
+
+	/**
+	 * Anota el alta de un cliente.
+	 */
+	static void conexion() {
+
+		_aceptadas.increment();
+
+	} // conexion
+
+	// --------------------------------------------------------
+
+	/**
+	 * Anota la baja de un cliente.
+	 */
+	static void desconexion() {
+
+		_cerradas.increment();
+
+	} // desconexion
+
+	// --------------------------------------------------------
+
+	/**
+	 * Anota un mensaje recibido de un cliente.
+	 *
+	 * @param bytes Bytes del mensaje.
+	 */
+	static void entrada(int bytes) {
+
+		_mensajesEntrada.increment();
+		_bytesEntrada.add(bytes);
+
+	} // entrada
+
+	// --------------------------------------------------------
+
+	/**
+	 * Anota un error al escribir en el socket de un cliente.
+	 */
+	static void errorEscritura() {
+
+		_erroresEscritura.increment();
+
+	} // errorEscritura
+
+	// --------------------------------------------------------
+
+	/**
+	 * Anota un latido mandado a un cliente inactivo.
+	 */
+	static void latido() {
+
+		_latidos.increment();
+
+	} // latido
+
+	// --------------------------------------------------------
+
+	/**
+	 * Anota la expulsión de un cliente inactivo.
+	 *
+	 * @param porLectura true si no se ha recibido nada de él; false si no se
+	 *                   le ha podido escribir.
+	 */
+	static void expulsion(boolean porLectura) {
+
+		if (porLectura)
+			_expulsadosLectura.increment();
+		else
+			_expulsadosEscritura.increment();
+
+	} // expulsion
+
+	// --------------------------------------------------------
+
+	/**
+	 * Anota lo que ha tardado el despachador de una sala en repartir un
+	 * mensaje.
+	 *
+	 * @param nanos Duración del reparto.
+	 */
+	static void reparto(long nanos) {
+
+		long us = nanos / 1000;
+		int cubo = (us <= 1) ? 0 : Math.min(64 - Long.numberOfLeadingZeros(us - 1), CUBOS_REPARTO - 1);
+		_cubosReparto[cubo].increment();
+		_nanosReparto.add(nanos);
+
+	} // reparto
+
+	// --------------------------------------------------------
+
+	/**
+	 * Anota un mensaje que no se ha repartido porque la cola del despachador
+	 * de su sala estaba llena.
+	 */
+	static void repartoDescartado() {
+
+		_repartosDescartados.increment();
+
+	} // repartoDescartado
+
+	// --------------------------------------------------------
+
+	/**
+	 * Publica las métricas como MBean y, si está configurado, en el puerto de
+	 * administración, y empieza a calcular los ritmos por segundo.
+	 *
+	 * @param clientes Registro con todos los clientes conectados.
+	 * @throws IOException Si no se puede escuchar en el puerto de
+	 *                     administración.
+	 */
+	static void publica(RegistroClientes<Cliente> clientes) throws IOException {
+
+		Metricas metricas = new Metricas(clientes);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metricas, new ObjectName(NOMBRE_MBEAN));
+		} catch (JMException e) {
+			System.err.println("[No se pueden publicar las métricas por JMX: " + e.getLocalizedMessage() + "]");
+		}
+
+		ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metricas");
+			t.setDaemon(true);
+			return t;
+		});
+		ses.scheduleAtFixedRate(metricas::muestrea, 1, 1, TimeUnit.SECONDS);
+
+		if (Configuracion.PUERTO_ADMIN > 0) {
+			ServerSocket serverSocket = new ServerSocket(Configuracion.PUERTO_ADMIN, 8, InetAddress.getLoopbackAddress());
+			Thread t = new Thread(() -> metricas.atiende(serverSocket), "admin");
+			t.setDaemon(true);
+			t.start();
+			System.out.println("[ Métricas en el puerto " + Configuracion.PUERTO_ADMIN + " ]");
+		}
+
+	} // publica
+
+	// --------------------------------------------------------
+
+	/**
+	 * Todas las métricas en el formato de exposición de texto de Prometheus.
+	 *
+	 * @return Texto, una métrica por línea.
+	 */
+	String texto() {
+
+		StringBuilder sb = new StringBuilder();
+		metrica(sb, "salachat_conexiones_abiertas", "gauge", getConexionesAbiertas());
+		metrica(sb, "salachat_conexiones_aceptadas_total", "counter", getConexionesAceptadas());
+		metrica(sb, "salachat_conexiones_cerradas_total", "counter", getConexionesCerradas());
+		metrica(sb, "salachat_mensajes_entrada_total", "counter", getMensajesEntrada());
+		metrica(sb, "salachat_bytes_entrada_total", "counter", getBytesEntrada());
+		metrica(sb, "salachat_mensajes_salida_total", "counter", getMensajesSalida());
+		metrica(sb, "salachat_bytes_salida_total", "counter", getBytesSalida());
+		metrica(sb, "salachat_escrituras_total", "counter", ContadoresEscritura._escrituras.sum());
+		metrica(sb, "salachat_mensajes_entrada_por_segundo", "gauge", getMensajesEntradaPorSegundo());
+		metrica(sb, "salachat_mensajes_salida_por_segundo", "gauge", getMensajesSalidaPorSegundo());
+		metrica(sb, "salachat_errores_escritura_total", "counter", getErroresEscritura());
+		metrica(sb, "salachat_latidos_total", "counter", getLatidos());
+		metrica(sb, "salachat_expulsados_lectura_total", "counter", getExpulsadosLectura());
+		metrica(sb, "salachat_expulsados_escritura_total", "counter", getExpulsadosEscritura());
+		metrica(sb, "salachat_buffers_aciertos_total", "counter", getBuffersAciertos());
+		metrica(sb, "salachat_buffers_fallos_total", "counter", getBuffersFallos());
+		metrica(sb, "salachat_buffers_en_uso", "gauge", getBuffersEnUso());
+		metrica(sb, "salachat_buffers_retenidos_bytes", "gauge", getBuffersRetenidos());
+		metrica(sb, "salachat_buffers_fugas_total", "counter", getBuffersFugas());
+		metrica(sb, "salachat_cola_maxima", "gauge", getColaMaxima());
+		metrica(sb, "salachat_colas_total", "gauge", getColasTotal());
+		sb.append("# TYPE salachat_cola gauge\n");
+		for (Map.Entry<Cliente, Integer> cola : conCola())
+			sb.append("salachat_cola{cliente=\"").append(cola.getKey().direccion()).append("\",nombre=\"")
+					.append(etiqueta(cola.getKey()._nombre)).append("\"} ").append(cola.getValue()).append('\n');
+		metrica(sb, "salachat_anclajes_total", "counter", getAnclajes());
+
+		// Histograma de repartos, con los cubos acumulados.
+		metrica(sb, "salachat_repartos_descartados_total", "counter", getRepartosDescartados());
+
+		sb.append("# TYPE salachat_reparto_us histogram\n");
+		long acumulado = 0;
+		for (int i = 0; i < CUBOS_REPARTO; ++i) {
+			acumulado += _cubosReparto[i].sum();
+			String limite = (i == CUBOS_REPARTO - 1) ? "+Inf" : Long.toString(1L << i);
+			sb.append("salachat_reparto_us_bucket{le=\"").append(limite).append("\"} ").append(acumulado)
+					.append('\n');
+		}
+		sb.append("salachat_reparto_us_sum ").append(_nanosReparto.sum() / 1000).append('\n');
+		sb.append("salachat_reparto_us_count ").append(acumulado).append('\n');
+
+		sb.append("# Compresión: ").append(getCompresion()).append('\n');
+		return sb.toString();
+
+	} // texto
+
+	// --------------------------------------------------------
+	// MetricasMBean
+	// --------------------------------------------------------
+
+	@Override
+	public int getConexionesAbiertas() {
+		return _clientes.tamanyo();
+	}
+
+	@Override
+	public long getConexionesAceptadas() {
+		return _aceptadas.sum();
+	}
+
+	@Override
+	public long getConexionesCerradas() {
+		return _cerradas.sum();
+	}
+
+	@Override
+	public long getMensajesEntrada() {
+		return _mensajesEntrada.sum();
+	}
+
+	@Override
+	public long getBytesEntrada() {
+		return _bytesEntrada.sum();
+	}
+
+	@Override
+	public long getMensajesSalida() {
+		return ContadoresEscritura._mensajes.sum();
+	}
+
+	@Override
+	public long getBytesSalida() {
+		return ContadoresEscritura._bytes.sum();
+	}
+
+	@Override
+	public long getMensajesEntradaPorSegundo() {
+		return _entradaPorSegundo;
+	}
+
+	@Override
+	public long getMensajesSalidaPorSegundo() {
+		return _salidaPorSegundo;
+	}
+
+	@Override
+	public long getErroresEscritura() {
+		return _erroresEscritura.sum();
+	}
+
+	@Override
+	public long getLatidos() {
+		return _latidos.sum();
+	}
+
+	@Override
+	public long getExpulsadosLectura() {
+		return _expulsadosLectura.sum();
+	}
+
+	@Override
+	public long getExpulsadosEscritura() {
+		return _expulsadosEscritura.sum();
+	}
+
+	@Override
+	public long getBuffersAciertos() {
+		return ReservaBuffers.aciertos();
+	}
+
+	@Override
+	public long getBuffersFallos() {
+		return ReservaBuffers.fallos();
+	}
+
+	@Override
+	public long getBuffersEnUso() {
+		return ReservaBuffers.enUso();
+	}
+
+	@Override
+	public long getBuffersRetenidos() {
+		return ReservaBuffers.retenidos();
+	}
+
+	@Override
+	public long getBuffersFugas() {
+		return ReservaBuffers.fugas();
+	}
+
+	@Override
+	public long getRepartos() {
+		long total = 0;
+		for (LongAdder cubo : _cubosReparto)
+			total += cubo.sum();
+		return total;
+	}
+
+	@Override
+	public double getRepartoMedioUs() {
+		long repartos = getRepartos();
+		return (repartos == 0) ? 0 : _nanosReparto.sum() / 1000.0 / repartos;
+	}
+
+	@Override
+	public long getRepartoP99Us() {
+		long posicion = (long) Math.ceil(getRepartos() * 0.99);
+		long acumulado = 0;
+		for (int i = 0; i < CUBOS_REPARTO; ++i) {
+			acumulado += _cubosReparto[i].sum();
+			if ((acumulado >= posicion) && (acumulado > 0))
+				return 1L << i;
+		}
+		return 0;
+	}
+
+	@Override
+	public long getRepartosDescartados() {
+		return _repartosDescartados.sum();
+	}
+
+	@Override
+	public int getColaMaxima() {
+		int maxima = 0;
+		for (Cliente c : _clientes.instantanea())
+			maxima = Math.max(maxima, c.profundidadCola());
+		return maxima;
+	}
+
+	@Override
+	public long getColasTotal() {
+		long total = 0;
+		for (Cliente c : _clientes.instantanea())
+			total += c.profundidadCola();
+		return total;
+	}
+
+	@Override
+	public String[] getColasPorCliente() {
+		List<Map.Entry<Cliente, Integer>> colas = conCola();
+		String[] texto = new String[colas.size()];
+		for (int i = 0; i < texto.length; ++i) {
+			Cliente c = colas.get(i).getKey();
+			texto[i] = c.direccion() + " " + c._nombre + " " + colas.get(i).getValue();
+		}
+		return texto;
+	}
+
+	@Override
+	public long getAnclajes() {
+		return HebrasVirtuales.anclajes();
+	}
+
+	@Override
+	public String getCompresion() {
+		return Compresion.resumen();
+	}
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Constructor.
+	 *
+	 * @param clientes Registro con todos los clientes conectados.
+	 */
+	private Metricas(RegistroClientes<Cliente> clientes) {
+
+		_clientes = clientes;
+
+	} // Constructor
+
+	/**
+	 * Clientes con mensajes pendientes, de más a menos. Con muchos clientes
+	 * casi todas las colas están vacías, así que sólo se listan las demás.
+	 *
+	 * @return Lista nueva, con la profundidad de cada cola en el momento de
+	 *         mirarla.
+	 */
+	protected List<Map.Entry<Cliente, Integer>> conCola() {
+
+		List<Map.Entry<Cliente, Integer>> colas = new ArrayList<Map.Entry<Cliente, Integer>>();
+		for (Cliente c : _clientes.instantanea()) {
+			int profundidad = c.profundidadCola();
+			if (profundidad > 0)
+				colas.add(new AbstractMap.SimpleImmutableEntry<Cliente, Integer>(c, profundidad));
+		}
+		colas.sort(Map.Entry.<Cliente, Integer>comparingByValue().reversed());
+		return colas;
+
+	} // conCola
+
+	/**
+	 * Calcula los ritmos por segundo. Se llama una vez por segundo.
+	 */
+	protected void muestrea() {
+
+		long entrada = _mensajesEntrada.sum();
+		long salida = ContadoresEscritura._mensajes.sum();
+		_entradaPorSegundo = entrada - _entradaAnterior;
+		_salidaPorSegundo = salida - _salidaAnterior;
+		_entradaAnterior = entrada;
+		_salidaAnterior = salida;
+
+	} // muestrea
+
+	/**
+	 * Bucle de la hebra del puerto de administración: a cada conexión le
+	 * manda las métricas y la cierra.
+	 *
+	 * @param serverSocket Socket donde se escucha.
+	 */
+	protected void atiende(ServerSocket serverSocket) {
+
+		while (true) {
+			try (Socket socket = serverSocket.accept()) {
+				socket.setSoTimeout(ESPERA_PETICION_MS);
+				boolean http = esPeticionHttp(socket.getInputStream());
+				byte[] cuerpo = texto().getBytes(StandardCharsets.UTF_8);
+				OutputStream out = socket.getOutputStream();
+				if (http)
+					out.write(String.format(Locale.ROOT,
+							"HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+									+ "Content-Length: %d\r\nConnection: close\r\n\r\n",
+							cuerpo.length).getBytes(StandardCharsets.US_ASCII));
+				out.write(cuerpo);
+				out.flush();
+			} catch (IOException e) {
+				if (serverSocket.isClosed())
+					return;
+			}
+		}
+
+	} // atiende
+
+	/**
+	 * Mira si lo que manda quien se conecta es una petición HTTP y, si lo es,
+	 * se salta sus cabeceras. Si no manda nada en un rato, no lo es.
+	 *
+	 * @param in Entrada del socket.
+	 * @return true si la petición empieza por "GET".
+	 * @throws IOException Si falla la lectura.
+	 */
+	static boolean esPeticionHttp(InputStream in) throws IOException {
+
+		byte[] inicio = new byte[3];
+		int n = 0;
+		try {
+			while (n < inicio.length) {
+				int leidos = in.read(inicio, n, inicio.length - n);
+				if (leidos < 0)
+					return false;
+				n += leidos;
+			}
+		} catch (SocketTimeoutException ste) {
+			return false;
+		}
+		if ((inicio[0] != 'G') || (inicio[1] != 'E') || (inicio[2] != 'T'))
+			return false;
+
+		// Leemos hasta la línea en blanco que acaba las cabeceras.
+		int seguidos = 0;
+		int c;
+		try {
+			while ((seguidos < 2) && ((c = in.read()) >= 0)) {
+				if (c == '\n')
+					++seguidos;
+				else if (c != '\r')
+					seguidos = 0;
+			}
+		} catch (SocketTimeoutException ste) {
+		}
+		return true;
+
+	} // esPeticionHttp
+
+	/**
+	 * Añade una métrica simple al texto.
+	 *
+	 * @param sb     Texto.
+	 * @param nombre Nombre de la métrica.
+	 * @param tipo   "counter" o "gauge".
+	 * @param valor  Valor.
+	 */
+	static void metrica(StringBuilder sb, String nombre, String tipo, long valor) {
+
+		sb.append("# TYPE ").append(nombre).append(' ').append(tipo).append('\n');
+		sb.append(nombre).append(' ').append(valor).append('\n');
+
+	} // metrica
+
+	/**
+	 * Escapa un valor para ponerlo como etiqueta en el texto de las métricas.
+	 *
+	 * @param valor Valor; puede ser null.
+	 * @return Valor con \, " y los saltos de línea escapados.
+	 */
+	static String etiqueta(String valor) {
+
+		if (valor == null)
+			return "";
+		return valor.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+
+	} // etiqueta
+
+	/**
+	 * Nombre con el que se registra el MBean.
+	 */
+	static final String NOMBRE_MBEAN = "es.pps.sockets.salachat:type=Metricas";
+
+	/**
+	 * Cubos del histograma de repartos: el cubo i cuenta los de hasta 2^i
+	 * microsegundos, y el último, todos los demás (más de medio minuto).
+	 */
+	static final int CUBOS_REPARTO = 26;
+
+	/**
+	 * Milisegundos que se espera a ver si quien se conecta al puerto de
+	 * administración manda una petición HTTP.
+	 */
+	static final int ESPERA_PETICION_MS = 200;
+
+	/**
+	 * Clientes dados de alta.
+	 */
+	static final LongAdder _aceptadas = new LongAdder();
+
+	/**
+	 * Clientes dados de baja.
+	 */
+	static final LongAdder _cerradas = new LongAdder();
+
+	/**
+	 * Mensajes recibidos.
+	 */
+	static final LongAdder _mensajesEntrada = new LongAdder();
+
+	/**
+	 * Bytes de los mensajes recibidos.
+	 */
+	static final LongAdder _bytesEntrada = new LongAdder();
+
+	/**
+	 * Errores de escritura en sockets.
+	 */
+	static final LongAdder _erroresEscritura = new LongAdder();
+
+	/**
+	 * Latidos mandados.
+	 */
+	static final LongAdder _latidos = new LongAdder();
+
+	/**
+	 * Clientes expulsados porque no se ha recibido nada de ellos.
+	 */
+	static final LongAdder _expulsadosLectura = new LongAdder();
+
+	/**
+	 * Clientes expulsados porque no se les ha podido escribir.
+	 */
+	static final LongAdder _expulsadosEscritura = new LongAdder();
+
+	/**
+	 * Cubos del histograma de duración de los repartos.
+	 */
+	static final LongAdder[] _cubosReparto = new LongAdder[CUBOS_REPARTO];
+
+	static {
+		for (int i = 0; i < CUBOS_REPARTO; ++i)
+			_cubosReparto[i] = new LongAdder();
+	}
+
+	/**
+	 * Nanosegundos empleados en repartos.
+	 */
+	static final LongAdder _nanosReparto = new LongAdder();
+
+	/**
+	 * Mensajes no repartidos por tener llena la cola de su despachador.
+	 */
+	static final LongAdder _repartosDescartados = new LongAdder();
+
+	/**
+	 * Registro con todos los clientes conectados.
+	 */
+	RegistroClientes<Cliente> _clientes;
+
+	/**
+	 * Mensajes recibidos y enviados en el último segundo.
+	 */
+	volatile long _entradaPorSegundo, _salidaPorSegundo;
+
+	/**
+	 * Totales en el muestreo anterior. Sólo los usa la hebra de muestreo.
+	 */
+	long _entradaAnterior, _salidaAnterior;
+
+} // Metricas
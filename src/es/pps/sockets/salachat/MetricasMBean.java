@@ -0,0 +1,150 @@
+package es.pps.sockets.salachat;
+
+/**
+ * Interfaz de gestión (JMX) de las métricas del servidor (ver Metricas). Tiene
+ * que ser pública para que JMX la acepte como MBean estándar.
+ */
+public interface MetricasMBean {
+
+	/**
+	 * @return Clientes conectados ahora mismo.
+	 */
+	int getConexionesAbiertas();
+
+	/**
+	 * @return Clientes dados de alta desde el arranque.
+	 */
+	long getConexionesAceptadas();
+
+	/**
+	 * @return Clientes dados de baja desde el arranque.
+	 */
+	long getConexionesCerradas();
+
+	/**
+	 * @return Mensajes (líneas o tramas) recibidos de los clientes.
+	 */
+	long getMensajesEntrada();
+
+	/**
+	 * @return Bytes de los mensajes recibidos.
+	 */
+	long getBytesEntrada();
+
+	/**
+	 * @return Mensajes enviados a los clientes.
+	 */
+	long getMensajesSalida();
+
+	/**
+	 * @return Bytes escritos en los sockets de los clientes.
+	 */
+	long getBytesSalida();
+
+	/**
+	 * @return Mensajes recibidos por segundo, durante el último segundo.
+	 */
+	long getMensajesEntradaPorSegundo();
+
+	/**
+	 * @return Mensajes enviados por segundo, durante el último segundo.
+	 */
+	long getMensajesSalidaPorSegundo();
+
+	/**
+	 * @return Errores de escritura en los sockets de los clientes.
+	 */
+	long getErroresEscritura();
+
+	/**
+	 * @return Latidos mandados a clientes inactivos.
+	 */
+	long getLatidos();
+
+	/**
+	 * @return Clientes desconectados por no mandar nada, ni siquiera
+	 *         respuestas a los latidos, en el plazo de inactividad.
+	 */
+	long getExpulsadosLectura();
+
+	/**
+	 * @return Clientes desconectados por no poder escribirles lo que tenían
+	 *         pendiente en el plazo de inactividad.
+	 */
+	long getExpulsadosEscritura();
+
+	/**
+	 * @return Buffers de E/S prestados por la reserva sin tener que crearlos.
+	 */
+	long getBuffersAciertos();
+
+	/**
+	 * @return Buffers de E/S que la reserva tuvo que crear.
+	 */
+	long getBuffersFallos();
+
+	/**
+	 * @return Buffers de E/S prestados y todavía no devueltos.
+	 */
+	long getBuffersEnUso();
+
+	/**
+	 * @return Bytes en buffers libres retenidos por la reserva.
+	 */
+	long getBuffersRetenidos();
+
+	/**
+	 * @return Buffers prestados que se han perdido sin devolverlos (sólo
+	 *         entre los préstamos seguidos).
+	 */
+	long getBuffersFugas();
+
+	/**
+	 * @return Repartos hechos por las salas.
+	 */
+	long getRepartos();
+
+	/**
+	 * @return Mensajes que no se han repartido porque la cola del despachador
+	 *         de su sala estaba llena.
+	 */
+	long getRepartosDescartados();
+
+	/**
+	 * @return Duración media de un reparto, en microsegundos.
+	 */
+	double getRepartoMedioUs();
+
+	/**
+	 * @return Percentil 99 de la duración de un reparto, en microsegundos
+	 *         (límite superior de su cubo).
+	 */
+	long getRepartoP99Us();
+
+	/**
+	 * @return Mayor profundidad actual de las colas de salida de los clientes.
+	 */
+	int getColaMaxima();
+
+	/**
+	 * @return Suma de las profundidades actuales de las colas de salida.
+	 */
+	long getColasTotal();
+
+	/**
+	 * @return Clientes con mensajes pendientes, de más a menos, como
+	 *         "dirección:puerto nombre pendientes".
+	 */
+	String[] getColasPorCliente();
+
+	/**
+	 * @return Anclajes de hebras virtuales detectados.
+	 */
+	long getAnclajes();
+
+	/**
+	 * @return Resumen de la compresión de tramas.
+	 */
+	String getCompresion();
+
+} // MetricasMBean
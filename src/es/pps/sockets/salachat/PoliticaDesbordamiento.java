@@ -0,0 +1,41 @@
+package es.pps.sockets.salachat;
+
+/**
+ * Qué hacer cuando la cola de salida de un cliente está llena porque no lee
+ * tan deprisa como le llegan mensajes.
+ */
+enum PoliticaDesbordamiento {
+
+	/**
+	 * Se descarta el mensaje más antiguo de la cola para hacer sitio al nuevo.
+	 * Los imprescindibles (ver Mensaje.imprescindible()) no se descartan.
+	 */
+	DESCARTAR_ANTIGUO,
+
+	/**
+	 * Se desconecta al cliente.
+	 */
+	DESCONECTAR,
+
+	/**
+	 * Quien encola espera a que haya sitio, como mucho un tiempo máximo; si se
+	 * agota, se desconecta al cliente. Los despachadores de las salas nunca
+	 * esperan (ver GestorSalas), así que para ellos es como DESCONECTAR.
+	 */
+	BLOQUEAR;
+
+	/**
+	 * Devuelve la política con el nombre dado, sin distinguir mayúsculas.
+	 *
+	 * @param nombre Nombre de la política ("descartar_antiguo", "desconectar"
+	 *               o "bloquear").
+	 * @return Política correspondiente.
+	 * @throws IllegalArgumentException Si el nombre no es válido.
+	 */
+	static PoliticaDesbordamiento deNombre(String nombre) {
+
+		return valueOf(nombre.trim().toUpperCase());
+
+	} // deNombre
+
+} // PoliticaDesbordamiento
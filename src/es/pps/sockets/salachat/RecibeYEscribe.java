@@ -1,84 +1,102 @@
 package es.pps.sockets.salachat;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.util.List;
+import java.nio.ByteBuffer;
+
+import es.pps.sockets.comun.LectorTramas;
+import es.pps.sockets.comun.Tramas;
 
 /**
  * Clase que implementa el interfaz Runnable para ser lanzada en otra hebra.
  * 
  * Recibe un InputStream como parámetro en el constructor y se queda
- * contínuamente leyendo líneas de él (a través de un BufferedReader). Cada vez
- * que recibe una línea la manda a todos los PrintWriter contenidos en una lista
- * recibida en el constructor, salvo a uno especial que es el asociado al mismo
- * socket que el InputStream de donde estamos leyendo.
+ * contínuamente leyendo líneas de él (a través de un LectorTramas, que las
+ * busca directamente en los bytes, sin decodificarlas ni copiarlas). Cada vez
+ * que recibe una línea se la pasa al gestor de salas recibido en el
+ * constructor, que la reparte entre los demás miembros de la sala del cliente
+ * asociado al mismo socket que el InputStream de donde estamos leyendo (o la
+ * ejecuta, si es una orden). Nunca escribe directamente en los sockets: de eso
+ * se encarga la hebra escritora de cada cliente.
+ * 
+ * Si el cliente pasa al protocolo de tramas, a partir de ese momento lee
+ * tramas en lugar de líneas.
+ * 
+ * Cuando termina, por fin de la entrada o por error, da de baja a su cliente
+ * para que no se le vuelva a encolar nada, y lo cierra.
  * 
  * @author Pedro Pablo Gómez Martín
  */
 class RecibeYEscribe implements Runnable {
 	
-	BufferedReader _reader;
-	PrintWriter _pw;
-	List<PrintWriter> _writers;
+	LectorTramas _lector;
+	ClienteSocket _yo;
+	GestorSalas _salas;
 	
 	/**
 	 * Constructor
 	 * 
 	 * @param is      Stream de entrada del que leer líneas.
-	 * @param pw      PrintWriter asociado al mismo socket que el stream del primer
-	 *                parámetro.
-	 * @param writers Lista con los canales de salida de todos los clientes.
+	 * @param yo       Cliente asociado al mismo socket que el stream del primer
+	 *                 parámetro.
+	 * @param salas    Gestor de las salas del servidor.
 	 */
-	RecibeYEscribe(InputStream is, PrintWriter pw, List<PrintWriter> writers) {
+	RecibeYEscribe(InputStream is, ClienteSocket yo, GestorSalas salas) {
 
-		_reader = new BufferedReader(new InputStreamReader(is));
-		_pw = pw;
-		_writers = writers;
+		_lector = new LectorTramas(is);
+		_lector.aceptaComprimidas(() -> yo._comprime);
+		_yo = yo;
+		_salas = salas;
 
 	} // Constructor
 
 	/**
 	 * Método para ser lanzado en otra hebra. Lee lineas del canal recibido en el
-	 * constructor y las escribe por todos los PrintWriter de la lista recibida en
-	 * el constructor.
+	 * constructor y se las pasa al gestor de salas.
 	 */
 	@Override
 	public void run() {
 
-		String leido;
+		Mensaje leido;
 
 		while (true) {
 			try {
-				leido = _reader.readLine();
+				if (_yo._leeTramas) {
+					Tramas.Trama trama = _lector.leeTrama();
+					if (trama == null) {
+						// EOF.
+						break;
+					}
+					leido = Mensaje.deBytes(trama.tipo, ByteBuffer.wrap(trama.datos), 0, trama.datos.length);
+					_salas.procesaTrama(_yo, leido);
+				} else {
+					if (!_lector.siguienteLinea()) {
+						// EOF.
+						break;
+					}
+					// Se queda con los bytes tal cual para todos los
+					// destinatarios, copiándolos directamente del
+					// buffer del lector.
+					ByteBuffer linea = _lector.linea();
+					leido = Mensaje.deBytes(linea, linea.position(), linea.remaining());
+					_salas.procesa(_yo, leido);
+				}
 			} catch (IOException e) {
 				break;
 			}
-			if (leido == null) {
-				// EOF.
-				break;
-			}
-			for (PrintWriter cliente : _writers) {
-				if (cliente != _pw) {
-					// El PrintWriter siguiente no es el cliente al que
-					// estamos escuchando aquí (para no mandarnos a
-					// nosotros mismos lo que acabamos de enviar)
-					cliente.println(leido);
-					if (cliente.checkError())
-						System.err.println("\t[Error en el último envío]");
-				}
-			}
-			System.out.println(leido);
+			leido.muestra(System.out);
 		} // while
 
+		// Nos damos de baja antes de cerrar para que nadie más nos escriba.
+		_salas.baja(_yo);
+		_yo.cierra();
+
 		// Cerramos el canal de entrada. El socket se dará
 		// cuenta, y verá que el canal de salida está
 		// también cerrado (por el otro extremo) y
 		// dará error en el próximo intento de escritura.
 		try {
-			_reader.close();
+			_lector.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,87 @@
+package es.pps.sockets.salachat;
+
+import java.io.IOException;
+
+import es.pps.sockets.comun.Latido;
+import es.pps.sockets.comun.LectorTramas;
+import es.pps.sockets.comun.Tramas;
+
+/**
+ * Clase que implementa el interfaz runnable para ser ejecutada en otra hebra
+ * del lado cliente de la sala de chat.
+ *
+ * En el constructor recibe un LectorTramas del que leer líneas (o tramas, si
+ * se negoció ese protocolo) contínuamente. Cada vez que lee una, la envía a la
+ * ventana de chat, recibida en el constructor, a través de su método
+ * onTextoRecibido(). Si se detecta el cierre del stream, se envía a la ventana
+ * de chat un aviso que indica que se ha detectado el cierre del socket por
+ * parte del servidor.
+ *
+ * Los latidos del servidor (ver Latido) no se muestran: se contestan a través
+ * de la ventana.
+ */
+class RecibeYMuestra implements Runnable {
+
+	/**
+	 * Constructor
+	 *
+	 * @param lector       Lector de la entrada del socket.
+	 * @param tramas       Si hay que leer tramas en lugar de líneas.
+	 * @param ventanaChat  Ventana donde mostrar lo recibido.
+	 */
+	RecibeYMuestra(LectorTramas lector, boolean tramas, Chat ventanaChat) {
+
+		_lector = lector;
+		_tramas = tramas;
+		_ventanaChat = ventanaChat;
+
+	} // Constructor
+
+	/**
+	 * Método para ser lanzado en otra hebra. Lee lineas del canal recibido en el
+	 * constructor y se las pasa a la ventana de chat.
+	 */
+	@Override
+	public void run() {
+
+		String leido;
+
+		while (true) {
+			try {
+				if (_tramas) {
+					Tramas.Trama trama = _lector.leeTrama();
+					leido = (trama == null) ? null : trama.texto();
+				} else {
+					leido = _lector.siguienteLinea() ? _lector.textoLinea() : null;
+				}
+			} catch (IOException e) {
+				break;
+			}
+			if (leido == null) {
+				// EOF.
+				break;
+			}
+			if (leido.equals(Latido.PING)) {
+				_ventanaChat.enviarServidor(Latido.PONG);
+				continue;
+			}
+			_ventanaChat.onTextoRecibido(leido + "\n");
+		} // while
+
+		try {
+			_lector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		_ventanaChat.onTextoRecibido("  [El servidor cerró la entrada]");
+
+	} // run
+
+	LectorTramas _lector;
+
+	boolean _tramas;
+
+	Chat _ventanaChat;
+
+} // RecibeYMuestra
@@ -0,0 +1,137 @@
+package es.pps.sockets.salachat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registro de los clientes conectados a la sala. Sustituye a la lista
+ * compartida sin sincronizar que se usaba antes.
+ *
+ * Las altas y bajas son operaciones atómicas de coste constante sobre un
+ * conjunto concurrente. Para difundir un mensaje no se recorre ese conjunto,
+ * sino una instantánea inmutable de él, que se reconstruye de forma perezosa
+ * sólo cuando ha habido cambios desde la anterior. Así las difusiones nunca
+ * cogen cerrojos, y una ráfaga de altas y bajas entre dos difusiones cuesta
+ * una única reconstrucción en lugar de una copia por cada cambio.
+ *
+ * Como la instantánea puede estar ligeramente desfasada, un cliente recién
+ * dado de baja puede recibir todavía algún mensaje; quien escribe en él debe
+ * tolerarlo.
+ *
+ * @param <C> Tipo de los clientes registrados.
+ */
+class RegistroClientes<C> {
+
+	/**
+	 * Añade un cliente al registro.
+	 *
+	 * @param cliente Cliente nuevo.
+	 * @return true si no estaba ya registrado.
+	 */
+	boolean alta(C cliente) {
+
+		boolean nuevo = _clientes.add(cliente);
+		if (nuevo)
+			_version.incrementAndGet();
+		return nuevo;
+
+	} // alta
+
+	// --------------------------------------------------------
+
+	/**
+	 * Quita un cliente del registro.
+	 *
+	 * @param cliente Cliente a quitar.
+	 * @return true si estaba registrado.
+	 */
+	boolean baja(C cliente) {
+
+		boolean estaba = _clientes.remove(cliente);
+		if (estaba)
+			_version.incrementAndGet();
+		return estaba;
+
+	} // baja
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve el número de clientes registrados.
+	 *
+	 * @return Número de clientes.
+	 */
+	int tamanyo() {
+
+		return _clientes.size();
+
+	} // tamanyo
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve una lista inmutable con los clientes registrados, para
+	 * recorrerla al difundir un mensaje.
+	 *
+	 * @return Instantánea de los clientes registrados.
+	 */
+	List<C> instantanea() {
+
+		Instantanea<C> actual = _instantanea;
+		long version = _version.get();
+		if (actual.version == version)
+			return actual.clientes;
+
+		// Ha habido cambios. La reconstruimos; si mientras tanto cambia
+		// otra vez, la versión guardada no coincidirá y la siguiente
+		// difusión la volverá a reconstruir.
+		Instantanea<C> nueva = new Instantanea<C>(version,
+				Collections.unmodifiableList(new ArrayList<C>(_clientes)));
+		_instantanea = nueva;
+		return nueva.clientes;
+
+	} // instantanea
+
+	// --------------------------------------------------------
+
+	/**
+	 * Instantánea de los clientes junto con la versión del registro a partir
+	 * de la que se construyó.
+	 */
+	static class Instantanea<C> {
+
+		Instantanea(long version, List<C> clientes) {
+			this.version = version;
+			this.clientes = clientes;
+		}
+
+		final long version;
+
+		final List<C> clientes;
+
+	} // Instantanea
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Clientes registrados.
+	 */
+	Set<C> _clientes = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Contador que se incrementa con cada alta o baja.
+	 */
+	AtomicLong _version = new AtomicLong();
+
+	/**
+	 * Última instantánea construida.
+	 */
+	volatile Instantanea<C> _instantanea = new Instantanea<C>(0, Collections.<C>emptyList());
+
+} // RegistroClientes
@@ -0,0 +1,399 @@
+package es.pps.sockets.salachat;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reserva de buffers directos para la E/S de los sockets, compartida por todas
+ * las conexiones. En lugar de que cada conexión tenga sus propios buffers
+ * durante toda su vida, los pide prestados sólo mientras lee o escribe y los
+ * devuelve al acabar, de modo que la memoria de buffers depende de las
+ * operaciones en curso y no del número de clientes, y las conexiones que van y
+ * vienen no generan basura.
+ *
+ * Los buffers se agrupan en clases de tamaño, potencias de dos entre
+ * TAM_MINIMO y TAM_MAXIMO; cada petición recibe uno de la menor clase en la
+ * que cabe. Las peticiones mayores que TAM_MAXIMO se sirven con un buffer
+ * nuevo que no se guarda. La reserva no retiene más de salachat.reservaMax
+ * bytes en buffers libres; lo que se devuelve por encima se descarta.
+ *
+ * Lleva la cuenta de aciertos (préstamos servidos con un buffer libre), fallos
+ * (hubo que crearlo), buffers en uso y fugas. Para detectar las fugas se sigue
+ * uno de cada salachat.muestreoFugas préstamos, al azar, con una referencia
+ * débil: si el recolector se lleva el buffer antes de que se devuelva, nadie lo
+ * iba a devolver, y se avisa por la salida de error de dónde se pidió.
+ *
+ * Un buffer devuelto no se debe volver a usar.
+ */
+class ReservaBuffers {
+
+	/**
+	 * Pide prestado un buffer.
+	 *
+	 * @param tam Bytes que necesita como mínimo.
+	 * @return Buffer vacío (posición 0, límite en la capacidad, orden de red)
+	 *         de al menos tam bytes.
+	 */
+	static ByteBuffer toma(int tam) {
+
+		atiendeFugas();
+		int clase = clase(tam);
+		if (clase < 0) {
+			_fallos.increment();
+			return ByteBuffer.allocateDirect(tam);
+		}
+
+		ByteBuffer buffer;
+		ArrayDeque<ByteBuffer> libres = _libres[clase];
+		synchronized (libres) {
+			buffer = libres.pollFirst();
+		}
+		if (buffer == null) {
+			_fallos.increment();
+			buffer = ByteBuffer.allocateDirect(TAM_MINIMO << clase);
+		} else {
+			_aciertos.increment();
+			_retenidos.addAndGet(-buffer.capacity());
+			buffer.clear().order(ByteOrder.BIG_ENDIAN);
+		}
+		_enUso.increment();
+		if ((MUESTREO_FUGAS > 0) && (ThreadLocalRandom.current().nextInt(MUESTREO_FUGAS) == 0))
+			sigue(buffer);
+		return buffer;
+
+	} // toma
+
+	// --------------------------------------------------------
+
+	/**
+	 * Devuelve un buffer prestado.
+	 *
+	 * @param buffer Buffer obtenido con toma(); después no se debe volver a
+	 *               usar.
+	 */
+	static void devuelve(ByteBuffer buffer) {
+
+		int clase = clase(buffer.capacity());
+		if ((clase < 0) || (buffer.capacity() != (TAM_MINIMO << clase)))
+			// Uno de los que no caben en ninguna clase.
+			return;
+
+		_enUso.decrement();
+		if (_seguidos > 0)
+			dejaDeSeguir(buffer);
+		if (_retenidos.addAndGet(buffer.capacity()) > RESERVA_MAX) {
+			_retenidos.addAndGet(-buffer.capacity());
+			_descartados.increment();
+			return;
+		}
+		ArrayDeque<ByteBuffer> libres = _libres[clase];
+		synchronized (libres) {
+			// El último devuelto es el primero en salir: es el que más
+			// probablemente siga en la caché.
+			libres.addFirst(buffer);
+		}
+
+	} // devuelve
+
+	// --------------------------------------------------------
+
+	/**
+	 * Préstamos servidos con un buffer libre.
+	 *
+	 * @return Aciertos.
+	 */
+	static long aciertos() {
+
+		return _aciertos.sum();
+
+	} // aciertos
+
+	// --------------------------------------------------------
+
+	/**
+	 * Préstamos para los que hubo que crear un buffer.
+	 *
+	 * @return Fallos.
+	 */
+	static long fallos() {
+
+		return _fallos.sum();
+
+	} // fallos
+
+	// --------------------------------------------------------
+
+	/**
+	 * Buffers prestados y todavía no devueltos (sin contar los de fuera de
+	 * clase).
+	 *
+	 * @return Buffers en uso.
+	 */
+	static long enUso() {
+
+		return _enUso.sum();
+
+	} // enUso
+
+	// --------------------------------------------------------
+
+	/**
+	 * Bytes en buffers libres dentro de la reserva.
+	 *
+	 * @return Bytes retenidos.
+	 */
+	static long retenidos() {
+
+		return _retenidos.get();
+
+	} // retenidos
+
+	// --------------------------------------------------------
+
+	/**
+	 * Buffers devueltos que no se guardaron por estar la reserva llena.
+	 *
+	 * @return Buffers descartados.
+	 */
+	static long descartados() {
+
+		return _descartados.sum();
+
+	} // descartados
+
+	// --------------------------------------------------------
+
+	/**
+	 * Préstamos seguidos cuyo buffer se perdió sin devolverlo.
+	 *
+	 * @return Fugas detectadas.
+	 */
+	static long fugas() {
+
+		atiendeFugas();
+		return _fugas.sum();
+
+	} // fugas
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Clase de tamaño en la que cabe un número de bytes.
+	 *
+	 * @param tam Bytes.
+	 * @return Índice de la clase, o -1 si es mayor que TAM_MAXIMO.
+	 */
+	static int clase(int tam) {
+
+		if (tam <= TAM_MINIMO)
+			return 0;
+		if (tam > TAM_MAXIMO)
+			return -1;
+		return 32 - Integer.numberOfLeadingZeros(tam - 1) - BITS_MINIMO;
+
+	} // clase
+
+	/**
+	 * Referencia débil a un buffer prestado que se está siguiendo. Las de un
+	 * mismo cubo de _seguimiento forman una lista enlazada.
+	 */
+	static final class Rastro extends WeakReference<ByteBuffer> {
+
+		Rastro(ByteBuffer buffer) {
+			super(buffer, _recogidos);
+			_hash = System.identityHashCode(buffer);
+			_capacidad = buffer.capacity();
+			_donde = new Throwable();
+		}
+
+		/**
+		 * identityHashCode() del buffer, para buscarlo al devolverlo.
+		 */
+		final int _hash;
+
+		/**
+		 * Capacidad del buffer, para el aviso.
+		 */
+		final int _capacidad;
+
+		/**
+		 * Dónde se pidió.
+		 */
+		final Throwable _donde;
+
+		/**
+		 * Siguiente rastro del mismo cubo.
+		 */
+		Rastro _siguiente;
+
+	} // Rastro
+
+	/**
+	 * Empieza a seguir un préstamo.
+	 *
+	 * @param buffer Buffer prestado.
+	 */
+	static void sigue(ByteBuffer buffer) {
+
+		Rastro rastro = new Rastro(buffer);
+		int cubo = rastro._hash & (_seguimiento.length - 1);
+		synchronized (_seguimiento) {
+			rastro._siguiente = _seguimiento[cubo];
+			_seguimiento[cubo] = rastro;
+			++_seguidos;
+		}
+
+	} // sigue
+
+	/**
+	 * Deja de seguir un buffer que se devuelve, si se estaba siguiendo.
+	 *
+	 * @param buffer Buffer devuelto.
+	 */
+	static void dejaDeSeguir(ByteBuffer buffer) {
+
+		int hash = System.identityHashCode(buffer);
+		int cubo = hash & (_seguimiento.length - 1);
+		synchronized (_seguimiento) {
+			Rastro anterior = null;
+			for (Rastro r = _seguimiento[cubo]; r != null; anterior = r, r = r._siguiente) {
+				if ((r._hash == hash) && (r.get() == buffer)) {
+					quita(cubo, anterior, r);
+					// Que el recolector no la encole.
+					r.clear();
+					return;
+				}
+			}
+		}
+
+	} // dejaDeSeguir
+
+	/**
+	 * Cuenta y avisa de los buffers seguidos que el recolector se ha llevado
+	 * sin que se devolvieran.
+	 */
+	static void atiendeFugas() {
+
+		Rastro rastro;
+		while ((rastro = (Rastro) _recogidos.poll()) != null) {
+			int cubo = rastro._hash & (_seguimiento.length - 1);
+			synchronized (_seguimiento) {
+				Rastro anterior = null;
+				for (Rastro r = _seguimiento[cubo]; r != null; anterior = r, r = r._siguiente) {
+					if (r == rastro) {
+						quita(cubo, anterior, r);
+						break;
+					}
+				}
+			}
+			_fugas.increment();
+			_enUso.decrement();
+			StringBuilder sb = new StringBuilder("[Fuga: buffer de ").append(rastro._capacidad)
+					.append(" bytes no devuelto a la reserva");
+			for (StackTraceElement e : rastro._donde.getStackTrace()) {
+				if (!e.getClassName().startsWith(ReservaBuffers.class.getName())) {
+					sb.append("; se pidió en ").append(e);
+					break;
+				}
+			}
+			System.err.println(sb.append(']'));
+		}
+
+	} // atiendeFugas
+
+	/**
+	 * Quita un rastro de su cubo. Hay que tener cogido el monitor de
+	 * _seguimiento.
+	 */
+	static void quita(int cubo, Rastro anterior, Rastro rastro) {
+
+		if (anterior == null)
+			_seguimiento[cubo] = rastro._siguiente;
+		else
+			anterior._siguiente = rastro._siguiente;
+		rastro._siguiente = null;
+		--_seguidos;
+
+	} // quita
+
+	/**
+	 * Logaritmo en base dos del tamaño de la clase menor.
+	 */
+	static final int BITS_MINIMO = 12;
+
+	/**
+	 * Tamaño de la clase menor: 4 KiB.
+	 */
+	static final int TAM_MINIMO = 1 << BITS_MINIMO;
+
+	/**
+	 * Tamaño de la clase mayor: 1 MiB.
+	 */
+	static final int TAM_MAXIMO = 1 << 20;
+
+	/**
+	 * Bytes que, como mucho, se retienen en buffers libres
+	 * (salachat.reservaMax).
+	 */
+	static final long RESERVA_MAX = Configuracion.RESERVA_MAX;
+
+	/**
+	 * Se sigue uno de cada tantos préstamos para detectar fugas; 0 para no
+	 * seguir ninguno (salachat.muestreoFugas).
+	 */
+	static final int MUESTREO_FUGAS = Configuracion.MUESTREO_FUGAS;
+
+	/**
+	 * Buffers libres de cada clase, usados como pilas. Cada una se protege con
+	 * su propio monitor.
+	 */
+	@SuppressWarnings("unchecked")
+	static final ArrayDeque<ByteBuffer>[] _libres = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[clase(TAM_MAXIMO)
+			+ 1];
+
+	static {
+		for (int i = 0; i < _libres.length; ++i)
+			_libres[i] = new ArrayDeque<ByteBuffer>();
+	}
+
+	/**
+	 * Préstamos seguidos, repartidos en cubos según el identityHashCode() de
+	 * su buffer. Protegido por su propio monitor.
+	 */
+	static final Rastro[] _seguimiento = new Rastro[1024];
+
+	/**
+	 * Número de préstamos seguidos. Se lee sin el monitor para no cogerlo al
+	 * devolver si no se sigue ninguno.
+	 */
+	static volatile int _seguidos;
+
+	/**
+	 * Cola donde el recolector deja los rastros de los buffers perdidos.
+	 */
+	static final ReferenceQueue<ByteBuffer> _recogidos = new ReferenceQueue<ByteBuffer>();
+
+	/**
+	 * Bytes en buffers libres.
+	 */
+	static final AtomicLong _retenidos = new AtomicLong();
+
+	static final LongAdder _aciertos = new LongAdder();
+
+	static final LongAdder _fallos = new LongAdder();
+
+	static final LongAdder _enUso = new LongAdder();
+
+	static final LongAdder _descartados = new LongAdder();
+
+	static final LongAdder _fugas = new LongAdder();
+
+} // ReservaBuffers
@@ -0,0 +1,193 @@
+package es.pps.sockets.salachat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Rueda de temporizadores (hashed timing wheel): un anillo de ranuras que
+ * recorre una única hebra, avanzando una ranura en cada tic. Cada tarea
+ * programada va a la ranura en la que vence y, si vence dentro de más de una
+ * vuelta, con el número de vueltas que le faltan. Programar una tarea cuesta
+ * O(1) sin importar cuántas haya, y en cada tic sólo se miran las de una
+ * ranura; a cambio, las tareas vencen con la precisión de un tic.
+ *
+ * Está pensada para muchísimos temporizadores baratos e imprecisos, como los
+ * de vigilancia de cada conexión, que con un ScheduledExecutorService serían
+ * un montículo con una entrada (y su reordenación) por conexión.
+ *
+ * Se puede programar desde cualquier hebra: las tareas nuevas se dejan en una
+ * cola sin cerrojos y la hebra de la rueda las coloca en su ranura en el
+ * siguiente tic. Las tareas se ejecutan en la propia hebra de la rueda, así
+ * que deben ser cortas y no bloquear.
+ */
+class RuedaTemporizadores {
+
+	/**
+	 * Constructor. Lanza la hebra de la rueda, como demonio.
+	 *
+	 * @param nombre  Nombre de la hebra.
+	 * @param ticMs   Duración de un tic, en milisegundos.
+	 * @param ranuras Número de ranuras (se redondea a la siguiente potencia
+	 *                de dos).
+	 */
+	RuedaTemporizadores(String nombre, long ticMs, int ranuras) {
+
+		_ticNs = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ticMs));
+		int n = Integer.highestOneBit(Math.max(1, ranuras - 1)) << 1;
+		_ranuras = new Tarea[n];
+		_mascara = n - 1;
+		_inicio = System.nanoTime();
+		Thread hebra = new Thread(this::gira, nombre);
+		hebra.setDaemon(true);
+		hebra.start();
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Programa una tarea. Se puede llamar desde cualquier hebra.
+	 *
+	 * @param retardoMs Milisegundos tras los que ejecutarla.
+	 * @param accion    Tarea; se ejecuta en la hebra de la rueda.
+	 */
+	void programa(long retardoMs, Runnable accion) {
+
+		_nuevas.add(new Tarea(accion, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retardoMs)));
+
+	} // programa
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Tarea programada. Las de una misma ranura forman una lista enlazada.
+	 */
+	static final class Tarea {
+
+		Tarea(Runnable accion, long vence) {
+			_accion = accion;
+			_vence = vence;
+		}
+
+		/**
+		 * Qué hacer al vencer.
+		 */
+		final Runnable _accion;
+
+		/**
+		 * Instante (System.nanoTime()) en el que vence.
+		 */
+		final long _vence;
+
+		/**
+		 * Vueltas completas que le quedan a la rueda antes de que venza.
+		 */
+		long _vueltas;
+
+		/**
+		 * Siguiente tarea de la misma ranura.
+		 */
+		Tarea _siguiente;
+
+	} // Tarea
+
+	/**
+	 * Bucle de la hebra de la rueda: espera al siguiente tic, coloca las
+	 * tareas nuevas y ejecuta las que vencen en la ranura del tic.
+	 */
+	protected void gira() {
+
+		while (true) {
+			long siguiente = _inicio + (_tic + 1) * _ticNs;
+			long espera;
+			while ((espera = siguiente - System.nanoTime()) > 0)
+				LockSupport.parkNanos(espera);
+			coloca();
+			vence((int) (_tic & _mascara));
+			++_tic;
+		}
+
+	} // gira
+
+	/**
+	 * Pasa las tareas nuevas a la ranura en la que vencen. Las que ya han
+	 * vencido van a la ranura del tic actual.
+	 */
+	protected void coloca() {
+
+		Tarea tarea;
+		while ((tarea = _nuevas.poll()) != null) {
+			long tics = Math.max(_tic, (tarea._vence - _inicio + _ticNs - 1) / _ticNs);
+			tarea._vueltas = (tics - _tic) / _ranuras.length;
+			int ranura = (int) (tics & _mascara);
+			tarea._siguiente = _ranuras[ranura];
+			_ranuras[ranura] = tarea;
+		}
+
+	} // coloca
+
+	/**
+	 * Ejecuta las tareas de una ranura a las que no les quedan vueltas; a las
+	 * demás les descuenta una.
+	 *
+	 * @param ranura Ranura del tic actual.
+	 */
+	protected void vence(int ranura) {
+
+		Tarea tarea = _ranuras[ranura];
+		_ranuras[ranura] = null;
+		while (tarea != null) {
+			Tarea siguiente = tarea._siguiente;
+			if (tarea._vueltas > 0) {
+				--tarea._vueltas;
+				tarea._siguiente = _ranuras[ranura];
+				_ranuras[ranura] = tarea;
+			} else {
+				tarea._siguiente = null;
+				try {
+					tarea._accion.run();
+				} catch (RuntimeException e) {
+					System.err.println("Error en un temporizador: " + e);
+				}
+			}
+			tarea = siguiente;
+		}
+
+	} // vence
+
+	/**
+	 * Duración de un tic, en nanosegundos.
+	 */
+	final long _ticNs;
+
+	/**
+	 * Instante (System.nanoTime()) del tic 0.
+	 */
+	final long _inicio;
+
+	/**
+	 * Ranuras de la rueda: la primera tarea de la lista de cada una. Sólo las
+	 * toca la hebra de la rueda.
+	 */
+	final Tarea[] _ranuras;
+
+	/**
+	 * Máscara para pasar de tic a ranura.
+	 */
+	final int _mascara;
+
+	/**
+	 * Tic actual. Sólo lo toca la hebra de la rueda.
+	 */
+	long _tic;
+
+	/**
+	 * Tareas programadas que la hebra de la rueda todavía no ha colocado.
+	 */
+	final Queue<Tarea> _nuevas = new ConcurrentLinkedQueue<Tarea>();
+
+} // RuedaTemporizadores
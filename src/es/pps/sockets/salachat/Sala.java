@@ -0,0 +1,400 @@
+package es.pps.sockets.salachat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.pps.sockets.comun.Reanudacion;
+
+/**
+ * Sala de chat con nombre. Tiene su propio registro de miembros y un
+ * despachador (una hebra compartida con otras salas, ver GestorSalas) que hace
+ * el reparto de sus mensajes. Así, quien recibe una línea sólo tiene que
+ * pasársela a la sala, y una sala muy concurrida no retrasa el reparto en las
+ * salas que tienen otros despachadores.
+ *
+ * Como cada sala tiene un único despachador, sus mensajes se reparten en el
+ * mismo orden en que llegan.
+ *
+ * La sala guarda también los últimos mensajes repartidos (ver Historial) y se
+ * los manda a cada cliente que entra antes de empezar a mandarle los nuevos.
+ * Lo que se reparte mientras tanto se le retiene y se le manda después del
+ * historial, así que no se pierde aunque el historial sea pequeño (o no
+ * haya) ni se repite lo que ya estaba en él.
+ * Si el servidor tiene un diario (ver Diario), el despachador también lo
+ * escribe allí, de modo que el orden del diario es el del reparto.
+ *
+ * Si hay diario, lo que no está ya en el historial se saca de él: cuando un
+ * cliente que se reconecta ha perdido más de lo que cabe en el historial, y
+ * cuando pide los mensajes de los últimos minutos (ver historia()).
+ *
+ * Antes de repartir un mensaje, el despachador le da un número de secuencia:
+ * el que le asigna el diario, si lo hay (así sobrevive a los reinicios), o el
+ * siguiente de un contador común a todas las salas. Con él, un cliente que se
+ * reconecta sólo necesita que le manden lo que se perdió (ver Reanudacion).
+ */
+class Sala {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param nombre      Nombre de la sala.
+	 * @param despachador Ejecutor de una sola hebra donde se hace el reparto.
+	 * @param diario      Diario donde guardar lo que se reparte, o null.
+	 */
+	Sala(String nombre, Executor despachador, Diario diario) {
+
+		_nombre = nombre;
+		_despachador = despachador;
+		_diario = diario;
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Reparte un mensaje entre todos los miembros salvo el que lo envió. El
+	 * reparto se hace en el despachador de la sala; este método vuelve en
+	 * seguida.
+	 *
+	 * @param origen  Cliente que envió el mensaje (o null si no lo envió
+	 *                ningún miembro).
+	 * @param mensaje Mensaje a repartir.
+	 */
+	void difunde(Cliente origen, Mensaje mensaje) {
+
+		ejecuta(() -> {
+			mensaje.numera(anota(mensaje));
+			long inicio = System.nanoTime();
+			if (!_retenidos.isEmpty())
+				_retenidos.keySet().removeIf(cliente -> cliente._sala != this);
+			for (Cliente cliente : _miembros.instantanea()) {
+				if (cliente == origen)
+					continue;
+				// Los que acaban de entrar todavía no han recibido el
+				// historial; se les guarda para después.
+				if (cliente._alDia == this)
+					cliente.encola(mensaje);
+				else
+					_retenidos.computeIfAbsent(cliente, c -> new Retenidos()).anota(mensaje);
+			}
+			Metricas.reparto(System.nanoTime() - inicio);
+			_historial.anota(mensaje);
+		}, null);
+
+	} // difunde
+
+	// --------------------------------------------------------
+
+	/**
+	 * Añade al historial un mensaje repartido en otro momento (por ejemplo,
+	 * recuperado del diario al arrancar), sin repartirlo.
+	 *
+	 * @param mensaje Mensaje.
+	 */
+	void recuerda(Mensaje mensaje) {
+
+		_despachador.execute(() -> _historial.anota(mensaje));
+
+	} // recuerda
+
+	// --------------------------------------------------------
+
+	/**
+	 * Manda a un cliente que acaba de entrar los mensajes del historial y, a
+	 * partir de ahí, empieza a mandarle los nuevos. Se hace en el despachador
+	 * de la sala, así que ningún mensaje se pierde ni se repite entre el
+	 * historial y los nuevos, y el reparto de los demás sólo espera lo que
+	 * cuesta encolar referencias a mensajes ya codificados.
+	 *
+	 * Detrás del historial van los mensajes que se han repartido desde que
+	 * entró, que el despachador le ha ido reteniendo; del historial se quitan
+	 * los que ya estén entre ellos.
+	 *
+	 * Si el cliente viene de una reconexión, sólo se le manda lo posterior a
+	 * la última secuencia que recibió; si el historial ya no llega tan atrás,
+	 * se saca del diario, si lo hay. A los clientes que numeran los mensajes
+	 * se les avisa al final de que ya están al día.
+	 *
+	 * @param cliente Cliente que acaba de entrar.
+	 * @param desde   Última secuencia que ya tiene el cliente; 0 para
+	 *                mandarle el historial entero.
+	 */
+	void bienvenida(Cliente cliente, long desde) {
+
+		ejecuta(() -> {
+			Retenidos retenidos = _retenidos.remove(cliente);
+			// Si ya se ha ido a otra sala, allí le darán la suya.
+			if (cliente._sala != this)
+				return;
+			boolean completo;
+			if ((desde > 0) && (_diario != null) && !_historial.cubre(desde)) {
+				completo = recuperaDelDiario(cliente, desde,
+						(retenidos == null) ? Long.MAX_VALUE : retenidos.primeraSecuencia());
+			} else if (retenidos == null) {
+				completo = _historial.recorreDesde(desde, cliente::encola);
+			} else {
+				Set<Mensaje> yaRetenidos = new HashSet<Mensaje>(retenidos._mensajes);
+				completo = _historial.recorreDesde(desde, mensaje -> {
+					if (!yaRetenidos.contains(mensaje))
+						cliente.encola(mensaje);
+				});
+			}
+			if (retenidos != null) {
+				for (Mensaje mensaje : retenidos._mensajes) {
+					if ((desde <= 0) || (mensaje.secuencia() == 0) || (mensaje.secuencia() > desde))
+						cliente.encola(mensaje);
+				}
+				completo &= !retenidos._perdidos;
+			}
+			cliente._alDia = this;
+			if (cliente._numera) {
+				String estado = (desde <= 0) ? Reanudacion.HISTORIAL
+						: completo ? Reanudacion.COMPLETO : Reanudacion.INCOMPLETO;
+				GestorSalas.responde(cliente, Reanudacion.alDia(_epoca, estado, _nombre));
+			}
+		}, cliente);
+
+	} // bienvenida
+
+	// --------------------------------------------------------
+
+	/**
+	 * Manda a un cliente los mensajes de la sala guardados en el diario a
+	 * partir de un instante, buscándolo con el índice por tiempo del diario.
+	 * Se hace en el despachador. Los mensajes van sin número de secuencia,
+	 * para que no se confundan con los que el cliente ya ha recibido.
+	 *
+	 * @param cliente  Cliente que los pide.
+	 * @param instante Milisegundos desde 1970.
+	 */
+	void historia(Cliente cliente, long instante) {
+
+		ejecuta(() -> {
+			int[] enviados = { 0 };
+			try {
+				_diario.recorre(_diario.secuenciaEn(instante), (secuencia, momento, sala, mensaje) -> {
+					if (sala.equals(_nombre)) {
+						cliente.encola(mensaje);
+						++enviados[0];
+					}
+				});
+			} catch (IOException ioe) {
+				System.err.println("Error leyendo el diario: " + ioe.getLocalizedMessage());
+			}
+			GestorSalas.responde(cliente, "Fin de la historia de " + _nombre + " (" + enviados[0] + " mensajes)");
+		}, cliente);
+
+	} // historia
+
+	// --------------------------------------------------------
+
+	/**
+	 * Nombre de la sala.
+	 *
+	 * @return Nombre.
+	 */
+	String nombre() {
+
+		return _nombre;
+
+	} // nombre
+
+	// --------------------------------------------------------
+
+	/**
+	 * Registro con los miembros de la sala.
+	 *
+	 * @return Miembros.
+	 */
+	RegistroClientes<Cliente> miembros() {
+
+		return _miembros;
+
+	} // miembros
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Pasa una tarea al despachador. Si su cola está llena, la tarea no se
+	 * hace: un mensaje se descarta y, si la tarea era para un cliente
+	 * concreto (su historial), se le desconecta, porque sin ella nunca
+	 * llegaría a recibir los mensajes nuevos de la sala.
+	 *
+	 * @param tarea   Tarea.
+	 * @param cliente Cliente al que se desconecta si no se puede hacer, o
+	 *                null si es un reparto.
+	 */
+	protected void ejecuta(Runnable tarea, Cliente cliente) {
+
+		try {
+			_despachador.execute(tarea);
+		} catch (RejectedExecutionException ree) {
+			if (cliente == null) {
+				Metricas.repartoDescartado();
+			} else {
+				System.err.println("\t[Despachador de " + _nombre + " saturado; se desconecta a " + cliente + "]");
+				cliente.cierra();
+			}
+		}
+
+	} // ejecuta
+
+	/**
+	 * Manda a un cliente que se reconecta los mensajes de la sala posteriores
+	 * a una secuencia, sacándolos del diario. Si falla la lectura, sigue con
+	 * lo que haya en el historial.
+	 *
+	 * @param cliente Cliente.
+	 * @param desde   Última secuencia que ya tiene.
+	 * @param hasta   Primera secuencia que ya se le ha retenido, y que por
+	 *                tanto no hay que sacar del diario.
+	 * @return false si no se le ha podido mandar todo lo que le faltaba.
+	 */
+	protected boolean recuperaDelDiario(Cliente cliente, long desde, long hasta) {
+
+		long[] ultima = { desde };
+		try {
+			_diario.recorre(desde + 1, (secuencia, instante, sala, mensaje) -> {
+				if (sala.equals(_nombre) && (secuencia < hasta)) {
+					mensaje.numera(secuencia);
+					cliente.encola(mensaje);
+				}
+				ultima[0] = secuencia;
+			});
+			return true;
+		} catch (IOException ioe) {
+			System.err.println("Error leyendo el diario: " + ioe.getLocalizedMessage());
+			return _historial.recorreDesde(ultima[0], cliente::encola);
+		}
+
+	} // recuperaDelDiario
+
+	/**
+	 * Guarda un mensaje en el diario, si lo hay, y le asigna su número de
+	 * secuencia. Se llama en el despachador, antes de repartirlo, de modo que
+	 * lo que recibe un cliente ya está en el diario para cuando se reconecte.
+	 *
+	 * @param mensaje Mensaje a repartir.
+	 * @return Secuencia, o 0 si el diario no ha podido guardarlo.
+	 */
+	protected long anota(Mensaje mensaje) {
+
+		if (_diario == null)
+			return SECUENCIAS.incrementAndGet();
+		try {
+			return Math.max(0, _diario.anota(_nombre, mensaje));
+		} catch (IOException ioe) {
+			System.err.println("Error escribiendo en el diario: " + ioe.getLocalizedMessage());
+			return 0;
+		}
+
+	} // anota
+
+	/**
+	 * Mensajes repartidos en una sala mientras uno de sus miembros esperaba
+	 * el historial. Sólo los usa el despachador.
+	 */
+	static class Retenidos {
+
+		/**
+		 * Añade un mensaje. Si ya hay tantos como caben en una cola de
+		 * salida, se olvida el más antiguo.
+		 *
+		 * @param mensaje Mensaje repartido.
+		 */
+		void anota(Mensaje mensaje) {
+
+			if (_mensajes.size() >= Configuracion.CAPACIDAD_COLA) {
+				_mensajes.pollFirst();
+				_perdidos = true;
+			}
+			_mensajes.add(mensaje);
+
+		} // anota
+
+		/**
+		 * Secuencia del primer mensaje retenido que la tenga.
+		 *
+		 * @return Secuencia, o Long.MAX_VALUE si no hay ninguno.
+		 */
+		long primeraSecuencia() {
+
+			for (Mensaje mensaje : _mensajes) {
+				if (mensaje.secuencia() > 0)
+					return mensaje.secuencia();
+			}
+			return Long.MAX_VALUE;
+
+		} // primeraSecuencia
+
+		/**
+		 * Mensajes, en el orden del reparto.
+		 */
+		ArrayDeque<Mensaje> _mensajes = new ArrayDeque<Mensaje>();
+
+		/**
+		 * Indica si se ha olvidado alguno por no caber.
+		 */
+		boolean _perdidos;
+
+	} // Retenidos
+
+	/**
+	 * Última secuencia asignada por las salas sin diario.
+	 */
+	static final AtomicLong SECUENCIAS = new AtomicLong();
+
+	/**
+	 * Nombre de la sala.
+	 */
+	String _nombre;
+
+	/**
+	 * Ejecutor de una sola hebra en el que se reparten los mensajes.
+	 */
+	Executor _despachador;
+
+	/**
+	 * Diario donde se guarda lo que se reparte, o null.
+	 */
+	Diario _diario;
+
+	/**
+	 * Época de las secuencias que asigna la sala (ver Reanudacion). La pone
+	 * GestorSalas al crearla.
+	 */
+	String _epoca = "";
+
+	/**
+	 * Clientes que están en la sala.
+	 */
+	RegistroClientes<Cliente> _miembros = new RegistroClientes<Cliente>();
+
+	/**
+	 * Últimos mensajes repartidos. Sólo lo usa el despachador.
+	 */
+	Historial _historial = new Historial(Configuracion.HISTORIAL_MENSAJES, Configuracion.HISTORIAL_BYTES);
+
+	/**
+	 * Mensajes retenidos para cada miembro que todavía no ha recibido el
+	 * historial. Sólo lo usa el despachador.
+	 */
+	Map<Cliente, Retenidos> _retenidos = new HashMap<Cliente, Retenidos>();
+
+	/**
+	 * Indica si la sala se ha quitado del gestor por quedarse vacía. Sólo se
+	 * consulta y modifica con el monitor de la sala cogido (nunca se hace E/S
+	 * con él cogido, así que no ancla hebras virtuales).
+	 */
+	boolean _cerrada;
+
+} // Sala
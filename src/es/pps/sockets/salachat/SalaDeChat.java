@@ -1,79 +1,117 @@
 package es.pps.sockets.salachat;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.channels.ServerSocketChannel;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import es.pps.sockets.comun.Compresion;
+import es.pps.sockets.comun.Extremos;
 
 /**
- * Clase principal de la aplicacin. Es el lado del servidor de una sala de
+ * Clase principal de la aplicación. Es el lado del servidor de una sala de
  * chat. Permite que se le conecten tantos clientes como se quiera. Para cada
- * uno, se queda escuchando en su stream de entrada y reenva todo lo que le
- * llega a todos los dems, sin modificarlo.
+ * uno, se queda escuchando en su stream de entrada y reenvía todo lo que le
+ * llega a todos los demás, sin modificarlo.
+ * 
+ * En la salida estándar muestra, por depuración, todos los mensajes recibidos,
+ * así como información sobre cada conexión que nos llega.
  * 
- * En la salida estndar muestra, por depuracin, todos los mensajes recibidos,
- * as como informacin sobre cada conexin que nos llega.
+ * Hay tres motores para atender a los clientes, que se eligen al arrancar: el
+ * clásico ("hebras"), que lanza una hebra por cada cliente; "virtual", que
+ * hace lo mismo pero con hebras virtuales, y uno no bloqueante ("nio", ver
+ * ServidorNio) que atiende a todos los clientes desde un número fijo de
+ * hebras.
  * 
- * @author Pedro Pablo Gmez Martn
+ * @author Pedro Pablo Gómez Martín
  */
 public class SalaDeChat {
 
-	/**
-	 * Mtodo auxiliar que recibe una direccin de internet y un puerto y lo escribe
-	 * por la salida estndar.
-	 * 
-	 * @param address Direccin de internet
-	 * @param port    Puerto
-	 */
-	protected static void escribeExtremo(InetAddress address, int port) {
-
-		System.out.print(address.getHostAddress());
-		System.out.print(":" + port);
-		if (address.getCanonicalHostName() != null)
-			System.out.print(" (" + address.getCanonicalHostName() + ")");
-
-	} // escribeExtremo
-
-	// ------------------------------------------------
-
 	/**
 	 * Programa principal.
 	 * 
-	 * @param args Argumentos recibidos de la lnea de rdenes. Debe haber uno, con
-	 *             el nmero de puerto donde escuchar.
+	 * @param args Argumentos recibidos de la línea de órdenes. El primero es el
+	 *             número de puerto donde escuchar; el segundo, opcional, el
+	 *             motor a utilizar ("hebras", "virtual" o "nio"), y el
+	 *             tercero, también opcional, el número de bucles de eventos del
+	 *             motor "nio".
 	 */
 	public static void main(String[] args) {
 
 		Socket socket;
 		int port;
+		String motor = MOTOR_HEBRAS;
+		int numBucles = Runtime.getRuntime().availableProcessors();
 
-		// Analizamos los parmetros.
+		// Analizamos los parámetros.
 		if (args.length < 1) {
-			// System.err.println("Falta el nmero de puerto.");
+			// System.err.println("Falta el número de puerto.");
 			port = 4567;
 			// return;
 		} else
 			try {
 				port = Integer.parseInt(args[0]);
 			} catch (NumberFormatException e) {
-				System.err.println("Puerto invlido");
+				System.err.println("Puerto inválido");
+				return;
+			}
+		if (args.length >= 2)
+			motor = args[1];
+		if (args.length >= 3)
+			try {
+				numBucles = Integer.parseInt(args[2]);
+			} catch (NumberFormatException e) {
+				System.err.println("Número de bucles inválido");
 				return;
 			}
 
-		// Creamos el ServerSocket donde nos quedaremos
-		// escuchando.
-		try (ServerSocket serverSocket = new ServerSocket(port)) {
+		if (motor.equals(MOTOR_NIO)) {
+			try {
+				new ServidorNio(port, numBucles).ejecuta();
+			} catch (IOException e) {
+				System.out.println("No pude escuchar en el puerto " + port);
+			}
+			return;
+		}
 
-			// Creamos la lista de "writers" (el lado de salida de
-			// todos los sockets que se nos han conectado), inicialmente
-			// vaca.
-			List<PrintWriter> writers;
-			writers = new LinkedList<PrintWriter>();
+		// Los motores bloqueantes sólo se diferencian en el tipo de hebra que
+		// atiende a cada cliente.
+		ThreadFactory fabrica;
+		if (motor.equals(MOTOR_HEBRAS)) {
+			fabrica = r -> new Thread(r);
+		} else if (motor.equals(MOTOR_VIRTUAL)) {
+			fabrica = HebrasVirtuales.fabrica();
+			// Avisamos de cualquier anclaje que dure más del umbral (en ms)
+			// indicado en la propiedad salachat.umbralAnclaje.
+			HebrasVirtuales.vigilaAnclajes(Duration.ofMillis(Configuracion.UMBRAL_ANCLAJE_MS));
+		} else {
+			System.err.println("Motor desconocido: " + motor);
+			return;
+		}
 
-			// Damos vueltas contnuamente.
+		// Creamos el ServerSocket donde nos quedaremos
+		// escuchando. Lo sacamos de un canal para que los sockets aceptados
+		// también tengan el suyo y los clientes puedan escribir en él los
+		// buffers directos de la reserva sin copiarlos.
+		try (ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket()) {
+
+			// Creamos el gestor de salas, que lleva el registro de
+			// clientes (todos los sockets que se nos han conectado, con
+			// su cola de salida), inicialmente vacío.
+			GestorSalas salas = new GestorSalas(Configuracion.DESPACHADORES);
+			salas.abreDiario();
+			salas.federa();
+			Metricas.publica(salas.clientes());
+			if (Configuracion.INFORME_COLAS_MS > 0)
+				informaColas(salas.clientes(), Configuracion.INFORME_COLAS_MS);
+
+			// Damos vueltas contínuamente.
 			while (true) {
 
 				// Esperamos el siguiente cliente.
@@ -86,34 +124,36 @@ public class SalaDeChat {
 				}
 
 				// Acaba de llegarnos un nuevo cliente.
-				// Mostramos informacin de la conexin.
-				System.out.print("[ Conexin desde ");
-				escribeExtremo(socket.getLocalAddress(), socket.getLocalPort());
-				System.out.print(" a ");
-				escribeExtremo(socket.getInetAddress(), socket.getPort());
-				System.out.println(" ]");
+				// Mostramos información de la conexión.
+				System.out.println("[ Conexión desde " + Extremos.describe(socket.getLocalAddress(), socket.getLocalPort())
+						+ " a " + Extremos.describe(socket.getInetAddress(), socket.getPort()) + " ]");
 
 				// Obtenemos el canal de escritura del socket para mandar texto
 				// a este cliente cuando cualquier otro escriba.
-				PrintWriter out;
+				ClienteSocket cliente;
 				try {
-					out = new PrintWriter(socket.getOutputStream());
+					cliente = new ClienteSocket(socket, new ColaSalida<Mensaje>(Configuracion.CAPACIDAD_COLA,
+							Configuracion.POLITICA, Configuracion.ESPERA_COLA_MS, Mensaje::imprescindible),
+							Configuracion.LATENCIA_MAX_US,
+							Configuracion.LOTE_MAX);
 				} catch (IOException e) {
 					System.err.println("No pude conseguir el canal de escritura del socket.");
 					continue;
 				}
 
-				writers.add(out);
-
 				// Lanzamos una hebra para escribir todo lo que nos llegue.
 				RecibeYEscribe rye;
 				try {
-					rye = new RecibeYEscribe(socket.getInputStream(), out, writers);
+					rye = new RecibeYEscribe(socket.getInputStream(), cliente, salas);
 				} catch (IOException e) {
 					System.err.println("No pude conseguir el canal de lectura del socket.");
 					return;
 				}
-				new Thread(rye).start();
+
+				// Sólo lo damos de alta cuando ya tiene quien lo dé de baja.
+				salas.alta(cliente);
+				cliente.arranca(fabrica);
+				fabrica.newThread(rye).start();
 
 			} // while(true)
 		} catch (IOException e) {
@@ -122,4 +162,48 @@ public class SalaDeChat {
 		}
 	} // main
 
+	// --------------------------------------------------------
+
+	/**
+	 * Muestra periódicamente, por la salida estándar, la profundidad de la cola
+	 * de salida de cada cliente y los contadores de escrituras.
+	 * 
+	 * @param clientes Registro de clientes.
+	 * @param periodo  Milisegundos entre informes.
+	 */
+	static void informaColas(RegistroClientes<?> clientes, long periodo) {
+
+		ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "informe-colas");
+			t.setDaemon(true);
+			return t;
+		});
+		ses.scheduleAtFixedRate(() -> {
+			for (Object c : clientes.instantanea())
+				System.out.println("  [Cola " + c + "]");
+			System.out.println("  [Escrituras: " + ContadoresEscritura.resumen() + "]");
+			System.out.println("  [Compresión: " + Compresion.resumen() + "]");
+		}, periodo, periodo, TimeUnit.MILLISECONDS);
+
+	} // informaColas
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Nombre del motor clásico, con una hebra por cliente.
+	 */
+	static final String MOTOR_HEBRAS = "hebras";
+
+	/**
+	 * Nombre del motor con una hebra virtual por cliente.
+	 */
+	static final String MOTOR_VIRTUAL = "virtual";
+
+	/**
+	 * Nombre del motor no bloqueante basado en Selector.
+	 */
+	static final String MOTOR_NIO = "nio";
+
 } // SalaDeChat
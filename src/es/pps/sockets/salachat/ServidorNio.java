@@ -0,0 +1,173 @@
+package es.pps.sockets.salachat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import es.pps.sockets.comun.Extremos;
+
+/**
+ * Motor alternativo del servidor de la sala de chat basado en E/S no
+ * bloqueante (java.nio). En lugar de lanzar una hebra por cada cliente, como
+ * hace el motor clásico de SalaDeChat, todas las conexiones se reparten por
+ * turnos entre un número fijo de bucles de eventos (BucleEventos), cada uno con
+ * su propio Selector y su propia hebra.
+ *
+ * La hebra que llama a ejecuta() se queda aceptando conexiones en modo
+ * bloqueante y se limita a entregar cada canal nuevo a su bucle.
+ *
+ * El reenvío es idéntico al del motor clásico: cada línea recibida se pasa al
+ * gestor de salas, que la manda a los demás miembros de la sala de quien la
+ * envió.
+ */
+class ServidorNio {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param port      Puerto donde escuchar.
+	 * @param numBucles Número de bucles de eventos (y por tanto de hebras) que
+	 *                  atenderán a los clientes.
+	 */
+	ServidorNio(int port, int numBucles) {
+
+		_port = port;
+		_bucles = new BucleEventos[numBucles];
+
+	} // Constructor
+
+	// --------------------------------------------------------
+
+	/**
+	 * Lanza los bucles de eventos y se queda aceptando conexiones de forma
+	 * indefinida.
+	 *
+	 * @throws IOException Si no se puede abrir el puerto o crear algún Selector.
+	 */
+	void ejecuta() throws IOException {
+
+		for (int i = 0; i < _bucles.length; ++i) {
+			_bucles[i] = new BucleEventos(this);
+			Thread t = new Thread(_bucles[i], "bucle-nio-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		_salas.abreDiario();
+		_salas.federa();
+		Metricas.publica(_salas.clientes());
+		if (Configuracion.INFORME_COLAS_MS > 0)
+			SalaDeChat.informaColas(_salas.clientes(), Configuracion.INFORME_COLAS_MS);
+
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+
+			serverChannel.bind(new InetSocketAddress(_port));
+
+			int siguiente = 0;
+			while (true) {
+
+				SocketChannel canal;
+				try {
+					canal = serverChannel.accept();
+				} catch (IOException ioe) {
+					System.err.println("Error esperando clientes: " + ioe.getLocalizedMessage());
+					return;
+				}
+
+				// Mostramos información de la conexión.
+				Socket socket = canal.socket();
+				System.out.println("[ Conexión desde " + Extremos.describe(socket.getLocalAddress(), socket.getLocalPort())
+						+ " a " + Extremos.describe(socket.getInetAddress(), socket.getPort()) + " ]");
+
+				// Repartimos las conexiones por turnos.
+				BucleEventos bucle = _bucles[siguiente];
+				siguiente = (siguiente + 1) % _bucles.length;
+				bucle.registra(new ConexionNio(canal, bucle));
+
+			} // while(true)
+		}
+
+	} // ejecuta
+
+	// --------------------------------------------------------
+
+	/**
+	 * Método llamado por los bucles de eventos cuando una conexión ya está
+	 * registrada en su Selector y lista para recibir datos.
+	 *
+	 * @param conexion Conexión nueva.
+	 */
+	void onConectado(ConexionNio conexion) {
+
+		_salas.alta(conexion);
+
+	} // onConectado
+
+	// --------------------------------------------------------
+
+	/**
+	 * Método llamado cuando una conexión se cierra, por cualquier motivo.
+	 *
+	 * @param conexion Conexión cerrada.
+	 */
+	void onDesconectado(ConexionNio conexion) {
+
+		_salas.baja(conexion);
+		System.out.println("  [Fin de la conexión]");
+
+	} // onDesconectado
+
+	// --------------------------------------------------------
+
+	/**
+	 * Reenvía una línea completa recibida por una conexión a las demás de su
+	 * sala.
+	 *
+	 * @param origen  Conexión por la que ha llegado la línea.
+	 * @param mensaje Línea recibida, ya con el fin de línea.
+	 */
+	void difunde(ConexionNio origen, Mensaje mensaje) {
+
+		_salas.procesa(origen, mensaje);
+		mensaje.muestra(System.out);
+
+	} // difunde
+
+	// --------------------------------------------------------
+
+	/**
+	 * Procesa una trama completa recibida por una conexión que usa el
+	 * protocolo de tramas.
+	 *
+	 * @param origen  Conexión por la que ha llegado la trama.
+	 * @param mensaje Contenido de la trama.
+	 */
+	void difundeTrama(ConexionNio origen, Mensaje mensaje) {
+
+		_salas.procesaTrama(origen, mensaje);
+		mensaje.muestra(System.out);
+
+	} // difundeTrama
+
+	// --------------------------------------------------------
+	// Atributos protegidos/privados
+	// --------------------------------------------------------
+
+	/**
+	 * Puerto donde escuchamos.
+	 */
+	int _port;
+
+	/**
+	 * Bucles de eventos entre los que se reparten las conexiones.
+	 */
+	BucleEventos[] _bucles;
+
+	/**
+	 * Gestor de las salas, con todas las conexiones abiertas.
+	 */
+	GestorSalas _salas = new GestorSalas(Configuracion.DESPACHADORES);
+
+} // ServidorNio